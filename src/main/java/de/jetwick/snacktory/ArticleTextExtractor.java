@@ -1,6 +1,7 @@
 package de.jetwick.snacktory;
 
 import com.google.common.net.InternetDomainName;
+import de.jetwick.snacktory.JResult.Field;
 import de.jetwick.snacktory.utils.AuthorUtils;
 import de.jetwick.snacktory.utils.Configuration;
 import de.jetwick.snacktory.utils.DateUtils;
@@ -35,6 +36,8 @@ public class ArticleTextExtractor {
     private static final Logger logger = LoggerFactory.getLogger(ArticleTextExtractor.class);
     // Interesting nodes
     private static final Pattern NODES = Pattern.compile("p|div|td|h1|h2|article|section");
+    // the score of the deprecated attribute based API
+    static final String SCORE_ATTRIBUTE = "gravityScore";
 
     private HtmlCleaner cleaner = new HtmlCleaner();
     // take default cleaner properties
@@ -69,6 +72,8 @@ public class ArticleTextExtractor {
     // Notes to remove pattterns
     private String toRemoveStr;
     private Pattern TO_REMOVE;
+    // matches all the patterns above at once, created again if one changes
+    private PatternClassifier classifier;
 
     private static final Pattern NEGATIVE_STYLE =
             Pattern.compile("hidden|display: ?none|font-size: ?small");
@@ -82,6 +87,8 @@ public class ArticleTextExtractor {
     };
     private static final OutputFormatter DEFAULT_FORMATTER = new OutputFormatter();
     private OutputFormatter formatter = DEFAULT_FORMATTER;
+    // the site specific rules, see domain-rules.yml
+    private DomainRules domainRules;
 
     private static final int MAX_LINK_SIZE = 512;
 
@@ -115,182 +122,6 @@ public class ArticleTextExtractor {
         Pattern.compile("(.*)Uhr", Pattern.CASE_INSENSITIVE)
     );
 
-    // Define custom rules to remove nodes for specific domains
-    // TODO: Load this from yaml/settings file
-    private static final Map<String, List> NODES_TO_REMOVE_PER_DOMAIN;
-    static {
-        Map<String, List> aMap = new LinkedHashMap<String, List>();
-        aMap.put("golocalprov.com", Arrays.asList(
-                "[id=slideshow-wrap]"
-            ));
-        aMap.put("cmo.com", Arrays.asList(
-                "[id=getupdatesform]"
-            ));
-        aMap.put("bestpaths.com", Arrays.asList(
-                "[id=secondary]"
-            ));
-        aMap.put("beet.tv", Arrays.asList(
-                ".single-recent-post-container"
-            ));
-        aMap.put("efytimes.com", Arrays.asList(
-                ".data-para"
-            ));
-        aMap.put("wn.com", Arrays.asList(
-                ".caroufredsel_wrapper"
-            ));
-        aMap.put("www.reuters.com", Arrays.asList(
-                ".section.main-content", // odd case the "section main-content" class actually contains only the title.
-                "div[id=specialFeature]",        // remove non-article section
-                "div.next-articles",
-                "span.articleLocation"
-            ));
-        aMap.put("investors.com", Arrays.asList(
-                ".special-report",
-                ".more-news"
-            ));
-        aMap.put("einnews.com", Arrays.asList(
-                ".headlines.mini"
-            ));
-        aMap.put("fortune.com", Arrays.asList(
-                "[id=reprint-modal]"
-            ));
-        aMap.put("drimble.nl", Arrays.asList(
-                ".dinfoo",
-                ".dvv",
-                ".ip"
-            ));
-        aMap.put("americanbanker.com", Arrays.asList(
-                "[id=whatis-pso-rss-content]"
-            ));
-        aMap.put("schwab.com", Arrays.asList(
-                ".article-disclosure",
-                ".article-call-to-action"
-            ));
-        aMap.put("theverge.com", Arrays.asList(
-                ".m-linkset__entries-item",
-                ".m-linkset",
-                ".feature-photos-story.feature-photos-column",
-                ".js-carousel-pane",
-                "[id=feature-photos-model]"
-            ));
-        aMap.put("today.com", Arrays.asList(
-                ".j-video-feeds",
-                ".player-closedcaption"
-            ));
-        aMap.put("bizjournals.com", Arrays.asList(
-                ".breadcrumbs",
-                "[class*=module module--padded]",
-                ".module.module--ruled",
-                "[class^=promo]",
-                ".item.item--flag"
-            ));
-        aMap.put("therivardreport.com", Arrays.asList(
-                "h2:contains(Related Stories:) ~ p" // All the `p` tags after the text `Related Stories:`
-            ));
-        aMap.put("inforisktoday", Arrays.asList(
-                "p:has(b):contains(See Also:)"
-            ));
-        aMap.put("nytimes.com", Arrays.asList(
-                ".hidden"
-            ));
-        aMap.put("teenvogue.com", Arrays.asList(
-                ".rendition-social-outer",
-                "cite"
-            ));
-        aMap.put("philly.com", Arrays.asList(
-                "[class=pad-and-half--top cb]"
-            ));
-        aMap.put("foxnews.com", Arrays.asList(
-                "p:contains(RELATED:) ~ ul"
-            ));
-        aMap.put("thehill.com", Arrays.asList(
-                "span.rollover-people-block"
-        ));
-
-        NODES_TO_REMOVE_PER_DOMAIN = Collections.unmodifiableMap(aMap);
-    }
-
-    // Define custom rules to select nodes for specific domains
-    // TODO: Load this from yaml/settings file
-    private static final Map<String, List> BEST_ELEMENT_PER_DOMAIN;
-    static {
-        Map<String, List> aMap = new LinkedHashMap<String, List>();
-        aMap.put("video.foxbusiness.com", Arrays.asList(
-                "div.video-meta"
-            ));
-        aMap.put("macnn.com", Arrays.asList(
-                "div.container-wrapper"
-            ));
-        aMap.put("selling-stock.com", Arrays.asList(
-                "div.storycontent"
-            ));
-        aMap.put("prnewswire.com", Arrays.asList(
-                "div.release-body"
-            ));
-        aMap.put("theverge.com", Arrays.asList(
-                "article.m-feature"
-            ));
-        aMap.put("iheart.com", Arrays.asList(
-                "article"
-            ));
-        aMap.put("blog.linkedin.com", Arrays.asList(
-                ".full-content"
-            ));
-        aMap.put("computerweekly.com", Arrays.asList(
-                ".main-article-chapter"
-        ));
-        aMap.put("nytimes.com", Arrays.asList(
-                ".theme-main"
-        ));
-        aMap.put("bizjournals.com", Arrays.asList(
-                "article[class=detail]"
-        ));
-        aMap.put("sltrib.com", Arrays.asList(
-                "#main-content > div.row"
-        ));
-        aMap.put("sfchronicle.com", Arrays.asList(
-                "div.article-text"
-        ));
-        aMap.put("teenvogue.com", Arrays.asList(
-                "div.listicle-wrapper",
-                "noscript[data-reactid]"
-        ));
-        aMap.put("popsugar.com", Arrays.asList(
-                ".shoppable-container"
-        ));
-        aMap.put("thehill.com", Arrays.asList(
-                "article"
-        ));
-
-        BEST_ELEMENT_PER_DOMAIN = Collections.unmodifiableMap(aMap);
-    }
-
-    private static Set<String> REQUIRE_NOSCRIPTS = new HashSet<String>() {{
-        add("teenvogue.com");
-        add("www.teenvogue.com");
-    }};
-
-    // Define custom rules to select css nodes per domain in the OutputFormatter
-    // TODO: Load this from yaml/settings file
-    private static final Map<String, OutputFormatter> OUTPUT_FORMATTER_PER_DOMAIN;
-    static {
-        Map<String, OutputFormatter> aMap = new LinkedHashMap<String, OutputFormatter>();
-
-        OutputFormatter formatter = new OutputFormatter();
-        formatter.setNodesToKeepCssSelector("p, ol, em, ul, li, h2");
-        aMap.put("drimble.nl",  formatter);
-
-        formatter = new OutputFormatter(30, 30);
-        formatter.setNodesToKeepCssSelector("p, ol, em, ul, li, h2");
-        aMap.put("teenvogue.com",  formatter);
-        aMap.put("www.teenvogue.com",  formatter);
-
-        formatter = new OutputFormatter(OutputFormatter.MIN_FIRST_PARAGRAPH_TEXT, 25);
-        aMap.put("publicnet.co.uk",  formatter);
-
-        OUTPUT_FORMATTER_PER_DOMAIN = Collections.unmodifiableMap(aMap);
-    }
-
     private static final int MAX_AUTHOR_DESC_LENGHT = 1000;
     private static final int MAX_IMAGE_LENGHT = 255;
 
@@ -329,6 +160,7 @@ public class ArticleTextExtractor {
     public ArticleTextExtractor setUnlikely(String unlikelyStr) {
         this.unlikelyStr = unlikelyStr;
         UNLIKELY = Pattern.compile(unlikelyStr, Pattern.CASE_INSENSITIVE);
+        classifier = null;
         return this;
     }
 
@@ -339,12 +171,14 @@ public class ArticleTextExtractor {
     public ArticleTextExtractor setPositive(String positiveStr) {
         this.positiveStr = positiveStr;
         POSITIVE = Pattern.compile(positiveStr, Pattern.CASE_INSENSITIVE);
+        classifier = null;
         return this;
     }
 
     public ArticleTextExtractor setHighlyPositive(String highlyPositiveStr) {
         this.highlyPositiveStr = highlyPositiveStr;
         HIGHLY_POSITIVE = Pattern.compile(highlyPositiveStr, Pattern.CASE_INSENSITIVE);
+        classifier = null;
         return this;
     }
 
@@ -355,12 +189,14 @@ public class ArticleTextExtractor {
     public ArticleTextExtractor setNegative(String negativeStr) {
         this.negativeStr = negativeStr;
         NEGATIVE = Pattern.compile(negativeStr, Pattern.CASE_INSENSITIVE);
+        classifier = null;
         return this;
     }
 
     public ArticleTextExtractor setHighlyNegative(String highlyNegativeStr) {
         this.highlyNegativeStr = highlyNegativeStr;
         HIGHLY_NEGATIVE = Pattern.compile(highlyNegativeStr, Pattern.CASE_INSENSITIVE);
+        classifier = null;
         return this;
     }
 
@@ -372,9 +208,33 @@ public class ArticleTextExtractor {
     public ArticleTextExtractor setToRemove(String toRemoveStr) {
         this.toRemoveStr = toRemoveStr;
         TO_REMOVE = Pattern.compile(toRemoveStr, Pattern.CASE_INSENSITIVE);
+        classifier = null;
+        return this;
+    }
+
+    private PatternClassifier classifier() {
+        PatternClassifier c = classifier;
+        if (c == null) {
+            c = new PatternClassifier(UNLIKELY, POSITIVE, HIGHLY_POSITIVE, NEGATIVE, HIGHLY_NEGATIVE, TO_REMOVE);
+            classifier = c;
+        }
+        return c;
+    }
+
+    /**
+     * @param domainRules the site specific rules, null for
+     * DomainRules.getDefault()
+     */
+    public ArticleTextExtractor setDomainRules(DomainRules domainRules) {
+        this.domainRules = domainRules;
         return this;
     }
 
+    private DomainRules domainRules() {
+        DomainRules rules = domainRules;
+        return rules != null ? rules : DomainRules.getDefault();
+    }
+
     public void setOutputFormatter(OutputFormatter formatter) {
         this.formatter = formatter;
     }
@@ -402,59 +262,128 @@ public class ArticleTextExtractor {
 
     public JResult extractContent(JResult res, String html, OutputFormatter formatter,
                                   Boolean extractimages, int maxContentSize) throws Exception {
+        return extractContent(res, html, formatter, toRequest(extractimages, maxContentSize));
+    }
+
+    /**
+     * Extracts only the fields of the request, the work for the other fields
+     * is skipped.
+     */
+    public JResult extractContent(JResult res, String html, ExtractionRequest request) throws Exception {
+        return extractContent(res, html, formatter, request);
+    }
+
+    public JResult extractContent(JResult res, String html, OutputFormatter formatter,
+                                  ExtractionRequest request) throws Exception {
         if (html.isEmpty())
             throw new IllegalArgumentException("html string is empty!?");
 
         // http://jsoup.org/cookbook/extracting-data/selector-syntax
-        JResult result =  extractContent(res, Jsoup.parse(html, res.getUrl()), formatter, extractimages, maxContentSize);
+        JResult result = extract(res, Jsoup.parse(html, res.getUrl()), request);
 
         // Do a sanity check, if the result content contains HTML tags most likely it is a bad
         // extraction, this may happen due to malformed HTML; try again using HTML cleaned with a
         // different library.
         if(hasHTMLTags(result.getText())){
             TagNode node = cleaner.clean(html);
-            return extractContent(res, Jsoup.parse(cleaner.getInnerHtml(node), res.getUrl()), formatter, extractimages, maxContentSize);
+            return extract(res, Jsoup.parse(cleaner.getInnerHtml(node), res.getUrl()), request);
         }
         return result;
     }
 
     public JResult extractContent(JResult res, Document doc, OutputFormatter formatter,
                                   Boolean extractimages, int maxContentSize) throws Exception {
-        Document origDoc = doc.clone();
-        JResult result = extractContent(res, doc, formatter, extractimages, maxContentSize, true);
-        // If the result is empty try again without cleaning the scripts.
-        if (result.getText().length() == 0) {
-            result = extractContent(res, origDoc, formatter, extractimages, maxContentSize, false);
+        return extract(res, doc, toRequest(extractimages, maxContentSize));
+    }
+
+    /**
+     * Extracts the metadata once from the pristine document and then
+     * searches the best element. If it has no text the clean up is undone
+     * and the best element is searched again without removing the scripts,
+     * so the document is not cloned upfront for this rare case.
+     */
+    private JResult extract(JResult res, Document doc, ExtractionRequest request) throws Exception {
+        if (doc == null)
+            throw new NullPointerException("missing document");
+
+        extractMetadata(res, doc, request);
+        Element bestMatchElement = null;
+        if (request.needsBestElement()) {
+            // the same rules for both passes, even if they are reloaded
+            DomainRules rules = domainRules();
+            DocumentJournal journal = new DocumentJournal();
+            bestMatchElement = extractBestElement(res, doc, request, rules, true, journal);
+            // If the result is empty try again without cleaning the scripts.
+            if (res.getText().length() == 0) {
+                journal.undo();
+                bestMatchElement = extractBestElement(res, doc, request, rules, false, null);
+            }
         }
+        extractRemaining(res, doc, request, bestMatchElement);
 
         // If article has no content at all at the least assign description as a content
-        if (StringUtils.isBlank(res.getText())) {
+        if (StringUtils.isBlank(res.getText()) && request.has(Field.TEXT)) {
             res.setText(res.getDescription());
         }
-        return result;
+        return res;
     }
 
-    // main workhorse
     public JResult extractContent(JResult res, Document doc, OutputFormatter formatter,
                                   Boolean extractimages, int maxContentSize, boolean cleanScripts) throws Exception {
+        return extractContent(res, doc, formatter, toRequest(extractimages, maxContentSize), cleanScripts);
+    }
+
+    private static ExtractionRequest toRequest(Boolean extractimages, int maxContentSize) {
+        Set<Field> fields = EnumSet.allOf(Field.class);
+        if (!extractimages)
+            fields.remove(Field.IMAGES);
+        return ExtractionRequest.of(fields).setMaxContentSize(maxContentSize);
+    }
+
+    /**
+     * A single pass of the extraction, without the second pass for pages
+     * whose text is empty after the scripts were removed.
+     */
+    public JResult extractContent(JResult res, Document doc, OutputFormatter formatter,
+                                  ExtractionRequest request, boolean cleanScripts) throws Exception {
         if (doc == null)
             throw new NullPointerException("missing document");
 
-        // get the easy stuff
-        res.setTitle(extractTitle(doc));
-        res.setDescription(extractDescription(doc));
-        res.setCanonicalUrl(extractCanonicalUrl(res.getUrl(), doc, false));
+        extractMetadata(res, doc, request);
+        Element bestMatchElement = null;
+        if (request.needsBestElement())
+            bestMatchElement = extractBestElement(res, doc, request, domainRules(), cleanScripts, null);
+        return extractRemaining(res, doc, request, bestMatchElement);
+    }
+
+    /**
+     * Extracts everything which is taken from the document before its clutter
+     * is removed.
+     */
+    private void extractMetadata(JResult res, Document doc, ExtractionRequest request) {
+        // get the easy stuff, the text is compared with title and description
+        if (request.has(Field.TITLE) || request.needsBestElement())
+            res.setTitle(extractTitle(doc));
+        if (request.has(Field.DESCRIPTION) || request.has(Field.TEXT) || request.has(Field.AUTHOR))
+            res.setDescription(extractDescription(doc));
+        if (request.has(Field.CANONICAL_URL))
+            res.setCanonicalUrl(extractCanonicalUrl(res.getUrl(), doc, false));
         res.setDomain(extractDomain(res.getUrl()));
         res.setTopPrivateDomain(extractTopPrivateDomain(res.getUrl()));
 
-        res.setType(extractType(doc));
-        res.setSitename(extractSitename(doc));
-        res.setLanguage(extractLanguage(doc));
+        if (request.has(Field.TYPE))
+            res.setType(extractType(doc));
+        if (request.has(Field.SITENAME))
+            res.setSitename(extractSitename(doc));
+        if (request.has(Field.LANGUAGE))
+            res.setLanguage(extractLanguage(doc));
 
         // get author information
-        res.setRawAuthorName(extractAuthorName(doc));
-        res.setAuthorName(AuthorUtils.cleanup(res.getRawAuthorName()));
-        res.setAuthorDescription(extractAuthorDescription(doc, res.getAuthorName()));
+        if (request.has(Field.AUTHOR)) {
+            res.setRawAuthorName(extractAuthorName(doc));
+            res.setAuthorName(AuthorUtils.cleanup(res.getRawAuthorName()));
+            res.setAuthorDescription(extractAuthorDescription(doc, res.getAuthorName()));
+        }
 
         // add extra selection gravity to any element containing author name
         // wasn't useful in the case I implemented it for, but might be later
@@ -466,55 +395,18 @@ public class ArticleTextExtractor {
         }
         */
 
-        // Extract date from document using css selectors
-        Date extractedDate = extractDate(doc);
-        if (extractedDate == null) {
-            // Extract date from url
-            String dateStr = SHelper.completeDate(SHelper.estimateDate(res.getUrl()));
-            if(DEBUG_DATE_EXTRACTION){ System.out.println("Using SHelper.estimateDate"); }
-            extractedDate = parseDate(dateStr);
-        }
-
-        if(extractedDate == null) {
-            // Regex match to entire article
-            extractedDate = extractDateUsingRegex(doc.toString());
-        }
-        res.setDate(extractedDate);
-
-        // now remove the clutter (first try to remove any scripts)
-        if (cleanScripts) {
-            removeScriptsAndStyles(doc, res.getDomain());
-        }
-        // Always remove unlikely candidates
-        stripUnlikelyCandidates(doc);
-
-        // check for domain specific rules
-        removeNodesPerDomain(doc, res.getDomain());
-        removeNodesPerDomain(doc, res.getTopPrivateDomain());
-        removeNodesPerDomain(doc, extractDomainNameWithoutTld(res.getTopPrivateDomain()));
-
-        // first evaluate if there is any domain specific rules.
-        Element bestMatchElement = getBestMatchElementPerURL(doc, res.getUrl());
-        if (bestMatchElement != null){
-            processBestElement(res, extractimages, maxContentSize, bestMatchElement);
-        } else {
-            // init elements and get the one with highest weight (see getWeight for strategy)
-            Collection<Element> nodes = getNodes(doc);
-            TreeMap<ElementKey, ElementDebug> bestMatchElements = getBestMatchElements(nodes);
-            Set bestMatchElementsSet = bestMatchElements.entrySet();
-            Iterator i = bestMatchElementsSet.iterator();
-            while(i.hasNext()) {
-                Map.Entry currentEntry = (Map.Entry)i.next();
-                bestMatchElement = ((ElementDebug)currentEntry.getValue()).entry;
-                if (!processBestElement(res, extractimages, maxContentSize, bestMatchElement)){
-                    continue;
-                }
-                // if we got to this point it means the current entry is the best element.
-                break;
-            }
-        }
+        // the date has to be extracted before the clutter is removed
+        if (request.has(Field.DATE))
+            res.setDate(extractDate(res, doc));
+    }
 
-        if(bestMatchElement!=null){
+    /**
+     * Extracts links from the best element and everything which is taken
+     * from the cleaned document.
+     */
+    private JResult extractRemaining(JResult res, Document doc, ExtractionRequest request,
+                                     Element bestMatchElement) {
+        if(bestMatchElement!=null && request.has(Field.LINKS)){
             // extract links from the same best element
             String fullhtml = bestMatchElement.toString();
             Elements children = bestMatchElement.select("a[href]"); // a with href = link
@@ -531,25 +423,31 @@ public class ArticleTextExtractor {
             }
         }
 
-        if (extractimages) {
+        if (request.has(Field.IMAGES)) {
             if (res.getImageUrl().isEmpty()) {
                 res.setImageUrl(extractImageUrl(doc));
             }
         }
 
-        res.setRssUrl(extractRssUrl(doc));
-        res.setVideoUrl(extractVideoUrl(doc));
-        res.setFaviconUrl(extractFaviconUrl(doc));
-        res.setKeywords(extractKeywords(doc));
+        if (request.has(Field.RSS_URL))
+            res.setRssUrl(extractRssUrl(doc));
+        if (request.has(Field.VIDEO_URL))
+            res.setVideoUrl(extractVideoUrl(doc));
+        if (request.has(Field.FAVICON_URL))
+            res.setFaviconUrl(extractFaviconUrl(doc));
+        if (request.has(Field.KEYWORDS))
+            res.setKeywords(extractKeywords(doc));
 
         // Sanity checks in author description.
-        String authorDescSnippet = getSnippet(res.getAuthorDescription());
-        if (getSnippet(res.getText()).equals(authorDescSnippet) ||
-             getSnippet(res.getDescription()).equals(authorDescSnippet)) {
-            res.setAuthorDescription("");
-        } else {
-            if (res.getAuthorDescription().length() > MAX_AUTHOR_DESC_LENGHT){
-                res.setAuthorDescription(SHelper.utf8truncate(res.getAuthorDescription(), MAX_AUTHOR_DESC_LENGHT));
+        if (request.has(Field.AUTHOR)) {
+            String authorDescSnippet = getSnippet(res.getAuthorDescription());
+            if (getSnippet(res.getText()).equals(authorDescSnippet) ||
+                 getSnippet(res.getDescription()).equals(authorDescSnippet)) {
+                res.setAuthorDescription("");
+            } else {
+                if (res.getAuthorDescription().length() > MAX_AUTHOR_DESC_LENGHT){
+                    res.setAuthorDescription(SHelper.utf8truncate(res.getAuthorDescription(), MAX_AUTHOR_DESC_LENGHT));
+                }
             }
         }
 
@@ -559,9 +457,67 @@ public class ArticleTextExtractor {
             res.setImageUrl("");
         }
 
+        res.setFields(request.getFields());
         return res;
     }
 
+    private Date extractDate(JResult res, Document doc) {
+        // Extract date from document using css selectors
+        Date extractedDate = extractDate(doc);
+        if (extractedDate == null) {
+            // Extract date from url
+            String dateStr = SHelper.completeDate(SHelper.estimateDate(res.getUrl()));
+            if(DEBUG_DATE_EXTRACTION){ System.out.println("Using SHelper.estimateDate"); }
+            extractedDate = parseDate(dateStr);
+        }
+
+        if(extractedDate == null) {
+            // Regex match to entire article
+            extractedDate = extractDateUsingRegex(doc.toString());
+        }
+        return extractedDate;
+    }
+
+    /**
+     * Removes the clutter from the document and sets text and images of the
+     * result from its best element.
+     *
+     * @return the best element or null
+     */
+    private Element extractBestElement(JResult res, Document doc, ExtractionRequest request,
+                                       DomainRules rules, boolean cleanScripts, DocumentJournal journal) {
+        // now remove the clutter (first try to remove any scripts)
+        if (cleanScripts) {
+            removeScriptsAndStyles(doc, rules.keepsNoscript(res.getDomain()), journal);
+        }
+        // Always remove unlikely candidates
+        stripUnlikelyCandidates(doc, journal);
+
+        // check for domain specific rules
+        removeNodesPerDomain(doc, rules.getNodesToRemove(res.getDomain(), res.getTopPrivateDomain(),
+                extractDomainNameWithoutTld(res.getTopPrivateDomain())), journal);
+
+        // first evaluate if there is any domain specific rules.
+        ScoringContext scores = new ScoringContext();
+        Element bestMatchElement = getBestMatchElementPerURL(doc, res.getUrl(), rules);
+        if (bestMatchElement != null){
+            processBestElement(res, request, rules, bestMatchElement, scores, journal);
+        } else {
+            // init elements and get the one with highest weight (see getWeight for strategy)
+            Collection<Element> nodes = getNodes(doc, scores);
+            Iterator<Element> i = getBestMatchElements(nodes, scores);
+            while(i.hasNext()) {
+                bestMatchElement = i.next();
+                if (!processBestElement(res, request, rules, bestMatchElement, scores, journal)){
+                    continue;
+                }
+                // if we got to this point it means the current entry is the best element.
+                break;
+            }
+        }
+        return bestMatchElement;
+    }
+
     // extract only the canonical URL
     public JResult extractCanonical(JResult res, String html) throws Exception {
         return extractCanonical(res, html, false);
@@ -582,9 +538,9 @@ public class ArticleTextExtractor {
         return res;
     }
 
-    private boolean processBestElement(JResult res, Boolean extractimages,
-                                       int maxContentSize, Element bestMatchElement){
-        if (extractimages) {
+    private boolean processBestElement(JResult res, ExtractionRequest request, DomainRules rules, Element bestMatchElement,
+                                       ScoringContext scores, DocumentJournal journal){
+        if (request.has(Field.IMAGES)) {
             List<ImageResult> images = new ArrayList<ImageResult>();
             Element imgEl = determineImageSource(bestMatchElement, images);
             if (imgEl != null) {
@@ -597,17 +553,17 @@ public class ArticleTextExtractor {
 
         // check for domain specific formatter
         OutputFormatter customFormatter = null;
-        customFormatter = getOutputFormatterPerDomain(res.getDomain());
+        customFormatter = rules.getOutputFormatter(res.getDomain());
         if(customFormatter==null){
-            customFormatter = getOutputFormatterPerDomain(res.getTopPrivateDomain());
+            customFormatter = rules.getOutputFormatter(res.getTopPrivateDomain());
         }
 
         // clean before grabbing text
         String text = null;
         if(customFormatter!=null){
-            text = customFormatter.getFormattedText(bestMatchElement, true);
+            text = customFormatter.getFormattedText(bestMatchElement, true, scores, journal);
         } else {
-            text = formatter.getFormattedText(bestMatchElement, true);
+            text = formatter.getFormattedText(bestMatchElement, true, scores, journal);
         }
 
         text = removeTitleFromText(text, res.getTitle());
@@ -624,6 +580,7 @@ public class ArticleTextExtractor {
 
         // this fails for short facebook post and probably tweets: text.length() > res.getDescription().length()
         if (text.length() > res.getTitle().length()) {
+            int maxContentSize = request.getMaxContentSize();
             if (maxContentSize > 0){
                 if (text.length() > maxContentSize){
                     text = SHelper.utf8truncate(text, maxContentSize);
@@ -642,7 +599,7 @@ public class ArticleTextExtractor {
         return true;
     }
 
-    private Element getBestMatchElementPerURL(Document doc, String url){
+    private Element getBestMatchElementPerURL(Document doc, String url, DomainRules rules){
         if (url==null || url.length()==0){
             return null;
         }
@@ -650,11 +607,11 @@ public class ArticleTextExtractor {
         if(domain!=null){
             InternetDomainName topPrivateDomain = getTopPrivateDomain(domain);
             if(topPrivateDomain!=null){
-                Element vDomain = getBestMatchElementPerDomain(doc, domain.toString());
+                Element vDomain = getBestMatchElementPerDomain(doc, domain.toString(), rules);
                 if (vDomain!=null){
                     return vDomain;
                 }
-                Element vTopDomain = getBestMatchElementPerDomain(doc, topPrivateDomain.toString());
+                Element vTopDomain = getBestMatchElementPerDomain(doc, topPrivateDomain.toString(), rules);
                 if (vTopDomain!=null){
                     return vTopDomain;
                 }
@@ -663,14 +620,11 @@ public class ArticleTextExtractor {
         return null;
     }
 
-    private Element getBestMatchElementPerDomain(Document doc, String domainName){
-        List<String> selectorList = BEST_ELEMENT_PER_DOMAIN.get(domainName);
-        if (selectorList!=null){
-            for (String selector : selectorList) {
-                Elements items = doc.select(selector);
-                if (items.size()>0){
-                    return items.get(0);
-                }
+    private Element getBestMatchElementPerDomain(Document doc, String domainName, DomainRules rules){
+        for (DomainRules.CompiledSelector selector : rules.getBestElementSelectors(domainName)) {
+            Elements items = selector.select(doc);
+            if (items.size()>0){
+                return items.get(0);
             }
         }
         return null;
@@ -678,15 +632,56 @@ public class ArticleTextExtractor {
 
     // Returns the best node match based on the weights (see getWeight for strategy)
     private Element getBestMatchElement(Collection<Element> nodes){
-        Map.Entry<ElementKey, ElementDebug> firstEntry = getBestMatchElements(nodes).firstEntry();
-        if (firstEntry!=null){
-            return firstEntry.getValue().entry;
+        // the scores of this search do not affect the text of the article
+        Iterator<Element> i = getBestMatchElements(nodes, new ScoringContext());
+        if (i.hasNext()){
+            return i.next();
         }
         return null;
     }
 
-    // Returns a TreeMap of nodes sorted by their weight.
-    private TreeMap<ElementKey, ElementDebug> getBestMatchElements(Collection<Element> nodes){
+    // Returns the nodes sorted by their weight, the statistics of every node
+    // are calculated only once (see CandidateScorer).
+    Iterator<Element> getBestMatchElements(Collection<Element> nodes, ScoringContext scores){
+        if (DEBUG_WEIGHTS){
+            final Iterator<ElementDebug> i = getSortedBestMatchElements(nodes, scores).values().iterator();
+            return new Iterator<Element>() {
+                @Override
+                public boolean hasNext() {
+                    return i.hasNext();
+                }
+
+                @Override
+                public Element next() {
+                    return i.next().entry;
+                }
+
+                @Override
+                public void remove() {
+                    throw new UnsupportedOperationException();
+                }
+            };
+        }
+
+        CandidateScorer scorer = new CandidateScorer(classifier());
+        List<Element> candidates = new ArrayList<Element>(nodes);
+        int[] weights = new int[candidates.size()];
+        boolean hasHighlyPositive = false;
+        for (int position = 0; position < weights.length; position++) {
+            Element entry = candidates.get(position);
+            Weight val = calcWeight(entry, hasHighlyPositive, null);
+            hasHighlyPositive = val.hasHighlyPositive;
+            val.weight += (int) Math.round(scorer.getOwnTextLength(entry) / 100.0 * 10);
+            val.weight += (int) Math.round(scorer.weightChildNodes(entry, scores) * 0.9);
+            weights[position] = val.weight;
+        }
+        scorer.addChildScores(scores);
+        return new CandidateScorer.Ranking(candidates, weights, CandidateScorer.TOP_K);
+    }
+
+    // Returns a TreeMap of nodes sorted by their weight. Every node walks its
+    // children again, this is used for the debug log.
+    TreeMap<ElementKey, ElementDebug> getSortedBestMatchElements(Collection<Element> nodes, ScoringContext scores){
 
         // Sorted list of nodes. The list is sorted first by weight (from more to less),
         // if two nodes have the same weight then sort by position (from 0 to N)
@@ -723,7 +718,7 @@ public class ArticleTextExtractor {
             if (DEBUG_WEIGHTS)
                 logEntries = new LogEntries();
 
-            Weight val = getWeight(entry, false, hasHighlyPositive, logEntries);
+            Weight val = getWeight(entry, false, hasHighlyPositive, scores, logEntries);
             int currentWeight = val.weight;
             hasHighlyPositive = val.hasHighlyPositive;
 
@@ -2658,15 +2653,26 @@ public class ArticleTextExtractor {
      * child nodes
      *
      * @param e Element to weight, along with child nodes
+     * @deprecated the extraction keeps the scores in a ScoringContext, this
+     * writes the scores of the children to the gravityScore attributes
      */
+    @Deprecated
     protected Weight getWeight(Element e, boolean checkextra, boolean hasHighlyPositive, LogEntries logEntries) {
+        ScoringContext scores = new ScoringContext();
+        Weight val = getWeight(e, checkextra, hasHighlyPositive, scores, logEntries);
+        addScoreAttributes(scores);
+        return val;
+    }
+
+    Weight getWeight(Element e, boolean checkextra, boolean hasHighlyPositive, ScoringContext scores,
+                     LogEntries logEntries) {
         Weight val = calcWeight(e, hasHighlyPositive, logEntries);
 
         if(logEntries!=null) logEntries.add("       ======>     BASE WEIGHT:" + String.format("%3d", val.weight));
         int ownTextWeight = (int) Math.round(e.ownText().length() / 100.0 * 10);
         val.weight+=ownTextWeight;
         if(logEntries!=null) logEntries.add("       ======> OWN TEXT WEIGHT:" + String.format("%3d", ownTextWeight));
-        int childrenWeight = (int) Math.round(weightChildNodes(e, logEntries) * 0.9);
+        int childrenWeight = (int) Math.round(weightChildNodes(e, scores, logEntries) * 0.9);
         val.weight+=childrenWeight;
         if(logEntries!=null) logEntries.add("       ======> CHILDREN WEIGHT:" + String.format("%3d", childrenWeight)
                                             + " -- 90% OF CHILDREN WEIGHT");
@@ -2695,8 +2701,18 @@ public class ArticleTextExtractor {
      * increasing probability of the correct extraction.
      *
      * @param rootEl Element, who's child nodes will be weighted
+     * @deprecated the extraction keeps the scores in a ScoringContext, this
+     * writes the scores of the children to the gravityScore attributes
      */
+    @Deprecated
     protected int weightChildNodes(Element rootEl, LogEntries logEntries) {
+        ScoringContext scores = new ScoringContext();
+        int weight = weightChildNodes(rootEl, scores, logEntries);
+        addScoreAttributes(scores);
+        return weight;
+    }
+
+    int weightChildNodes(Element rootEl, ScoringContext scores, LogEntries logEntries) {
         int weight = 0;
 
         int childrenWeight = 0;
@@ -2734,7 +2750,7 @@ public class ArticleTextExtractor {
                 h2h1Weight = 30;
                 childWeight += h2h1Weight;
             } else if (child.tagName().equals("div") || child.tagName().equals("p")) {
-                calcChildWeight = calcWeightForChild(child, ownText);
+                calcChildWeight = calcWeightForChild(child, ownText, scores);
                 childWeight+=calcChildWeight;
                 if (child.tagName().equals("p") && ownTextLength > 50)
                     pEls.add(child);
@@ -2777,6 +2793,7 @@ public class ArticleTextExtractor {
         LogEntries greatGranChildrenLogEntries = new LogEntries();
 
         childrenCount = 0;
+        PatternClassifier classifier = classifier();
 
         if(DEBUG_CHILDREN_WEIGHTS && logEntries!=null){
             // TODO: All these logging is becoming messy, find a better way to do it.
@@ -2796,8 +2813,8 @@ public class ArticleTextExtractor {
             // If the node looks negative don't include it in the weights
             // instead penalize the grandparent. This is done to try to
             // avoid giving weigths to navigation nodes, etc.
-            if (NEGATIVE.matcher(child.id()).find() ||
-                NEGATIVE.matcher(child.className()).find()){
+            if (classifier.matches(child.id(), PatternClassifier.NEGATIVE) ||
+                classifier.matches(child.className(), PatternClassifier.NEGATIVE)){
                 //logEntries.add(" grandChildrenWeight-=30");
                 grandChildrenWeight-=30;
                 continue;
@@ -2807,7 +2824,7 @@ public class ArticleTextExtractor {
             int currentGrandChildrenCount = 0;
             for (Element grandchild : child.children()) {
                 grandChildrenCount+=1;
-                int grandChildWeight = getGrandChildWeight(grandchild, logEntries);
+                int grandChildWeight = getGrandChildWeight(grandchild, scores, logEntries);
                 grandChildrenWeight +=  grandChildWeight;
                 if (grandChildWeight > 0) {
                     currentGrandChildrenCount+=1;
@@ -2819,7 +2836,7 @@ public class ArticleTextExtractor {
                 int currentGreatGrandChildrenCount = 0;
                 for (Element greatgrandchild : grandchild.children()) {
                     greatGrandChildrenCount+=1;
-                    int greatGrandChildWeight = getGrandChildWeight(greatgrandchild, logEntries);
+                    int greatGrandChildWeight = getGrandChildWeight(greatgrandchild, scores, logEntries);
                     greatGrandChildrenWeight += greatGrandChildWeight;
                     if (greatGrandChildrenWeight > 0) {
                         currentGreatGrandChildrenCount+=1;
@@ -2883,17 +2900,29 @@ public class ArticleTextExtractor {
                                        + String.format("%3d", h1h2h3Weight));
                     // headerEls.add(subEl);
                 } else if ("table;li;td;th".contains(subEl.tagName())) {
-                    addScore(subEl, -30);
+                    scores.addScore(subEl, -30);
                 }
 
                 if ("p".contains(subEl.tagName()))
-                    addScore(subEl, 30);
+                    scores.addScore(subEl, 30);
             }
         }
         return weight;
     }
 
+    /**
+     * @deprecated the extraction keeps the scores in a ScoringContext, this
+     * writes the score of the grandchild to the gravityScore attribute
+     */
+    @Deprecated
     public int getGrandChildWeight(Element grandchild, LogEntries logEntries){
+        ScoringContext scores = new ScoringContext();
+        int weight = getGrandChildWeight(grandchild, scores, logEntries);
+        addScoreAttributes(scores);
+        return weight;
+    }
+
+    int getGrandChildWeight(Element grandchild, ScoringContext scores, LogEntries logEntries){
         int grandchildWeight = 0;
         String ownText = grandchild.ownText();
         int ownTextLength = ownText.length();
@@ -2925,7 +2954,7 @@ public class ArticleTextExtractor {
                                + String.format("%3d", h2h1Weight));
             */
         } else if (grandchild.tagName().equals("div") || grandchild.tagName().equals("p")) {
-            int calcChildWeight = calcWeightForChild(grandchild, ownText);
+            int calcChildWeight = calcWeightForChild(grandchild, ownText, scores);
             grandchildWeight+=calcChildWeight;
             /*
             if(logEntries!=null)
@@ -2942,25 +2971,61 @@ public class ArticleTextExtractor {
         return grandchildWeight;
     }
 
+    /**
+     * @deprecated the extraction keeps the scores in a ScoringContext. The
+     * gravityScore attribute is only read by
+     * OutputFormatter.getFormattedText(Element, boolean).
+     */
+    @Deprecated
     public void addScore(Element el, int score) {
         int old = getScore(el);
         setScore(el, score + old);
     }
 
+    /**
+     * @deprecated see addScore
+     */
+    @Deprecated
     public int getScore(Element el) {
         int old = 0;
         try {
-            old = Integer.parseInt(el.attr("gravityScore"));
+            old = Integer.parseInt(el.attr(SCORE_ATTRIBUTE));
         } catch (Exception ex) {
         }
         return old;
     }
 
+    /**
+     * @deprecated see addScore
+     */
+    @Deprecated
     public void setScore(Element el, int score) {
-        el.attr("gravityScore", Integer.toString(score));
+        el.attr(SCORE_ATTRIBUTE, Integer.toString(score));
+    }
+
+    private void addScoreAttributes(ScoringContext scores) {
+        scores.forEachScore((node, score) -> addScore((Element) node, score));
     }
 
-    private int calcWeightForChild(Element child, String ownText) {
+    /**
+     * Scores the candidates of the subtree like an extraction pass, for the
+     * callers of OutputFormatter which have no ScoringContext. If the
+     * deprecated setScore was used those scores are taken instead.
+     */
+    ScoringContext scoreSubtree(Element root) {
+        ScoringContext scores = new ScoringContext();
+        Elements scored = root.select("[" + SCORE_ATTRIBUTE + "]");
+        if (!scored.isEmpty()) {
+            for (Element el : scored) {
+                scores.setScore(el, getScore(el));
+            }
+            return scores;
+        }
+        getBestMatchElements(getNodes(root.select("*"), scores), scores);
+        return scores;
+    }
+
+    private int calcWeightForChild(Element child, String ownText, ScoringContext scores) {
         int c = SHelper.count(ownText, "&quot;");
         c += SHelper.count(ownText, "&lt;");
         c += SHelper.count(ownText, "&gt;");
@@ -2971,7 +3036,7 @@ public class ArticleTextExtractor {
         else
             val = (int) Math.round(ownText.length() / 35.0);
 
-        addScore(child, val);
+        scores.addScore(child, val);
         return val;
     }
 
@@ -2981,10 +3046,15 @@ public class ArticleTextExtractor {
         val.weight = 0;
         val.hasHighlyPositive = hasHighlyPositive;
 
+        // one lookup per string instead of a regex per pattern
+        PatternClassifier classifier = classifier();
+        int classMask = classifier.classify(e.className());
+        int idMask = classifier.classify(e.id());
+
         // It can have only one of these nodes.
         if(val.hasHighlyPositive==false){
             if (e.hasAttr("itemprop")) {
-                if (HIGHLY_POSITIVE.matcher(e.attr("itemprop")).find()){
+                if (classifier.matches(e.attr("itemprop"), PatternClassifier.HIGHLY_POSITIVE)){
                     val.weight += 350;
                     if (DEBUG_BASE_WEIGHTS && logEntries!=null) { logEntries.add("   => HIGHLY_POSITIVE: " + e.attr("itemprop") + ":+350"); }
                     val.hasHighlyPositive = true;
@@ -2992,14 +3062,14 @@ public class ArticleTextExtractor {
                 }
             }
 
-            if (HIGHLY_POSITIVE.matcher(e.className()).find()){
+            if ((classMask & PatternClassifier.HIGHLY_POSITIVE) != 0){
                 val.weight += 200;
                 if (DEBUG_BASE_WEIGHTS && logEntries!=null) { logEntries.add("   => HIGHLY_POSITIVE: " + e.className() + ":+200"); }
                 val.hasHighlyPositive = true;
                 if (DEBUG_BASE_WEIGHTS && logEntries!=null) { System.out.println("Found HIGHLY_POSITIVE:" + e.className()); }
             }
 
-            if (HIGHLY_POSITIVE.matcher(e.id()).find()) {
+            if ((idMask & PatternClassifier.HIGHLY_POSITIVE) != 0) {
                 val.weight += 90;
                 if (DEBUG_BASE_WEIGHTS && logEntries!=null) { logEntries.add("   => HIGHLY_POSITIVE: " + e.id() + ":+90"); }
                 val.hasHighlyPositive = true;
@@ -3007,37 +3077,37 @@ public class ArticleTextExtractor {
             }
         }
 
-        if (POSITIVE.matcher(e.className()).find()){
+        if ((classMask & PatternClassifier.POSITIVE) != 0){
             val.weight += 35;
             if (DEBUG_BASE_WEIGHTS && logEntries!=null) { logEntries.add("   => POSITIVE: " + e.className() + ":+35"); }
         }
 
-        if (POSITIVE.matcher(e.id()).find()){
+        if ((idMask & PatternClassifier.POSITIVE) != 0){
             val.weight += 45;
             if (DEBUG_BASE_WEIGHTS && logEntries!=null) { logEntries.add("   => POSITIVE: " + e.id() + ":+45"); }
         }
 
-        if (UNLIKELY.matcher(e.className()).find()){
+        if ((classMask & PatternClassifier.UNLIKELY) != 0){
             val.weight -= 20;
             if (DEBUG_BASE_WEIGHTS && logEntries!=null) { logEntries.add("   => UNLIKELY: " + e.className() + ":-20"); }
         }
 
-        if (UNLIKELY.matcher(e.id()).find()){
+        if ((idMask & PatternClassifier.UNLIKELY) != 0){
             val.weight -= 20;
             if (DEBUG_BASE_WEIGHTS && logEntries!=null) { logEntries.add("   => UNLIKELY: " + e.id() + ":-20"); }
         }
 
-        if (NEGATIVE.matcher(e.className()).find()){
+        if ((classMask & PatternClassifier.NEGATIVE) != 0){
             val.weight -= 50;
             if (DEBUG_BASE_WEIGHTS && logEntries!=null) { logEntries.add("   => NEGATIVE: " + e.className() + ":-50"); }
         }
 
-        if (NEGATIVE.matcher(e.id()).find()){
+        if ((idMask & PatternClassifier.NEGATIVE) != 0){
             val.weight -= 50;
             if (DEBUG_BASE_WEIGHTS && logEntries!=null) { logEntries.add("   => NEGATIVE: " + e.id() + ":-50"); }
         }
 
-        if (HIGHLY_NEGATIVE.matcher(e.id()).find()){
+        if ((idMask & PatternClassifier.HIGHLY_NEGATIVE) != 0){
             val.weight -= 700;
             if (DEBUG_BASE_WEIGHTS && logEntries!=null) { logEntries.add("   => HIGHLY_NEGATIVE: " + e.id() + ":-700"); }
         }
@@ -3049,7 +3119,7 @@ public class ArticleTextExtractor {
         }
 
         String itemprop = e.attr("itemprop");
-        if (itemprop != null && !itemprop.isEmpty() && POSITIVE.matcher(itemprop).find()){
+        if (itemprop != null && !itemprop.isEmpty() && classifier.matches(itemprop, PatternClassifier.POSITIVE)){
             val.weight += 100;
             if (DEBUG_BASE_WEIGHTS && logEntries!=null) { logEntries.add("   => POSITIVE: " + style + ":+100"); }
         }
@@ -3130,82 +3200,111 @@ public class ArticleTextExtractor {
      * @param doc document to strip unlikely candidates from
      */
     protected void stripUnlikelyCandidates(Document doc) {
+        stripUnlikelyCandidates(doc, null);
+    }
 
+    /**
+     * @param journal records the removed nodes if not null
+     */
+    void stripUnlikelyCandidates(Document doc, DocumentJournal journal) {
+        PatternClassifier classifier = classifier();
         for (Element child : doc.select("body").select("*")) {
             String className = child.className().toLowerCase();
             String id = child.id().toLowerCase();
             if(DEBUG_REMOVE_RULES){
                 print("1-CHECKING-REMOVE:", child);
             }
-            if (TO_REMOVE.matcher(className).find()
-                    || TO_REMOVE.matcher(id).find()) {
+            if (classifier.matches(className, PatternClassifier.TO_REMOVE)
+                    || classifier.matches(id, PatternClassifier.TO_REMOVE)) {
                 if(DEBUG_REMOVE_RULES){
                     print("1-REMOVE:", child);
                 }
-                removeNodeAndChildren(child);
+                removeNodeAndChildren(child, journal);
             }
         }
     }
 
     /*
-     *  Apply the domain specific rules to remove domains
+     *  Apply the domain specific rules to remove nodes. All the selectors are
+     *  matched in one traversal of the document.
      */
-    private void removeNodesPerDomain(Document doc, String domainName){
-        if (domainName!=null){
-            List<String> selectorList = NODES_TO_REMOVE_PER_DOMAIN.get(domainName);
-            if (selectorList!=null){
-                for (String selector : selectorList) {
-                    Elements itemsToRemove = doc.select(selector);
-                    for (Element item : itemsToRemove) {
-                        String className = item.className().toLowerCase();
-                        String id = item.id().toLowerCase();
-                        if(DEBUG_REMOVE_RULES){
-                            print("2-REMOVE:", item);
-                        }
-                        removeNodeAndChildren(item);
-                    }
-                }
+    /**
+     * Removes the matches of the selectors in their order, a selector sees
+     * the document without the nodes removed by the previous selectors, e.g.
+     * "p:contains(RELATED:) ~ ul" after the p was removed. Consecutive local
+     * selectors do not depend on each other and are matched in one pass.
+     */
+    void removeNodesPerDomain(Document doc, List<DomainRules.CompiledSelector> selectors,
+                              DocumentJournal journal){
+        if (selectors.isEmpty())
+            return;
+
+        List<DomainRules.CompiledSelector> localSelectors = new ArrayList<DomainRules.CompiledSelector>();
+        for (DomainRules.CompiledSelector selector : selectors) {
+            if (selector.isLocal()) {
+                localSelectors.add(selector);
+                continue;
             }
+            removeNodes(matchAll(doc, localSelectors), journal);
+            localSelectors.clear();
+            removeNodes(selector.select(doc), journal);
         }
+        removeNodes(matchAll(doc, localSelectors), journal);
     }
 
-    /*
-     *  Remove recursively the current node all its children.
-     */
-    private void removeNodeAndChildren(Element parent){
-        for (Element child : parent.children()) {
-            removeNodeAndChildren(child);
+    private static List<Element> matchAll(Document doc, List<DomainRules.CompiledSelector> selectors) {
+        if (selectors.isEmpty())
+            return Collections.emptyList();
+        if (selectors.size() == 1)
+            return selectors.get(0).select(doc);
+
+        List<Element> matches = new ArrayList<Element>();
+        for (Element item : doc.getAllElements()) {
+            for (DomainRules.CompiledSelector selector : selectors) {
+                if (selector.matches(doc, item)) {
+                    matches.add(item);
+                    break;
+                }
+            }
         }
-        try {
-            parent.remove();
-        } catch (java.lang.IllegalArgumentException ex){
-            // do nothing
+        return matches;
+    }
+
+    private void removeNodes(List<Element> itemsToRemove, DocumentJournal journal){
+        for (Element item : itemsToRemove) {
+            if(DEBUG_REMOVE_RULES){
+                print("2-REMOVE:", item);
+            }
+            removeNodeAndChildren(item, journal);
         }
     }
 
     /*
-     *  Check if there are any domain specific OutputFormatters
+     *  Remove recursively the current node all its children.
      */
-    private OutputFormatter getOutputFormatterPerDomain(String domainName){
-        return OUTPUT_FORMATTER_PER_DOMAIN.get(domainName);
+    private void removeNodeAndChildren(Element parent, DocumentJournal journal){
+        for (Element child : parent.children()) {
+            removeNodeAndChildren(child, journal);
+        }
+        DocumentJournal.remove(parent, journal);
     }
 
-    private void removeScriptsAndStyles(Document doc, String domain) {
+    private void removeScriptsAndStyles(Document doc, boolean keepNoscript, DocumentJournal journal) {
         Elements scripts = doc.getElementsByTag("script");
         for (Element item : scripts) {
-            item.remove();
+            DocumentJournal.remove(item, journal);
         }
 
-        if (! REQUIRE_NOSCRIPTS.contains(domain)) {
+        if (!keepNoscript) {
             Elements noscripts = doc.getElementsByTag("noscript");
             for (Element item : noscripts) {
-                item.remove();
+                DocumentJournal.remove(item, journal);
             }
         }
 
         Elements styles = doc.getElementsByTag("style");
         for (Element style : styles) {
-            style.remove();
+            DocumentJournal.remove(style, journal);
         }
     }
 
@@ -3268,12 +3367,20 @@ public class ArticleTextExtractor {
      * @return a set of all important nodes
      */
     public Collection<Element> getNodes(Document doc) {
+        return getNodes(doc, new ScoringContext());
+    }
+
+    Collection<Element> getNodes(Document doc, ScoringContext scores) {
+        return getNodes(doc.select("body").select("*"), scores);
+    }
+
+    private Collection<Element> getNodes(Elements elements, ScoringContext scores) {
         Map<Element, Object> nodes = new LinkedHashMap<Element, Object>(64);
         int score = 100;
-        for (Element el : doc.select("body").select("*")) {
+        for (Element el : elements) {
             if (NODES.matcher(el.tagName()).matches()) {
                 nodes.put(el, null);
-                setScore(el, score);
+                scores.setScore(el, score);
                 score = score / 2;
             }
         }
@@ -3405,7 +3512,7 @@ public class ArticleTextExtractor {
     /**
      *  Helper class to debug element weights calculation
     */
-    private class ElementDebug {
+    class ElementDebug {
         LogEntries logEntries;
         Element entry;
     }
@@ -3413,7 +3520,7 @@ public class ArticleTextExtractor {
     /**
      *  Helper class to sort elements by weight and position
     */
-    private class ElementKey {
+    class ElementKey {
         int weight;
         int position;
     }
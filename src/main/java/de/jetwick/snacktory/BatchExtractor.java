@@ -0,0 +1,508 @@
+/*
+ *  Copyright 2011 Peter Karich
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package de.jetwick.snacktory;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedWriter;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Extracts pages from disk without fetching anything, e.g. to reprocess an
+ * archive or to benchmark a release. The input are WARC files (.warc or
+ * .warc.gz) and directories with .html files. Every page is decoded with the
+ * Converter and extracted by ArticleTextExtractor.extractContent. The
+ * results are written as JSON Lines, one object per page.
+ *
+ * One thread reads the input, the extraction threads take the pages from a
+ * bounded queue and another thread writes the results, so only a few pages
+ * are in memory at the same time.
+ *
+ * java de.jetwick.snacktory.BatchExtractor [-threads n] [-out results.jsonl] input...
+ *
+ * @author Peter Karich
+ */
+public class BatchExtractor {
+
+    private static final Logger logger = LoggerFactory.getLogger(BatchExtractor.class);
+    private static final Page END_OF_PAGES = new Page(null, null, null);
+    private static final String END_OF_LINES = new String("end");
+    private ArticleTextExtractor extractor = new ArticleTextExtractor();
+    private int threads = Runtime.getRuntime().availableProcessors();
+    private int queueSize = 4 * threads;
+    private int maxBytes = new Converter().getMaxBytes();
+    private long reportInterval = 10000;
+
+    public static void main(String[] args) throws Exception {
+        BatchExtractor batch = new BatchExtractor();
+        File out = null;
+        List<File> inputs = new ArrayList<File>();
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("-threads"))
+                batch.setThreads(Integer.parseInt(args[++i]));
+            else if (args[i].equals("-out"))
+                out = new File(args[++i]);
+            else
+                inputs.add(new File(args[i]));
+        }
+        if (inputs.isEmpty()) {
+            System.err.println("Usage: BatchExtractor [-threads n] [-out results.jsonl] warc-file-or-html-directory...");
+            System.exit(1);
+        }
+
+        Writer writer = new BufferedWriter(new OutputStreamWriter(
+                out == null ? System.out : new FileOutputStream(out), StandardCharsets.UTF_8), 1 << 16);
+        Stats stats = batch.run(inputs, writer);
+        writer.flush();
+        if (out != null)
+            writer.close();
+        System.err.println(stats);
+    }
+
+    public BatchExtractor setExtractor(ArticleTextExtractor extractor) {
+        this.extractor = extractor;
+        return this;
+    }
+
+    public ArticleTextExtractor getExtractor() {
+        return extractor;
+    }
+
+    /**
+     * Sets the number of extraction threads, default is the number of cores.
+     * The queue size is adjusted too.
+     */
+    public BatchExtractor setThreads(int threads) {
+        this.threads = Math.max(1, threads);
+        this.queueSize = 4 * this.threads;
+        return this;
+    }
+
+    public int getThreads() {
+        return threads;
+    }
+
+    /**
+     * Sets how many pages are read ahead of the extraction, and how many
+     * results can wait for the writer.
+     */
+    public BatchExtractor setQueueSize(int queueSize) {
+        this.queueSize = Math.max(1, queueSize);
+        return this;
+    }
+
+    public int getQueueSize() {
+        return queueSize;
+    }
+
+    /**
+     * Pages are truncated to this many bytes like in HtmlFetcher
+     */
+    public BatchExtractor setMaxBytes(int maxBytes) {
+        this.maxBytes = maxBytes;
+        return this;
+    }
+
+    public int getMaxBytes() {
+        return maxBytes;
+    }
+
+    /**
+     * Sets the milliseconds after which the progress is logged, 0 disables it
+     */
+    public BatchExtractor setReportInterval(long reportInterval) {
+        this.reportInterval = reportInterval;
+        return this;
+    }
+
+    /**
+     * Extracts all pages of the inputs and writes one JSON object per line.
+     * Pages which failed are written with an error field. The writer is not
+     * closed.
+     *
+     * @return the statistics of the run
+     * @throws IOException if an input could not be read or writing failed
+     */
+    public Stats run(Collection<File> inputs, final Writer out) throws IOException, InterruptedException {
+        final Stats stats = new Stats();
+        final BlockingQueue<Page> pages = new ArrayBlockingQueue<Page>(queueSize);
+        final BlockingQueue<String> lines = new ArrayBlockingQueue<String>(queueSize);
+        final AtomicReference<IOException> writeFailure = new AtomicReference<IOException>();
+
+        List<Thread> workers = new ArrayList<Thread>();
+        for (int i = 0; i < threads; i++) {
+            Thread worker = new Thread(() -> {
+                try {
+                    while (true) {
+                        Page page = pages.take();
+                        if (page == END_OF_PAGES)
+                            return;
+                        lines.put(process(page, stats));
+                    }
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+            }, "snacktory-batch-" + i);
+            worker.setDaemon(true);
+            worker.start();
+            workers.add(worker);
+        }
+
+        Thread writer = new Thread(() -> {
+            long lastReport = System.currentTimeMillis();
+            try {
+                while (true) {
+                    String line = lines.take();
+                    if (line == END_OF_LINES)
+                        return;
+                    if (writeFailure.get() != null)
+                        // keep draining so the workers do not block
+                        continue;
+                    long start = System.nanoTime();
+                    try {
+                        out.write(line);
+                        out.write('\n');
+                    } catch (IOException ex) {
+                        writeFailure.set(ex);
+                    }
+                    stats.writeNanos.addAndGet(System.nanoTime() - start);
+                    if (reportInterval > 0 && System.currentTimeMillis() - lastReport >= reportInterval) {
+                        lastReport = System.currentTimeMillis();
+                        logger.info(stats.toString());
+                    }
+                }
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }, "snacktory-batch-writer");
+        writer.setDaemon(true);
+        writer.start();
+
+        try {
+            for (File input : inputs) {
+                read(input, pages, stats, writeFailure);
+            }
+        } finally {
+            for (int i = 0; i < threads; i++) {
+                pages.put(END_OF_PAGES);
+            }
+            for (Thread worker : workers) {
+                worker.join();
+            }
+            lines.put(END_OF_LINES);
+            writer.join();
+            stats.finish();
+        }
+
+        if (writeFailure.get() != null)
+            throw writeFailure.get();
+        return stats;
+    }
+
+    private void read(File input, BlockingQueue<Page> pages, Stats stats, AtomicReference<IOException> writeFailure)
+            throws IOException, InterruptedException {
+        if (input.isDirectory()) {
+            File[] files = input.listFiles();
+            Arrays.sort(files);
+            for (File file : files) {
+                if (file.isDirectory() || isHtml(file))
+                    read(file, pages, stats, writeFailure);
+            }
+        } else if (isHtml(input)) {
+            long start = System.nanoTime();
+            byte[] bytes = Files.readAllBytes(input.toPath());
+            stats.readNanos.addAndGet(System.nanoTime() - start);
+            pages.put(new Page(input.toURI().toString(), null, bytes));
+        } else {
+            WarcReader reader = new WarcReader(new FileInputStream(input));
+            try {
+                while (writeFailure.get() == null) {
+                    long start = System.nanoTime();
+                    RawResponse response = reader.read();
+                    stats.readNanos.addAndGet(System.nanoTime() - start);
+                    if (response == null)
+                        break;
+                    if (response.getStatusCode() / 100 != 2
+                            || !SHelper.isTextContentType(response.getContentType())) {
+                        stats.skipped.incrementAndGet();
+                        continue;
+                    }
+                    pages.put(new Page(response.getUrl(), response.getCharset(), response.getBody()));
+                }
+            } finally {
+                reader.close();
+            }
+        }
+    }
+
+    private static boolean isHtml(File file) {
+        String name = file.getName().toLowerCase();
+        return name.endsWith(".html") || name.endsWith(".htm");
+    }
+
+    /**
+     * @return the JSON line of the page
+     */
+    String process(Page page, Stats stats) {
+        try {
+            long start = System.nanoTime();
+            String html = new Converter(page.url).setMaxBytes(maxBytes).
+                    streamToString(new ByteArrayInputStream(page.body), page.charset);
+            long decoded = System.nanoTime();
+            stats.decodeNanos.addAndGet(decoded - start);
+
+            JResult res = extractor.extractContent(new JResult().setUrl(page.url), html);
+            long extracted = System.nanoTime();
+            stats.extractNanos.addAndGet(extracted - decoded);
+
+            String line = toJson(res);
+            stats.jsonNanos.addAndGet(System.nanoTime() - extracted);
+            stats.pages.incrementAndGet();
+            stats.bytes.addAndGet(page.body.length);
+            return line;
+        } catch (Exception | StackOverflowError ex) {
+            // jsoup recurses for deeply nested documents
+            stats.errors.incrementAndGet();
+            if (logger.isDebugEnabled())
+                logger.debug("Cannot extract " + page.url, ex);
+            StringBuilder sb = new StringBuilder("{");
+            field(sb, "url", page.url);
+            field(sb, "error", ex.toString());
+            return sb.append('}').toString();
+        }
+    }
+
+    static String toJson(JResult res) {
+        StringBuilder sb = new StringBuilder(res.getText().length() + 512).append('{');
+        field(sb, "url", res.getUrl());
+        field(sb, "canonicalUrl", res.getCanonicalUrl());
+        field(sb, "title", res.getTitle());
+        field(sb, "description", res.getDescription());
+        field(sb, "text", res.getText());
+        field(sb, "authorName", res.getAuthorName());
+        field(sb, "authorDescription", res.getAuthorDescription());
+        if (res.getDate() != null) {
+            SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'");
+            format.setTimeZone(TimeZone.getTimeZone("UTC"));
+            field(sb, "date", format.format(res.getDate()));
+        }
+        field(sb, "language", res.getLanguage());
+        field(sb, "sitename", res.getSitename());
+        field(sb, "type", res.getType());
+        field(sb, "imageUrl", res.getImageUrl());
+        field(sb, "videoUrl", res.getVideoUrl());
+        field(sb, "rssUrl", res.getRssUrl());
+        field(sb, "faviconUrl", res.getFaviconUrl());
+        if (res.getKeywords() != null && !res.getKeywords().isEmpty()) {
+            separate(sb).append("\"keywords\":[");
+            boolean first = true;
+            for (String keyword : res.getKeywords()) {
+                if (!first)
+                    sb.append(',');
+                quote(sb, keyword);
+                first = false;
+            }
+            sb.append(']');
+        }
+        if (!res.getLinks().isEmpty()) {
+            separate(sb).append("\"links\":[");
+            boolean first = true;
+            for (Map<String, String> link : res.getLinks()) {
+                if (!first)
+                    sb.append(',');
+                sb.append('{');
+                field(sb, "url", link.get("url"));
+                field(sb, "text", link.get("text"));
+                sb.append('}');
+                first = false;
+            }
+            sb.append(']');
+        }
+        return sb.append('}').toString();
+    }
+
+    // empty values are left out
+    private static void field(StringBuilder sb, String name, String value) {
+        if (value == null || value.isEmpty())
+            return;
+        separate(sb).append('"').append(name).append("\":");
+        quote(sb, value);
+    }
+
+    private static StringBuilder separate(StringBuilder sb) {
+        char last = sb.charAt(sb.length() - 1);
+        if (last != '{' && last != '[')
+            sb.append(',');
+        return sb;
+    }
+
+    private static void quote(StringBuilder sb, String str) {
+        sb.append('"');
+        for (int i = 0; i < str.length(); i++) {
+            char c = str.charAt(i);
+            switch (c) {
+                case '"':
+                    sb.append("\\\"");
+                    break;
+                case '\\':
+                    sb.append("\\\\");
+                    break;
+                case '\n':
+                    sb.append("\\n");
+                    break;
+                case '\r':
+                    sb.append("\\r");
+                    break;
+                case '\t':
+                    sb.append("\\t");
+                    break;
+                default:
+                    // also escape the line separators, they break some JSON Lines readers
+                    if (c < 0x20 || c == '\u2028' || c == '\u2029')
+                        sb.append(String.format("\\u%04x", (int) c));
+                    else
+                        sb.append(c);
+            }
+        }
+        sb.append('"');
+    }
+
+    static class Page {
+
+        final String url;
+        final String charset;
+        final byte[] body;
+
+        Page(String url, String charset, byte[] body) {
+            this.url = url;
+            this.charset = charset;
+            this.body = body;
+        }
+    }
+
+    /**
+     * Counters and the time spent in each stage. The extraction stages are
+     * summed over all threads, so they can be larger than the elapsed time.
+     */
+    public static class Stats {
+
+        private final long start = System.nanoTime();
+        private volatile long end;
+        final AtomicLong pages = new AtomicLong();
+        final AtomicLong errors = new AtomicLong();
+        final AtomicLong skipped = new AtomicLong();
+        final AtomicLong bytes = new AtomicLong();
+        final AtomicLong readNanos = new AtomicLong();
+        final AtomicLong decodeNanos = new AtomicLong();
+        final AtomicLong extractNanos = new AtomicLong();
+        final AtomicLong jsonNanos = new AtomicLong();
+        final AtomicLong writeNanos = new AtomicLong();
+
+        void finish() {
+            end = System.nanoTime();
+        }
+
+        /**
+         * @return the number of extracted pages
+         */
+        public long getPages() {
+            return pages.get();
+        }
+
+        public long getErrors() {
+            return errors.get();
+        }
+
+        /**
+         * @return the number of WARC responses which are no successful text
+         * responses
+         */
+        public long getSkipped() {
+            return skipped.get();
+        }
+
+        /**
+         * @return the bytes of the extracted pages
+         */
+        public long getBytes() {
+            return bytes.get();
+        }
+
+        public long getElapsedMillis() {
+            return TimeUnit.NANOSECONDS.toMillis((end > 0 ? end : System.nanoTime()) - start);
+        }
+
+        public long getReadMillis() {
+            return TimeUnit.NANOSECONDS.toMillis(readNanos.get());
+        }
+
+        public long getDecodeMillis() {
+            return TimeUnit.NANOSECONDS.toMillis(decodeNanos.get());
+        }
+
+        public long getExtractMillis() {
+            return TimeUnit.NANOSECONDS.toMillis(extractNanos.get());
+        }
+
+        public long getJsonMillis() {
+            return TimeUnit.NANOSECONDS.toMillis(jsonNanos.get());
+        }
+
+        public long getWriteMillis() {
+            return TimeUnit.NANOSECONDS.toMillis(writeNanos.get());
+        }
+
+        @Override
+        public String toString() {
+            long elapsed = Math.max(1, getElapsedMillis());
+            long count = Math.max(1, pages.get() + errors.get());
+            return "pages:" + pages + " errors:" + errors + " skipped:" + skipped
+                    + " elapsed:" + elapsed + "ms"
+                    + " pages/s:" + (pages.get() * 1000 / elapsed)
+                    + " MB/s:" + String.format("%.1f", bytes.get() / 1024.0 / 1024 * 1000 / elapsed)
+                    + " per page read:" + format(readNanos, count)
+                    + " decode:" + format(decodeNanos, count)
+                    + " extract:" + format(extractNanos, count)
+                    + " json:" + format(jsonNanos, count)
+                    + " write:" + format(writeNanos, count);
+        }
+
+        private static String format(AtomicLong nanos, long count) {
+            return String.format("%.2fms", nanos.get() / 1e6 / count);
+        }
+    }
+}
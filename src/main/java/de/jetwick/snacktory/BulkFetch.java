@@ -0,0 +1,182 @@
+/*
+ *  Copyright 2011 Peter Karich
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package de.jetwick.snacktory;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * One run of HtmlFetcher.fetchAndExtractAll. Urls are queued per host and
+ * started round robin over the hosts as long as neither the per host nor the
+ * global limit of running fetches is reached. Every finished fetch frees its
+ * slot and starts the next url.
+ *
+ * @author Peter Karich
+ */
+class BulkFetch {
+
+    private static final Logger logger = LoggerFactory.getLogger(BulkFetch.class);
+    private final HtmlFetcher fetcher;
+    private final int timeout;
+    private final boolean resolve;
+    private final FetchListener listener;
+    private final int maxConcurrent;
+    private final int maxConcurrentPerHost;
+    private final CompletableFuture<Void> done = new CompletableFuture<Void>();
+    // host -> urls not yet started. The iteration order is the round robin order.
+    private final Map<String, Deque<String>> pending = new LinkedHashMap<String, Deque<String>>();
+    private final Map<String, Integer> runningPerHost = new HashMap<String, Integer>();
+    private int running;
+    private int remaining;
+    private boolean dispatching;
+
+    BulkFetch(HtmlFetcher fetcher, int timeout, boolean resolve, FetchListener listener) {
+        this.fetcher = fetcher;
+        this.timeout = timeout;
+        this.resolve = resolve;
+        this.listener = listener;
+        this.maxConcurrent = Math.max(1, fetcher.getMaxConcurrent());
+        this.maxConcurrentPerHost = Math.max(1, fetcher.getMaxConcurrentPerHost());
+    }
+
+    CompletableFuture<Void> start(Collection<String> urls) {
+        synchronized (this) {
+            for (String url : urls) {
+                String host = fetcher.getHostKey(url);
+                Deque<String> queue = pending.get(host);
+                if (queue == null) {
+                    queue = new ArrayDeque<String>();
+                    pending.put(host, queue);
+                }
+                queue.add(url);
+                remaining++;
+            }
+        }
+        if (urls.isEmpty())
+            done.complete(null);
+        else
+            dispatch();
+        return done;
+    }
+
+    /**
+     * Starts as many fetches as the limits allow. Fetches which complete
+     * immediately (e.g. from cache) call dispatch again from within start,
+     * so only one thread dispatches at a time and keeps polling until nothing
+     * can be started. This avoids deep recursion.
+     */
+    private void dispatch() {
+        synchronized (this) {
+            if (dispatching)
+                return;
+            dispatching = true;
+        }
+
+        while (true) {
+            List<String[]> next;
+            synchronized (this) {
+                next = pollStartable();
+                if (next.isEmpty()) {
+                    dispatching = false;
+                    return;
+                }
+            }
+
+            for (String[] hostAndUrl : next) {
+                start(hostAndUrl[0], hostAndUrl[1]);
+            }
+        }
+    }
+
+    // needs to be called with the lock held
+    private List<String[]> pollStartable() {
+        List<String[]> next = new ArrayList<String[]>();
+        boolean found = true;
+        while (found && running < maxConcurrent) {
+            found = false;
+            Iterator<Map.Entry<String, Deque<String>>> iter = pending.entrySet().iterator();
+            while (iter.hasNext() && running < maxConcurrent) {
+                Map.Entry<String, Deque<String>> entry = iter.next();
+                String host = entry.getKey();
+                Integer runningForHost = runningPerHost.get(host);
+                int count = runningForHost == null ? 0 : runningForHost;
+                if (count >= maxConcurrentPerHost)
+                    continue;
+
+                next.add(new String[]{host, entry.getValue().poll()});
+                runningPerHost.put(host, count + 1);
+                running++;
+                found = true;
+                if (entry.getValue().isEmpty())
+                    iter.remove();
+            }
+        }
+        return next;
+    }
+
+    private void start(final String host, final String url) {
+        CompletableFuture<JResult> future;
+        try {
+            future = fetcher.fetchAndExtractAsync(url, timeout, resolve);
+        } catch (RuntimeException ex) {
+            future = new CompletableFuture<JResult>();
+            future.completeExceptionally(ex);
+        }
+
+        future.whenComplete((res, ex) -> {
+            try {
+                if (ex != null)
+                    listener.onFailure(url, HttpClientEngine.unwrap(ex));
+                else
+                    listener.onResult(url, res);
+            } catch (RuntimeException listenerEx) {
+                logger.error("FetchListener failed for URL: " + url, listenerEx);
+            } finally {
+                finished(host);
+            }
+        });
+    }
+
+    private void finished(String host) {
+        boolean allDone;
+        synchronized (this) {
+            int count = runningPerHost.get(host) - 1;
+            if (count == 0)
+                runningPerHost.remove(host);
+            else
+                runningPerHost.put(host, count);
+            running--;
+            remaining--;
+            allDone = remaining == 0;
+        }
+
+        if (allDone)
+            done.complete(null);
+        else
+            dispatch();
+    }
+}
@@ -0,0 +1,314 @@
+/*
+ *  Copyright 2011 Peter Karich
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package de.jetwick.snacktory;
+
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import org.jsoup.nodes.Element;
+
+/**
+ * Calculates the children weights of the candidates like
+ * ArticleTextExtractor.weightChildNodes, but the own text and the weight as
+ * child of every element are calculated only once. The sums over the
+ * children and grandchildren are kept per element and computed from the
+ * sums of the children, so a candidate only looks at its direct children
+ * instead of walking three levels of the tree again for every ancestor.
+ *
+ * The scores which weightChildNodes adds to the children are added at the
+ * end with the number of candidates which would have visited the child.
+ *
+ * Not thread safe, every extraction pass has its own scorer.
+ *
+ * @author Peter Karich
+ */
+final class CandidateScorer {
+
+    /**
+     * The number of candidates which are ordered at once. Nearly always the
+     * first one is taken, the next ones are needed if the text is empty.
+     */
+    static final int TOP_K = 8;
+    private static final int UNKNOWN = Integer.MIN_VALUE;
+    private final PatternClassifier classifier;
+    private final Map<Element, Stats> stats = new IdentityHashMap<Element, Stats>(256);
+
+    private static class Stats {
+
+        final int ownTextLength;
+        // the weight of the element as child or grandchild of a candidate
+        final int childWeight;
+        // the value of calcWeightForChild, added to the score for every visit
+        final int childScore;
+        final boolean hasChildScore;
+        // p with more than 50 characters or a caption div or p
+        final boolean paragraph;
+        final boolean caption;
+        boolean candidate;
+        // 0 unknown, 1 negative, 2 not negative
+        byte negative;
+        // the sum of the child weights of the children and grandchildren
+        int childrenSum = UNKNOWN;
+        int grandChildrenSum = UNKNOWN;
+
+        Stats(Element el) {
+            String ownText = el.ownText();
+            ownTextLength = ownText.length();
+            String tagName = el.tagName();
+            int weight = 0;
+            int score = 0;
+            boolean hasScore = false;
+            if (ownTextLength >= 20) {
+                if (ownTextLength > 200)
+                    weight += Math.max(50, ownTextLength / 10);
+
+                if (tagName.equals("h1") || tagName.equals("h2")) {
+                    weight += 30;
+                } else if (tagName.equals("div") || tagName.equals("p")) {
+                    score = calcWeightForChild(ownText);
+                    hasScore = true;
+                    weight += score;
+                }
+            }
+            childWeight = weight;
+            childScore = score;
+            hasChildScore = hasScore;
+            paragraph = hasScore && tagName.equals("p") && ownTextLength > 50;
+            caption = hasScore && el.className().toLowerCase().equals("caption");
+        }
+    }
+
+    CandidateScorer(PatternClassifier classifier) {
+        this.classifier = classifier;
+    }
+
+    int getOwnTextLength(Element el) {
+        return stats(el).ownTextLength;
+    }
+
+    /**
+     * Same as ArticleTextExtractor.weightChildNodes, but the scores of the
+     * children are only added with addChildScores.
+     */
+    int weightChildNodes(Element rootEl, ScoringContext scores) {
+        stats(rootEl).candidate = true;
+
+        int childrenWeight = 0;
+        int grandChildrenWeight = 0;
+        int greatGrandChildrenWeight = 0;
+        int paragraphs = 0;
+        boolean caption = false;
+        for (Element child : rootEl.children()) {
+            Stats childStats = stats(child);
+            childrenWeight += childStats.childWeight;
+            if (childStats.paragraph)
+                paragraphs++;
+            if (childStats.caption)
+                caption = true;
+
+            if (isNegative(child, childStats)) {
+                grandChildrenWeight -= 30;
+                continue;
+            }
+            grandChildrenWeight += childrenSum(child, childStats);
+            greatGrandChildrenWeight += grandChildrenSum(child, childStats);
+        }
+
+        int weight = childrenWeight;
+        weight += (int) Math.round(grandChildrenWeight * 0.45);
+        weight += (int) Math.round(greatGrandChildrenWeight * 0.45);
+        if (caption)
+            weight += 30;
+
+        if (paragraphs >= 2) {
+            for (Element subEl : rootEl.children()) {
+                if ("h1;h2;h3;h4;h5;h6".contains(subEl.tagName())) {
+                    weight += 20;
+                } else if ("table;li;td;th".contains(subEl.tagName())) {
+                    scores.addScore(subEl, -30);
+                }
+
+                if ("p".contains(subEl.tagName()))
+                    scores.addScore(subEl, 30);
+            }
+        }
+        return weight;
+    }
+
+    /**
+     * Adds the calcWeightForChild value to the score of every child,
+     * grandchild and great grandchild of the candidates, once for every
+     * candidate which visits it.
+     */
+    void addChildScores(ScoringContext scores) {
+        for (Map.Entry<Element, Stats> entry : stats.entrySet()) {
+            Stats s = entry.getValue();
+            if (!s.hasChildScore)
+                continue;
+
+            int visits = 0;
+            Element parent = entry.getKey().parent();
+            if (parent != null) {
+                Stats parentStats = stats.get(parent);
+                if (parentStats != null && parentStats.candidate)
+                    visits++;
+
+                Element grandParent = parent.parent();
+                if (grandParent != null) {
+                    Stats grandParentStats = stats.get(grandParent);
+                    if (grandParentStats != null && grandParentStats.candidate && !isNegative(parent, stats(parent)))
+                        visits++;
+
+                    Element greatGrandParent = grandParent.parent();
+                    if (greatGrandParent != null) {
+                        Stats greatGrandParentStats = stats.get(greatGrandParent);
+                        if (greatGrandParentStats != null && greatGrandParentStats.candidate
+                                && !isNegative(grandParent, stats(grandParent)))
+                            visits++;
+                    }
+                }
+            }
+            if (visits > 0)
+                scores.addScore(entry.getKey(), s.childScore * visits);
+        }
+    }
+
+    private Stats stats(Element el) {
+        Stats s = stats.get(el);
+        if (s == null) {
+            s = new Stats(el);
+            stats.put(el, s);
+        }
+        return s;
+    }
+
+    private int childrenSum(Element el, Stats s) {
+        if (s.childrenSum == UNKNOWN) {
+            int sum = 0;
+            for (Element child : el.children()) {
+                sum += stats(child).childWeight;
+            }
+            s.childrenSum = sum;
+        }
+        return s.childrenSum;
+    }
+
+    private int grandChildrenSum(Element el, Stats s) {
+        if (s.grandChildrenSum == UNKNOWN) {
+            int sum = 0;
+            for (Element child : el.children()) {
+                sum += childrenSum(child, stats(child));
+            }
+            s.grandChildrenSum = sum;
+        }
+        return s.grandChildrenSum;
+    }
+
+    private boolean isNegative(Element el, Stats s) {
+        if (s.negative == 0)
+            s.negative = classifier.matches(el.id(), PatternClassifier.NEGATIVE)
+                    || classifier.matches(el.className(), PatternClassifier.NEGATIVE) ? (byte) 1 : 2;
+        return s.negative == 1;
+    }
+
+    private static int calcWeightForChild(String ownText) {
+        int c = SHelper.count(ownText, "&quot;");
+        c += SHelper.count(ownText, "&lt;");
+        c += SHelper.count(ownText, "&gt;");
+        c += SHelper.count(ownText, "px");
+        if (c > 5)
+            return -30;
+        return (int) Math.round(ownText.length() / 35.0);
+    }
+
+    /**
+     * Returns the candidates with the highest weight first and the earlier
+     * position first for the same weight. Only TOP_K candidates are ordered
+     * at once, the next ones are selected when they are needed.
+     */
+    static class Ranking implements Iterator<Element> {
+
+        private final List<Element> candidates;
+        private final int[] weights;
+        private final int k;
+        private final int[] batch;
+        private int batchSize;
+        private int batchIndex;
+        private int returned;
+        // the last returned position, the next ones are ordered after it
+        private int last = -1;
+
+        Ranking(List<Element> candidates, int[] weights, int k) {
+            this.candidates = candidates;
+            this.weights = weights;
+            this.k = k;
+            this.batch = new int[k];
+        }
+
+        @Override
+        public boolean hasNext() {
+            return returned < candidates.size();
+        }
+
+        @Override
+        public Element next() {
+            if (!hasNext())
+                throw new NoSuchElementException();
+            if (batchIndex == batchSize)
+                selectBatch();
+            last = batch[batchIndex++];
+            returned++;
+            return candidates.get(last);
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+
+        private boolean before(int pos1, int pos2) {
+            if (weights[pos1] != weights[pos2])
+                return weights[pos1] > weights[pos2];
+            return pos1 < pos2;
+        }
+
+        private void selectBatch() {
+            // the worst of the selected positions is the head
+            PriorityQueue<Integer> queue = new PriorityQueue<Integer>(k + 1, new Comparator<Integer>() {
+                @Override
+                public int compare(Integer pos1, Integer pos2) {
+                    return before(pos1, pos2) ? 1 : pos1.equals(pos2) ? 0 : -1;
+                }
+            });
+            for (int pos = 0; pos < weights.length; pos++) {
+                if (last >= 0 && !before(last, pos))
+                    continue;
+                queue.add(pos);
+                if (queue.size() > k)
+                    queue.poll();
+            }
+            batchSize = queue.size();
+            for (int i = batchSize - 1; i >= 0; i--) {
+                batch[i] = queue.poll();
+            }
+            batchIndex = 0;
+        }
+    }
+}
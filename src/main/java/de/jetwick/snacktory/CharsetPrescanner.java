@@ -0,0 +1,373 @@
+/*
+ *  Copyright 2011 Peter Karich
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package de.jetwick.snacktory;
+
+import de.jetwick.snacktory.Converter.CharsetSource;
+
+/**
+ * Finds the charset in the first bytes of a page without decoding them.
+ * Follows the prescan of the WHATWG encoding sniffing algorithm: a byte
+ * order mark, then meta charset and meta http-equiv Content-Type outside of
+ * comments. Unlike the WHATWG algorithm the XML declaration is used as a
+ * fallback, as some XHTML pages only declare it there. If both are missing
+ * the first charset= anywhere in the bytes is taken, like we did before the
+ * prescan: pages hide their meta in broken comments or declare it with
+ * meta name="content-type".
+ *
+ * https://html.spec.whatwg.org/multipage/parsing.html#prescan-a-byte-stream-to-determine-its-encoding
+ *
+ * @author Peter Karich
+ */
+final class CharsetPrescanner {
+
+    private final byte[] bytes;
+    private final int length;
+    private int pos;
+    // the last attribute of getAttribute
+    private String name;
+    private String value;
+
+    private CharsetPrescanner(byte[] bytes, int length) {
+        this.bytes = bytes;
+        this.length = length;
+    }
+
+    /**
+     * Result of the prescan
+     */
+    static final class Match {
+
+        final String charset;
+        final CharsetSource source;
+        // the bytes of the byte order mark which are no content
+        final int bomLength;
+
+        Match(String charset, CharsetSource source, int bomLength) {
+            this.charset = charset;
+            this.source = source;
+            this.bomLength = bomLength;
+        }
+    }
+
+    /**
+     * @return the charset or null if the bytes do not declare one
+     */
+    static Match prescan(byte[] bytes, int length) {
+        Match bom = detectBom(bytes, length);
+        if (bom != null)
+            return bom;
+
+        CharsetPrescanner scanner = new CharsetPrescanner(bytes, length);
+        Match match = scanner.scanMeta();
+        if (match == null)
+            match = scanner.scanXmlDeclaration();
+        if (match == null)
+            match = scanner.searchCharset();
+        return match;
+    }
+
+    private static Match detectBom(byte[] b, int length) {
+        if (length >= 3 && (b[0] & 0xFF) == 0xEF && (b[1] & 0xFF) == 0xBB && (b[2] & 0xFF) == 0xBF)
+            return new Match("utf-8", CharsetSource.BOM, 3);
+        if (length >= 2 && (b[0] & 0xFF) == 0xFE && (b[1] & 0xFF) == 0xFF)
+            return new Match("utf-16be", CharsetSource.BOM, 2);
+        if (length >= 2 && (b[0] & 0xFF) == 0xFF && (b[1] & 0xFF) == 0xFE)
+            return new Match("utf-16le", CharsetSource.BOM, 2);
+        return null;
+    }
+
+    private Match scanMeta() {
+        pos = 0;
+        while (pos < length) {
+            if (startsWith("<!--")) {
+                // the dashes of <!-- also count for -->
+                int end = indexOf("-->", pos + 2);
+                if (end < 0)
+                    return null;
+                pos = end + 3;
+            } else if (startsWithIgnoreCase("<meta") && pos + 5 < length
+                    && (isSpace(bytes[pos + 5]) || bytes[pos + 5] == '/')) {
+                pos += 6;
+                Match match = scanMetaAttributes();
+                if (match != null)
+                    return match;
+            } else if (pos + 1 < length && bytes[pos] == '<'
+                    && (isLetter(bytes[pos + 1]) || bytes[pos + 1] == '/' && pos + 2 < length
+                    && isLetter(bytes[pos + 2]))) {
+                // skip the tag including its attributes, a > in a quoted
+                // value does not end it
+                while (pos < length && !isSpace(bytes[pos]) && bytes[pos] != '>') {
+                    pos++;
+                }
+                while (getAttribute()) {
+                }
+                pos++;
+            } else if (startsWith("<!") || startsWith("</") || startsWith("<?")) {
+                int end = indexOf(">", pos + 2);
+                if (end < 0)
+                    return null;
+                pos = end + 1;
+            } else {
+                pos++;
+            }
+        }
+        return null;
+    }
+
+    private Match scanMetaAttributes() {
+        boolean gotPragma = false;
+        boolean seenHttpEquiv = false, seenContent = false, seenCharset = false;
+        // null if no charset was found, true if the charset is from content
+        Boolean needPragma = null;
+        String charset = null;
+        while (getAttribute()) {
+            if (name.equals("http-equiv") && !seenHttpEquiv) {
+                seenHttpEquiv = true;
+                gotPragma = value.equals("content-type");
+            } else if (name.equals("content") && !seenContent) {
+                seenContent = true;
+                if (charset == null) {
+                    charset = extractFromContent(value);
+                    if (charset != null)
+                        needPragma = true;
+                }
+            } else if (name.equals("charset") && !seenCharset) {
+                seenCharset = true;
+                charset = value;
+                needPragma = false;
+            }
+        }
+
+        if (needPragma == null || needPragma && !gotPragma)
+            return null;
+        charset = SHelper.encodingCleanup(charset);
+        if (charset.isEmpty())
+            return null;
+        // the page was not decoded as utf-16 if we could read the meta tag
+        if (charset.startsWith("utf-16"))
+            charset = "utf-8";
+        else if (charset.equals("x-user-defined"))
+            charset = "windows-1252";
+        return new Match(charset, needPragma ? CharsetSource.META_HTTP_EQUIV : CharsetSource.META_CHARSET, 0);
+    }
+
+    private Match scanXmlDeclaration() {
+        pos = 0;
+        if (!startsWith("<?xml"))
+            return null;
+        int end = indexOf("?>", 5);
+        if (end < 0)
+            return null;
+
+        String declaration = ascii(5, end).toLowerCase();
+        int index = declaration.indexOf("encoding");
+        if (index < 0)
+            return null;
+        index = skipSpaces(declaration, index + "encoding".length());
+        if (index >= declaration.length() || declaration.charAt(index) != '=')
+            return null;
+        index = skipSpaces(declaration, index + 1);
+        if (index >= declaration.length())
+            return null;
+        char quote = declaration.charAt(index);
+        if (quote != '"' && quote != '\'')
+            return null;
+        int quoteEnd = declaration.indexOf(quote, index + 1);
+        if (quoteEnd < 0)
+            return null;
+        String charset = SHelper.encodingCleanup(declaration.substring(index + 1, quoteEnd));
+        return charset.isEmpty() ? null : new Match(charset, CharsetSource.XML_DECLARATION, 0);
+    }
+
+    /**
+     * Searches charset= ignoring the markup, the value ends at a quote, a
+     * space, a semicolon or the end of the tag.
+     */
+    private Match searchCharset() {
+        for (pos = 0; pos < length; pos++) {
+            if (!startsWithIgnoreCase("charset="))
+                continue;
+            int start = pos + "charset=".length();
+            if (start < length && (bytes[start] == '"' || bytes[start] == '\''))
+                start++;
+            int end = start;
+            while (end < length && end - start < 40 && !isSpace(bytes[end]) && bytes[end] != '"'
+                    && bytes[end] != '\'' && bytes[end] != ';' && bytes[end] != '>') {
+                end++;
+            }
+            String charset = SHelper.encodingCleanup(ascii(start, end));
+            if (!charset.isEmpty())
+                return new Match(charset, CharsetSource.SEARCH, 0);
+        }
+        return null;
+    }
+
+    /**
+     * Reads the next attribute into name and value. Names and values are
+     * lower cased.
+     *
+     * @return false at the end of the tag
+     */
+    private boolean getAttribute() {
+        while (pos < length && (isSpace(bytes[pos]) || bytes[pos] == '/')) {
+            pos++;
+        }
+        if (pos >= length || bytes[pos] == '>')
+            return false;
+
+        StringBuilder nameBuilder = new StringBuilder();
+        value = "";
+        while (true) {
+            if (pos >= length)
+                return false;
+            byte b = bytes[pos];
+            if (b == '=' && nameBuilder.length() > 0) {
+                pos++;
+                break;
+            } else if (isSpace(b)) {
+                while (pos < length && isSpace(bytes[pos])) {
+                    pos++;
+                }
+                if (pos >= length || bytes[pos] != '=') {
+                    name = nameBuilder.toString();
+                    return true;
+                }
+                pos++;
+                break;
+            } else if (b == '/' || b == '>') {
+                name = nameBuilder.toString();
+                return true;
+            }
+            nameBuilder.append(lower(b));
+            pos++;
+        }
+        name = nameBuilder.toString();
+
+        while (pos < length && isSpace(bytes[pos])) {
+            pos++;
+        }
+        if (pos >= length)
+            return false;
+        StringBuilder valueBuilder = new StringBuilder();
+        byte b = bytes[pos];
+        if (b == '"' || b == '\'') {
+            pos++;
+            while (pos < length && bytes[pos] != b) {
+                valueBuilder.append(lower(bytes[pos]));
+                pos++;
+            }
+            if (pos >= length)
+                return false;
+            pos++;
+        } else if (b != '>') {
+            while (pos < length && !isSpace(bytes[pos]) && bytes[pos] != '>') {
+                valueBuilder.append(lower(bytes[pos]));
+                pos++;
+            }
+        }
+        value = valueBuilder.toString();
+        return true;
+    }
+
+    /**
+     * @return the charset of a content attribute like "text/html;
+     * charset=utf-8" or null
+     */
+    static String extractFromContent(String content) {
+        int index = 0;
+        while (true) {
+            index = content.indexOf("charset", index);
+            if (index < 0)
+                return null;
+            index = skipSpaces(content, index + "charset".length());
+            if (index < content.length() && content.charAt(index) == '=')
+                break;
+        }
+
+        index = skipSpaces(content, index + 1);
+        if (index >= content.length())
+            return null;
+        char c = content.charAt(index);
+        if (c == '"' || c == '\'') {
+            int end = content.indexOf(c, index + 1);
+            return end < 0 ? null : content.substring(index + 1, end);
+        }
+        int end = index;
+        while (end < content.length() && !isSpace(content.charAt(end)) && content.charAt(end) != ';') {
+            end++;
+        }
+        return content.substring(index, end);
+    }
+
+    private boolean startsWith(String str) {
+        if (pos + str.length() > length)
+            return false;
+        for (int i = 0; i < str.length(); i++) {
+            if (bytes[pos + i] != str.charAt(i))
+                return false;
+        }
+        return true;
+    }
+
+    private boolean startsWithIgnoreCase(String lowerCaseStr) {
+        if (pos + lowerCaseStr.length() > length)
+            return false;
+        for (int i = 0; i < lowerCaseStr.length(); i++) {
+            if (lower(bytes[pos + i]) != lowerCaseStr.charAt(i))
+                return false;
+        }
+        return true;
+    }
+
+    private int indexOf(String str, int from) {
+        for (int i = from; i + str.length() <= length; i++) {
+            int j = 0;
+            while (j < str.length() && bytes[i + j] == str.charAt(j)) {
+                j++;
+            }
+            if (j == str.length())
+                return i;
+        }
+        return -1;
+    }
+
+    private String ascii(int from, int to) {
+        StringBuilder sb = new StringBuilder(to - from);
+        for (int i = from; i < to; i++) {
+            sb.append((char) (bytes[i] & 0xFF));
+        }
+        return sb.toString();
+    }
+
+    private static int skipSpaces(String str, int index) {
+        while (index < str.length() && isSpace(str.charAt(index))) {
+            index++;
+        }
+        return index;
+    }
+
+    private static boolean isSpace(int c) {
+        return c == ' ' || c == '\t' || c == '\n' || c == '\r' || c == '\f';
+    }
+
+    private static boolean isLetter(byte b) {
+        return b >= 'a' && b <= 'z' || b >= 'A' && b <= 'Z';
+    }
+
+    private static char lower(byte b) {
+        return b >= 'A' && b <= 'Z' ? (char) (b + 32) : (char) (b & 0xFF);
+    }
+}
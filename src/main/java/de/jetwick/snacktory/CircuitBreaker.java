@@ -0,0 +1,98 @@
+/*
+ *  Copyright 2011 Peter Karich
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package de.jetwick.snacktory;
+
+/**
+ * Stops requests to a host which failed several times in a row. After the
+ * cool-down one trial request is let through: if it succeeds the host is
+ * used again, otherwise the breaker opens for another cool-down.
+ *
+ * This class is thread safe.
+ *
+ * @author Peter Karich
+ */
+public class CircuitBreaker {
+
+    public enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    private State state = State.CLOSED;
+    private int consecutiveFailures;
+    private long openUntil;
+    private boolean trialRunning;
+
+    /**
+     * @return true if a request may be sent now
+     */
+    public synchronized boolean tryAcquire(long now) {
+        switch (state) {
+            case CLOSED:
+                return true;
+            case OPEN:
+                if (now < openUntil)
+                    return false;
+                state = State.HALF_OPEN;
+                trialRunning = true;
+                return true;
+            default:
+                if (trialRunning)
+                    return false;
+                trialRunning = true;
+                return true;
+        }
+    }
+
+    public synchronized void onSuccess() {
+        state = State.CLOSED;
+        consecutiveFailures = 0;
+        trialRunning = false;
+    }
+
+    /**
+     * @param failureThreshold the number of consecutive failures which open
+     * the breaker
+     * @param coolDown milliseconds the breaker stays open
+     */
+    public synchronized void onFailure(long now, int failureThreshold, long coolDown) {
+        consecutiveFailures++;
+        trialRunning = false;
+        if (state == State.HALF_OPEN || consecutiveFailures >= failureThreshold) {
+            state = State.OPEN;
+            openUntil = now + coolDown;
+        }
+    }
+
+    public synchronized State getState() {
+        return state;
+    }
+
+    public synchronized int getConsecutiveFailures() {
+        return consecutiveFailures;
+    }
+
+    /**
+     * @return the time until the breaker stays open
+     */
+    public synchronized long getOpenUntil() {
+        return openUntil;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return state + " failures:" + consecutiveFailures;
+    }
+}
@@ -17,7 +17,13 @@ package de.jetwick.snacktory;
 
 import java.io.*;
 import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
 import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.util.HashMap;
+import java.util.Map;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -33,9 +39,37 @@ public class Converter {
     public final static String UTF8 = "UTF-8";
     public final static String ISO = "ISO-8859-1";
     public final static int K2 = 2048;
+    // the charset has to be declared within these first bytes, the WHATWG
+    // prescan only looks at 1024 bytes
+    static final int PRESCAN_BYTES = K2;
+    private static final ThreadLocal<Buffers> BUFFERS = ThreadLocal.withInitial(Buffers::new);
     private int maxBytes = 1000000 / 2;
     private String encoding;
+    private CharsetSource charsetSource = CharsetSource.DEFAULT;
     private String url;
+    private boolean partial;
+    private String truncated;
+
+    /**
+     * What decided the charset of the last page
+     */
+    public enum CharsetSource {
+        /** a byte order mark */
+        BOM,
+        /** meta charset="..." */
+        META_CHARSET,
+        /** meta http-equiv="Content-Type" content="...; charset=..." */
+        META_HTTP_EQUIV,
+        /** the encoding of the xml declaration */
+        XML_DECLARATION,
+        /** charset= outside of a proper meta tag, e.g. in a broken comment */
+        SEARCH,
+        /** the page declares nothing and the encoding of the caller was used,
+         * usually from the Content-Type header */
+        CONTENT_TYPE,
+        /** nothing was declared or the declared charset is not supported */
+        DEFAULT
+    }
 
     public Converter(String urlOnlyHint) {
         url = urlOnlyHint;
@@ -49,6 +83,10 @@ public class Converter {
         return this;
     }
 
+    public int getMaxBytes() {
+        return maxBytes;
+    }
+
     public static String extractEncoding(String contentType) {
         String[] values;
         if (contentType != null)
@@ -72,6 +110,31 @@ public class Converter {
         return charset;
     }
 
+    /**
+     * @return true if the last streamToString call returned only the content
+     * read until the stream failed, e.g. due to a timeout
+     */
+    public boolean isPartial() {
+        return partial;
+    }
+
+    /**
+     * @return why the last streamToString call did not read the whole stream
+     * with the values of the WARC-Truncated header: length if maxBytes was
+     * reached, time for a timeout and disconnect for other read errors. null
+     * if the stream was read to its end.
+     */
+    public String getTruncated() {
+        return truncated;
+    }
+
+    /**
+     * @return what decided the encoding of the last streamToString call
+     */
+    public CharsetSource getCharsetSource() {
+        return charsetSource;
+    }
+
     public String getEncoding() {
         if (encoding == null)
             return "";
@@ -91,89 +154,117 @@ public class Converter {
      *
      * @param is
      * @param maxBytes The max bytes that we want to read from the input stream
+     * @param enc the charset to use if the page does not declare one, e.g.
+     * from the Content-Type header
      * @return String
      */
     public String streamToString(InputStream is, int maxBytes, String enc) {
         encoding = enc;
+        charsetSource = CharsetSource.CONTENT_TYPE;
+        partial = false;
+        truncated = null;
         // Http 1.1. standard is iso-8859-1 not utf8 :(
         // but we force utf-8 as youtube assumes it ;)
-        if (encoding == null || encoding.isEmpty())
+        if (encoding == null || encoding.isEmpty()) {
             encoding = UTF8;
+            charsetSource = CharsetSource.DEFAULT;
+        }
 
-        BufferedInputStream in = null;
-        try {
-            in = new BufferedInputStream(is, K2);
-            ByteArrayOutputStream output = new ByteArrayOutputStream();
-
-            // detect encoding with the help of meta tag
-            try {
-                in.mark(K2 * 2);
-                String tmpEnc = detectCharset("charset=", output, in, encoding);
-                if (tmpEnc != null)
-                    encoding = tmpEnc;
-                else {
-                    logger.debug("no charset found in first stage");
-                    // detect with the help of xml beginning ala encoding="charset"
-                    tmpEnc = detectCharset("encoding=", output, in, encoding);
-                    if (tmpEnc != null)
-                        encoding = tmpEnc;
-                    else
-                        logger.debug("no charset found in second stage");
-                }
-
-                if (!Charset.isSupported(encoding))
-                    throw new UnsupportedEncodingException(encoding);
-            } catch (UnsupportedEncodingException e) {
-                logger.warn("Using default encoding:" + UTF8
-                        + " problem:" + e.getMessage() + " encoding:" + encoding + " " + url);
-                encoding = UTF8;
-            }
+        if (is == null) {
+            logger.warn("No stream to read url:" + url);
+            return "";
+        }
 
+        Buffers buffers = BUFFERS.get();
+        byte[] arr = buffers.bytes;
+        int prefixLength = 0;
+        StreamDecoder decoder = null;
+        try {
             // SocketException: Connection reset
             // IOException: missing CR    => problem on server (probably some xml character thing?)
             // IOException: Premature EOF => socket unexpectly closed from server
-            int bytesRead = output.size();
-            byte[] arr = new byte[K2];
+            while (prefixLength < PRESCAN_BYTES) {
+                int n = is.read(arr, prefixLength, PRESCAN_BYTES - prefixLength);
+                if (n < 0)
+                    break;
+                prefixLength += n;
+            }
+
+            int bomLength = detectCharset(arr, prefixLength);
+            // the bytes are decoded while they arrive instead of collecting
+            // the whole body first. jsoup only parses Strings, so finish still
+            // copies the decoded chars once.
+            decoder = new StreamDecoder(Charset.forName(encoding), buffers);
+            decoder.write(arr, bomLength, prefixLength - bomLength);
+
             while (true) {
-                if (bytesRead >= maxBytes) {
+                if (decoder.getBytes() >= maxBytes) {
                     logger.warn("Maxbyte of " + maxBytes + " exceeded! Maybe html is now broken but try it nevertheless. Url: " + url);
+                    truncated = "length";
                     break;
                 }
 
-                int n = in.read(arr);
+                int n = is.read(arr, 0, K2);
                 if (n < 0)
                     break;
-                bytesRead += n;
-                output.write(arr, 0, n);
+                decoder.write(arr, 0, n);
             }
 
-            return output.toString(encoding);
+            return decoder.finish();
         } catch (SocketTimeoutException e) {
             logger.info(e.toString() + " url:" + url);
+            truncated = "time";
+            return partialContent(decoder, buffers, prefixLength);
         } catch (IOException e) {
             logger.warn(e.toString() + " url:" + url);
+            truncated = "disconnect";
+            return partialContent(decoder, buffers, prefixLength);
         } finally {
-            if (in != null) {
-                try {
-                    in.close();
-                } catch (Exception e) {
-                }
+            try {
+                is.close();
+            } catch (Exception e) {
             }
         }
-        return "";
     }
 
     /**
-     * This method detects the charset even if the first call only returns some
-     * bytes. It will read until 4K bytes are reached and then try to determine
-     * the encoding
+     * Sets encoding and charsetSource from the first bytes of the page.
+     *
+     * @return the length of the byte order mark
+     */
+    private int detectCharset(byte[] bytes, int length) {
+        CharsetPrescanner.Match match = CharsetPrescanner.prescan(bytes, length);
+        if (match == null) {
+            logger.debug("no charset found in page");
+        } else {
+            encoding = match.charset;
+            charsetSource = match.source;
+        }
+
+        try {
+            if (!Charset.isSupported(encoding))
+                throw new UnsupportedEncodingException(encoding);
+        } catch (UnsupportedEncodingException | IllegalArgumentException e) {
+            logger.warn("Using default encoding:" + UTF8
+                    + " problem:" + e.getMessage() + " encoding:" + encoding + " " + url);
+            encoding = UTF8;
+            charsetSource = CharsetSource.DEFAULT;
+        }
+        return match == null ? 0 : match.bomLength;
+    }
+
+    /**
+     * Reads up to 2K more bytes into bos and looks for the declared charset
+     * in what bos holds then. If one is found the stream and bos are reset,
+     * so the caller can read the page again with that charset.
      *
-     * @throws IOException
+     * @deprecated streamToString does not call this anymore, overriding it has
+     * no effect. The charset is detected like HTML5 does with the
+     * CharsetPrescanner, key is ignored and only kept for compatibility.
      */
+    @Deprecated
     protected String detectCharset(String key, ByteArrayOutputStream bos, BufferedInputStream in,
             String enc) throws IOException {
-
-        // Grab better encoding from stream
         byte[] arr = new byte[K2];
         int nSum = 0;
         while (nSum < K2) {
@@ -185,50 +276,138 @@ public class Converter {
             bos.write(arr, 0, n);
         }
 
-        String str = bos.toString(enc);
-        int encIndex = str.indexOf(key);
-        int clength = key.length();
-        if (encIndex > 0 && encIndex + clength < str.length()) {
-            char startChar = str.charAt(encIndex + clength);
-            int lastEncIndex;
-            if (startChar == '\'')
-                // if we have charset='something'
-                lastEncIndex = str.indexOf("'", ++encIndex + clength);
-            else if (startChar == '\"')
-                // if we have charset="something"
-                lastEncIndex = str.indexOf("\"", ++encIndex + clength);
-            else {
-                // if we have "text/html; charset=utf-8"
-                int first = str.indexOf("\"", encIndex + clength);
-                if (first < 0)
-                    first = Integer.MAX_VALUE;
-
-                // or "text/html; charset=utf-8 "
-                int sec = str.indexOf(" ", encIndex + clength);
-                if (sec < 0)
-                    sec = Integer.MAX_VALUE;
-                lastEncIndex = Math.min(first, sec);
-
-                // or "text/html; charset=utf-8 '
-                int third = str.indexOf("'", encIndex + clength);
-                if (third > 0)
-                    lastEncIndex = Math.min(lastEncIndex, third);
+        byte[] bytes = bos.toByteArray();
+        CharsetPrescanner.Match match = CharsetPrescanner.prescan(bytes, bytes.length);
+        if (match == null)
+            return null;
+        try {
+            in.reset();
+            bos.reset();
+            return match.charset;
+        } catch (IOException ex) {
+            logger.warn("Couldn't reset stream to re-read with new encoding " + match.charset + " "
+                    + ex.toString());
+        }
+        return null;
+    }
+
+    /**
+     * Keeps what was read before the stream failed instead of throwing it
+     * away, e.g. for servers which are too slow to send the whole page.
+     */
+    private String partialContent(StreamDecoder decoder, Buffers buffers, int prefixLength) {
+        if (decoder == null) {
+            // failed while reading the first bytes
+            if (prefixLength == 0)
+                return "";
+            int bomLength = detectCharset(buffers.bytes, prefixLength);
+            decoder = new StreamDecoder(Charset.forName(encoding), buffers);
+            decoder.write(buffers.bytes, bomLength, prefixLength - bomLength);
+        }
+        if (decoder.getBytes() == 0)
+            return "";
+        String res = decoder.finish();
+        partial = true;
+        return res;
+    }
+
+    /**
+     * Decodes chunks of bytes into a growing string. Bytes of a character
+     * which is split between two chunks are kept until the next chunk, and
+     * malformed input is replaced like String(byte[], Charset) does.
+     *
+     * finish copies the builder into the returned String, so for a moment the
+     * page exists twice as chars. Only the complete byte array of the body is
+     * avoided, not the copy into the String.
+     */
+    static class StreamDecoder {
+
+        private final CharsetDecoder decoder;
+        private final ByteBuffer pending;
+        private final CharBuffer chars;
+        private final StringBuilder sb = new StringBuilder(K2 * 8);
+        private long bytes;
+
+        StreamDecoder(Charset charset) {
+            this(charset, new Buffers());
+        }
+
+        StreamDecoder(Charset charset, Buffers buffers) {
+            decoder = buffers.decoder(charset);
+            pending = buffers.pending;
+            chars = buffers.chars;
+            pending.clear();
+            chars.clear();
+        }
+
+        void write(byte[] arr, int offset, int length) {
+            bytes += length;
+            int end = offset + length;
+            while (offset < end) {
+                int n = Math.min(pending.remaining(), end - offset);
+                pending.put(arr, offset, n);
+                offset += n;
+                pending.flip();
+                decode(false);
+                pending.compact();
             }
+        }
 
-            // re-read byte array with different encoding
-            // assume that the encoding string cannot be greater than 40 chars
-            if (lastEncIndex > encIndex + clength && lastEncIndex < encIndex + clength + 40) {
-                String tmpEnc = SHelper.encodingCleanup(str.substring(encIndex + clength, lastEncIndex));
-                try {
-                    in.reset();
-                    bos.reset();
-                    return tmpEnc;
-                } catch (IOException ex) {
-                    logger.warn("Couldn't reset stream to re-read with new encoding " + tmpEnc + " "
-                            + ex.toString());
-                }
+        /**
+         * @return the number of bytes written so far
+         */
+        long getBytes() {
+            return bytes;
+        }
+
+        String finish() {
+            pending.flip();
+            decode(true);
+            while (decoder.flush(chars).isOverflow()) {
+                drain();
             }
+            drain();
+            pending.clear();
+            return sb.toString();
+        }
+
+        private void decode(boolean endOfInput) {
+            while (decoder.decode(pending, chars, endOfInput).isOverflow()) {
+                drain();
+            }
+            drain();
+        }
+
+        private void drain() {
+            chars.flip();
+            sb.append(chars);
+            chars.clear();
+        }
+    }
+
+    /**
+     * The buffers which are needed for every page. They are reused by the
+     * next call in the same thread. The decoders are cached per charset, as
+     * creating them is not cheap.
+     */
+    static class Buffers {
+
+        final byte[] bytes = new byte[PRESCAN_BYTES];
+        final ByteBuffer pending = ByteBuffer.allocate(K2 * 2);
+        final CharBuffer chars = CharBuffer.allocate(K2 * 2);
+        private final Map<Charset, CharsetDecoder> decoders = new HashMap<Charset, CharsetDecoder>(4);
+
+        CharsetDecoder decoder(Charset charset) {
+            CharsetDecoder decoder = decoders.get(charset);
+            if (decoder == null) {
+                decoder = charset.newDecoder().
+                        onMalformedInput(CodingErrorAction.REPLACE).
+                        onUnmappableCharacter(CodingErrorAction.REPLACE);
+                if (decoders.size() >= 8)
+                    decoders.clear();
+                decoders.put(charset, decoder);
+            }
+            return decoder.reset();
         }
-        return null;
     }
 }
@@ -0,0 +1,80 @@
+/*
+ *  Copyright 2011 Peter Karich
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package de.jetwick.snacktory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import org.jsoup.nodes.Element;
+import org.jsoup.nodes.Node;
+
+/**
+ * Records the nodes which the clean up removes from a document so that the
+ * document can be brought back into its original state. This is much cheaper
+ * than cloning every document for the rare second pass of the extraction.
+ * Scores are not part of the document, see ScoringContext.
+ *
+ * @author Peter Karich
+ */
+final class DocumentJournal {
+
+    private final List<Removal> removals = new ArrayList<Removal>();
+
+    private static class Removal {
+
+        final Element parent;
+        final int index;
+        final Node node;
+
+        Removal(Element parent, int index, Node node) {
+            this.parent = parent;
+            this.index = index;
+            this.node = node;
+        }
+    }
+
+    /**
+     * Removes the node from its parent, does nothing if it has none.
+     */
+    void remove(Node node) {
+        Node parent = node.parent();
+        if (parent == null)
+            return;
+        removals.add(new Removal((Element) parent, node.siblingIndex(), node));
+        node.remove();
+    }
+
+    /**
+     * Removes the node, also if there is no journal
+     */
+    static void remove(Node node, DocumentJournal journal) {
+        if (journal != null)
+            journal.remove(node);
+        else if (node.parent() != null)
+            node.remove();
+    }
+
+    /**
+     * Inserts the removed nodes again in reverse order.
+     */
+    void undo() {
+        for (int i = removals.size() - 1; i >= 0; i--) {
+            Removal removal = removals.get(i);
+            removal.parent.insertChildren(removal.index, Collections.singletonList(removal.node));
+        }
+        removals.clear();
+    }
+}
@@ -0,0 +1,390 @@
+/*
+ *  Copyright 2011 Peter Karich
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package de.jetwick.snacktory;
+
+import de.jetwick.snacktory.utils.Configuration;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import org.jsoup.nodes.Element;
+import org.jsoup.parser.Tag;
+import org.jsoup.select.Collector;
+import org.jsoup.select.Elements;
+import org.jsoup.select.Evaluator;
+import org.jsoup.select.Selector;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.yaml.snakeyaml.Yaml;
+
+/**
+ * The site specific rules of the ArticleTextExtractor: the nodes to remove,
+ * the selectors of the best element, the domains which keep the noscript
+ * elements and the OutputFormatter per domain. See domain-rules.yml for the
+ * format.
+ *
+ * The selectors are parsed once when the rules are loaded. The rules are
+ * immutable, a changed rule file is loaded into new rules which replace the
+ * old ones at once, so an extraction always sees one version of the rules.
+ *
+ * @author Peter Karich
+ */
+public final class DomainRules {
+
+    private static final Logger logger = LoggerFactory.getLogger(DomainRules.class);
+    private static final String DEFAULT_RESOURCE = "domain-rules.yml";
+    private static final DomainRules EMPTY = new DomainRules(Collections.<String, Rule>emptyMap());
+    // jsoup parses every select(String) again and has no public parser
+    private static final Method PARSE_QUERY;
+
+    static {
+        Method method = null;
+        try {
+            method = Class.forName("org.jsoup.select.QueryParser").getMethod("parse", String.class);
+            method.setAccessible(true);
+        } catch (Exception ex) {
+            logger.warn("Cannot compile selectors, they are parsed for every document: " + ex);
+        }
+        PARSE_QUERY = method;
+    }
+
+    private static volatile DomainRules classpathRules;
+    private static volatile Source defaultSource;
+
+    private final Map<String, Rule> rules;
+
+    private static class Rule {
+
+        List<CompiledSelector> remove = Collections.emptyList();
+        List<CompiledSelector> bestElement = Collections.emptyList();
+        boolean keepNoscript;
+        OutputFormatter formatter;
+    }
+
+    /**
+     * A css selector which is parsed only once.
+     */
+    static final class CompiledSelector {
+
+        private final String query;
+        private final Evaluator evaluator;
+        private final boolean local;
+
+        CompiledSelector(String query) {
+            this.query = query;
+            Evaluator ev = null;
+            if (PARSE_QUERY != null) {
+                try {
+                    ev = (Evaluator) PARSE_QUERY.invoke(null, query);
+                } catch (Exception ex) {
+                    // the cause is the SelectorParseException
+                    throw new IllegalArgumentException("Invalid selector " + query + ": " + ex.getCause(), ex);
+                }
+            } else {
+                // only validate it
+                Selector.select(query, new Element(Tag.valueOf("div"), ""));
+            }
+            evaluator = ev;
+            local = ev != null && isLocal(query);
+        }
+
+        /**
+         * Combinators and pseudo selectors like :contains look at other
+         * nodes, e.g. the siblings, a plain tag, id, class or attribute
+         * selector only at the element itself.
+         */
+        private static boolean isLocal(String query) {
+            for (int i = 0; i < query.length(); i++) {
+                char c = query.charAt(i);
+                if (c == ':' || c == '>' || c == '~' || c == '+' || Character.isWhitespace(c))
+                    return false;
+            }
+            return true;
+        }
+
+        Elements select(Element root) {
+            if (evaluator == null)
+                return root.select(query);
+            return Collector.collect(evaluator, root);
+        }
+
+        boolean isCompiled() {
+            return evaluator != null;
+        }
+
+        /**
+         * @return true if the matches of the selector do not change when
+         * other nodes are removed before, so it can be matched in one pass
+         * together with other local selectors
+         */
+        boolean isLocal() {
+            return local;
+        }
+
+        boolean matches(Element root, Element el) {
+            return evaluator.matches(root, el);
+        }
+
+        @Override
+        public String toString() {
+            return query;
+        }
+    }
+
+    private DomainRules(Map<String, Rule> rules) {
+        this.rules = rules;
+    }
+
+    public static DomainRules empty() {
+        return EMPTY;
+    }
+
+    /**
+     * Reads the rules from the yaml stream.
+     *
+     * @throws IllegalArgumentException if the rules or one of the selectors
+     * are invalid
+     */
+    public static DomainRules parse(InputStream in) {
+        Object yaml = new Yaml().load(in);
+        if (yaml == null)
+            return EMPTY;
+        if (!(yaml instanceof Map))
+            throw new IllegalArgumentException("The rules have to be a map of domains");
+
+        Map<String, Rule> rules = new LinkedHashMap<String, Rule>();
+        for (Map.Entry<?, ?> entry : ((Map<?, ?>) yaml).entrySet()) {
+            String domain = String.valueOf(entry.getKey());
+            if (!(entry.getValue() instanceof Map))
+                throw new IllegalArgumentException("The rules of " + domain + " have to be a map");
+
+            Rule rule = new Rule();
+            for (Map.Entry<?, ?> property : ((Map<?, ?>) entry.getValue()).entrySet()) {
+                String key = String.valueOf(property.getKey());
+                Object value = property.getValue();
+                if ("remove".equals(key)) {
+                    rule.remove = compile(domain, key, value);
+                } else if ("bestElement".equals(key)) {
+                    rule.bestElement = compile(domain, key, value);
+                } else if ("keepNoscript".equals(key)) {
+                    rule.keepNoscript = Boolean.TRUE.equals(value);
+                } else if ("formatter".equals(key)) {
+                    rule.formatter = createFormatter(domain, value);
+                } else {
+                    throw new IllegalArgumentException("Unknown rule " + key + " of " + domain);
+                }
+            }
+            rules.put(domain, rule);
+        }
+        return new DomainRules(rules);
+    }
+
+    public static DomainRules parse(File file) throws IOException {
+        InputStream in = new FileInputStream(file);
+        try {
+            return parse(in);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * @return the rules configured with domainRules of the Configuration. If
+     * it is a file they are loaded again when it changes, otherwise it is
+     * read from the classpath once.
+     */
+    public static DomainRules getDefault() {
+        Source source = defaultSource;
+        if (source != null)
+            return source.get();
+        DomainRules rules = classpathRules;
+        if (rules != null)
+            return rules;
+
+        synchronized (DomainRules.class) {
+            if (defaultSource == null && classpathRules == null) {
+                String name = Configuration.getInstance().getDomainRules();
+                if (name == null)
+                    name = DEFAULT_RESOURCE;
+                File file = new File(name);
+                if (file.isFile()) {
+                    defaultSource = new Source(file, Configuration.getInstance().getDomainRulesCheckSeconds() * 1000L);
+                } else {
+                    classpathRules = loadResource(name);
+                }
+            }
+        }
+        return getDefault();
+    }
+
+    private static DomainRules loadResource(String name) {
+        try {
+            InputStream in = DomainRules.class.getClassLoader().getResourceAsStream(name);
+            if (in == null)
+                throw new IOException("missing resource " + name);
+            try {
+                return parse(in);
+            } finally {
+                in.close();
+            }
+        } catch (Exception ex) {
+            logger.error("Unable to load the domain rules " + name, ex);
+            return EMPTY;
+        }
+    }
+
+    /**
+     * Loads the rules from a file and again when it was modified. A broken
+     * file is logged and the previous rules are kept.
+     */
+    public static final class Source {
+
+        private final File file;
+        private final long checkInterval;
+        private volatile DomainRules rules = EMPTY;
+        private volatile long lastModified = -1;
+        private volatile long nextCheck;
+
+        /**
+         * @param checkInterval milliseconds between the checks of the
+         * modification time, 0 to check on every call
+         */
+        public Source(File file, long checkInterval) {
+            this.file = file;
+            this.checkInterval = checkInterval;
+            reload();
+        }
+
+        public DomainRules get() {
+            long now = System.currentTimeMillis();
+            if (now >= nextCheck) {
+                nextCheck = now + checkInterval;
+                if (file.lastModified() != lastModified)
+                    reload();
+            }
+            return rules;
+        }
+
+        /**
+         * @return true if the rules were loaded
+         */
+        public synchronized boolean reload() {
+            long modified = file.lastModified();
+            try {
+                rules = parse(file);
+                logger.info("Loaded the domain rules " + file);
+                return true;
+            } catch (Exception ex) {
+                logger.error("Unable to load the domain rules " + file + ", keeping the previous ones", ex);
+                return false;
+            } finally {
+                // a broken file is not read again until it changes
+                lastModified = modified;
+            }
+        }
+    }
+
+    private static List<CompiledSelector> compile(String domain, String key, Object value) {
+        if (value instanceof String)
+            value = Collections.singletonList(value);
+        if (!(value instanceof List))
+            throw new IllegalArgumentException("The " + key + " rule of " + domain + " has to be a list of selectors");
+
+        List<CompiledSelector> selectors = new ArrayList<CompiledSelector>();
+        for (Object query : (List<?>) value) {
+            selectors.add(new CompiledSelector(String.valueOf(query)));
+        }
+        return Collections.unmodifiableList(selectors);
+    }
+
+    private static OutputFormatter createFormatter(String domain, Object value) {
+        if (!(value instanceof Map))
+            throw new IllegalArgumentException("The formatter of " + domain + " has to be a map");
+
+        int minFirstParagraphText = OutputFormatter.MIN_FIRST_PARAGRAPH_TEXT;
+        int minParagraphText = OutputFormatter.MIN_PARAGRAPH_TEXT;
+        String nodesToKeep = null;
+        for (Map.Entry<?, ?> property : ((Map<?, ?>) value).entrySet()) {
+            String key = String.valueOf(property.getKey());
+            if ("minFirstParagraphText".equals(key)) {
+                minFirstParagraphText = ((Number) property.getValue()).intValue();
+            } else if ("minParagraphText".equals(key)) {
+                minParagraphText = ((Number) property.getValue()).intValue();
+            } else if ("nodesToKeep".equals(key)) {
+                nodesToKeep = String.valueOf(property.getValue());
+            } else {
+                throw new IllegalArgumentException("Unknown formatter property " + key + " of " + domain);
+            }
+        }
+        OutputFormatter formatter = new OutputFormatter(minFirstParagraphText, minParagraphText);
+        if (nodesToKeep != null)
+            formatter.setNodesToKeepCssSelector(nodesToKeep);
+        return formatter;
+    }
+
+    /**
+     * @return the selectors of the nodes to remove for all the given domains,
+     * every selector only once
+     */
+    List<CompiledSelector> getNodesToRemove(String... domains) {
+        List<CompiledSelector> res = null;
+        Set<String> queries = null;
+        for (String domain : domains) {
+            Rule rule = domain == null ? null : rules.get(domain);
+            if (rule == null || rule.remove.isEmpty())
+                continue;
+            if (res == null) {
+                res = new ArrayList<CompiledSelector>();
+                queries = new LinkedHashSet<String>();
+            }
+            for (CompiledSelector selector : rule.remove) {
+                if (queries.add(selector.query))
+                    res.add(selector);
+            }
+        }
+        return res == null ? Collections.<CompiledSelector>emptyList() : res;
+    }
+
+    List<CompiledSelector> getBestElementSelectors(String domain) {
+        Rule rule = rules.get(domain);
+        return rule == null ? Collections.<CompiledSelector>emptyList() : rule.bestElement;
+    }
+
+    boolean keepsNoscript(String domain) {
+        Rule rule = domain == null ? null : rules.get(domain);
+        return rule != null && rule.keepNoscript;
+    }
+
+    OutputFormatter getOutputFormatter(String domain) {
+        Rule rule = domain == null ? null : rules.get(domain);
+        return rule == null ? null : rule.formatter;
+    }
+
+    /**
+     * @return the number of domains with rules
+     */
+    public int size() {
+        return rules.size();
+    }
+}
@@ -0,0 +1,118 @@
+/*
+ *  Copyright 2011 Peter Karich
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package de.jetwick.snacktory;
+
+import de.jetwick.snacktory.JResult.Field;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.Set;
+
+/**
+ * Tells ArticleTextExtractor and HtmlFetcher which fields of the JResult are
+ * needed, the selectors and regular expressions of the other fields are
+ * skipped. Date and author are expensive, the text, links and images need
+ * the whole clean up and scoring of the document.
+ *
+ * Fields which another field depends on may be filled although they were not
+ * requested, e.g. the title for the text or the text for the images. Url and
+ * domain are always set.
+ *
+ * @author Peter Karich
+ */
+public class ExtractionRequest {
+
+    private final EnumSet<Field> fields;
+    private int maxContentSize;
+
+    private ExtractionRequest(EnumSet<Field> fields) {
+        this.fields = fields;
+    }
+
+    /**
+     * @return a request for all fields, like the extraction without request
+     */
+    public static ExtractionRequest all() {
+        return new ExtractionRequest(EnumSet.allOf(Field.class));
+    }
+
+    public static ExtractionRequest of(Field first, Field... rest) {
+        return new ExtractionRequest(EnumSet.of(first, rest));
+    }
+
+    public static ExtractionRequest of(Set<Field> fields) {
+        if (fields.isEmpty())
+            throw new IllegalArgumentException("no fields requested");
+        return new ExtractionRequest(EnumSet.copyOf(fields));
+    }
+
+    /**
+     * @return a request for the canonical url only, which does not clean the
+     * text or fix the urls of the result
+     */
+    public static ExtractionRequest canonical() {
+        return of(Field.CANONICAL_URL);
+    }
+
+    /**
+     * @param maxContentSize the text is truncated to this many bytes, 0 for
+     * no limit
+     */
+    public ExtractionRequest setMaxContentSize(int maxContentSize) {
+        this.maxContentSize = maxContentSize;
+        return this;
+    }
+
+    public int getMaxContentSize() {
+        return maxContentSize;
+    }
+
+    public Set<Field> getFields() {
+        return Collections.unmodifiableSet(fields);
+    }
+
+    public boolean has(Field field) {
+        return fields.contains(field);
+    }
+
+    public boolean isCanonicalOnly() {
+        return fields.size() == 1 && has(Field.CANONICAL_URL);
+    }
+
+    /**
+     * @return true if the best element of the document has to be found
+     */
+    boolean needsBestElement() {
+        return has(Field.TEXT) || has(Field.LINKS) || has(Field.IMAGES);
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (!(obj instanceof ExtractionRequest))
+            return false;
+        ExtractionRequest other = (ExtractionRequest) obj;
+        return maxContentSize == other.maxContentSize && fields.equals(other.fields);
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * fields.hashCode() + maxContentSize;
+    }
+
+    @Override
+    public String toString() {
+        return fields + " maxContentSize:" + maxContentSize;
+    }
+}
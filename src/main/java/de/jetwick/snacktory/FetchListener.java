@@ -0,0 +1,29 @@
+/*
+ *  Copyright 2011 Peter Karich
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package de.jetwick.snacktory;
+
+/**
+ * Receives the results of HtmlFetcher.fetchAndExtractAll as soon as they are
+ * ready. The methods are called from several threads at the same time.
+ *
+ * @author Peter Karich
+ */
+public interface FetchListener {
+
+    void onResult(String url, JResult res);
+
+    void onFailure(String url, Throwable error);
+}
@@ -0,0 +1,97 @@
+/*
+ *  Copyright 2011 Peter Karich
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package de.jetwick.snacktory;
+
+import java.util.List;
+
+/**
+ * The decoded page of a GET request, its validators for conditional requests
+ * and the redirects which were followed to get there.
+ *
+ * @author Peter Karich
+ */
+class FetchResponse {
+
+    private final String url;
+    private final List<String> redirects;
+    private final int statusCode;
+    private final String contentType;
+    private final String etag;
+    private final String lastModified;
+    private final String body;
+    private final boolean partial;
+
+    FetchResponse(String url, List<String> redirects, int statusCode, String contentType,
+                  String etag, String lastModified, String body, boolean partial) {
+        this.url = url;
+        this.redirects = redirects;
+        this.statusCode = statusCode;
+        this.contentType = contentType;
+        this.etag = etag;
+        this.lastModified = lastModified;
+        this.body = body;
+        this.partial = partial;
+    }
+
+    /**
+     * @return the url of the last hop
+     */
+    String getUrl() {
+        return url;
+    }
+
+    /**
+     * @return the urls which answered with a redirect, in request order
+     */
+    List<String> getRedirects() {
+        return redirects;
+    }
+
+    int getStatusCode() {
+        return statusCode;
+    }
+
+    String getContentType() {
+        return contentType;
+    }
+
+    String getEtag() {
+        return etag;
+    }
+
+    String getLastModified() {
+        return lastModified;
+    }
+
+    boolean isNotModified() {
+        return statusCode == 304;
+    }
+
+    /**
+     * @return the decoded page, null if the page was not modified
+     */
+    String getBody() {
+        return body;
+    }
+
+    /**
+     * @return true if the body is incomplete as the fetch deadline expired or
+     * the connection broke while reading it
+     */
+    boolean isPartial() {
+        return partial;
+    }
+}
@@ -0,0 +1,134 @@
+/*
+ *  Copyright 2011 Peter Karich
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package de.jetwick.snacktory;
+
+/**
+ * Observed latencies of one host. Connect time and time to first byte are
+ * tracked as smoothed mean and mean deviation like TCP estimates its
+ * retransmission timeout (RFC 6298), so old samples fade out and a few
+ * numbers per host are enough. Also holds the circuit breaker of the host.
+ *
+ * This class is thread safe.
+ *
+ * @author Peter Karich
+ */
+public class HostStats {
+
+    // number of samples before the estimate is used for timeouts
+    static final int MIN_SAMPLES = 3;
+    private final Estimator connectTime = new Estimator();
+    private final Estimator firstByteTime = new Estimator();
+    private int timeouts;
+    private int consecutiveTimeouts;
+    private final CircuitBreaker circuitBreaker = new CircuitBreaker();
+
+    public synchronized void addConnectTime(long millis) {
+        connectTime.add(millis);
+    }
+
+    public synchronized void addFirstByteTime(long millis) {
+        firstByteTime.add(millis);
+        consecutiveTimeouts = 0;
+    }
+
+    public synchronized void addTimeout() {
+        timeouts++;
+        consecutiveTimeouts++;
+    }
+
+    public synchronized long getConnectTimeMean() {
+        return Math.round(connectTime.mean);
+    }
+
+    public synchronized long getConnectTimeDeviation() {
+        return Math.round(connectTime.deviation);
+    }
+
+    public synchronized int getConnectTimeSamples() {
+        return connectTime.samples;
+    }
+
+    public synchronized long getFirstByteTimeMean() {
+        return Math.round(firstByteTime.mean);
+    }
+
+    public synchronized long getFirstByteTimeDeviation() {
+        return Math.round(firstByteTime.deviation);
+    }
+
+    public synchronized int getFirstByteTimeSamples() {
+        return firstByteTime.samples;
+    }
+
+    public synchronized int getTimeouts() {
+        return timeouts;
+    }
+
+    public CircuitBreaker getCircuitBreaker() {
+        return circuitBreaker;
+    }
+
+    /**
+     * @return the connect timeout derived from the observed connect times or
+     * the fallback if there are not enough samples yet
+     */
+    public synchronized int getConnectTimeout(int fallback, int minTimeout, int maxTimeout) {
+        return connectTime.timeout(fallback, minTimeout, maxTimeout, consecutiveTimeouts);
+    }
+
+    /**
+     * @return the read timeout derived from the observed times to first byte
+     * or the fallback if there are not enough samples yet
+     */
+    public synchronized int getReadTimeout(int fallback, int minTimeout, int maxTimeout) {
+        return firstByteTime.timeout(fallback, minTimeout, maxTimeout, consecutiveTimeouts);
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "connect:" + getConnectTimeMean() + "+-" + getConnectTimeDeviation()
+                + " firstByte:" + getFirstByteTimeMean() + "+-" + getFirstByteTimeDeviation()
+                + " timeouts:" + timeouts + " " + circuitBreaker;
+    }
+
+    private static class Estimator {
+
+        double mean;
+        double deviation;
+        int samples;
+
+        void add(long millis) {
+            if (samples == 0) {
+                mean = millis;
+                deviation = millis / 2.0;
+            } else {
+                deviation = 0.75 * deviation + 0.25 * Math.abs(mean - millis);
+                mean = 0.875 * mean + 0.125 * millis;
+            }
+            samples++;
+        }
+
+        int timeout(int fallback, int minTimeout, int maxTimeout, int consecutiveTimeouts) {
+            if (samples < MIN_SAMPLES)
+                return fallback;
+
+            double timeout = Math.max(minTimeout, mean + 4 * deviation);
+            // back off like TCP if the host keeps timing out
+            timeout *= 1 << Math.min(consecutiveTimeouts, 10);
+            return (int) Math.min(maxTimeout, timeout);
+        }
+    }
+}
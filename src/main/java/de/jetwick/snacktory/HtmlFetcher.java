@@ -15,7 +15,12 @@
  */
 package de.jetwick.snacktory;
 
-import de.jetwick.snacktory.utils.SSLConnectionSocketFactory;
+import com.google.common.cache.AbstractCache;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import de.jetwick.snacktory.JResult.Field;
+import de.jetwick.snacktory.utils.SharedSSLContext;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -24,13 +29,28 @@ import java.io.*;
 import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.net.Proxy;
+import java.net.SocketTimeoutException;
 import java.net.URL;
-import java.security.cert.CertificateException;
-import java.security.cert.X509Certificate;
+import java.security.GeneralSecurityException;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.zip.GZIPInputStream;
 import java.util.zip.Inflater;
@@ -49,6 +69,40 @@ public class HtmlFetcher {
         SHelper.enableAnySSL();
     }
     private static final Logger logger = LoggerFactory.getLogger(HtmlFetcher.class);
+    // closes connections which exceed maxFetchTime
+    private static final ScheduledThreadPoolExecutor WATCHDOG = createWatchdog();
+
+    /**
+     * The backend used to talk to the web servers. URL_CONNECTION opens a new
+     * blocking HttpURLConnection for every request. HTTP_CLIENT shares one
+     * non-blocking java.net.http.HttpClient per fetcher with pooled keep-alive
+     * and HTTP/2 connections and is the better choice for many concurrent
+     * fetches, see fetchAndExtractAsync.
+     */
+    public enum Engine {
+        URL_CONNECTION, HTTP_CLIENT
+    }
+
+    /**
+     * How fetchAndExtractAll groups urls when it applies the per host limit.
+     * DOMAIN uses SHelper.extractDomain, so www.example.com and example.com
+     * are one host but news.example.com is another. TOP_PRIVATE_DOMAIN puts
+     * all subdomains of example.com into one group.
+     */
+    public enum HostGrouping {
+        DOMAIN, TOP_PRIVATE_DOMAIN
+    }
+
+    /**
+     * How urls are resolved if fetchAndExtract is called with resolve=true.
+     * HEAD follows the redirects with HEAD requests and then downloads the
+     * final url with GET. GET follows the redirects with the GET request of
+     * the download itself and saves the extra round trips. Hosts which need
+     * HEAD can still be added via addHeadResolveHost.
+     */
+    public enum ResolveMode {
+        HEAD, GET
+    }
 
     public static void main(String[] args) throws Exception {
         BufferedReader reader = new BufferedReader(new FileReader("urls.txt"));
@@ -75,6 +129,9 @@ public class HtmlFetcher {
         reader.close();
     }
     private static final boolean DISABLE_SSL_VERIFICATION = true;
+    // same limit as HttpURLConnection uses for http.maxRedirects
+    static final int MAX_FOLLOWED_REDIRECTS = 20;
+    private static final HostnameVerifier NULL_HOSTNAME_VERIFIER = new NullHostnameVerifier();
     private String referrer = "http://jetsli.de/crawler";
     private String userAgent = "Mozilla/5.0 (compatible; Jetslide; +" + referrer + ")";
     private String cacheControl = "max-age=0";
@@ -82,9 +139,38 @@ public class HtmlFetcher {
     private String accept = "application/xml,application/xhtml+xml,text/html;q=0.9,text/plain;q=0.8,image/png,*/*;q=0.5";
     private String charset = "UTF-8";
     private SCache cache;
-    private AtomicInteger cacheCounter = new AtomicInteger(0);
+    private UrlNormalizer urlNormalizer = new UrlNormalizer();
+    private RawStore rawStore;
+    private AbstractCache.StatsCounter cacheStats = new AbstractCache.SimpleStatsCounter();
+    private AtomicInteger notModifiedCounter = new AtomicInteger(0);
+    private AtomicInteger coalescedCounter = new AtomicInteger(0);
+    // concurrent calls for the same url wait for the fetch which is in flight
+    private final ConcurrentMap<String, CompletableFuture<JResult>> inFlight =
+            new ConcurrentHashMap<String, CompletableFuture<JResult>>();
     private int maxTextLength = -1;
+    private long maxContentLength = 10 * 1024 * 1024;
+    private long maxFetchTime = -1;
+    private boolean adaptiveTimeouts = false;
+    private int minTimeout = 1000;
+    private int maxTimeout = 30000;
+    private int failureThreshold = 0;
+    private long coolDown = 30 * 1000;
+    private long negativeCacheTtl = 0;
+    private Cache<String, HostStats> hostStats = CacheBuilder.newBuilder().maximumSize(10000).build();
     private ArticleTextExtractor extractor = new ArticleTextExtractor();
+    private Engine engine = Engine.URL_CONNECTION;
+    private Executor executor = ForkJoinPool.commonPool();
+    private Executor httpClientExecutor;
+    private volatile HttpClientEngine httpClientEngine;
+    private volatile SharedSSLContext sharedSSLContext;
+    private int maxConcurrent = 64;
+    private int maxConcurrentPerHost = 2;
+    private HostGrouping hostGrouping = HostGrouping.DOMAIN;
+    private ResolveMode resolveMode = ResolveMode.HEAD;
+    private Set<String> headResolveHosts = new LinkedHashSet<String>();
+    // short url -> resolved url. Holds futures so that concurrent resolutions
+    // of the same short url wait for the first one.
+    private Cache<String, CompletableFuture<String>> resolveCache = createResolveCache(10000, 6 * 60 * 60 * 1000L);
     private Set<String> furtherResolveNecessary = new LinkedHashSet<String>() {
         {
             add("bit.ly");
@@ -136,15 +222,181 @@ public class HtmlFetcher {
         return cache;
     }
 
+    /**
+     * Sets the normalizer which creates the cache keys, so that e.g. urls
+     * which only differ in tracking parameters share one cache entry.
+     */
+    public HtmlFetcher setUrlNormalizer(UrlNormalizer urlNormalizer) {
+        this.urlNormalizer = urlNormalizer;
+        return this;
+    }
+
+    public UrlNormalizer getUrlNormalizer() {
+        return urlNormalizer;
+    }
+
+    /**
+     * Sets the store which archives the downloaded pages with their headers,
+     * so they can be extracted again via reExtractAll. Default is none.
+     */
+    public HtmlFetcher setRawStore(RawStore rawStore) {
+        this.rawStore = rawStore;
+        return this;
+    }
+
+    public RawStore getRawStore() {
+        return rawStore;
+    }
+
+    public HtmlFetcher setEngine(Engine engine) {
+        this.engine = engine;
+        return this;
+    }
+
+    public Engine getEngine() {
+        return engine;
+    }
+
+    /**
+     * Sets the executor which runs the content extraction of
+     * fetchAndExtractAsync and, for the URL_CONNECTION engine, also the
+     * blocking download. Default is the common ForkJoinPool.
+     */
+    public HtmlFetcher setExecutor(Executor executor) {
+        this.executor = executor;
+        return this;
+    }
+
+    public Executor getExecutor() {
+        return executor;
+    }
+
+    /**
+     * Sets the executor for the internal tasks of the HttpClient. Must be
+     * called before the first request of the HTTP_CLIENT engine.
+     */
+    public HtmlFetcher setHttpClientExecutor(Executor httpClientExecutor) {
+        this.httpClientExecutor = httpClientExecutor;
+        return this;
+    }
+
+    /**
+     * Sets the maximum number of urls fetchAndExtractAll fetches at the same
+     * time over all hosts.
+     */
+    public HtmlFetcher setMaxConcurrent(int maxConcurrent) {
+        this.maxConcurrent = maxConcurrent;
+        return this;
+    }
+
+    public int getMaxConcurrent() {
+        return maxConcurrent;
+    }
+
+    /**
+     * Sets the maximum number of urls fetchAndExtractAll fetches at the same
+     * time from one host. Keep this low to avoid 429s from popular sites.
+     */
+    public HtmlFetcher setMaxConcurrentPerHost(int maxConcurrentPerHost) {
+        this.maxConcurrentPerHost = maxConcurrentPerHost;
+        return this;
+    }
+
+    public int getMaxConcurrentPerHost() {
+        return maxConcurrentPerHost;
+    }
+
+    public HtmlFetcher setHostGrouping(HostGrouping hostGrouping) {
+        this.hostGrouping = hostGrouping;
+        return this;
+    }
+
+    public HostGrouping getHostGrouping() {
+        return hostGrouping;
+    }
+
+    public HtmlFetcher setResolveMode(ResolveMode resolveMode) {
+        this.resolveMode = resolveMode;
+        return this;
+    }
+
+    public ResolveMode getResolveMode() {
+        return resolveMode;
+    }
+
+    /**
+     * Urls of this host are resolved with HEAD requests even if the resolve
+     * mode is GET. The host is compared like SHelper.extractDomain(url, true)
+     * without the port.
+     */
+    public HtmlFetcher addHeadResolveHost(String host) {
+        headResolveHosts.add(host.toLowerCase());
+        return this;
+    }
+
+    public Set<String> getHeadResolveHosts() {
+        return headResolveHosts;
+    }
+
+    /**
+     * Configures the cache for resolved urls of url shorteners like t.co, see
+     * getFurtherResolveNecessary. Existing entries are dropped.
+     *
+     * @param maximumSize the maximum number of short urls, 0 disables the cache
+     * @param expireAfterWrite milliseconds after which a short url is
+     * resolved again
+     */
+    public HtmlFetcher setResolveCache(long maximumSize, long expireAfterWrite) {
+        resolveCache = createResolveCache(maximumSize, expireAfterWrite);
+        return this;
+    }
+
+    /**
+     * @return hits and misses of the short url cache. Requests which waited
+     * for a concurrent resolution of the same url count as hits.
+     */
+    public CacheStats getResolveCacheStats() {
+        return resolveCache.stats();
+    }
+
+    /**
+     * @return the hosts of url shorteners whose resolved urls are cached
+     */
+    public Set<String> getFurtherResolveNecessary() {
+        return furtherResolveNecessary;
+    }
+
+    /**
+     * @return the number of results which were taken from the cache
+     */
     public int getCacheCounter() {
-        return cacheCounter.get();
+        return (int) cacheStats.snapshot().hitCount();
+    }
+
+    /**
+     * @return the hits and misses of the cache lookups of this fetcher. The
+     * evictions are included if the cache is a MemoryCache.
+     */
+    public CacheStats getCacheStats() {
+        CacheStats stats = cacheStats.snapshot();
+        if (cache instanceof MemoryCache)
+            stats = stats.plus(new CacheStats(0, 0, 0, 0, 0, ((MemoryCache) cache).getStats().evictionCount()));
+        return stats;
     }
 
     public HtmlFetcher clearCacheCounter() {
-        cacheCounter.set(0);
+        cacheStats = new AbstractCache.SimpleStatsCounter();
         return this;
     }
 
+    /**
+     * @return how often a call did not fetch the url itself but waited for
+     * the same url which was already in flight
+     */
+    public int getCoalescedCounter() {
+        return coalescedCounter.get();
+    }
+
     public HtmlFetcher setMaxTextLength(int maxTextLength) {
         this.maxTextLength = maxTextLength;
         return this;
@@ -154,6 +406,167 @@ public class HtmlFetcher {
         return maxTextLength;
     }
 
+    /**
+     * Responses which declare a larger Content-Length are not downloaded.
+     * Default is 10MB, -1 means no limit.
+     */
+    public HtmlFetcher setMaxContentLength(long maxContentLength) {
+        this.maxContentLength = maxContentLength;
+        return this;
+    }
+
+    public long getMaxContentLength() {
+        return maxContentLength;
+    }
+
+    /**
+     * Sets the wall-clock time in milliseconds one fetch may take from
+     * connecting to reading the last byte, including all redirects. The
+     * timeout of the fetch methods is applied to every single connect and
+     * read, so a server which sends one byte at a time can take much longer
+     * otherwise. If the time is up while the body is read, the content read
+     * so far is extracted and the result is marked as partial. Default is -1,
+     * i.e. no limit.
+     */
+    public HtmlFetcher setMaxFetchTime(long maxFetchTime) {
+        this.maxFetchTime = maxFetchTime;
+        return this;
+    }
+
+    public long getMaxFetchTime() {
+        return maxFetchTime;
+    }
+
+    /**
+     * If enabled the connect and read timeouts of a host are derived from its
+     * observed connect times and times to first byte, see HostStats. The
+     * timeout passed to the fetch methods is only used until enough samples
+     * are there. Default is false.
+     */
+    public HtmlFetcher setAdaptiveTimeouts(boolean adaptiveTimeouts) {
+        this.adaptiveTimeouts = adaptiveTimeouts;
+        return this;
+    }
+
+    public boolean isAdaptiveTimeouts() {
+        return adaptiveTimeouts;
+    }
+
+    /**
+     * Sets the bounds in milliseconds for the adaptive timeouts. Default is
+     * 1 to 30 seconds.
+     */
+    public HtmlFetcher setTimeoutBounds(int minTimeout, int maxTimeout) {
+        this.minTimeout = minTimeout;
+        this.maxTimeout = maxTimeout;
+        return this;
+    }
+
+    public int getMinTimeout() {
+        return minTimeout;
+    }
+
+    public int getMaxTimeout() {
+        return maxTimeout;
+    }
+
+    /**
+     * Requests to a host fail with CircuitOpenException for coolDown
+     * milliseconds after failureThreshold connection failures, timeouts or
+     * server errors in a row. A failureThreshold of 0 disables this, which
+     * is the default.
+     */
+    public HtmlFetcher setCircuitBreaker(int failureThreshold, long coolDown) {
+        this.failureThreshold = failureThreshold;
+        this.coolDown = coolDown;
+        return this;
+    }
+
+    public int getFailureThreshold() {
+        return failureThreshold;
+    }
+
+    public long getCoolDown() {
+        return coolDown;
+    }
+
+    /**
+     * Failed downloads are cached for ttl milliseconds so that the cache
+     * answers repeated requests for the same url. A failure does not replace
+     * a successful result in the cache, it is still needed for the conditional
+     * GET. With 0, the default, failures are not cached.
+     */
+    public HtmlFetcher setNegativeCacheTtl(long ttl) {
+        this.negativeCacheTtl = ttl;
+        return this;
+    }
+
+    public long getNegativeCacheTtl() {
+        return negativeCacheTtl;
+    }
+
+    /**
+     * @return the latencies observed for the host of the url or null if it
+     * was not contacted yet
+     */
+    public HostStats getHostStats(String url) {
+        return hostStats.getIfPresent(getLatencyKey(url));
+    }
+
+    /**
+     * @return the latencies of all recently contacted hosts
+     */
+    public Map<String, HostStats> getAllHostStats() {
+        return Collections.unmodifiableMap(hostStats.asMap());
+    }
+
+    HostStats hostStats(String url) {
+        try {
+            return hostStats.get(getLatencyKey(url), HostStats::new);
+        } catch (ExecutionException ex) {
+            // cannot happen as the loader does not throw
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    int getConnectTimeout(String url, int timeout) {
+        HostStats stats = adaptiveTimeouts ? getHostStats(url) : null;
+        return stats == null ? timeout : stats.getConnectTimeout(timeout, minTimeout, maxTimeout);
+    }
+
+    int getReadTimeout(String url, int timeout) {
+        HostStats stats = adaptiveTimeouts ? getHostStats(url) : null;
+        return stats == null ? timeout : stats.getReadTimeout(timeout, minTimeout, maxTimeout);
+    }
+
+    /**
+     * Must be called before a request is sent and followed by onResponse.
+     *
+     * @throws CircuitOpenException if the circuit breaker of the host is open
+     */
+    void acquire(String url) throws CircuitOpenException {
+        if (failureThreshold > 0 && !hostStats(url).getCircuitBreaker().tryAcquire(System.currentTimeMillis()))
+            throw new CircuitOpenException(getLatencyKey(url));
+    }
+
+    /**
+     * @param responseCode -1 if the request failed without response
+     */
+    void onResponse(String url, int responseCode) {
+        if (failureThreshold <= 0)
+            return;
+
+        CircuitBreaker breaker = hostStats(url).getCircuitBreaker();
+        if (responseCode < 0 || responseCode >= 500)
+            breaker.onFailure(System.currentTimeMillis(), failureThreshold, coolDown);
+        else
+            breaker.onSuccess();
+    }
+
+    private static String getLatencyKey(String url) {
+        return SHelper.extractDomain(url, false).toLowerCase();
+    }
+
     public void setAccept(String accept) {
         this.accept = accept;
     }
@@ -178,44 +591,645 @@ public class HtmlFetcher {
         return referrer;
     }
 
-    public HtmlFetcher setReferrer(String referrer) {
-        this.referrer = referrer;
-        return this;
+    public HtmlFetcher setReferrer(String referrer) {
+        this.referrer = referrer;
+        return this;
+    }
+
+    public String getUserAgent() {
+        return userAgent;
+    }
+
+    public void setUserAgent(String userAgent) {
+        this.userAgent = userAgent;
+    }
+
+    public String getAccept() {
+        return accept;
+    }
+
+    public String getCacheControl() {
+        return cacheControl;
+    }
+
+    public String getCharset() {
+        return charset;
+    }
+
+    public JResult fetchAndExtractCanonical(String url, int timeout, boolean resolve) throws Exception {
+        return fetchAndExtract(url, timeout, resolve, ExtractionRequest.canonical(), false);
+    }
+
+    public JResult fetchAndExtract(String url, int timeout, boolean resolve) throws Exception {
+        return fetchAndExtract(url, timeout, resolve, ExtractionRequest.all(), false);
+    }
+
+    public JResult fetchAndExtract(String url, int timeout, boolean resolve, 
+                                   int maxContentSize, boolean forceReload,
+                                   boolean onlyExtractCanonical) throws Exception {
+        return fetchAndExtract(url, timeout, resolve, toRequest(maxContentSize, onlyExtractCanonical), forceReload);
+    }
+
+    /**
+     * Main workhorse to call externally. Only the fields of the request are
+     * extracted. A cached result is used if it has all requested fields.
+     */
+    public JResult fetchAndExtract(String url, int timeout, boolean resolve, ExtractionRequest request,
+                                   boolean forceReload) throws Exception {
+        String key = getFlightKey(url, resolve, request, forceReload);
+        CompletableFuture<JResult> flight = new CompletableFuture<JResult>();
+        CompletableFuture<JResult> running = inFlight.putIfAbsent(key, flight);
+        if (running != null) {
+            coalescedCounter.incrementAndGet();
+            return await(running);
+        }
+
+        try {
+            JResult res = doFetchAndExtract(url, timeout, resolve, request, forceReload);
+            flight.complete(res);
+            return res;
+        } catch (Exception ex) {
+            flight.completeExceptionally(ex);
+            throw ex;
+        } catch (Error err) {
+            flight.completeExceptionally(err);
+            throw err;
+        } finally {
+            inFlight.remove(key, flight);
+        }
+    }
+
+    private JResult doFetchAndExtract(String url, int timeout, boolean resolve,
+                                      ExtractionRequest request, boolean forceReload) throws Exception {
+        String originalUrl = url;
+        url = unwrapUrl(url);
+        String unwrappedUrl = url;
+
+        if (resolve) {
+            // check if we can avoid resolving the URL (which hits the website!)
+            JResult res = forceReload ? null : getFromCache(url, originalUrl, request);
+            if (res != null)
+                return res;
+
+            if (resolveWithGet(url, forceReload)) {
+                FetchResponse response;
+                try {
+                    response = fetch(getCachedResolution(url), timeout, true, null);
+                } catch (IOException io) {
+                    return handleDownloadFailure(url, originalUrl, io, request);
+                }
+                return extract(url, originalUrl, response, request);
+            }
+
+            String resUrl = resolve(url, timeout);
+            /*
+            // There are some cases when the resolved URL is empty (some sites
+            don't like the HEAD request, in that case instead of returning an
+            empty result try to access the site normally with GET.)
+            if (resUrl.isEmpty()) {
+                if (logger.isDebugEnabled())
+                    logger.warn("resolved url is empty. Url is: " + url);
+
+                JResult result = new JResult();
+                if (cache != null)
+                    cache.put(url, result);
+                return result.setUrl(url);
+            }*/
+
+            url = useResolvedUrl(url, resUrl);
+        }
+
+        // check if we have the (resolved) URL in cache
+        if (!forceReload) {
+            // no need to look it up again if resolving did not change it
+            JResult res = resolve && url.equals(unwrappedUrl) ? null : getFromCache(url, originalUrl, request);
+            if (res != null)
+                return res;
+        } else {
+            // a cached result with validators is revalidated instead of
+            // breaking the cache of the server
+            JResult previous = getRevalidatable(url, request);
+            if (previous != null)
+                return revalidate(url, originalUrl, previous, timeout, request);
+        }
+
+        JResult result = createResult(url, originalUrl);
+        if (needsDownload(result, url)) {
+            try {
+                String urlToDownload = url;
+                if(forceReload){
+                    urlToDownload = getURLtoBreakCache(url);
+                } 
+
+                FetchResponse response = fetch(urlToDownload, timeout, true, null);
+                copyResponseInfo(result, response);
+                if (isExtractable(result, response))
+                    extract(result, response.getBody(), request);
+            } catch (IOException io){
+                handleDownloadFailure(result, io);
+            }
+
+            fixUrls(result, url, request);
+        }
+
+        return finish(result, request);
+    }
+
+    public CompletableFuture<JResult> fetchAndExtractAsync(String url, int timeout, boolean resolve) {
+        return fetchAndExtractAsync(url, timeout, resolve, ExtractionRequest.all(), false);
+    }
+
+    public CompletableFuture<JResult> fetchAndExtractAsync(String url, int timeout, boolean resolve,
+                                                           int maxContentSize, boolean forceReload,
+                                                           boolean onlyExtractCanonical) {
+        return fetchAndExtractAsync(url, timeout, resolve, toRequest(maxContentSize, onlyExtractCanonical),
+                forceReload);
+    }
+
+    /**
+     * Asynchronous version of fetchAndExtract. With the HTTP_CLIENT engine
+     * resolving and downloading do not block any thread, only the extraction
+     * runs on the executor. With the URL_CONNECTION engine the whole
+     * fetchAndExtract call is done on the executor.
+     *
+     * The future fails with SnacktoryNotFoundException for missing pages.
+     */
+    public CompletableFuture<JResult> fetchAndExtractAsync(final String url, final int timeout,
+                                                           final boolean resolve,
+                                                           final ExtractionRequest request,
+                                                           final boolean forceReload) {
+        final String key = getFlightKey(url, resolve, request, forceReload);
+        final CompletableFuture<JResult> flight = new CompletableFuture<JResult>();
+        CompletableFuture<JResult> running = inFlight.putIfAbsent(key, flight);
+        if (running != null) {
+            coalescedCounter.incrementAndGet();
+            // callers must not be able to complete the shared future
+            return running.thenApply(res -> res);
+        }
+
+        CompletableFuture<JResult> future;
+        try {
+            future = doFetchAndExtractAsync(url, timeout, resolve, request, forceReload);
+        } catch (RuntimeException ex) {
+            future = new CompletableFuture<JResult>();
+            future.completeExceptionally(ex);
+        }
+        future.whenComplete((res, ex) -> {
+            inFlight.remove(key, flight);
+            if (ex != null)
+                flight.completeExceptionally(ex);
+            else
+                flight.complete(res);
+        });
+        return flight.thenApply(res -> res);
+    }
+
+    private CompletableFuture<JResult> doFetchAndExtractAsync(final String url, final int timeout,
+                                                              final boolean resolve,
+                                                              final ExtractionRequest request,
+                                                              final boolean forceReload) {
+        if (engine != Engine.HTTP_CLIENT) {
+            return CompletableFuture.supplyAsync(() -> {
+                try {
+                    return doFetchAndExtract(url, timeout, resolve, request, forceReload);
+                } catch (Exception ex) {
+                    throw new CompletionException(ex);
+                }
+            }, executor);
+        }
+
+        final String originalUrl = url;
+        final String unwrappedUrl = unwrapUrl(url);
+        CompletableFuture<String> urlFuture;
+        if (resolve) {
+            CompletableFuture<JResult> cached = forceReload ? null : getFromCacheAsync(unwrappedUrl, originalUrl, request);
+            if (cached != null)
+                return cached;
+
+            if (resolveWithGet(unwrappedUrl, forceReload)) {
+                String urlToDownload = getCachedResolution(unwrappedUrl);
+                return httpClientEngine().fetch(urlToDownload, timeout, true, null).handleAsync((response, ex) -> {
+                    try {
+                        if (ex != null)
+                            return handleDownloadFailure(unwrappedUrl, originalUrl, getIOException(ex), request);
+                        return extract(unwrappedUrl, originalUrl, response, request);
+                    } catch (CompletionException e) {
+                        throw e;
+                    } catch (Exception e) {
+                        throw new CompletionException(e);
+                    }
+                }, executor);
+            }
+
+            urlFuture = resolveAsync(unwrappedUrl, timeout).
+                    thenApply(resUrl -> useResolvedUrl(unwrappedUrl, resUrl));
+        } else {
+            urlFuture = CompletableFuture.completedFuture(unwrappedUrl);
+        }
+
+        return urlFuture.thenCompose(resolvedUrl -> {
+            if (!forceReload) {
+                CompletableFuture<JResult> cached = resolve && resolvedUrl.equals(unwrappedUrl)
+                        ? null : getFromCacheAsync(resolvedUrl, originalUrl, request);
+                if (cached != null)
+                    return cached;
+            } else {
+                final JResult previous = getRevalidatable(resolvedUrl, request);
+                if (previous != null) {
+                    return httpClientEngine().fetch(resolvedUrl, timeout, true, previous).handleAsync((response, ex) -> {
+                        try {
+                            if (ex != null)
+                                handleRevalidationFailure(resolvedUrl, originalUrl, getIOException(ex));
+                            return revalidated(resolvedUrl, originalUrl, previous, response, request);
+                        } catch (CompletionException e) {
+                            throw e;
+                        } catch (Exception e) {
+                            throw new CompletionException(e);
+                        }
+                    }, executor);
+                }
+            }
+
+            final JResult result = createResult(resolvedUrl, originalUrl);
+            if (!needsDownload(result, resolvedUrl))
+                return CompletableFuture.completedFuture(finish(result, request));
+
+            String urlToDownload = forceReload ? getURLtoBreakCache(resolvedUrl) : resolvedUrl;
+            return httpClientEngine().fetch(urlToDownload, timeout, true, null).handleAsync((response, ex) -> {
+                try {
+                    if (ex != null) {
+                        handleDownloadFailure(result, getIOException(ex));
+                    } else {
+                        copyResponseInfo(result, response);
+                        if (isExtractable(result, response))
+                            extract(result, response.getBody(), request);
+                    }
+                } catch (CompletionException e) {
+                    throw e;
+                } catch (Exception e) {
+                    throw new CompletionException(e);
+                }
+
+                fixUrls(result, resolvedUrl, request);
+                return finish(result, request);
+            }, executor);
+        });
+    }
+
+    /**
+     * @return the key under which concurrent calls are coalesced. Only calls
+     * with the same options share one fetch, a forced reload must not get the
+     * possibly cached result of a normal fetch.
+     */
+    private String getFlightKey(String url, boolean resolve, ExtractionRequest request, boolean forceReload) {
+        return getCacheKey(unwrapUrl(url)) + " " + resolve + " " + request + " " + forceReload;
+    }
+
+    private static ExtractionRequest toRequest(int maxContentSize, boolean onlyExtractCanonical) {
+        ExtractionRequest request = onlyExtractCanonical ? ExtractionRequest.canonical() : ExtractionRequest.all();
+        return request.setMaxContentSize(maxContentSize);
+    }
+
+    private static JResult await(CompletableFuture<JResult> future) throws Exception {
+        try {
+            return future.get();
+        } catch (ExecutionException ex) {
+            Throwable cause = HttpClientEngine.unwrap(ex.getCause());
+            if (cause instanceof Exception)
+                throw (Exception) cause;
+            throw (Error) cause;
+        }
+    }
+
+    /**
+     * Fetches and extracts all urls in parallel while respecting
+     * maxConcurrentPerHost and maxConcurrent. Every result is passed to the
+     * listener as soon as it is ready, urls of different hosts are started
+     * round robin so one slow host does not starve the others.
+     *
+     * @return a future which completes after the listener got all urls
+     */
+    public CompletableFuture<Void> fetchAndExtractAll(Collection<String> urls, int timeout,
+                                                      boolean resolve, FetchListener listener) {
+        return new BulkFetch(this, timeout, resolve, listener).start(urls);
+    }
+
+    /**
+     * @return the key under which the url is counted for maxConcurrentPerHost
+     */
+    public String getHostKey(String url) {
+        if (hostGrouping == HostGrouping.TOP_PRIVATE_DOMAIN) {
+            String topPrivateDomain = extractor.extractTopPrivateDomain(url);
+            if (topPrivateDomain != null)
+                return topPrivateDomain;
+        }
+        return SHelper.extractDomain(url, true).toLowerCase();
+    }
+
+    /**
+     * Resolves all urls in parallel. Urls of shorteners are taken from the
+     * short url cache if possible and are resolved only once if they are
+     * contained several times.
+     *
+     * @return the resolved url for every url, in the order of urls. Like for
+     * getResolvedUrl the resolved url is empty if resolving failed.
+     */
+    public Map<String, String> resolveAll(Collection<String> urls, int timeout) {
+        Map<String, CompletableFuture<String>> futures = new LinkedHashMap<String, CompletableFuture<String>>();
+        for (String url : urls) {
+            if (!futures.containsKey(url)) {
+                if (engine == Engine.HTTP_CLIENT)
+                    futures.put(url, resolveAsync(url, timeout));
+                else
+                    futures.put(url, CompletableFuture.supplyAsync(() -> resolve(url, timeout), executor));
+            }
+        }
+
+        Map<String, String> resolved = new LinkedHashMap<String, String>();
+        for (Map.Entry<String, CompletableFuture<String>> entry : futures.entrySet()) {
+            String resUrl;
+            try {
+                resUrl = entry.getValue().join();
+            } catch (CompletionException ex) {
+                logger.warn("resolveAll:" + entry.getKey() + " Error:" + HttpClientEngine.unwrap(ex).getMessage());
+                resUrl = "";
+            }
+            resolved.put(entry.getKey(), resUrl);
+        }
+        return resolved;
+    }
+
+    /**
+     * Like getResolvedUrl but uses the short url cache.
+     */
+    private String resolve(String url, int timeout) {
+        if (!isShortUrl(url))
+            return getResolvedUrl(url, timeout, 0);
+
+        CompletableFuture<String> future = new CompletableFuture<String>();
+        CompletableFuture<String> cached = getOrPut(url, future);
+        if (cached != future)
+            return cached.join();
+
+        String resUrl = "";
+        try {
+            resUrl = getResolvedUrl(url, timeout, 0);
+        } finally {
+            completeResolution(url, future, resUrl);
+        }
+        return resUrl;
+    }
+
+    private CompletableFuture<String> resolveAsync(final String url, int timeout) {
+        if (!isShortUrl(url))
+            return httpClientEngine().resolve(url, timeout);
+
+        final CompletableFuture<String> future = new CompletableFuture<String>();
+        CompletableFuture<String> cached = getOrPut(url, future);
+        if (cached != future)
+            return cached;
+
+        httpClientEngine().resolve(url, timeout).whenComplete((resUrl, ex) ->
+                completeResolution(url, future, ex == null ? resUrl : ""));
+        return future;
+    }
+
+    private CompletableFuture<String> getOrPut(String url, final CompletableFuture<String> future) {
+        try {
+            return resolveCache.get(url, () -> future);
+        } catch (ExecutionException ex) {
+            // cannot happen as the loader does not throw
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    private void completeResolution(String url, CompletableFuture<String> future, String resUrl) {
+        // failures are not cached, the next request tries again
+        if (resUrl.isEmpty())
+            resolveCache.asMap().remove(url, future);
+        future.complete(resUrl);
+    }
+
+    /**
+     * @return the cached resolution of the short url or the url itself
+     */
+    private String getCachedResolution(String url) {
+        if (!isShortUrl(url))
+            return url;
+
+        CompletableFuture<String> future = resolveCache.getIfPresent(url);
+        if (future == null || !future.isDone())
+            return url;
+
+        String resUrl = future.join();
+        return resUrl.isEmpty() ? url : useResolvedUrl(url, resUrl);
+    }
+
+    private boolean isShortUrl(String url) {
+        return furtherResolveNecessary.contains(SHelper.extractDomain(url, true).toLowerCase());
+    }
+
+    private static Cache<String, CompletableFuture<String>> createResolveCache(long maximumSize,
+                                                                              long expireAfterWrite) {
+        return CacheBuilder.newBuilder().
+                maximumSize(maximumSize).
+                expireAfterWrite(expireAfterWrite, TimeUnit.MILLISECONDS).
+                recordStats().
+                build();
+    }
+
+    /**
+     * Downloads the page of a previous result again. If the previous result
+     * has an ETag or Last-Modified header a conditional GET is sent and the
+     * previous result is returned as is if the page was not modified.
+     * fetchAndExtract does this for cached results if forceReload is true.
+     */
+    public JResult revalidate(JResult previous, int timeout) throws Exception {
+        String originalUrl = previous.getOriginalUrl() == null ? previous.getUrl() : previous.getOriginalUrl();
+        return revalidate(previous.getUrl(), originalUrl, previous, timeout,
+                ExtractionRequest.of(previous.getFields()));
+    }
+
+    /**
+     * @return how often a server answered a revalidation with 304 Not Modified
+     */
+    public int getNotModifiedCounter() {
+        return notModifiedCounter.get();
+    }
+
+    private JResult revalidate(String url, String originalUrl, JResult previous, int timeout,
+                               ExtractionRequest request) throws Exception {
+        FetchResponse response = null;
+        try {
+            response = fetch(url, timeout, true, previous);
+        } catch (IOException io) {
+            handleRevalidationFailure(url, originalUrl, io);
+        }
+        return revalidated(url, originalUrl, previous, response, request);
+    }
+
+    /**
+     * @param response null if the download failed, then the previous result is
+     * returned as it is better than an empty one
+     */
+    private JResult revalidated(String url, String originalUrl, JResult previous, FetchResponse response,
+                                ExtractionRequest request) throws Exception {
+        if (response == null || response.isNotModified()) {
+            if (response != null) {
+                notModifiedCounter.incrementAndGet();
+                if (logger.isDebugEnabled())
+                    logger.debug("not modified:" + url);
+            }
+            // previous is the cached result, which is shared
+            return previous.withUrls(url, originalUrl);
+        }
+        return extract(url, originalUrl, response, request);
+    }
+
+    /**
+     * @return the cached result if it has validators and all fields of the
+     * request, otherwise the page has to be extracted anyway
+     */
+    private JResult getRevalidatable(String url, ExtractionRequest request) {
+        if (cache == null)
+            return null;
+        JResult res = cache.get(getCacheKey(url));
+        if (res == null || (res.getEtag().isEmpty() && res.getLastModified().isEmpty())
+                || !res.hasFields(request.getFields()))
+            return null;
+        return res;
+    }
+
+    private static void copyResponseInfo(JResult result, FetchResponse response) {
+        result.setEtag(response.getEtag());
+        result.setLastModified(response.getLastModified());
+        result.setPartial(response.isPartial());
+    }
+
+    private boolean resolveWithGet(String url, boolean forceReload) {
+        // the cache breaking parameter must not be appended to the shortened url
+        if (resolveMode != ResolveMode.GET || forceReload)
+            return false;
+
+        String host = SHelper.extractDomain(url, true).toLowerCase();
+        int portIndex = host.indexOf(':');
+        if (portIndex > 0)
+            host = host.substring(0, portIndex);
+        if (headResolveHosts.contains(host))
+            return false;
+
+        // do not download media files just to find out where they are
+        String lowerUrl = url.toLowerCase();
+        return !(SHelper.isDoc(lowerUrl) || SHelper.isApp(lowerUrl) || SHelper.isPackage(lowerUrl)
+                || SHelper.isVideo(lowerUrl) || SHelper.isAudio(lowerUrl) || SHelper.isImage(lowerUrl));
     }
 
-    public String getUserAgent() {
-        return userAgent;
+    /**
+     * Marks the result as failed and caches it for negativeCacheTtl unless a
+     * transient error would replace a successful result. Throws
+     * SnacktoryNotFoundException for missing pages, other IOExceptions are
+     * only logged and lead to an empty result.
+     */
+    private JResult handleDownloadFailure(JResult result, IOException ex) throws SnacktoryNotFoundException {
+        if (ex instanceof FileNotFoundException)
+            result.setNotFound(true);
+        else
+            result.setError(ex.toString());
+        if (negativeCacheTtl > 0 && (result.isNotFound() || !hasSuccessInCache(result.getUrl()))) {
+            result.setExpires(System.currentTimeMillis() + negativeCacheTtl);
+            // missing pages do not reach finish
+            putInCache(result);
+        }
+
+        if (result.isNotFound())
+            throw new SnacktoryNotFoundException();
+        logFailure(result.getUrl(), ex);
+        return result;
     }
 
-    public void setUserAgent(String userAgent) {
-        this.userAgent = userAgent;
+    private JResult handleDownloadFailure(String url, String originalUrl, IOException ex,
+                                          ExtractionRequest request) throws SnacktoryNotFoundException {
+        JResult result = createResult(url, originalUrl);
+        handleDownloadFailure(result, ex);
+        fixUrls(result, url, request);
+        return finish(result, request);
     }
 
-    public String getAccept() {
-        return accept;
+    private boolean hasSuccessInCache(String url) {
+        if (cache == null)
+            return false;
+        JResult res = cache.get(getCacheKey(url));
+        return res != null && !res.isFailed();
     }
 
-    public String getCacheControl() {
-        return cacheControl;
+    /**
+     * The previous result is kept if the revalidation failed, except if the
+     * page is gone.
+     */
+    private void handleRevalidationFailure(String url, String originalUrl, IOException ex)
+            throws SnacktoryNotFoundException {
+        if (ex instanceof FileNotFoundException)
+            handleDownloadFailure(createResult(url, originalUrl), ex);
+        logFailure(url, ex);
     }
 
-    public String getCharset() {
-        return charset;
+    private static void logFailure(String url, IOException ex) {
+        if (ex instanceof CircuitOpenException) {
+            if (logger.isDebugEnabled())
+                logger.debug("Skipped URL: " + url + ":" + ex.getMessage());
+        } else {
+            logger.error("Exception for URL: " + url + ":" + ex);
+        }
     }
 
-    public JResult fetchAndExtractCanonical(String url, int timeout, boolean resolve) throws Exception {
-        return fetchAndExtract(url, timeout, resolve, 0, false, true);
+    /**
+     * @return the IOException of a failed download, everything else is
+     * rethrown
+     */
+    private static IOException getIOException(Throwable ex) {
+        Throwable cause = HttpClientEngine.unwrap(ex);
+        if (!(cause instanceof IOException))
+            throw new CompletionException(cause);
+        return (IOException) cause;
     }
 
-    public JResult fetchAndExtract(String url, int timeout, boolean resolve) throws Exception {
-        return fetchAndExtract(url, timeout, resolve, 0, false, false);
+    /**
+     * Creates the result for a page which was downloaded with fetch, the url
+     * of the result is the url of the last redirect hop.
+     *
+     * @param response null if the download failed
+     */
+    private JResult extract(String url, String originalUrl, FetchResponse response,
+                            ExtractionRequest request) throws Exception {
+        List<String> redirects = null;
+        if (response != null) {
+            redirects = response.getRedirects();
+            String firstUrl = redirects.isEmpty() ? response.getUrl() : redirects.get(0);
+            if (!firstUrl.equals(url)) {
+                // a cached resolution of url was downloaded
+                redirects = new ArrayList<String>(redirects);
+                redirects.add(0, url);
+            } else if (!response.getUrl().equals(url) && isShortUrl(url)) {
+                resolveCache.put(url, CompletableFuture.completedFuture(response.getUrl()));
+            }
+            url = useResolvedUrl(url, response.getUrl());
+        }
+
+        JResult result = createResult(url, originalUrl);
+        if (response != null) {
+            result.setRedirects(redirects);
+            copyResponseInfo(result, response);
+        }
+
+        if (needsDownload(result, url)) {
+            if (response != null && isExtractable(result, response))
+                extract(result, response.getBody(), request);
+            fixUrls(result, url, request);
+        }
+        return finish(result, request);
     }
 
-    // main workhorse to call externally
-    public JResult fetchAndExtract(String url, int timeout, boolean resolve, 
-                                   int maxContentSize, boolean forceReload,
-                                   boolean onlyExtractCanonical) throws Exception {
-        String originalUrl = url;
+    private String unwrapUrl(String url) {
         url = SHelper.removeHashbang(url);
         String gUrl = SHelper.getUrlFromUglyGoogleRedirect(url);
         if (gUrl != null)
@@ -225,107 +1239,148 @@ public class HtmlFetcher {
             if (gUrl != null)
                 url = gUrl;
         }
+        return url;
+    }
 
-        if (resolve) {
-            // check if we can avoid resolving the URL (which hits the website!)
-            JResult res = getFromCache(url, originalUrl);
-            if (res != null)
-                return res;
-
-            String resUrl = getResolvedUrl(url, timeout, 0);
-            /*
-            // There are some cases when the resolved URL is empty (some sites
-            don't like the HEAD request, in that case instead of returning an
-            empty result try to access the site normally with GET.)
-            if (resUrl.isEmpty()) {
-                if (logger.isDebugEnabled())
-                    logger.warn("resolved url is empty. Url is: " + url);
-
-                JResult result = new JResult();
-                if (cache != null)
-                    cache.put(url, result);
-                return result.setUrl(url);
-            }*/
-
-            // if resolved url is different then use it!
-            if (resUrl != null && !resUrl.isEmpty() && resUrl != url) {
-                // this is necessary e.g. for some homebaken url resolvers which return
-                // the resolved url relative to url!
-                url = SHelper.useDomainOfFirstArg4Second(url, resUrl);
-            }
+    private String useResolvedUrl(String url, String resUrl) {
+        // if resolved url is different then use it!
+        if (resUrl != null && !resUrl.isEmpty() && resUrl != url) {
+            // this is necessary e.g. for some homebaken url resolvers which return
+            // the resolved url relative to url!
+            return SHelper.useDomainOfFirstArg4Second(url, resUrl);
         }
+        return url;
+    }
 
-        // check if we have the (resolved) URL in cache
-        JResult res = getFromCache(url, originalUrl);
-        if (res != null)
-            return res;
-
+    private JResult createResult(String url, String originalUrl) {
         JResult result = new JResult();
         // or should we use? <link rel="canonical" href="http://www.N24.de/news/newsitem_6797232.html"/>
         result.setUrl(url);
         result.setOriginalUrl(originalUrl);
+        return result;
+    }
 
-        // Immediately put the url into the cache as extracting content takes time.
-        if (cache != null) {
-            cache.put(originalUrl, result);
-            cache.put(url, result);
-        }
-
-        // extract content to the extent appropriate for content type
+    /**
+     * Extract content to the extent appropriate for content type
+     *
+     * @return true if the url points to a web page which needs to be downloaded
+     */
+    private boolean needsDownload(JResult result, String url) {
         String lowerUrl = url.toLowerCase();
         if (SHelper.isDoc(lowerUrl) || SHelper.isApp(lowerUrl) || SHelper.isPackage(lowerUrl)) {
             // skip
+            return false;
         } else if (SHelper.isVideo(lowerUrl) || SHelper.isAudio(lowerUrl)) {
             result.setVideoUrl(url);
+            return false;
         } else if (SHelper.isImage(lowerUrl)) {
             result.setImageUrl(url);
-        } else {
-            try {
-                String urlToDownload = url;
-                if(forceReload){
-                    urlToDownload = getURLtoBreakCache(url);
-                } 
+            return false;
+        }
+        return true;
+    }
 
-                if (!onlyExtractCanonical){
-                    extractor.extractContent(result, fetchAsString(urlToDownload, timeout), maxContentSize);
-                } else {
-                    extractor.extractCanonical(result, fetchAsString(urlToDownload, timeout), false);
-                }
-            } catch (FileNotFoundException fe){
-                throw new SnacktoryNotFoundException();
-            } catch (IOException io){
-                // do nothing
-                logger.error("Exception for URL: " + url + ":" + io);
-            }
+    /**
+     * Like needsDownload but based on the headers of the response. Media urls
+     * are set from the Content-Type if the body was skipped.
+     *
+     * @return true if the body of the response was downloaded
+     */
+    private boolean isExtractable(JResult result, FetchResponse response) {
+        if (response.getBody() != null)
+            return true;
+
+        String contentType = response.getContentType();
+        if (SHelper.isImageContentType(contentType))
+            result.setImageUrl(response.getUrl());
+        else if (SHelper.isVideoContentType(contentType) || SHelper.isAudioContentType(contentType))
+            result.setVideoUrl(response.getUrl());
+        return false;
+    }
+
+    /**
+     * Decides right after the response headers arrived whether the body is
+     * worth downloading. Non textual pages and pages larger than
+     * maxContentLength are skipped.
+     *
+     * @param contentLength the declared length or -1 if unknown
+     */
+    boolean skipBody(String url, int responseCode, String contentType, long contentLength) {
+        if (responseCode / 100 != 2)
+            return false;
+
+        boolean skip = !SHelper.isTextContentType(contentType)
+                || maxContentLength >= 0 && contentLength > maxContentLength;
+        if (skip && logger.isDebugEnabled())
+            logger.debug("skip body of " + url + " type:" + contentType + " length:" + contentLength);
+        return skip;
+    }
 
-            if (!onlyExtractCanonical){
-                if (result.getFaviconUrl().isEmpty())
-                    result.setFaviconUrl(SHelper.getDefaultFavicon(url));
+    private void extract(JResult result, String html, ExtractionRequest request) throws Exception {
+        if (!request.isCanonicalOnly()){
+            extractor.extractContent(result, html, request);
+        } else {
+            extractor.extractCanonical(result, html, false);
+            result.setFields(request.getFields());
+        }
+    }
 
-                // some links are relative to root and do not include the domain of the url :(
-                if(!result.getFaviconUrl().isEmpty())
-                    result.setFaviconUrl(fixUrl(url, result.getFaviconUrl()));
+    private void fixUrls(JResult result, String url, ExtractionRequest request) {
+        if (!request.isCanonicalOnly()){
+            if (result.getFaviconUrl().isEmpty() && request.has(Field.FAVICON_URL))
+                result.setFaviconUrl(SHelper.getDefaultFavicon(url));
 
-                if(!result.getImageUrl().isEmpty())
-                    result.setImageUrl(fixUrl(url, result.getImageUrl()));
+            // some links are relative to root and do not include the domain of the url :(
+            if(!result.getFaviconUrl().isEmpty())
+                result.setFaviconUrl(fixUrl(url, result.getFaviconUrl()));
 
-                if(!result.getVideoUrl().isEmpty())
-                    result.setVideoUrl(fixUrl(url, result.getVideoUrl()));
+            if(!result.getImageUrl().isEmpty())
+                result.setImageUrl(fixUrl(url, result.getImageUrl()));
 
-                if(!result.getRssUrl().isEmpty())
-                    result.setRssUrl(fixUrl(url, result.getRssUrl()));
-            }
+            if(!result.getVideoUrl().isEmpty())
+                result.setVideoUrl(fixUrl(url, result.getVideoUrl()));
+
+            if(!result.getRssUrl().isEmpty())
+                result.setRssUrl(fixUrl(url, result.getRssUrl()));
         }
+    }
 
-        if (!onlyExtractCanonical){
+    private JResult finish(JResult result, ExtractionRequest request) {
+        if (!request.isCanonicalOnly()){
             result.setText(lessText(result.getText()));
         }
-        synchronized (result) {
-            result.notifyAll();
-        }
+        // only complete results are cached, concurrent calls for the same url
+        // wait for the fetch in flight instead. Failures are cached by
+        // handleDownloadFailure.
+        if (!result.isFailed())
+            putInCache(result);
         return result;
     }
 
+    private void putInCache(JResult result) {
+        if (cache == null)
+            return;
+        String key = getCacheKey(result.getUrl());
+        Set<String> aliases = new LinkedHashSet<String>();
+        if (result.getOriginalUrl() != null)
+            aliases.add(getCacheKey(result.getOriginalUrl()));
+        // the canonical url is an alias, the next fetch of it is a hit. A
+        // page must not overwrite the entries of other sites though.
+        String canonicalUrl = result.getCanonicalUrl();
+        if (canonicalUrl != null && !canonicalUrl.isEmpty() && isSameDomain(result.getUrl(), canonicalUrl))
+            aliases.add(getCacheKey(canonicalUrl));
+        aliases.remove(key);
+        cache.put(key, result, aliases);
+    }
+
+    private String getCacheKey(String url) {
+        return urlNormalizer == null ? url : urlNormalizer.normalize(url);
+    }
+
+    private static boolean isSameDomain(String url, String otherUrl) {
+        return SHelper.extractDomain(url.toLowerCase(), true).equals(SHelper.extractDomain(otherUrl.toLowerCase(), true));
+    }
+
     // Ugly hack to break free from any cached versions, a few URLs required this.
     public String getURLtoBreakCache(String url) {
         try {
@@ -362,8 +1417,192 @@ public class HtmlFetcher {
     // main routine to get raw webpage content
     public String fetchAsString(String urlAsString, int timeout, boolean includeSomeGooseOptions)
             throws MalformedURLException, IOException {
+        if (engine == Engine.HTTP_CLIENT)
+            return join(httpClientEngine().fetchAsString(urlAsString, timeout, includeSomeGooseOptions));
+
+        long deadline = getDeadline();
         HttpURLConnection hConn = createUrlConnection(urlAsString, timeout, includeSomeGooseOptions);
         hConn.setInstanceFollowRedirects(true);
+        setTimeouts(hConn, urlAsString, timeout, deadline);
+        ScheduledFuture<?> watchdog = watch(hConn, deadline);
+        try {
+            if (skipBody(urlAsString, connect(hConn, urlAsString), hConn.getContentType(),
+                    hConn.getContentLengthLong())) {
+                hConn.disconnect();
+                return "";
+            }
+            return readBody(hConn, createConverter(urlAsString), null);
+        } finally {
+            if (watchdog != null)
+                watchdog.cancel(false);
+        }
+    }
+
+    /**
+     * Downloads the page with GET and follows redirects by hand, also from
+     * http to https which HttpURLConnection does not do. Every hop which
+     * answered with a redirect is recorded.
+     *
+     * @param previous if not null its validators are sent so that the server
+     * can answer with 304 Not Modified
+     */
+    FetchResponse fetch(String urlAsString, int timeout, boolean includeSomeGooseOptions, JResult previous)
+            throws MalformedURLException, IOException {
+        if (engine == Engine.HTTP_CLIENT)
+            return join(httpClientEngine().fetch(urlAsString, timeout, includeSomeGooseOptions, previous));
+
+        long deadline = getDeadline();
+        List<String> redirects = new ArrayList<String>();
+        while (true) {
+            HttpURLConnection hConn = createUrlConnection(urlAsString, timeout, includeSomeGooseOptions);
+            hConn.setInstanceFollowRedirects(false);
+            setTimeouts(hConn, urlAsString, timeout, deadline);
+            if (previous != null) {
+                if (!previous.getEtag().isEmpty())
+                    hConn.setRequestProperty("If-None-Match", previous.getEtag());
+                if (!previous.getLastModified().isEmpty())
+                    hConn.setRequestProperty("If-Modified-Since", previous.getLastModified());
+            }
+            ScheduledFuture<?> watchdog = watch(hConn, deadline);
+            try {
+                int responseCode = connect(hConn, urlAsString);
+                String newUrl = getRedirectTarget(urlAsString, responseCode, hConn.getHeaderField("Location"),
+                        redirects.size());
+                if (newUrl == null) {
+                    String body = null;
+                    Converter converter = createConverter(urlAsString);
+                    if (responseCode == HttpURLConnection.HTTP_NOT_MODIFIED)
+                        hConn.getInputStream().close();
+                    else if (skipBody(urlAsString, responseCode, hConn.getContentType(),
+                            hConn.getContentLengthLong()))
+                        // do not even read the rest of the body, just close the connection
+                        hConn.disconnect();
+                    else {
+                        ByteArrayOutputStream raw = rawStore == null ? null : new ByteArrayOutputStream();
+                        body = readBody(hConn, converter, raw);
+                        if (raw != null)
+                            archive(urlAsString, responseCode, hConn.getHeaderFields(), raw.toByteArray(),
+                                    getTruncated(converter, deadline));
+                    }
+                    return new FetchResponse(urlAsString, redirects, responseCode, hConn.getContentType(),
+                            hConn.getHeaderField("ETag"), hConn.getHeaderField("Last-Modified"), body,
+                            converter.isPartial());
+                }
+
+                if (logger.isDebugEnabled())
+                    logger.debug(responseCode + " url:" + urlAsString + " redirect:" + newUrl);
+                // read the rest of the redirect body so the connection can be reused
+                try {
+                    InputStream is = hConn.getInputStream();
+                    while (is.read() >= 0) {
+                    }
+                    is.close();
+                } catch (IOException ex) {
+                    hConn.disconnect();
+                }
+                redirects.add(urlAsString);
+                urlAsString = newUrl;
+            } finally {
+                if (watchdog != null)
+                    watchdog.cancel(false);
+            }
+        }
+    }
+
+    private void setTimeouts(HttpURLConnection hConn, String url, int timeout, long deadline)
+            throws SocketTimeoutException {
+        hConn.setConnectTimeout(getTimeout(getConnectTimeout(url, timeout), deadline));
+        hConn.setReadTimeout(getTimeout(getReadTimeout(url, timeout), deadline));
+    }
+
+    /**
+     * Connects and waits for the response headers while measuring the
+     * latencies of the host.
+     *
+     * @return the response code
+     */
+    private int connect(HttpURLConnection hConn, String url) throws IOException {
+        acquire(url);
+        HostStats stats = hostStats(url);
+        long start = System.nanoTime();
+        int responseCode = -1;
+        try {
+            hConn.connect();
+            long connected = System.nanoTime();
+            responseCode = hConn.getResponseCode();
+            stats.addConnectTime(TimeUnit.NANOSECONDS.toMillis(connected - start));
+            stats.addFirstByteTime(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - connected));
+            return responseCode;
+        } catch (SocketTimeoutException ex) {
+            stats.addTimeout();
+            throw ex;
+        } finally {
+            onResponse(url, responseCode);
+        }
+    }
+
+    /**
+     * @return the time in milliseconds at which the fetch has to be done or 0
+     */
+    long getDeadline() {
+        return maxFetchTime > 0 ? System.currentTimeMillis() + maxFetchTime : 0;
+    }
+
+    /**
+     * @return the timeout for the next connection, which is never later than
+     * the deadline
+     * @throws SocketTimeoutException if the deadline has passed
+     */
+    static int getTimeout(int timeout, long deadline) throws SocketTimeoutException {
+        if (deadline <= 0)
+            return timeout;
+
+        long remaining = deadline - System.currentTimeMillis();
+        if (remaining <= 0)
+            throw new SocketTimeoutException("Maximum fetch time exceeded");
+        return timeout > 0 ? (int) Math.min(timeout, remaining) : (int) remaining;
+    }
+
+    /**
+     * Schedules the task to run at the deadline.
+     *
+     * @return the scheduled task which has to be cancelled if the fetch was
+     * done in time or null if there is no deadline
+     */
+    static ScheduledFuture<?> schedule(Runnable task, long deadline) {
+        if (deadline <= 0)
+            return null;
+        return WATCHDOG.schedule(task, Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Disconnecting from another thread makes the blocked read fail, so the
+     * Converter returns what was read so far.
+     */
+    private static ScheduledFuture<?> watch(final HttpURLConnection hConn, long deadline) {
+        return schedule(() -> {
+            if (logger.isDebugEnabled())
+                logger.debug("Maximum fetch time exceeded:" + hConn.getURL());
+            hConn.disconnect();
+        }, deadline);
+    }
+
+    private static ScheduledThreadPoolExecutor createWatchdog() {
+        ScheduledThreadPoolExecutor watchdog = new ScheduledThreadPoolExecutor(1, runnable -> {
+            Thread thread = new Thread(runnable, "snacktory-fetch-watchdog");
+            thread.setDaemon(true);
+            return thread;
+        });
+        watchdog.setRemoveOnCancelPolicy(true);
+        return watchdog;
+    }
+
+    /**
+     * @param raw if not null the bytes are copied into it before they are
+     * decoded
+     */
+    private String readBody(HttpURLConnection hConn, Converter converter, ByteArrayOutputStream raw)
+            throws IOException {
         String encoding = hConn.getContentEncoding();
         InputStream is;
         if (encoding != null && encoding.equalsIgnoreCase("gzip")) {
@@ -373,11 +1612,14 @@ public class HtmlFetcher {
         } else {
             is = hConn.getInputStream();
         }
+        if (raw != null)
+            is = new RecordingInputStream(is, raw);
 
         String enc = Converter.extractEncoding(hConn.getContentType());
-        String res = createConverter(urlAsString).streamToString(is, enc);
+        String res = converter.streamToString(is, enc);
         if (logger.isDebugEnabled())
-            logger.debug(res.length() + " FetchAsString:" + urlAsString);
+            logger.debug(res.length() + " FetchAsString:" + hConn.getURL() + " charset:" + converter.getEncoding()
+                    + " from " + converter.getCharsetSource());
         return res;
     }
 
@@ -385,6 +1627,118 @@ public class HtmlFetcher {
         return new Converter(url);
     }
 
+    /**
+     * @return why the converter did not read the whole body. The watchdog
+     * closes the connection at the deadline, so that read error is a timeout
+     * too.
+     */
+    private static String getTruncated(Converter converter, long deadline) {
+        String truncated = converter.getTruncated();
+        if ("disconnect".equals(truncated) && deadline > 0 && System.currentTimeMillis() >= deadline)
+            return "time";
+        return truncated;
+    }
+
+    /**
+     * Puts the downloaded page into the raw store. A failing store is only
+     * logged, it must not fail the fetch.
+     *
+     * @param truncated why the body is incomplete or null, see
+     * RawResponse.getTruncated
+     */
+    void archive(String url, int statusCode, Map<String, List<String>> headers, byte[] body, String truncated) {
+        if (rawStore == null)
+            return;
+        try {
+            rawStore.put(new RawResponse(url, System.currentTimeMillis(), statusCode, headers, body, truncated));
+        } catch (IOException ex) {
+            logger.error("Cannot archive URL: " + url + ":" + ex);
+        }
+    }
+
+    /**
+     * Extracts an archived page like a downloaded one and puts the result
+     * into the cache.
+     *
+     * @throws FileNotFoundException if the page was missing
+     * @throws IOException if the server answered with an error
+     */
+    public JResult extract(RawResponse response) throws Exception {
+        return extract(response, ExtractionRequest.all());
+    }
+
+    /**
+     * Like extract(RawResponse) but only extracts the fields of the request.
+     * Like for a download the result is partial if the body was truncated by
+     * a timeout or a read error, but not if it was only cut at maxBytes.
+     */
+    public JResult extract(RawResponse response, ExtractionRequest request) throws Exception {
+        String url = response.getUrl();
+        int statusCode = response.getStatusCode();
+        if (statusCode == 404 || statusCode == 410)
+            throw new FileNotFoundException(url);
+        if (statusCode >= 400)
+            throw new IOException("Server returned HTTP response code: " + statusCode + " for URL: " + url);
+
+        JResult result = createResult(url, url);
+        result.setEtag(response.getHeader("ETag"));
+        result.setLastModified(response.getHeader("Last-Modified"));
+        result.setPartial(response.isTruncated() && !"length".equals(response.getTruncated()));
+        if (needsDownload(result, url)) {
+            if (SHelper.isTextContentType(response.getContentType())) {
+                String html = createConverter(url).streamToString(new ByteArrayInputStream(response.getBody()),
+                        response.getCharset());
+                extract(result, html, request);
+            }
+            fixUrls(result, url, request);
+        }
+        return finish(result, request);
+    }
+
+    /**
+     * Extracts the archived pages again, e.g. after the extraction rules
+     * changed, and replaces the cached results. The pages are extracted on
+     * the executor and at most maxConcurrent of them are read ahead, so the
+     * archive can be much larger than the memory. Blocks until all pages are
+     * done.
+     */
+    public void reExtractAll(Iterable<RawResponse> responses, final FetchListener listener)
+            throws InterruptedException {
+        reExtractAll(responses, ExtractionRequest.all(), listener);
+    }
+
+    /**
+     * Like reExtractAll(Iterable, FetchListener) but only extracts the fields
+     * of the request.
+     */
+    public void reExtractAll(Iterable<RawResponse> responses, final ExtractionRequest request,
+            final FetchListener listener) throws InterruptedException {
+        final int permits = Math.max(1, maxConcurrent);
+        final Semaphore semaphore = new Semaphore(permits);
+        for (final RawResponse response : responses) {
+            semaphore.acquire();
+            executor.execute(() -> {
+                try {
+                    JResult res;
+                    try {
+                        res = extract(response, request);
+                    } catch (Exception ex) {
+                        listener.onFailure(response.getUrl(), ex);
+                        return;
+                    }
+                    listener.onResult(response.getUrl(), res);
+                } catch (RuntimeException listenerEx) {
+                    logger.error("FetchListener failed for URL: " + response.getUrl(), listenerEx);
+                } finally {
+                    semaphore.release();
+                }
+            });
+        }
+        // wait for the running extractions
+        semaphore.acquire(permits);
+        semaphore.release(permits);
+    }
+
     /**
      * On some devices we have to hack:
      * http://developers.sun.com/mobility/reference/techart/design_guidelines/http_redirection.html
@@ -395,6 +1749,14 @@ public class HtmlFetcher {
      */
     public String getResolvedUrl(String urlAsString, int timeout, 
                                  int num_redirects) {
+        if (engine == Engine.HTTP_CLIENT && num_redirects == 0) {
+            try {
+                return join(httpClientEngine().resolve(urlAsString, timeout));
+            } catch (IOException ex) {
+                return "";
+            }
+        }
+
         String newUrl = null;
         int responseCode = -1;
         try {
@@ -404,8 +1766,7 @@ public class HtmlFetcher {
             // the program doesn't care what the content actually is !!
             // http://java.sun.com/developer/JDCTechTips/2003/tt0422.html
             hConn.setRequestMethod("HEAD");
-            hConn.connect();
-            responseCode = hConn.getResponseCode();
+            responseCode = connect(hConn, urlAsString);
             hConn.getInputStream().close();
             if (responseCode == HttpURLConnection.HTTP_OK)
                 return urlAsString;
@@ -413,12 +1774,6 @@ public class HtmlFetcher {
             newUrl = hConn.getHeaderField("Location");
             // Note that the max recursion level is 5.
             if (responseCode / 100 == 3 && newUrl != null && num_redirects<5) {
-                newUrl = newUrl.replaceAll(" ", "+");
-                // some services use (none-standard) utf8 in their location header
-                if (urlAsString.startsWith("http://bit.ly") 
-                    || urlAsString.startsWith("http://is.gd"))
-                    newUrl = encodeUriFromHeader(newUrl);
-
                 // AP: This code is not longer need, instead we always follow
                 // multiple redirects.
                 //
@@ -429,7 +1784,7 @@ public class HtmlFetcher {
                 // Add support for URLs with multiple levels of redirection,
                 // call getResolvedUrl until there is no more redirects or a
                 // max number of redirects is reached.
-                newUrl = SHelper.useDomainOfFirstArg4Second(urlAsString, newUrl);
+                newUrl = getUrlFromLocation(urlAsString, newUrl);
                 newUrl = getResolvedUrl(newUrl, timeout, num_redirects+1);
                 return newUrl;
             } else
@@ -446,6 +1801,36 @@ public class HtmlFetcher {
         }
     }
 
+    /**
+     * Turns the Location header of a redirect into an absolute url.
+     */
+    static String getUrlFromLocation(String urlAsString, String location) {
+        String newUrl = location.replaceAll(" ", "+");
+        // some services use (none-standard) utf8 in their location header
+        if (urlAsString.startsWith("http://bit.ly") 
+            || urlAsString.startsWith("http://is.gd"))
+            newUrl = encodeUriFromHeader(newUrl);
+
+        return SHelper.useDomainOfFirstArg4Second(urlAsString, newUrl);
+    }
+
+    /**
+     * Follows the same rules as HttpClient.Redirect.NORMAL: never downgrade
+     * from https to http.
+     *
+     * @return the url to follow or null if the response is no redirect
+     */
+    static String getRedirectTarget(String urlAsString, int responseCode, String location, int numRedirects) {
+        if (responseCode / 100 != 3 || responseCode == 304 || location == null
+                || numRedirects >= MAX_FOLLOWED_REDIRECTS)
+            return null;
+
+        String newUrl = getUrlFromLocation(urlAsString, location);
+        if (urlAsString.toLowerCase().startsWith("https:") && newUrl.toLowerCase().startsWith("http:"))
+            return null;
+        return newUrl;
+    }
+
     /**
      * Takes a URI that was decoded as ISO-8859-1 and applies percent-encoding
      * to non-ASCII characters. Workaround for broken origin servers that send
@@ -489,57 +1874,156 @@ public class HtmlFetcher {
         hConn.setConnectTimeout(timeout);
         hConn.setReadTimeout(timeout);
 
-        if(DISABLE_SSL_VERIFICATION){
-            if (urlAsStr.toLowerCase().startsWith("https://")){
-                try {
-                    List sniHostNames = new ArrayList() {{
-                        add(new SNIHostName(url.getHost()));
-                    }};
-                    SSLParameters sslParameters = new SSLParameters();
-                    sslParameters.setServerNames(sniHostNames);
-
-                    SSLContext sslContext = SSLContext.getInstance("TLS");
-                    sslContext.init(null, new TrustManager[]{new NullX509TrustManager()}, null);
-
-                    HttpsURLConnection hConnSecure = (HttpsURLConnection) hConn;
-                    hConnSecure.setSSLSocketFactory(new SSLConnectionSocketFactory(sslContext.getSocketFactory(), sslParameters));
-                    hConnSecure.setHostnameVerifier(new NullHostnameVerifier());
-                } catch(Exception e) {
-                    e.printStackTrace();
-                }
+        if (DISABLE_SSL_VERIFICATION && hConn instanceof HttpsURLConnection) {
+            SharedSSLContext ssl = getSharedSSLContext();
+            if (ssl != null) {
+                HttpsURLConnection hConnSecure = (HttpsURLConnection) hConn;
+                hConnSecure.setSSLSocketFactory(ssl.getSocketFactory());
+                hConnSecure.setHostnameVerifier(NULL_HOSTNAME_VERIFIER);
             }
         }
         return hConn;
     }
 
-    private JResult getFromCache(String url, String originalUrl) throws Exception {
+    HttpClientEngine httpClientEngine() {
+        HttpClientEngine tmp = httpClientEngine;
+        if (tmp == null) {
+            synchronized (this) {
+                tmp = httpClientEngine;
+                if (tmp == null)
+                    httpClientEngine = tmp = new HttpClientEngine(this, getSSLContext(), httpClientExecutor);
+            }
+        }
+        return tmp;
+    }
+
+    /**
+     * @return the TLS layer which is shared by all HTTPS requests of this
+     * fetcher or null if the default of the JVM is used. Its handshake counters
+     * show how often TLS sessions could be resumed.
+     */
+    public SharedSSLContext getSharedSSLContext() {
+        if (!DISABLE_SSL_VERIFICATION)
+            return null;
+        SharedSSLContext tmp = sharedSSLContext;
+        if (tmp == null) {
+            synchronized (this) {
+                tmp = sharedSSLContext;
+                if (tmp == null) {
+                    try {
+                        sharedSSLContext = tmp = SharedSSLContext.createTrustAll();
+                    } catch (GeneralSecurityException e) {
+                        logger.error("Cannot create SSLContext", e);
+                    }
+                }
+            }
+        }
+        return tmp;
+    }
+
+    private SSLContext getSSLContext() {
+        SharedSSLContext ssl = getSharedSSLContext();
+        return ssl == null ? null : ssl.getSSLContext();
+    }
+
+    private static <T> T join(CompletableFuture<T> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException(ex.getMessage());
+        } catch (ExecutionException ex) {
+            Throwable cause = HttpClientEngine.unwrap(ex.getCause());
+            if (cause instanceof IOException)
+                throw (IOException) cause;
+            if (cause instanceof RuntimeException)
+                throw (RuntimeException) cause;
+            throw new IOException(cause);
+        }
+    }
+
+    /**
+     * @return the cached result or null if there is none, it expired or it
+     * lacks fields of the request
+     * @throws SnacktoryNotFoundException if the page is cached as missing
+     */
+    private JResult getFromCache(String url, String originalUrl, ExtractionRequest request)
+            throws SnacktoryNotFoundException {
         if (cache != null) {
-            JResult res = cache.get(url);
-            if (res != null) {
-                // e.g. the cache returned a shortened url as original url now we want to store the
+            JResult res = cache.get(getCacheKey(url));
+            if (res == null || res.isExpired(System.currentTimeMillis()) || !res.hasFields(request.getFields())) {
+                cacheStats.recordMisses(1);
+            } else {
+                cacheStats.recordHits(1);
+                if (res.isNotFound())
+                    throw new SnacktoryNotFoundException();
+                // e.g. the cache returned a shortened url as original url now we want to return the
                 // current original url! Also it can be that the cache response to url but the JResult
-                // does not contain it so overwrite it:
-                res.setUrl(url);
-                res.setOriginalUrl(originalUrl);
-                cacheCounter.addAndGet(1);
-                return res;
+                // does not contain it. The cached result is shared, so a copy gets the urls:
+                return res.withUrls(url, originalUrl);
             }
         }
         return null;
     }
 
-    private static class NullX509TrustManager implements X509TrustManager {
-        public void checkClientTrusted(X509Certificate[] chain, String authType) throws CertificateException {
-            //System.out.println();
+    private CompletableFuture<JResult> getFromCacheAsync(String url, String originalUrl,
+                                                         ExtractionRequest request) {
+        CompletableFuture<JResult> future = new CompletableFuture<JResult>();
+        try {
+            JResult res = getFromCache(url, originalUrl, request);
+            if (res == null)
+                return null;
+            future.complete(res);
+        } catch (SnacktoryNotFoundException ex) {
+            future.completeExceptionally(ex);
+        }
+        return future;
+    }
+
+    /**
+     * Copies everything which is read from the stream.
+     */
+    static class RecordingInputStream extends FilterInputStream {
+
+        private final OutputStream copy;
+
+        RecordingInputStream(InputStream in, OutputStream copy) {
+            super(in);
+            this.copy = copy;
         }
-        public void checkServerTrusted(X509Certificate[] chain, String authType) throws CertificateException {
-            //System.out.println();
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0)
+                copy.write(b);
+            return b;
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int length) throws IOException {
+            int n = super.read(bytes, offset, length);
+            if (n > 0)
+                copy.write(bytes, offset, n);
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            // skipped bytes would be missing in the copy
+            long skipped = 0;
+            while (skipped < n && read() >= 0) {
+                skipped++;
+            }
+            return skipped;
         }
-        public X509Certificate[] getAcceptedIssuers() {
-            return new X509Certificate[0];
+
+        @Override
+        public boolean markSupported() {
+            return false;
         }
     }
- 
+
     private static class NullHostnameVerifier implements HostnameVerifier {
         public boolean verify(String hostname, SSLSession session) {
             return true;
@@ -0,0 +1,444 @@
+/*
+ *  Copyright 2011 Peter Karich
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package de.jetwick.snacktory;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.net.ssl.SSLContext;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.CookieHandler;
+import java.net.MalformedURLException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.net.http.HttpClient;
+import java.net.http.HttpHeaders;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.net.http.HttpTimeoutException;
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Non-blocking fetch backend of HtmlFetcher on top of java.net.http.HttpClient.
+ * One client, and therefor one pool of keep-alive connections, is shared by
+ * all requests of a fetcher. HTTP/2 is used where the server supports it so
+ * requests to the same host are multiplexed over one connection.
+ *
+ * This class is thread safe.
+ *
+ * @author Peter Karich
+ */
+class HttpClientEngine {
+
+    private static final Logger logger = LoggerFactory.getLogger(HttpClientEngine.class);
+    private static final int MAX_RESOLVE_REDIRECTS = 5;
+    private final HtmlFetcher fetcher;
+    private final HttpClient client;
+
+    HttpClientEngine(HtmlFetcher fetcher, SSLContext sslContext, Executor executor) {
+        this.fetcher = fetcher;
+        // redirects are followed by hand so that HEAD based resolving and GET
+        // can share one client and so one connection pool
+        HttpClient.Builder builder = HttpClient.newBuilder().
+                version(HttpClient.Version.HTTP_2).
+                followRedirects(HttpClient.Redirect.NEVER).
+                proxy(HttpClient.Builder.NO_PROXY);
+        if (sslContext != null)
+            builder.sslContext(sslContext);
+        if (executor != null)
+            builder.executor(executor);
+        if (CookieHandler.getDefault() != null)
+            builder.cookieHandler(CookieHandler.getDefault());
+
+        client = builder.build();
+    }
+
+    HttpClient getClient() {
+        return client;
+    }
+
+    /**
+     * Downloads the page and decodes it like HtmlFetcher.fetchAsString does.
+     * The returned future fails with a FileNotFoundException for 404 and 410
+     * and with an IOException for other error codes.
+     */
+    CompletableFuture<String> fetchAsString(final String urlAsString, int timeout,
+                                            boolean includeSomeGooseOptions) {
+        return fetch(urlAsString, timeout, includeSomeGooseOptions, null).
+                thenApply(response -> response.getBody() == null ? "" : response.getBody());
+    }
+
+    /**
+     * Like fetchAsString but also returns the final url and every redirect
+     * which was followed to get there.
+     *
+     * @param previous if not null its validators are sent so that the server
+     * can answer with 304 Not Modified
+     */
+    CompletableFuture<FetchResponse> fetch(final String urlAsString, int timeout,
+                                           boolean includeSomeGooseOptions, JResult previous) {
+        final Converter converter = fetcher.createConverter(urlAsString);
+        final Fetch fetch = new Fetch(timeout, includeSomeGooseOptions, previous, converter.getMaxBytes(),
+                fetcher.getDeadline());
+        return send(urlAsString, fetch).thenApply(response -> {
+            try {
+                HttpHeaders headers = response.headers();
+                String body = null;
+                if (response.statusCode() != 304 && !skipBody(response.uri().toString(), response)) {
+                    ByteArrayOutputStream raw = fetcher.getRawStore() == null ? null : new ByteArrayOutputStream();
+                    body = decode(converter, response, raw);
+                    if (raw != null) {
+                        String truncated = fetch.subscriber.getTruncated();
+                        fetcher.archive(response.uri().toString(), response.statusCode(), headers.map(),
+                                raw.toByteArray(), truncated == null ? converter.getTruncated() : truncated);
+                    }
+                }
+                return new FetchResponse(response.uri().toString(), fetch.redirects, response.statusCode(),
+                        headers.firstValue("Content-Type").orElse(null),
+                        headers.firstValue("ETag").orElse(null),
+                        headers.firstValue("Last-Modified").orElse(null), body,
+                        fetch.subscriber.isExpired() || converter.isPartial());
+            } catch (IOException ex) {
+                throw new CompletionException(ex);
+            }
+        });
+    }
+
+    /**
+     * Asynchronous counterpart of HtmlFetcher.getResolvedUrl: follows up to 5
+     * redirects with HEAD requests.
+     *
+     * @return the resolved url or an empty string if resolving failed
+     */
+    CompletableFuture<String> resolve(final String urlAsString, final int timeout) {
+        return resolve(urlAsString, timeout, 0).exceptionally(ex -> {
+            logger.warn("getResolvedUrl:" + urlAsString + " Error:" + unwrap(ex).getMessage());
+            return "";
+        });
+    }
+
+    private CompletableFuture<String> resolve(final String urlAsString, final int timeout,
+                                              final int numRedirects) {
+        HttpRequest request;
+        try {
+            request = newRequest(urlAsString, timeout, true).
+                    method("HEAD", HttpRequest.BodyPublishers.noBody()).build();
+            fetcher.acquire(urlAsString);
+        } catch (IOException ex) {
+            return failed(ex);
+        }
+
+        return client.sendAsync(request, HttpResponse.BodyHandlers.discarding()).whenComplete((response, ex) ->
+                fetcher.onResponse(urlAsString, ex == null ? response.statusCode() : -1)
+        ).thenCompose(response -> {
+            int responseCode = response.statusCode();
+            if (logger.isDebugEnabled())
+                logger.debug(responseCode + " url:" + urlAsString);
+
+            if (responseCode == 200)
+                return CompletableFuture.completedFuture(urlAsString);
+
+            Optional<String> location = response.headers().firstValue("Location");
+            if (responseCode / 100 == 3 && location.isPresent() && numRedirects < MAX_RESOLVE_REDIRECTS) {
+                String newUrl = HtmlFetcher.getUrlFromLocation(urlAsString, location.get());
+                return resolve(newUrl, timeout, numRedirects + 1);
+            }
+            return CompletableFuture.completedFuture(urlAsString);
+        });
+    }
+
+    private CompletableFuture<HttpResponse<byte[]>> send(final String urlAsString, final Fetch fetch) {
+        HttpRequest request;
+        try {
+            // the request timeout is the time until the headers arrive
+            int timeout = fetcher.getReadTimeout(urlAsString, fetch.timeout);
+            HttpRequest.Builder builder = newRequest(urlAsString,
+                    HtmlFetcher.getTimeout(timeout, fetch.deadline), fetch.includeSomeGooseOptions);
+            if (fetch.previous != null) {
+                if (!fetch.previous.getEtag().isEmpty())
+                    builder.header("If-None-Match", fetch.previous.getEtag());
+                if (!fetch.previous.getLastModified().isEmpty())
+                    builder.header("If-Modified-Since", fetch.previous.getLastModified());
+            }
+            request = builder.GET().build();
+            fetcher.acquire(urlAsString);
+        } catch (IOException ex) {
+            return failed(ex);
+        }
+
+        // the body subscriber is chosen when the headers arrived, so unwanted
+        // bodies are never downloaded
+        final HostStats stats = fetcher.hostStats(urlAsString);
+        final long start = System.nanoTime();
+        HttpResponse.BodyHandler<byte[]> handler = info -> {
+            // includes the connection setup if no pooled connection was free
+            stats.addFirstByteTime(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+            boolean skip = fetcher.skipBody(urlAsString, info.statusCode(),
+                    info.headers().firstValue("Content-Type").orElse(null),
+                    info.headers().firstValueAsLong("Content-Length").orElse(-1));
+            final LimitedBodySubscriber subscriber = new LimitedBodySubscriber(skip ? 0 : fetch.maxBytes);
+            fetch.subscriber = subscriber;
+            // the request timeout only covers the time until the headers arrived
+            final ScheduledFuture<?> watchdog = HtmlFetcher.schedule(() -> {
+                if (subscriber.expire())
+                    logger.debug("Maximum fetch time exceeded:" + urlAsString);
+            }, fetch.deadline);
+            if (watchdog != null)
+                subscriber.getBody().whenComplete((bytes, ex) -> watchdog.cancel(false));
+            return subscriber;
+        };
+        return client.sendAsync(request, handler).whenComplete((response, ex) -> {
+            if (ex != null && unwrap(ex) instanceof HttpTimeoutException)
+                stats.addTimeout();
+            fetcher.onResponse(urlAsString, ex == null ? response.statusCode() : -1);
+        }).thenCompose(response -> {
+            String newUrl = HtmlFetcher.getRedirectTarget(urlAsString, response.statusCode(),
+                    response.headers().firstValue("Location").orElse(null), fetch.redirects.size());
+            if (newUrl != null) {
+                fetch.redirects.add(urlAsString);
+                return send(newUrl, fetch);
+            }
+
+            int responseCode = response.statusCode();
+            if (responseCode == 404 || responseCode == 410)
+                return failed(new FileNotFoundException(urlAsString));
+            if (responseCode >= 400)
+                return failed(new IOException("Server returned HTTP response code: " + responseCode
+                        + " for URL: " + urlAsString));
+
+            return CompletableFuture.completedFuture(response);
+        });
+    }
+
+    private boolean skipBody(String url, HttpResponse<?> response) {
+        return fetcher.skipBody(url, response.statusCode(), response.headers().firstValue("Content-Type").orElse(null),
+                response.headers().firstValueAsLong("Content-Length").orElse(-1));
+    }
+
+    /**
+     * @param raw if not null the decompressed bytes are copied into it
+     */
+    private String decode(Converter converter, HttpResponse<byte[]> response, ByteArrayOutputStream raw)
+            throws IOException {
+        InputStream is = new ByteArrayInputStream(response.body());
+        String encoding = response.headers().firstValue("Content-Encoding").orElse(null);
+        if (encoding != null && encoding.equalsIgnoreCase("gzip")) {
+            is = new GZIPInputStream(is);
+        } else if (encoding != null && encoding.equalsIgnoreCase("deflate")) {
+            is = new InflaterInputStream(is, new Inflater(true));
+        }
+        if (raw != null)
+            is = new HtmlFetcher.RecordingInputStream(is, raw);
+
+        String enc = Converter.extractEncoding(response.headers().firstValue("Content-Type").orElse(null));
+        String res = converter.streamToString(is, enc);
+        if (logger.isDebugEnabled())
+            logger.debug(res.length() + " FetchAsString:" + response.uri() + " charset:" + converter.getEncoding()
+                    + " from " + converter.getCharsetSource());
+        return res;
+    }
+
+    private HttpRequest.Builder newRequest(String urlAsString, int timeout,
+                                           boolean includeSomeGooseOptions) throws IOException {
+        HttpRequest.Builder builder;
+        try {
+            builder = HttpRequest.newBuilder(toURI(urlAsString));
+        } catch (IllegalArgumentException ex) {
+            throw new MalformedURLException(ex.getMessage());
+        }
+
+        builder.header("User-Agent", fetcher.getUserAgent());
+        builder.header("Accept", fetcher.getAccept());
+        if (includeSomeGooseOptions) {
+            builder.header("Accept-Language", fetcher.getLanguage());
+            builder.header("content-charset", fetcher.getCharset());
+            builder.header("Referer", fetcher.getReferrer());
+            builder.header("Cache-Control", fetcher.getCacheControl());
+        }
+        builder.header("Accept-Encoding", "gzip, deflate");
+        if (timeout > 0)
+            builder.timeout(Duration.ofMillis(timeout));
+        return builder;
+    }
+
+    /**
+     * HttpURLConnection accepts urls with unescaped characters like spaces,
+     * URI.create does not. So quote them instead of failing.
+     */
+    static URI toURI(String urlAsString) throws MalformedURLException {
+        try {
+            return new URI(urlAsString);
+        } catch (URISyntaxException ex) {
+            URL url = new URL(urlAsString);
+            try {
+                return new URI(url.getProtocol(), url.getUserInfo(), url.getHost(), url.getPort(),
+                        url.getPath(), url.getQuery(), url.getRef());
+            } catch (URISyntaxException ex2) {
+                throw new MalformedURLException(ex2.getMessage());
+            }
+        }
+    }
+
+    /**
+     * State of one fetch over all its redirects.
+     */
+    private static class Fetch {
+
+        final int timeout;
+        final boolean includeSomeGooseOptions;
+        final JResult previous;
+        final int maxBytes;
+        final long deadline;
+        final List<String> redirects = new ArrayList<String>();
+        // body subscriber of the last response
+        volatile LimitedBodySubscriber subscriber;
+
+        Fetch(int timeout, boolean includeSomeGooseOptions, JResult previous, int maxBytes, long deadline) {
+            this.timeout = timeout;
+            this.includeSomeGooseOptions = includeSomeGooseOptions;
+            this.previous = previous;
+            this.maxBytes = maxBytes;
+            this.deadline = deadline;
+        }
+    }
+
+    static Throwable unwrap(Throwable ex) {
+        while (ex instanceof CompletionException && ex.getCause() != null) {
+            ex = ex.getCause();
+        }
+        return ex;
+    }
+
+    private static <T> CompletableFuture<T> failed(Throwable ex) {
+        CompletableFuture<T> future = new CompletableFuture<T>();
+        future.completeExceptionally(ex);
+        return future;
+    }
+
+    /**
+     * Collects the body but stops reading after maxBytes so that huge
+     * responses are not buffered completely. The (compressed) body is never
+     * larger than what the Converter will decode anyway. With maxBytes 0 the
+     * body is not read at all.
+     */
+    static class LimitedBodySubscriber implements HttpResponse.BodySubscriber<byte[]> {
+
+        private final CompletableFuture<byte[]> result = new CompletableFuture<byte[]>();
+        private final ByteArrayOutputStream output = new ByteArrayOutputStream();
+        private final int maxBytes;
+        private volatile Flow.Subscription subscription;
+        private boolean expired;
+        private String truncated;
+
+        LimitedBodySubscriber(int maxBytes) {
+            this.maxBytes = maxBytes;
+        }
+
+        @Override
+        public CompletionStage<byte[]> getBody() {
+            return result;
+        }
+
+        @Override
+        public void onSubscribe(Flow.Subscription subscription) {
+            this.subscription = subscription;
+            if (maxBytes <= 0) {
+                // body is not wanted, closes the connection or resets the stream
+                subscription.cancel();
+                result.complete(new byte[0]);
+                return;
+            }
+            subscription.request(Long.MAX_VALUE);
+        }
+
+        @Override
+        public synchronized void onNext(List<ByteBuffer> items) {
+            if (result.isDone())
+                return;
+
+            for (ByteBuffer item : items) {
+                int n = Math.min(item.remaining(), maxBytes - output.size());
+                byte[] arr = new byte[n];
+                item.get(arr);
+                output.write(arr, 0, n);
+                if (output.size() >= maxBytes) {
+                    logger.warn("Maxbyte of " + maxBytes + " exceeded! Stop downloading.");
+                    truncated = "length";
+                    subscription.cancel();
+                    result.complete(output.toByteArray());
+                    return;
+                }
+            }
+        }
+
+        /**
+         * Stops reading and completes the body with the bytes received so far.
+         *
+         * @return false if the body was already complete
+         */
+        synchronized boolean expire() {
+            if (result.isDone())
+                return false;
+            expired = true;
+            truncated = "time";
+            Flow.Subscription tmp = subscription;
+            if (tmp != null)
+                tmp.cancel();
+            return result.complete(output.toByteArray());
+        }
+
+        synchronized boolean isExpired() {
+            return expired;
+        }
+
+        /**
+         * @return length if the body was cut at maxBytes, time if it expired
+         * or null if the whole body was received
+         */
+        synchronized String getTruncated() {
+            return truncated;
+        }
+
+        @Override
+        public synchronized void onError(Throwable throwable) {
+            result.completeExceptionally(throwable);
+        }
+
+        @Override
+        public synchronized void onComplete() {
+            result.complete(output.toByteArray());
+        }
+    }
+}
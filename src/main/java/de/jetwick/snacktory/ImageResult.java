@@ -2,13 +2,16 @@ package de.jetwick.snacktory;
 
 import org.jsoup.nodes.Element;
 
+import java.io.Serializable;
+
 /**
  * Class which encapsulates the data from an image found under an element
  *
  * @author Chris Alexander, chris@chris-alexander.co.uk
  */
-public class ImageResult {
+public class ImageResult implements Serializable {
 
+    private static final long serialVersionUID = 1L;
     public String src;
     public Integer weight;
     public String title;
@@ -16,7 +19,8 @@ public class ImageResult {
     public int width;
     public String alt;
     public boolean noFollow;
-    public Element element;
+    // not stored with the result, it holds the whole document
+    public transient Element element;
 
     public ImageResult(String src, Integer weight, String title, int height, int width, String alt, boolean noFollow) {
         this.src = src;
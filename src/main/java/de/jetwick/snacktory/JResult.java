@@ -21,8 +21,10 @@ import java.util.Collections;
 import java.util.List;
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.EnumSet;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.Set;
 
 
 /**
@@ -30,7 +32,16 @@ import java.util.Map;
  *
  * @author Peter Karich
  */
-public class JResult implements Serializable {
+public class JResult implements Serializable, Cloneable {
+
+    /**
+     * The fields which can be requested from the extraction, see
+     * ExtractionRequest
+     */
+    public enum Field {
+        TITLE, TEXT, DESCRIPTION, CANONICAL_URL, TYPE, SITENAME, LANGUAGE, AUTHOR, DATE, LINKS, IMAGES,
+        RSS_URL, VIDEO_URL, FAVICON_URL, KEYWORDS
+    }
 
     private String title;
     private String url;
@@ -54,6 +65,15 @@ public class JResult implements Serializable {
     private String language;
     private String domain;
     private String topPrivateDomain;
+    private List<String> redirects;
+    private String etag;
+    private String lastModified;
+    private boolean partial;
+    private String error;
+    private boolean notFound;
+    private long expires;
+    // null if all fields were extracted
+    private EnumSet<Field> fields;
 
     public JResult() {
     }
@@ -297,8 +317,164 @@ public class JResult implements Serializable {
         this.topPrivateDomain = topPrivateDomain;
     }
 
+    /**
+     * @return the urls which answered with a redirect, in the order they were
+     * requested. The url of the last hop is getUrl(). Only filled if the
+     * redirects were followed with GET.
+     */
+    public List<String> getRedirects() {
+        if (redirects == null)
+            return Collections.emptyList();
+        return redirects;
+    }
+
+    public JResult setRedirects(List<String> redirects) {
+        this.redirects = redirects;
+        return this;
+    }
+
+    /**
+     * @return the ETag header of the response or an empty string
+     */
+    public String getEtag() {
+        if (etag == null)
+            return "";
+        return etag;
+    }
+
+    public JResult setEtag(String etag) {
+        this.etag = etag;
+        return this;
+    }
+
+    /**
+     * @return the Last-Modified header of the response or an empty string
+     */
+    public String getLastModified() {
+        if (lastModified == null)
+            return "";
+        return lastModified;
+    }
+
+    public JResult setLastModified(String lastModified) {
+        this.lastModified = lastModified;
+        return this;
+    }
+
+    /**
+     * @return true if only a part of the page could be downloaded, e.g. as
+     * the server was too slow, and the result was extracted from that part
+     */
+    public boolean isPartial() {
+        return partial;
+    }
+
+    public JResult setPartial(boolean partial) {
+        this.partial = partial;
+        return this;
+    }
+
+    /**
+     * @return the reason why the download failed or an empty string
+     */
+    public String getError() {
+        if (error == null)
+            return "";
+        return error;
+    }
+
+    public JResult setError(String error) {
+        this.error = error;
+        return this;
+    }
+
+    /**
+     * @return true if the server answered with 404 or 410
+     */
+    public boolean isNotFound() {
+        return notFound;
+    }
+
+    public JResult setNotFound(boolean notFound) {
+        this.notFound = notFound;
+        return this;
+    }
+
+    /**
+     * @return true if the download failed. Such results are cached only until
+     * getExpires.
+     */
+    public boolean isFailed() {
+        return notFound || error != null;
+    }
+
+    /**
+     * @return the time in milliseconds after which a cached result must not
+     * be used anymore or 0 if it does not expire
+     */
+    public long getExpires() {
+        return expires;
+    }
+
+    public JResult setExpires(long expires) {
+        this.expires = expires;
+        return this;
+    }
+
+    public boolean isExpired(long now) {
+        return expires > 0 && now >= expires;
+    }
+
+    /**
+     * @return a result with the given urls and the other fields of this one.
+     * This one is returned if the urls are the same, cached results are
+     * shared and must not be changed.
+     */
+    public JResult withUrls(String url, String originalUrl) {
+        if (equals(this.url, url) && equals(this.originalUrl, originalUrl))
+            return this;
+        JResult res;
+        try {
+            res = (JResult) clone();
+        } catch (CloneNotSupportedException ex) {
+            throw new AssertionError(ex);
+        }
+        res.url = url;
+        res.originalUrl = originalUrl;
+        return res;
+    }
+
+    private static boolean equals(String str1, String str2) {
+        return str1 == null ? str2 == null : str1.equals(str2);
+    }
+
     @Override
     public String toString() {
         return "title:" + getTitle() + " imageUrl:" + getImageUrl() + " text:" + text;
     }
+
+    /**
+     * @return the fields which were extracted, all fields if the result was
+     * not created by a field selective extraction
+     */
+    public Set<Field> getFields() {
+        if (fields == null)
+            return EnumSet.allOf(Field.class);
+        return fields;
+    }
+
+    public JResult setFields(Set<Field> fields) {
+        if (fields == null || fields.size() == Field.values().length)
+            this.fields = null;
+        else
+            this.fields = fields.isEmpty() ? EnumSet.noneOf(Field.class) : EnumSet.copyOf(fields);
+        return this;
+    }
+
+    /**
+     * @return true if all of the fields were extracted
+     */
+    public boolean hasFields(Set<Field> requested) {
+        return fields == null || fields.containsAll(requested);
+    }
 }
@@ -0,0 +1,611 @@
+/*
+ *  Copyright 2011 Peter Karich
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package de.jetwick.snacktory;
+
+import de.jetwick.snacktory.JResult.Field;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compact binary format of a JResult for caches and queues, much smaller and
+ * faster than Java serialization.
+ * <p>
+ * After a version byte every field is written as a varint key, which holds
+ * the field tag and the wire type, followed by its value: a varint, 8 bytes
+ * or a varint length and that many bytes. Strings are UTF-8, empty fields are
+ * not written. As the wire type tells how to skip a value, a reader ignores
+ * the tags it does not know, so fields can be added without breaking older
+ * readers. Tags must never be reused.
+ * <p>
+ * Optionally a long text is compressed with Deflate, which halves the size
+ * of a typical result but makes encoding several times slower.
+ * <p>
+ * This class is thread safe.
+ *
+ * @author Peter Karich
+ */
+public class JResultCodec {
+
+    public static final int VERSION = 1;
+
+    static final int VARINT = 0;
+    static final int FIXED64 = 1;
+    static final int BYTES = 2;
+
+    // JResult
+    static final int TITLE = 1;
+    static final int URL = 2;
+    static final int ORIGINAL_URL = 3;
+    static final int CANONICAL_URL = 4;
+    static final int IMAGE_URL = 5;
+    static final int VIDEO_URL = 6;
+    static final int RSS_URL = 7;
+    static final int TEXT = 8;
+    static final int TEXT_DEFLATED = 9;
+    static final int FAVICON_URL = 10;
+    static final int DESCRIPTION = 11;
+    static final int AUTHOR_NAME = 12;
+    static final int RAW_AUTHOR_NAME = 13;
+    static final int AUTHOR_DESCRIPTION = 14;
+    static final int DATE = 15;
+    static final int KEYWORD = 16;
+    static final int IMAGE = 17;
+    static final int LINK = 18;
+    static final int TYPE = 19;
+    static final int SITENAME = 20;
+    static final int LANGUAGE = 21;
+    static final int DOMAIN = 22;
+    static final int TOP_PRIVATE_DOMAIN = 23;
+    static final int REDIRECT = 24;
+    static final int ETAG = 25;
+    static final int LAST_MODIFIED = 26;
+    static final int PARTIAL = 27;
+    static final int ERROR = 28;
+    static final int NOT_FOUND = 29;
+    static final int EXPIRES = 30;
+    static final int FIELD = 31;
+
+    // ImageResult
+    static final int IMAGE_SRC = 1;
+    static final int IMAGE_WEIGHT = 2;
+    static final int IMAGE_TITLE = 3;
+    static final int IMAGE_HEIGHT = 4;
+    static final int IMAGE_WIDTH = 5;
+    static final int IMAGE_ALT = 6;
+    static final int IMAGE_NO_FOLLOW = 7;
+
+    // link
+    static final int LINK_URL = 1;
+    static final int LINK_TEXT = 2;
+    static final int LINK_OFFSET = 3;
+
+    // creating them allocates the zlib state which costs more than compressing
+    private static final ThreadLocal<Deflater> DEFLATER = ThreadLocal.withInitial(
+            () -> new Deflater(Deflater.BEST_SPEED, true));
+    private static final ThreadLocal<Inflater> INFLATER = ThreadLocal.withInitial(() -> new Inflater(true));
+    private int compressThreshold = 0;
+
+    /**
+     * @param compressThreshold texts with at least this many characters are
+     * compressed, 0 disables compression which is the default
+     */
+    public JResultCodec setCompressThreshold(int compressThreshold) {
+        this.compressThreshold = compressThreshold;
+        return this;
+    }
+
+    public int getCompressThreshold() {
+        return compressThreshold;
+    }
+
+    public byte[] encode(JResult res) {
+        Writer out = new Writer(256 + 2 * res.getText().length());
+        out.writeByte(VERSION);
+        out.writeString(TITLE, res.getTitle());
+        out.writeString(URL, res.getUrl());
+        out.writeString(ORIGINAL_URL, res.getOriginalUrl());
+        out.writeString(CANONICAL_URL, res.getCanonicalUrl());
+        out.writeString(IMAGE_URL, res.getImageUrl());
+        out.writeString(VIDEO_URL, res.getVideoUrl());
+        out.writeString(RSS_URL, res.getRssUrl());
+        String text = res.getText();
+        if (compressThreshold > 0 && text.length() >= compressThreshold)
+            out.writeBytes(TEXT_DEFLATED, deflate(text.getBytes(StandardCharsets.UTF_8)));
+        else
+            out.writeString(TEXT, text);
+        out.writeString(FAVICON_URL, res.getFaviconUrl());
+        out.writeString(DESCRIPTION, res.getDescription());
+        out.writeString(AUTHOR_NAME, res.getAuthorName());
+        out.writeString(RAW_AUTHOR_NAME, res.getRawAuthorName());
+        out.writeString(AUTHOR_DESCRIPTION, res.getAuthorDescription());
+        if (res.getDate() != null)
+            out.writeFixed64(DATE, res.getDate().getTime());
+        if (res.getKeywords() != null) {
+            for (String keyword : res.getKeywords()) {
+                out.writeString(KEYWORD, keyword);
+            }
+        }
+        for (ImageResult image : res.getImages()) {
+            out.writeBytes(IMAGE, encode(image));
+        }
+        for (Map<String, String> link : res.getLinks()) {
+            out.writeBytes(LINK, encode(link));
+        }
+        out.writeString(TYPE, res.getType());
+        out.writeString(SITENAME, res.getSitename());
+        out.writeString(LANGUAGE, res.getLanguage());
+        out.writeString(DOMAIN, res.getDomain());
+        out.writeString(TOP_PRIVATE_DOMAIN, res.getTopPrivateDomain());
+        for (String redirect : res.getRedirects()) {
+            out.writeString(REDIRECT, redirect);
+        }
+        out.writeString(ETAG, res.getEtag());
+        out.writeString(LAST_MODIFIED, res.getLastModified());
+        out.writeBoolean(PARTIAL, res.isPartial());
+        out.writeString(ERROR, res.getError());
+        out.writeBoolean(NOT_FOUND, res.isNotFound());
+        if (res.getExpires() != 0)
+            out.writeVarint(EXPIRES, res.getExpires());
+        // by name, a result without fields has all of them
+        if (!res.hasFields(EnumSet.allOf(Field.class))) {
+            for (Field field : res.getFields()) {
+                out.writeString(FIELD, field.name());
+            }
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * The keywords of the result are an empty list if none were stored.
+     */
+    public JResult decode(byte[] bytes) throws IOException {
+        Reader in = new Reader(bytes, 0, bytes.length);
+        int version = in.readByte();
+        if (version < 1)
+            throw new IOException("Unknown version " + version);
+
+        JResult res = new JResult();
+        List<String> keywords = new ArrayList<String>();
+        List<ImageResult> images = null;
+        List<String> redirects = null;
+        Set<Field> fields = null;
+        while (in.hasMore()) {
+            long key = in.readVarint();
+            int tag = (int) (key >>> 3);
+            int wireType = (int) (key & 7);
+            switch (tag) {
+                case TITLE:
+                    res.setTitle(in.readString());
+                    break;
+                case URL:
+                    res.setUrl(in.readString());
+                    break;
+                case ORIGINAL_URL:
+                    res.setOriginalUrl(in.readString());
+                    break;
+                case CANONICAL_URL:
+                    res.setCanonicalUrl(in.readString());
+                    break;
+                case IMAGE_URL:
+                    res.setImageUrl(in.readString());
+                    break;
+                case VIDEO_URL:
+                    res.setVideoUrl(in.readString());
+                    break;
+                case RSS_URL:
+                    res.setRssUrl(in.readString());
+                    break;
+                case TEXT:
+                    res.setText(in.readString());
+                    break;
+                case TEXT_DEFLATED:
+                    res.setText(new String(inflate(in.readBytes()), StandardCharsets.UTF_8));
+                    break;
+                case FAVICON_URL:
+                    res.setFaviconUrl(in.readString());
+                    break;
+                case DESCRIPTION:
+                    res.setDescription(in.readString());
+                    break;
+                case AUTHOR_NAME:
+                    res.setAuthorName(in.readString());
+                    break;
+                case RAW_AUTHOR_NAME:
+                    res.setRawAuthorName(in.readString());
+                    break;
+                case AUTHOR_DESCRIPTION:
+                    res.setAuthorDescription(in.readString());
+                    break;
+                case DATE:
+                    res.setDate(new Date(in.readFixed64()));
+                    break;
+                case KEYWORD:
+                    keywords.add(in.readString());
+                    break;
+                case IMAGE:
+                    if (images == null)
+                        images = new ArrayList<ImageResult>();
+                    images.add(decodeImage(in.readMessage()));
+                    break;
+                case LINK:
+                    res.getLinks().add(decodeLink(in.readMessage()));
+                    break;
+                case TYPE:
+                    res.setType(in.readString());
+                    break;
+                case SITENAME:
+                    res.setSitename(in.readString());
+                    break;
+                case LANGUAGE:
+                    res.setLanguage(in.readString());
+                    break;
+                case DOMAIN:
+                    res.setDomain(in.readString());
+                    break;
+                case TOP_PRIVATE_DOMAIN:
+                    res.setTopPrivateDomain(in.readString());
+                    break;
+                case REDIRECT:
+                    if (redirects == null)
+                        redirects = new ArrayList<String>();
+                    redirects.add(in.readString());
+                    break;
+                case ETAG:
+                    res.setEtag(in.readString());
+                    break;
+                case LAST_MODIFIED:
+                    res.setLastModified(in.readString());
+                    break;
+                case PARTIAL:
+                    res.setPartial(in.readVarint() != 0);
+                    break;
+                case ERROR:
+                    res.setError(in.readString());
+                    break;
+                case NOT_FOUND:
+                    res.setNotFound(in.readVarint() != 0);
+                    break;
+                case EXPIRES:
+                    res.setExpires(in.readVarint());
+                    break;
+                case FIELD:
+                    if (fields == null)
+                        fields = EnumSet.noneOf(Field.class);
+                    addField(fields, in.readString());
+                    break;
+                default:
+                    in.skip(wireType);
+            }
+        }
+        res.setKeywords(keywords);
+        res.setImages(images);
+        res.setRedirects(redirects);
+        res.setFields(fields);
+        return res;
+    }
+
+    private static void addField(Set<Field> fields, String name) {
+        try {
+            fields.add(Field.valueOf(name));
+        } catch (IllegalArgumentException ex) {
+            // a field of a newer version
+        }
+    }
+
+    private static byte[] encode(ImageResult image) {
+        Writer out = new Writer(64);
+        out.writeString(IMAGE_SRC, image.src);
+        if (image.weight != null)
+            out.writeVarint(IMAGE_WEIGHT, zigZag(image.weight));
+        out.writeString(IMAGE_TITLE, image.title);
+        out.writeVarint(IMAGE_HEIGHT, zigZag(image.height));
+        out.writeVarint(IMAGE_WIDTH, zigZag(image.width));
+        out.writeString(IMAGE_ALT, image.alt);
+        out.writeBoolean(IMAGE_NO_FOLLOW, image.noFollow);
+        return out.toByteArray();
+    }
+
+    private static ImageResult decodeImage(Reader in) throws IOException {
+        ImageResult image = new ImageResult(null, null, null, 0, 0, null, false);
+        while (in.hasMore()) {
+            long key = in.readVarint();
+            switch ((int) (key >>> 3)) {
+                case IMAGE_SRC:
+                    image.src = in.readString();
+                    break;
+                case IMAGE_WEIGHT:
+                    image.weight = unZigZag(in.readVarint());
+                    break;
+                case IMAGE_TITLE:
+                    image.title = in.readString();
+                    break;
+                case IMAGE_HEIGHT:
+                    image.height = unZigZag(in.readVarint());
+                    break;
+                case IMAGE_WIDTH:
+                    image.width = unZigZag(in.readVarint());
+                    break;
+                case IMAGE_ALT:
+                    image.alt = in.readString();
+                    break;
+                case IMAGE_NO_FOLLOW:
+                    image.noFollow = in.readVarint() != 0;
+                    break;
+                default:
+                    in.skip((int) (key & 7));
+            }
+        }
+        return image;
+    }
+
+    private static byte[] encode(Map<String, String> link) {
+        Writer out = new Writer(64);
+        // empty link texts are common and kept as they are
+        if (link.get("url") != null)
+            out.writeBytes(LINK_URL, link.get("url").getBytes(StandardCharsets.UTF_8));
+        if (link.get("text") != null)
+            out.writeBytes(LINK_TEXT, link.get("text").getBytes(StandardCharsets.UTF_8));
+        if (link.get("offset") != null)
+            out.writeBytes(LINK_OFFSET, link.get("offset").getBytes(StandardCharsets.UTF_8));
+        return out.toByteArray();
+    }
+
+    private static Map<String, String> decodeLink(Reader in) throws IOException {
+        Map<String, String> link = new HashMap<String, String>(4);
+        while (in.hasMore()) {
+            long key = in.readVarint();
+            switch ((int) (key >>> 3)) {
+                case LINK_URL:
+                    link.put("url", in.readString());
+                    break;
+                case LINK_TEXT:
+                    link.put("text", in.readString());
+                    break;
+                case LINK_OFFSET:
+                    link.put("offset", in.readString());
+                    break;
+                default:
+                    in.skip((int) (key & 7));
+            }
+        }
+        return link;
+    }
+
+    private static byte[] deflate(byte[] bytes) {
+        Deflater deflater = DEFLATER.get();
+        try {
+            deflater.setInput(bytes);
+            deflater.finish();
+            Writer out = new Writer(bytes.length / 2 + 16);
+            // the uncompressed length, so inflate can allocate it at once
+            out.writeRawVarint(bytes.length);
+            byte[] buffer = new byte[Math.max(64, bytes.length / 2)];
+            while (!deflater.finished()) {
+                int n = deflater.deflate(buffer);
+                out.write(buffer, 0, n);
+            }
+            return out.toByteArray();
+        } finally {
+            deflater.reset();
+        }
+    }
+
+    private static byte[] inflate(byte[] bytes) throws IOException {
+        Reader in = new Reader(bytes, 0, bytes.length);
+        long length = in.readVarint();
+        if (length < 0 || length > Integer.MAX_VALUE)
+            throw new IOException("Invalid text length " + length);
+
+        Inflater inflater = INFLATER.get();
+        try {
+            inflater.setInput(bytes, in.pos, bytes.length - in.pos);
+            byte[] result = new byte[(int) length];
+            int n = 0;
+            while (n < result.length) {
+                int read = inflater.inflate(result, n, result.length - n);
+                if (read == 0 && (inflater.finished() || inflater.needsInput()))
+                    throw new IOException("Truncated text");
+                n += read;
+            }
+            return result;
+        } catch (DataFormatException ex) {
+            throw new IOException(ex);
+        } finally {
+            inflater.reset();
+        }
+    }
+
+    private static long zigZag(int value) {
+        return ((value << 1) ^ (value >> 31)) & 0xFFFFFFFFL;
+    }
+
+    private static int unZigZag(long value) {
+        int n = (int) value;
+        return (n >>> 1) ^ -(n & 1);
+    }
+
+    private static class Writer {
+
+        private byte[] buf;
+        private int count;
+
+        Writer(int capacity) {
+            buf = new byte[Math.max(16, capacity)];
+        }
+
+        void writeByte(int b) {
+            ensure(1);
+            buf[count++] = (byte) b;
+        }
+
+        void write(byte[] bytes, int offset, int length) {
+            ensure(length);
+            System.arraycopy(bytes, offset, buf, count, length);
+            count += length;
+        }
+
+        void writeRawVarint(long value) {
+            ensure(10);
+            while ((value & ~0x7FL) != 0) {
+                buf[count++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            buf[count++] = (byte) value;
+        }
+
+        void writeKey(int tag, int wireType) {
+            writeRawVarint((tag << 3) | wireType);
+        }
+
+        void writeVarint(int tag, long value) {
+            writeKey(tag, VARINT);
+            writeRawVarint(value);
+        }
+
+        void writeFixed64(int tag, long value) {
+            writeKey(tag, FIXED64);
+            ensure(8);
+            for (int i = 0; i < 8; i++) {
+                buf[count++] = (byte) (value >>> (8 * i));
+            }
+        }
+
+        void writeBoolean(int tag, boolean value) {
+            if (value)
+                writeVarint(tag, 1);
+        }
+
+        void writeString(int tag, String value) {
+            if (value != null && !value.isEmpty())
+                writeBytes(tag, value.getBytes(StandardCharsets.UTF_8));
+        }
+
+        void writeBytes(int tag, byte[] bytes) {
+            writeKey(tag, BYTES);
+            writeRawVarint(bytes.length);
+            write(bytes, 0, bytes.length);
+        }
+
+        byte[] toByteArray() {
+            return Arrays.copyOf(buf, count);
+        }
+
+        private void ensure(int n) {
+            if (count + n > buf.length)
+                buf = Arrays.copyOf(buf, Math.max(buf.length * 2, count + n));
+        }
+    }
+
+    private static class Reader {
+
+        private final byte[] buf;
+        private final int end;
+        int pos;
+
+        Reader(byte[] buf, int pos, int end) {
+            this.buf = buf;
+            this.pos = pos;
+            this.end = end;
+        }
+
+        boolean hasMore() {
+            return pos < end;
+        }
+
+        int readByte() throws IOException {
+            if (pos >= end)
+                throw new IOException("Unexpected end of data");
+            return buf[pos++] & 0xFF;
+        }
+
+        long readVarint() throws IOException {
+            long value = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                int b = readByte();
+                value |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0)
+                    return value;
+            }
+            throw new IOException("Malformed varint");
+        }
+
+        long readFixed64() throws IOException {
+            long value = 0;
+            for (int i = 0; i < 8; i++) {
+                value |= (long) readByte() << (8 * i);
+            }
+            return value;
+        }
+
+        private int readLength() throws IOException {
+            long length = readVarint();
+            if (length < 0 || length > end - pos)
+                throw new IOException("Invalid length " + length);
+            return (int) length;
+        }
+
+        String readString() throws IOException {
+            int length = readLength();
+            String str = new String(buf, pos, length, StandardCharsets.UTF_8);
+            pos += length;
+            return str;
+        }
+
+        byte[] readBytes() throws IOException {
+            int length = readLength();
+            byte[] bytes = Arrays.copyOfRange(buf, pos, pos + length);
+            pos += length;
+            return bytes;
+        }
+
+        Reader readMessage() throws IOException {
+            int length = readLength();
+            Reader reader = new Reader(buf, pos, pos + length);
+            pos += length;
+            return reader;
+        }
+
+        void skip(int wireType) throws IOException {
+            switch (wireType) {
+                case VARINT:
+                    readVarint();
+                    break;
+                case FIXED64:
+                    if (end - pos < 8)
+                        throw new IOException("Unexpected end of data");
+                    pos += 8;
+                    break;
+                case BYTES:
+                    int length = readLength();
+                    pos += length;
+                    break;
+                default:
+                    throw new IOException("Unknown wire type " + wireType);
+            }
+        }
+    }
+}
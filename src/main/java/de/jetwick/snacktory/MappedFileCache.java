@@ -0,0 +1,532 @@
+/*
+ *  Copyright 2011 Peter Karich
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package de.jetwick.snacktory;
+
+import com.google.common.hash.Hashing;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32;
+
+/**
+ * SCache which stores the results on disk so that they survive a restart.
+ * <p>
+ * The results are appended to a log of memory mapped segment files. A newer
+ * record of the same url replaces the older one, which then is garbage until
+ * the compaction copies the live records of a segment to the end of the log
+ * and deletes the segment. The index from the hash of an url to the position
+ * of its record is a hash table outside of the Java heap, so the heap use
+ * does not grow with the number of stored results.
+ * <p>
+ * Every record has a checksum. On start the segments are read in order to
+ * rebuild the index and the log is cut at the first incomplete record, e.g.
+ * from a crash while writing. Data is written to the page cache of the OS, so
+ * it survives a crash of the JVM. Call flush to survive a crash of the OS.
+ * <p>
+ * The results are stored with JResultCodec.
+ * <p>
+ * This class is thread safe.
+ *
+ * @author Peter Karich
+ */
+public class MappedFileCache implements SCache, Closeable {
+
+    private static final Logger logger = LoggerFactory.getLogger(MappedFileCache.class);
+    public static final int DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+    // length and checksum
+    private static final int HEADER_SIZE = 8;
+    private static final String SUFFIX = ".seg";
+    private final File dir;
+    private final int segmentSize;
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private final TreeMap<Integer, Segment> segments = new TreeMap<Integer, Segment>();
+    private final Index index = new Index(1024);
+    private final JResultCodec codec = new JResultCodec();
+    private ScheduledExecutorService compactor;
+    private Segment active;
+    private double compactionThreshold = 0.5;
+    private boolean closed;
+
+    public MappedFileCache(File dir) throws IOException {
+        this(dir, DEFAULT_SEGMENT_SIZE, 60 * 1000);
+    }
+
+    /**
+     * @param segmentSize the size of one segment file in bytes
+     * @param compactionInterval milliseconds between two background
+     * compactions, 0 to compact only if compact is called
+     */
+    public MappedFileCache(File dir, int segmentSize, long compactionInterval) throws IOException {
+        this.dir = dir;
+        this.segmentSize = segmentSize;
+        if (!dir.isDirectory() && !dir.mkdirs())
+            throw new IOException("Cannot create directory " + dir);
+
+        recover();
+        if (compactionInterval > 0) {
+            compactor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "snacktory-cache-compaction");
+                thread.setDaemon(true);
+                return thread;
+            });
+            compactor.scheduleWithFixedDelay(() -> {
+                try {
+                    compact();
+                } catch (Exception ex) {
+                    logger.error("Compaction of " + dir + " failed", ex);
+                }
+            }, compactionInterval, compactionInterval, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * A segment is compacted if less than this fraction of it is live.
+     */
+    public MappedFileCache setCompactionThreshold(double compactionThreshold) {
+        this.compactionThreshold = compactionThreshold;
+        return this;
+    }
+
+    @Override
+    public JResult get(String url) {
+        byte[] value;
+        lock.readLock().lock();
+        try {
+            long location = closed ? -1 : index.get(hash(url));
+            if (location < 0)
+                return null;
+            Segment segment = segments.get(segment(location));
+            ByteBuffer buffer = segment.buffer.duplicate();
+            buffer.position(offset(location));
+            int length = buffer.getInt();
+            buffer.getInt();
+            byte[] urlBytes = new byte[buffer.getInt()];
+            buffer.get(urlBytes);
+            // a different url with the same hash
+            if (!url.equals(new String(urlBytes, StandardCharsets.UTF_8)))
+                return null;
+            value = new byte[length - 4 - urlBytes.length];
+            buffer.get(value);
+        } finally {
+            lock.readLock().unlock();
+        }
+
+        try {
+            JResult res = codec.decode(value);
+            return res.isExpired(System.currentTimeMillis()) ? null : res;
+        } catch (IOException ex) {
+            logger.error("Cannot read cached result of " + url, ex);
+            return null;
+        }
+    }
+
+    @Override
+    public void put(String url, JResult res) {
+        byte[] urlBytes = url.getBytes(StandardCharsets.UTF_8);
+        byte[] value = codec.encode(res);
+
+        ByteBuffer record = ByteBuffer.allocate(HEADER_SIZE + 4 + urlBytes.length + value.length);
+        record.putInt(record.capacity() - HEADER_SIZE);
+        record.putInt(0);
+        record.putInt(urlBytes.length);
+        record.put(urlBytes);
+        record.put(value);
+        CRC32 crc = new CRC32();
+        crc.update(record.array(), HEADER_SIZE, record.capacity() - HEADER_SIZE);
+        record.putInt(4, (int) crc.getValue());
+
+        lock.writeLock().lock();
+        try {
+            if (closed)
+                throw new IOException("Cache is closed");
+            append(hash(url), record.array());
+        } catch (IOException ex) {
+            logger.error("Cannot cache result of " + url, ex);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public int getSize() {
+        lock.readLock().lock();
+        try {
+            return index.size;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return the bytes of all segment files
+     */
+    public long getDiskSize() {
+        lock.readLock().lock();
+        try {
+            long size = 0;
+            for (Segment segment : segments.values()) {
+                size += segment.buffer.capacity();
+            }
+            return size;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return the bytes of the records which are not replaced by a newer one
+     */
+    public long getLiveBytes() {
+        lock.readLock().lock();
+        try {
+            long live = 0;
+            for (Segment segment : segments.values()) {
+                live += segment.liveBytes;
+            }
+            return live;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    int getSegmentCount() {
+        lock.readLock().lock();
+        try {
+            return segments.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Writes all changes to disk.
+     */
+    public void flush() {
+        lock.readLock().lock();
+        try {
+            for (Segment segment : segments.values()) {
+                segment.buffer.force();
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Copies the live records of mostly replaced segments to the end of the
+     * log and deletes these segments.
+     *
+     * @return the number of deleted segments
+     */
+    public int compact() throws IOException {
+        List<Segment> candidates = new ArrayList<Segment>();
+        lock.readLock().lock();
+        try {
+            for (Segment segment : segments.values()) {
+                if (segment != active && segment.liveBytes < compactionThreshold * Math.max(1, segment.position))
+                    candidates.add(segment);
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+
+        for (Segment segment : candidates) {
+            lock.writeLock().lock();
+            try {
+                compact(segment);
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+        return candidates.size();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (compactor != null)
+            compactor.shutdownNow();
+        lock.writeLock().lock();
+        try {
+            for (Segment segment : segments.values()) {
+                segment.buffer.force();
+                segment.channel.close();
+            }
+            segments.clear();
+            index.free();
+            closed = true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void compact(Segment segment) throws IOException {
+        // already compacted by a concurrent call
+        if (segments.get(segment.id) != segment)
+            return;
+
+        ByteBuffer buffer = segment.buffer.duplicate();
+        int offset = 0;
+        while (offset < segment.position) {
+            buffer.position(offset);
+            int length = buffer.getInt();
+            buffer.getInt();
+            byte[] urlBytes = new byte[buffer.getInt()];
+            buffer.get(urlBytes);
+            long hash = hash(new String(urlBytes, StandardCharsets.UTF_8));
+            if (index.get(hash) == location(segment.id, offset)) {
+                byte[] record = new byte[HEADER_SIZE + length];
+                buffer.position(offset);
+                buffer.get(record);
+                append(hash, record);
+            }
+            offset += HEADER_SIZE + length;
+        }
+
+        // a crash before the delete leaves copies of the same records which
+        // are read in order, so the copies win
+        active.buffer.force();
+        segments.remove(segment.id);
+        segment.channel.close();
+        if (!segment.file.delete())
+            logger.warn("Cannot delete compacted segment " + segment.file);
+    }
+
+    /**
+     * Must be called with the write lock.
+     */
+    private void append(long hash, byte[] record) throws IOException {
+        // keep 4 bytes for the end marker
+        if (active == null || active.position + record.length + 4 > active.buffer.capacity()) {
+            int id = active == null ? 1 : active.id + 1;
+            active = openSegment(id, Math.max(segmentSize, record.length + 4));
+            segments.put(id, active);
+        }
+
+        int offset = active.position;
+        ByteBuffer buffer = active.buffer.duplicate();
+        buffer.position(offset);
+        buffer.put(record);
+        buffer.putInt(0);
+        active.position += record.length;
+        active.liveBytes += record.length;
+        long previous = index.put(hash, location(active.id, offset));
+        if (previous >= 0) {
+            Segment old = segments.get(segment(previous));
+            old.liveBytes -= HEADER_SIZE + old.buffer.getInt(offset(previous));
+        }
+    }
+
+    private void recover() throws IOException {
+        File[] files = dir.listFiles((d, name) -> name.endsWith(SUFFIX));
+        TreeMap<Integer, File> sorted = new TreeMap<Integer, File>();
+        if (files != null) {
+            for (File file : files) {
+                try {
+                    sorted.put(Integer.parseInt(file.getName().substring(0, file.getName().length() - SUFFIX.length())),
+                            file);
+                } catch (NumberFormatException ex) {
+                    logger.warn("Ignoring unknown file " + file);
+                }
+            }
+        }
+
+        for (Map.Entry<Integer, File> entry : sorted.entrySet()) {
+            Segment segment = openSegment(entry.getKey(), (int) entry.getValue().length());
+            segments.put(segment.id, segment);
+            active = segment;
+            recover(segment);
+        }
+        if (logger.isDebugEnabled())
+            logger.debug("Recovered " + index.size + " results from " + segments.size() + " segments in " + dir);
+    }
+
+    private void recover(Segment segment) {
+        ByteBuffer buffer = segment.buffer.duplicate();
+        int offset = 0;
+        while (offset + HEADER_SIZE <= buffer.capacity()) {
+            buffer.position(offset);
+            int length = buffer.getInt();
+            int checksum = buffer.getInt();
+            if (length <= 4 || offset + HEADER_SIZE + length > buffer.capacity())
+                break;
+
+            byte[] data = new byte[length];
+            buffer.get(data);
+            CRC32 crc = new CRC32();
+            crc.update(data, 0, length);
+            if ((int) crc.getValue() != checksum) {
+                logger.warn("Cutting " + segment.file + " at incomplete record " + offset);
+                break;
+            }
+
+            ByteBuffer dataBuffer = ByteBuffer.wrap(data);
+            int urlLength = dataBuffer.getInt();
+            long hash = hash(new String(data, 4, urlLength, StandardCharsets.UTF_8));
+            segment.liveBytes += HEADER_SIZE + length;
+            long previous = index.put(hash, location(segment.id, offset));
+            if (previous >= 0) {
+                Segment old = segments.get(segment(previous));
+                old.liveBytes -= HEADER_SIZE + old.buffer.getInt(offset(previous));
+            }
+            offset += HEADER_SIZE + length;
+        }
+        segment.position = offset;
+        // later appends must not be followed by the rest of a broken record
+        if (offset + 4 <= buffer.capacity())
+            segment.buffer.putInt(offset, 0);
+    }
+
+    private Segment openSegment(int id, int size) throws IOException {
+        File file = new File(dir, String.format("%08d", id) + SUFFIX);
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        FileChannel channel = raf.getChannel();
+        MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        return new Segment(id, file, channel, buffer);
+    }
+
+    static long hash(String url) {
+        long hash = Hashing.murmur3_128().hashString(url, StandardCharsets.UTF_8).asLong();
+        // 0 marks an empty slot of the index
+        return hash == 0 ? 1 : hash;
+    }
+
+    private static long location(int segment, int offset) {
+        return ((long) segment << 32) | offset;
+    }
+
+    private static int segment(long location) {
+        return (int) (location >>> 32);
+    }
+
+    private static int offset(long location) {
+        return (int) location;
+    }
+
+    private static class Segment {
+
+        final int id;
+        final File file;
+        final FileChannel channel;
+        final MappedByteBuffer buffer;
+        // end of the last record
+        int position;
+        long liveBytes;
+
+        Segment(int id, File file, FileChannel channel, MappedByteBuffer buffer) {
+            this.id = id;
+            this.file = file;
+            this.channel = channel;
+            this.buffer = buffer;
+        }
+    }
+
+    /**
+     * Open addressing hash table from url hash to record location in a direct
+     * buffer. Entries are never removed, only their location changes.
+     */
+    static class Index {
+
+        private static final int SLOT_SIZE = 16;
+        private ByteBuffer table;
+        private int capacity;
+        int size;
+
+        Index(int capacity) {
+            this.capacity = capacity;
+            table = ByteBuffer.allocateDirect(capacity * SLOT_SIZE);
+        }
+
+        /**
+         * @return the location or -1
+         */
+        long get(long hash) {
+            int slot = slot(hash);
+            while (true) {
+                long stored = table.getLong(slot * SLOT_SIZE);
+                if (stored == 0)
+                    return -1;
+                if (stored == hash)
+                    return table.getLong(slot * SLOT_SIZE + 8);
+                slot = (slot + 1) & (capacity - 1);
+            }
+        }
+
+        /**
+         * @return the previous location or -1
+         */
+        long put(long hash, long location) {
+            if ((size + 1) * 10L > capacity * 7L)
+                grow();
+
+            int slot = slot(hash);
+            while (true) {
+                long stored = table.getLong(slot * SLOT_SIZE);
+                if (stored == 0) {
+                    table.putLong(slot * SLOT_SIZE, hash);
+                    table.putLong(slot * SLOT_SIZE + 8, location);
+                    size++;
+                    return -1;
+                }
+                if (stored == hash) {
+                    long previous = table.getLong(slot * SLOT_SIZE + 8);
+                    table.putLong(slot * SLOT_SIZE + 8, location);
+                    return previous;
+                }
+                slot = (slot + 1) & (capacity - 1);
+            }
+        }
+
+        void free() {
+            table = ByteBuffer.allocateDirect(0);
+            capacity = 0;
+            size = 0;
+        }
+
+        private void grow() {
+            ByteBuffer old = table;
+            int oldCapacity = capacity;
+            capacity *= 2;
+            table = ByteBuffer.allocateDirect(capacity * SLOT_SIZE);
+            size = 0;
+            for (int i = 0; i < oldCapacity; i++) {
+                long hash = old.getLong(i * SLOT_SIZE);
+                if (hash != 0)
+                    put(hash, old.getLong(i * SLOT_SIZE + 8));
+            }
+        }
+
+        private int slot(long hash) {
+            return (int) (hash ^ (hash >>> 32)) & (capacity - 1);
+        }
+    }
+}
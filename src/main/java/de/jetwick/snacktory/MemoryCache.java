@@ -0,0 +1,362 @@
+/*
+ *  Copyright 2011 Peter Karich
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package de.jetwick.snacktory;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.RemovalListener;
+import com.google.common.cache.RemovalNotification;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded SCache which keeps the results in memory. The size is limited by
+ * the estimated bytes of the results, see weigh. Entries can expire a fixed
+ * time after they were put and after they were not read for some time.
+ * Results with JResult.getExpires, e.g. failed downloads, are dropped when
+ * they expired.
+ *
+ * Once the cache is full a new url only replaces the least recently used
+ * entries if it was requested more often recently than each of them
+ * (TinyLFU). The frequencies come from a count-min sketch of the get calls.
+ * Urls which are fetched once and never again then do not push out the
+ * frequently read ones. The weight is checked by this class for the whole
+ * cache, not by Guava per segment.
+ *
+ * The aliases of a result only point to the key of the result and weigh
+ * ALIAS_WEIGHT, they are dropped when the result is not in the cache
+ * anymore.
+ *
+ * This class is thread safe.
+ *
+ * @author Peter Karich
+ */
+public class MemoryCache implements SCache {
+
+    // the entry and the key of an alias
+    static final int ALIAS_WEIGHT = 200;
+    private final Cache<String, Entry> cache;
+    private final long maximumWeight;
+    private final AtomicLong weight = new AtomicLong();
+    private final AtomicLong rejectedCount = new AtomicLong();
+    private final AtomicLong evictedCount = new AtomicLong();
+    // the entries from the least to the most recently used, also the lock of
+    // admission and eviction
+    private final LinkedHashMap<String, Entry> order = new LinkedHashMap<String, Entry>(64, 0.75f, true);
+    private final FrequencySketch sketch;
+
+    /**
+     * @param maximumWeight the maximum estimated bytes of all results
+     */
+    public MemoryCache(long maximumWeight) {
+        this(maximumWeight, 0, 0);
+    }
+
+    /**
+     * @param maximumWeight the maximum estimated bytes of all results
+     * @param expireAfterWrite milliseconds after which an entry expires, 0
+     * for never
+     * @param expireAfterAccess milliseconds after which an entry expires if it
+     * was not read, 0 for never
+     */
+    public MemoryCache(long maximumWeight, long expireAfterWrite, long expireAfterAccess) {
+        this.maximumWeight = maximumWeight;
+        CacheBuilder<String, Entry> builder = CacheBuilder.newBuilder().
+                removalListener(new RemovalListener<String, Entry>() {
+                    @Override
+                    public void onRemoval(RemovalNotification<String, Entry> notification) {
+                        weight.addAndGet(-notification.getValue().weight);
+                        synchronized (order) {
+                            order.remove(notification.getKey(), notification.getValue());
+                        }
+                    }
+                }).
+                recordStats();
+        if (expireAfterWrite > 0)
+            builder.expireAfterWrite(expireAfterWrite, TimeUnit.MILLISECONDS);
+        if (expireAfterAccess > 0)
+            builder.expireAfterAccess(expireAfterAccess, TimeUnit.MILLISECONDS);
+        cache = builder.build();
+        // the sketch has to count more urls than there are entries, a too
+        // small one overestimates the one hit wonders of the victims
+        sketch = new FrequencySketch((int) Math.max(1024, Math.min(1 << 20, maximumWeight / 2048)));
+    }
+
+    @Override
+    public JResult get(String url) {
+        sketch.increment(url);
+        Entry entry = cache.getIfPresent(url);
+        if (entry == null)
+            return null;
+
+        if (entry.primary == null)
+            return getResult(url, entry);
+
+        touch(url);
+        // not counted in the stats again, but the result stays as recent as
+        // its aliases
+        Entry target = cache.asMap().get(entry.primary);
+        JResult res = target == null || target.primary != null ? null : getResult(entry.primary, target);
+        if (res == null)
+            cache.asMap().remove(url, entry);
+        return res;
+    }
+
+    private JResult getResult(String url, Entry entry) {
+        if (entry.result.isExpired(System.currentTimeMillis())) {
+            cache.asMap().remove(url, entry);
+            return null;
+        }
+        touch(url);
+        return entry.result;
+    }
+
+    private void touch(String url) {
+        synchronized (order) {
+            order.get(url);
+        }
+    }
+
+    @Override
+    public void put(String url, JResult res) {
+        // only reads are counted, a url which missed once is then admitted
+        // when it is put after the next miss
+        if (!store(url, new Entry(res, weigh(res)), sketch.frequency(url)))
+            rejectedCount.incrementAndGet();
+    }
+
+    /**
+     * Evicts the least recently used entries until the entry fits, but only
+     * those which were requested less often than the entry. A url which is
+     * already in the cache is replaced in any case.
+     *
+     * @return false if the entry was not admitted
+     */
+    private boolean store(String url, Entry entry, int frequency) {
+        synchronized (order) {
+            Entry old = order.get(url);
+            long excess = weight.get() + entry.weight - (old == null ? 0 : old.weight) - maximumWeight;
+            if (excess > 0) {
+                List<String> victims = new ArrayList<String>();
+                for (Map.Entry<String, Entry> e : order.entrySet()) {
+                    if (excess <= 0)
+                        break;
+                    if (e.getKey().equals(url))
+                        continue;
+                    if (old == null && sketch.frequency(e.getKey()) >= frequency)
+                        return false;
+                    victims.add(e.getKey());
+                    excess -= e.getValue().weight;
+                }
+                // larger than the cache
+                if (excess > 0)
+                    return false;
+                for (String victim : victims) {
+                    if (cache.asMap().remove(victim, order.get(victim)))
+                        evictedCount.incrementAndGet();
+                }
+            }
+
+            weight.addAndGet(entry.weight);
+            cache.put(url, entry);
+            order.put(url, entry);
+            return true;
+        }
+    }
+
+    @Override
+    public void put(String url, JResult res, Collection<String> aliases) {
+        int frequency = sketch.frequency(url);
+        if (!store(url, new Entry(res, weigh(res)), frequency)) {
+            rejectedCount.incrementAndGet();
+            return;
+        }
+
+        for (String alias : aliases) {
+            if (!alias.equals(url))
+                store(alias, new Entry(null, ALIAS_WEIGHT, url), frequency);
+        }
+    }
+
+    @Override
+    public int getSize() {
+        return (int) cache.size();
+    }
+
+    /**
+     * @return the estimated bytes of all cached results
+     */
+    public long getWeight() {
+        return weight.get();
+    }
+
+    public long getMaximumWeight() {
+        return maximumWeight;
+    }
+
+    /**
+     * @return hits, misses and evictions. Expired entries count as evicted.
+     */
+    public CacheStats getStats() {
+        return cache.stats().plus(new CacheStats(0, 0, 0, 0, 0, evictedCount.get()));
+    }
+
+    /**
+     * @return how many results were not cached by the admission policy
+     */
+    public long getRejectedCount() {
+        return rejectedCount.get();
+    }
+
+    public void invalidateAll() {
+        cache.invalidateAll();
+    }
+
+    /**
+     * Estimates the heap used by the extracted data of the result. The DOM
+     * elements of the images are not counted.
+     */
+    static int weigh(JResult res) {
+        long bytes = 200;
+        bytes += weigh(res.getUrl()) + weigh(res.getOriginalUrl()) + weigh(res.getCanonicalUrl())
+                + weigh(res.getTitle()) + weigh(res.getText()) + weigh(res.getDescription())
+                + weigh(res.getImageUrl()) + weigh(res.getVideoUrl()) + weigh(res.getRssUrl())
+                + weigh(res.getFaviconUrl()) + weigh(res.getAuthorName()) + weigh(res.getRawAuthorName())
+                + weigh(res.getAuthorDescription()) + weigh(res.getEtag()) + weigh(res.getLastModified())
+                + weigh(res.getError());
+        bytes += weigh(res.getKeywords());
+        bytes += weigh(res.getRedirects());
+        for (Map<String, String> link : res.getLinks()) {
+            bytes += 100;
+            for (String value : link.values()) {
+                bytes += weigh(value);
+            }
+        }
+        for (ImageResult image : res.getImages()) {
+            bytes += 60 + weigh(image.src) + weigh(image.title) + weigh(image.alt);
+        }
+        return (int) Math.min(Integer.MAX_VALUE, bytes);
+    }
+
+    private static long weigh(String str) {
+        // object header, array header and UTF-16 chars
+        return str == null ? 0 : 40 + 2L * str.length();
+    }
+
+    private static long weigh(Collection<String> strings) {
+        if (strings == null)
+            return 0;
+        long bytes = 0;
+        for (String str : strings) {
+            bytes += 8 + weigh(str);
+        }
+        return bytes;
+    }
+
+    private static class Entry {
+
+        // null for an alias
+        final JResult result;
+        // fixed at put so that the removal sees the same weight
+        final int weight;
+        // the key of the result if this is an alias
+        final String primary;
+
+        Entry(JResult result, int weight) {
+            this(result, weight, null);
+        }
+
+        Entry(JResult result, int weight, String primary) {
+            this.result = result;
+            this.weight = weight;
+            this.primary = primary;
+        }
+    }
+
+    /**
+     * Count-min sketch of how often urls were requested. The counters are
+     * halved when the sample is full so that the frequencies stay recent.
+     */
+    static class FrequencySketch {
+
+        private static final int MAX_COUNT = 15;
+        private final byte[][] table;
+        private final int mask;
+        private final int sampleSize;
+        private int samples;
+
+        FrequencySketch(int width) {
+            int size = Integer.highestOneBit(Math.max(16, width - 1) << 1);
+            table = new byte[4][size];
+            mask = size - 1;
+            sampleSize = 10 * size;
+        }
+
+        /**
+         * @return the frequency including this occurrence
+         */
+        synchronized int increment(String key) {
+            int hash = spread(key.hashCode());
+            int min = MAX_COUNT;
+            for (int i = 0; i < table.length; i++) {
+                int index = index(hash, i);
+                if (table[i][index] < MAX_COUNT)
+                    table[i][index]++;
+                min = Math.min(min, table[i][index]);
+            }
+
+            if (++samples >= sampleSize)
+                reset();
+            return min;
+        }
+
+        synchronized int frequency(String key) {
+            int hash = spread(key.hashCode());
+            int min = MAX_COUNT;
+            for (int i = 0; i < table.length; i++) {
+                min = Math.min(min, table[i][index(hash, i)]);
+            }
+            return min;
+        }
+
+        private void reset() {
+            for (byte[] row : table) {
+                for (int j = 0; j < row.length; j++) {
+                    row[j] >>= 1;
+                }
+            }
+            samples /= 2;
+        }
+
+        private int index(int hash, int row) {
+            int h = hash * (0x9E3779B9 + 2 * row + 1);
+            return (h ^ (h >>> 16)) & mask;
+        }
+
+        private static int spread(int hash) {
+            hash ^= hash >>> 17;
+            hash *= 0xed5ab4bb;
+            return hash ^ (hash >>> 11);
+        }
+    }
+}
@@ -31,6 +31,11 @@ public class OutputFormatter {
     protected final int minParagraphText;
     protected final List<String> nodesToReplace;
     protected String nodesToKeepCssSelector = "p, ol, em, ul, li, small, blockquote";
+    // scores the nodes for getFormattedText without a ScoringContext
+    private static class DefaultExtractor {
+
+        static final ArticleTextExtractor INSTANCE = new ArticleTextExtractor();
+    }
 
     public OutputFormatter() {
         this(MIN_FIRST_PARAGRAPH_TEXT, MIN_PARAGRAPH_TEXT, NODES_TO_REPLACE);
@@ -68,15 +73,32 @@ public class OutputFormatter {
     /**
      * takes an element and turns the P tags into \n\n
      * may then remove \n\n content if clearWhitespace
-     * setting is in use
+     * setting is in use.
+     *
+     * Without the ScoringContext of an extraction the nodes below topNode are
+     * scored like ArticleTextExtractor does it before the nodes with negative
+     * scores are removed. Scores of the deprecated
+     * ArticleTextExtractor.setScore are used instead if there are any.
      */
     public String getFormattedText(Element topNode, boolean removeNegative) {
-        setParagraphIndex(topNode, nodesToKeepCssSelector);
+        ScoringContext scores = removeNegative
+                ? DefaultExtractor.INSTANCE.scoreSubtree(topNode) : new ScoringContext();
+        return getFormattedText(topNode, removeNegative, scores, null);
+    }
+
+    /**
+     * @param scores the scores of the extraction, also gets the paragraph
+     * indices and extracted elements
+     * @param journal records the removed nodes if not null
+     */
+    String getFormattedText(Element topNode, boolean removeNegative, ScoringContext scores,
+                            DocumentJournal journal) {
+        setParagraphIndex(topNode, nodesToKeepCssSelector, scores);
         if(removeNegative){
-            removeNodesWithNegativeScores(topNode);
+            removeNodesWithNegativeScores(topNode, scores, journal);
         }
         StringBuilder sb = new StringBuilder();
-        int countOfP = append(topNode, sb, nodesToKeepCssSelector);
+        int countOfP = append(topNode, sb, nodesToKeepCssSelector, scores);
         String str = this.clearWhitespace ? SHelper.innerTrim(sb.toString()) : sb.toString();
 
 	
@@ -105,20 +127,47 @@ public class OutputFormatter {
     /**
      * If there are elements inside our top node that have a negative gravity
      * score remove them
+     *
+     * @deprecated reads the gravityScore and paragraphIndex attributes, the
+     * extraction keeps them in a ScoringContext
      */
+    @Deprecated
     protected void removeNodesWithNegativeScores(Element topNode) {
-        Elements gravityItems = topNode.select("*[gravityScore]");
+        Elements gravityItems = topNode.select("*[" + ArticleTextExtractor.SCORE_ATTRIBUTE + "]");
         for (Element item : gravityItems) {
             int score = getScore(item);
             int paragraphIndex = getParagraphIndex(item);
             if (score < 0 || item.text().length() < getMinParagraph(paragraphIndex)){
-                if (item.parent()!=null)
-                    item.remove();
+                item.remove();
+            }
+        }
+    }
+
+    /**
+     * If there are elements inside our top node that have a negative gravity
+     * score remove them
+     */
+    void removeNodesWithNegativeScores(Element topNode, ScoringContext scores, DocumentJournal journal) {
+        for (Element item : topNode.getAllElements()) {
+            if (!scores.hasScore(item))
+                continue;
+            int score = scores.getScore(item);
+            int paragraphIndex = scores.getParagraphIndex(item);
+            if (score < 0 || item.text().length() < getMinParagraph(paragraphIndex)){
+                DocumentJournal.remove(item, journal);
             }
         }
     }
     
+    /**
+     * @deprecated the extracted elements are kept in a ScoringContext
+     */
+    @Deprecated
     protected int append(Element node, StringBuilder sb, String tagName) {
+        return append(node, sb, tagName, new ScoringContext());
+    }
+
+    int append(Element node, StringBuilder sb, String tagName, ScoringContext scores) {
         int countOfP = 0; // Number of P elements in the article
         int paragraphWithTextIndex = 0;
         boolean hasParagraph = false;
@@ -148,7 +197,7 @@ public class OutputFormatter {
                 tmpEl = tmpEl.parent();
             }
 
-            if (e.hasAttr("contentExtracted")) {
+            if (scores.isContentExtracted(e)) {
                 continue MAIN;
             }
             String text = node2Text(e);
@@ -167,7 +216,7 @@ public class OutputFormatter {
             // It is rare but for sites like http://www.teenvogue.com/gallery/graduation-2017-gift-guide
             // there are nested elements which are eligible for extraction `h2 > p` where the same contents
             // are extracted twice
-            e.select(tagName).forEach(childNode -> childNode.attr("contentExtracted", "true"));
+            e.select(tagName).forEach(scores::setContentExtracted);
 
             if (e.tagName().equals("p")){
                 countOfP++;
@@ -187,6 +236,11 @@ public class OutputFormatter {
         return countOfP;
     }
     
+    /**
+     * @deprecated writes the paragraphIndex attributes, the extraction keeps
+     * them in a ScoringContext
+     */
+    @Deprecated
     protected void setParagraphIndex(Element node, String tagName) {
         int paragraphIndex = 0;
         for (Element e : node.select(tagName)) {
@@ -194,6 +248,13 @@ public class OutputFormatter {
         }
     }
 
+    void setParagraphIndex(Element node, String tagName, ScoringContext scores) {
+        int paragraphIndex = 0;
+        for (Element e : node.select(tagName)) {
+            scores.setParagraphIndex(e, paragraphIndex++);
+        }
+    }
+
     protected int getMinParagraph(int paragraphIndex){
         if(paragraphIndex < 1){
             return minFirstParagraphText;
@@ -202,6 +263,10 @@ public class OutputFormatter {
         }
     }
 
+    /**
+     * @deprecated see setParagraphIndex
+     */
+    @Deprecated
     protected int getParagraphIndex(Element el){
         try {
             return Integer.parseInt(el.attr("paragraphIndex"));
@@ -210,9 +275,13 @@ public class OutputFormatter {
         }
     }
 
+    /**
+     * @deprecated see ArticleTextExtractor.setScore
+     */
+    @Deprecated
     protected int getScore(Element el) {
         try {
-            return Integer.parseInt(el.attr("gravityScore"));
+            return Integer.parseInt(el.attr(ArticleTextExtractor.SCORE_ATTRIBUTE));
         } catch (Exception ex) {
             return 0;
         }
@@ -234,7 +303,7 @@ public class OutputFormatter {
             if (unlikely(child)){
                 continue;
             }
-            if (child instanceof TextNode && !child.hasAttr("contentExtracted")) {
+            if (child instanceof TextNode) {
                 TextNode textNode = (TextNode) child;
                 String txt = textNode.text();
                 accum.append(txt);
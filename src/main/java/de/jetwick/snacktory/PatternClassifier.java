@@ -0,0 +1,73 @@
+/*
+ *  Copyright 2011 Peter Karich
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package de.jetwick.snacktory;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import java.util.regex.Pattern;
+
+/**
+ * Matches a class name, id or itemprop against all the patterns of
+ * ArticleTextExtractor at once and returns the matching categories as bit
+ * mask. The same class names and ids appear on many elements and pages, so
+ * the mask is remembered per string and every pattern runs only once for
+ * it. Create a new classifier if one of the patterns changes.
+ *
+ * Thread safe.
+ *
+ * @author Peter Karich
+ */
+final class PatternClassifier {
+
+    static final int UNLIKELY = 1;
+    static final int POSITIVE = 1 << 1;
+    static final int HIGHLY_POSITIVE = 1 << 2;
+    static final int NEGATIVE = 1 << 3;
+    static final int HIGHLY_NEGATIVE = 1 << 4;
+    static final int TO_REMOVE = 1 << 5;
+    private static final int MAX_ENTRIES = 20000;
+    private final Pattern[] patterns;
+    private final Cache<String, Integer> masks = CacheBuilder.newBuilder().maximumSize(MAX_ENTRIES).build();
+
+    /**
+     * The patterns in the order of the category bits
+     */
+    PatternClassifier(Pattern unlikely, Pattern positive, Pattern highlyPositive,
+                      Pattern negative, Pattern highlyNegative, Pattern toRemove) {
+        patterns = new Pattern[]{unlikely, positive, highlyPositive, negative, highlyNegative, toRemove};
+    }
+
+    /**
+     * @return the categories which match the string
+     */
+    int classify(String str) {
+        Integer mask = masks.getIfPresent(str);
+        if (mask == null) {
+            int m = 0;
+            for (int i = 0; i < patterns.length; i++) {
+                if (patterns[i].matcher(str).find())
+                    m |= 1 << i;
+            }
+            mask = m;
+            masks.put(str, mask);
+        }
+        return mask;
+    }
+
+    boolean matches(String str, int category) {
+        return (classify(str) & category) != 0;
+    }
+}
@@ -0,0 +1,128 @@
+/*
+ *  Copyright 2011 Peter Karich
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package de.jetwick.snacktory;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * A downloaded page as it came from the server: the headers and the body
+ * bytes before the charset was decoded. Only the content and transfer
+ * encodings like gzip are already removed.
+ *
+ * @author Peter Karich
+ */
+public class RawResponse {
+
+    private final String url;
+    private final long date;
+    private final int statusCode;
+    private final Map<String, List<String>> headers;
+    private final byte[] body;
+    private final String truncated;
+
+    /**
+     * @param headers the response headers, entries with a null name like the
+     * status line of HttpURLConnection.getHeaderFields are ignored
+     */
+    public RawResponse(String url, long date, int statusCode, Map<String, List<String>> headers, byte[] body) {
+        this(url, date, statusCode, headers, body, null);
+    }
+
+    /**
+     * @param truncated why the body is incomplete, e.g. length, time or
+     * disconnect like the WARC-Truncated header, null for the whole body
+     */
+    public RawResponse(String url, long date, int statusCode, Map<String, List<String>> headers, byte[] body,
+            String truncated) {
+        this.url = url;
+        this.date = date;
+        this.statusCode = statusCode;
+        this.headers = new TreeMap<String, List<String>>(String.CASE_INSENSITIVE_ORDER);
+        for (Map.Entry<String, List<String>> entry : headers.entrySet()) {
+            if (entry.getKey() != null)
+                this.headers.put(entry.getKey(), entry.getValue());
+        }
+        this.body = body;
+        this.truncated = truncated;
+    }
+
+    public String getUrl() {
+        return url;
+    }
+
+    /**
+     * @return the time of the download in milliseconds
+     */
+    public long getDate() {
+        return date;
+    }
+
+    public int getStatusCode() {
+        return statusCode;
+    }
+
+    /**
+     * @return the headers, the names are case insensitive
+     */
+    public Map<String, List<String>> getHeaders() {
+        return Collections.unmodifiableMap(headers);
+    }
+
+    /**
+     * @return the first value of the header or null
+     */
+    public String getHeader(String name) {
+        List<String> values = headers.get(name);
+        return values == null || values.isEmpty() ? null : values.get(0);
+    }
+
+    public String getContentType() {
+        return getHeader("Content-Type");
+    }
+
+    /**
+     * @return the charset of the Content-Type header, the Converter still
+     * looks for a meta tag in the body
+     */
+    public String getCharset() {
+        return Converter.extractEncoding(getContentType());
+    }
+
+    public byte[] getBody() {
+        return body;
+    }
+
+    /**
+     * @return why only a part of the body was read, e.g. length if the body
+     * was cut at the maximum size, or null if the body is complete
+     */
+    public String getTruncated() {
+        return truncated;
+    }
+
+    public boolean isTruncated() {
+        return truncated != null;
+    }
+
+    @Override
+    public String toString() {
+        return statusCode + " " + url + " bytes:" + body.length
+                + (truncated == null ? "" : " truncated:" + truncated);
+    }
+}
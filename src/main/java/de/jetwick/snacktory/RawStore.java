@@ -0,0 +1,30 @@
+/*
+ *  Copyright 2011 Peter Karich
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package de.jetwick.snacktory;
+
+import java.io.IOException;
+
+/**
+ * Archive of the downloaded pages next to the SCache of the extracted
+ * results. The pages can be extracted again with HtmlFetcher.reExtractAll
+ * e.g. after the extraction rules changed, without fetching them again.
+ *
+ * @author Peter Karich
+ */
+public interface RawStore extends Iterable<RawResponse> {
+
+    void put(RawResponse response) throws IOException;
+}
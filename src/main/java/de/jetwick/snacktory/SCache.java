@@ -15,6 +15,8 @@
  */
 package de.jetwick.snacktory;
 
+import java.util.Collection;
+
 /**
  *
  * @author Peter Karich
@@ -25,5 +27,17 @@ public interface SCache {
 
     void put(String url, JResult res);
 
+    /**
+     * Puts the result under url and under other keys of the same page, e.g.
+     * the original or the canonical url. A cache can store the aliases as
+     * references to url instead of weighing the result for every key.
+     */
+    default void put(String url, JResult res, Collection<String> aliases) {
+        put(url, res);
+        for (String alias : aliases) {
+            put(alias, res);
+        }
+    }
+
     int getSize();
 }
@@ -247,6 +247,43 @@ public class SHelper {
                 || url.endsWith(".jpg") || url.endsWith(".bmp") || url.endsWith(".ico") || url.endsWith(".eps");
     }
 
+    /**
+     * @return the lower case media type of a Content-Type header without
+     * parameters or an empty string
+     */
+    public static String getMediaType(String contentType) {
+        if (contentType == null)
+            return "";
+        int index = contentType.indexOf(';');
+        if (index >= 0)
+            contentType = contentType.substring(0, index);
+        return contentType.trim().toLowerCase();
+    }
+
+    /**
+     * @return true if the Content-Type header denotes a textual page which can
+     * be extracted. A missing header counts as text as many servers omit it.
+     * Other xml types like image/svg+xml are not pages.
+     */
+    public static boolean isTextContentType(String contentType) {
+        String type = getMediaType(contentType);
+        return type.isEmpty() || type.startsWith("text/") || type.equals("application/xhtml+xml")
+                || type.equals("application/xml") || type.equals("application/rss+xml")
+                || type.equals("application/atom+xml");
+    }
+
+    public static boolean isImageContentType(String contentType) {
+        return getMediaType(contentType).startsWith("image/");
+    }
+
+    public static boolean isVideoContentType(String contentType) {
+        return getMediaType(contentType).startsWith("video/");
+    }
+
+    public static boolean isAudioContentType(String contentType) {
+        return getMediaType(contentType).startsWith("audio/");
+    }
+
     /**
      * @see
      * "http://blogs.sun.com/CoreJavaTechTips/entry/cookie_handling_in_java_se"
@@ -0,0 +1,182 @@
+/*
+ *  Copyright 2011 Peter Karich
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package de.jetwick.snacktory;
+
+import java.util.function.ObjIntConsumer;
+import org.jsoup.nodes.Node;
+
+/**
+ * The bookkeeping of one extraction pass: the scores of the candidate
+ * elements and the paragraph index and the extracted flag of the
+ * OutputFormatter. They are kept in primitive arrays keyed by node identity,
+ * so the DOM is not changed and no strings are parsed. Node.equals and
+ * hashCode of jsoup compare the content, so they are not used.
+ *
+ * Not thread safe, every extraction pass has its own context.
+ *
+ * @author Peter Karich
+ */
+final class ScoringContext {
+
+    private static final byte HAS_SCORE = 1;
+    private static final byte HAS_PARAGRAPH_INDEX = 2;
+    private static final byte CONTENT_EXTRACTED = 4;
+
+    // open addressing with linear probing, the length is a power of two
+    private Node[] nodes;
+    private int[] scores;
+    private int[] paragraphIndices;
+    private byte[] flags;
+    private int size;
+
+    ScoringContext() {
+        this(64);
+    }
+
+    ScoringContext(int expectedNodes) {
+        int capacity = 16;
+        while (capacity < expectedNodes * 2) {
+            capacity <<= 1;
+        }
+        allocate(capacity);
+    }
+
+    /**
+     * @return true if the element got a score in this pass
+     */
+    boolean hasScore(Node node) {
+        int index = find(node);
+        return index >= 0 && (flags[index] & HAS_SCORE) != 0;
+    }
+
+    /**
+     * @return the score or 0 if there is none
+     */
+    int getScore(Node node) {
+        int index = find(node);
+        return index >= 0 ? scores[index] : 0;
+    }
+
+    void setScore(Node node, int score) {
+        int index = slot(node);
+        scores[index] = score;
+        flags[index] |= HAS_SCORE;
+    }
+
+    void addScore(Node node, int score) {
+        int index = slot(node);
+        scores[index] += score;
+        flags[index] |= HAS_SCORE;
+    }
+
+    /**
+     * @return the paragraph index or -1 if there is none
+     */
+    int getParagraphIndex(Node node) {
+        int index = find(node);
+        return index >= 0 && (flags[index] & HAS_PARAGRAPH_INDEX) != 0 ? paragraphIndices[index] : -1;
+    }
+
+    void setParagraphIndex(Node node, int paragraphIndex) {
+        int index = slot(node);
+        paragraphIndices[index] = paragraphIndex;
+        flags[index] |= HAS_PARAGRAPH_INDEX;
+    }
+
+    boolean isContentExtracted(Node node) {
+        int index = find(node);
+        return index >= 0 && (flags[index] & CONTENT_EXTRACTED) != 0;
+    }
+
+    void setContentExtracted(Node node) {
+        flags[slot(node)] |= CONTENT_EXTRACTED;
+    }
+
+    /**
+     * Calls the consumer with every node which got a score.
+     */
+    void forEachScore(ObjIntConsumer<Node> consumer) {
+        for (int i = 0; i < nodes.length; i++) {
+            if (nodes[i] != null && (flags[i] & HAS_SCORE) != 0)
+                consumer.accept(nodes[i], scores[i]);
+        }
+    }
+
+    int size() {
+        return size;
+    }
+
+    private int find(Node node) {
+        int mask = nodes.length - 1;
+        int index = hash(node) & mask;
+        while (nodes[index] != null) {
+            if (nodes[index] == node)
+                return index;
+            index = (index + 1) & mask;
+        }
+        return -1;
+    }
+
+    private int slot(Node node) {
+        int mask = nodes.length - 1;
+        int index = hash(node) & mask;
+        while (nodes[index] != null) {
+            if (nodes[index] == node)
+                return index;
+            index = (index + 1) & mask;
+        }
+        if ((size + 1) * 2 > nodes.length) {
+            grow();
+            return slot(node);
+        }
+        nodes[index] = node;
+        size++;
+        return index;
+    }
+
+    private void grow() {
+        Node[] oldNodes = nodes;
+        int[] oldScores = scores;
+        int[] oldParagraphIndices = paragraphIndices;
+        byte[] oldFlags = flags;
+        allocate(oldNodes.length * 2);
+        int mask = nodes.length - 1;
+        for (int i = 0; i < oldNodes.length; i++) {
+            if (oldNodes[i] == null)
+                continue;
+            int index = hash(oldNodes[i]) & mask;
+            while (nodes[index] != null) {
+                index = (index + 1) & mask;
+            }
+            nodes[index] = oldNodes[i];
+            scores[index] = oldScores[i];
+            paragraphIndices[index] = oldParagraphIndices[i];
+            flags[index] = oldFlags[i];
+        }
+    }
+
+    private void allocate(int capacity) {
+        nodes = new Node[capacity];
+        scores = new int[capacity];
+        paragraphIndices = new int[capacity];
+        flags = new byte[capacity];
+    }
+
+    private static int hash(Node node) {
+        int h = System.identityHashCode(node);
+        return h ^ (h >>> 16);
+    }
+}
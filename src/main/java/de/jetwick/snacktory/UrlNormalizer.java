@@ -0,0 +1,216 @@
+/*
+ *  Copyright 2011 Peter Karich
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package de.jetwick.snacktory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Brings urls which point to the same page into one form so that they can be
+ * used as cache keys. Scheme and host are lowercased, default ports, the
+ * fragment, a trailing slash and tracking parameters like utm_source are
+ * removed and the remaining query parameters are sorted.
+ *
+ * The normalized url is only a key, the page is still fetched from the
+ * original url.
+ *
+ * @author Peter Karich
+ */
+public class UrlNormalizer {
+
+    private Set<String> trackingParams = new LinkedHashSet<String>() {
+        {
+            add("fbclid");
+            add("gclid");
+            add("dclid");
+            add("msclkid");
+            add("yclid");
+            add("igshid");
+            add("mc_cid");
+            add("mc_eid");
+            add("_ga");
+            add("_hsenc");
+            add("_hsmi");
+        }
+    };
+    private Set<String> trackingParamPrefixes = new LinkedHashSet<String>() {
+        {
+            add("utm_");
+        }
+    };
+    private boolean sortQuery = true;
+    private boolean removeFragment = true;
+    private boolean removeTrailingSlash = true;
+
+    /**
+     * Parameters with this name (case insensitive) are removed from the query
+     */
+    public UrlNormalizer addTrackingParam(String name) {
+        trackingParams.add(name.toLowerCase());
+        return this;
+    }
+
+    public Set<String> getTrackingParams() {
+        return trackingParams;
+    }
+
+    /**
+     * Parameters starting with this prefix (case insensitive) are removed
+     * from the query, e.g. utm_
+     */
+    public UrlNormalizer addTrackingParamPrefix(String prefix) {
+        trackingParamPrefixes.add(prefix.toLowerCase());
+        return this;
+    }
+
+    public Set<String> getTrackingParamPrefixes() {
+        return trackingParamPrefixes;
+    }
+
+    public UrlNormalizer setSortQuery(boolean sortQuery) {
+        this.sortQuery = sortQuery;
+        return this;
+    }
+
+    public boolean isSortQuery() {
+        return sortQuery;
+    }
+
+    /**
+     * Hashbang fragments (#!) are always kept as they select the content.
+     */
+    public UrlNormalizer setRemoveFragment(boolean removeFragment) {
+        this.removeFragment = removeFragment;
+        return this;
+    }
+
+    public boolean isRemoveFragment() {
+        return removeFragment;
+    }
+
+    public UrlNormalizer setRemoveTrailingSlash(boolean removeTrailingSlash) {
+        this.removeTrailingSlash = removeTrailingSlash;
+        return this;
+    }
+
+    public boolean isRemoveTrailingSlash() {
+        return removeTrailingSlash;
+    }
+
+    /**
+     * @return the normalized url or the url itself if it is not an absolute
+     * http(s) url
+     */
+    public String normalize(String url) {
+        if (url == null || url.isEmpty())
+            return url;
+
+        String fragment = "";
+        int index = url.indexOf('#');
+        if (index >= 0) {
+            fragment = url.substring(index);
+            url = url.substring(0, index);
+            if (removeFragment && !fragment.startsWith("#!"))
+                fragment = "";
+        }
+
+        int schemeEnd = url.indexOf("://");
+        if (schemeEnd <= 0)
+            return url + fragment;
+        String scheme = url.substring(0, schemeEnd).toLowerCase();
+        if (!scheme.equals("http") && !scheme.equals("https"))
+            return url + fragment;
+
+        String query = null;
+        index = url.indexOf('?');
+        if (index >= 0) {
+            query = url.substring(index + 1);
+            url = url.substring(0, index);
+        }
+
+        int hostStart = schemeEnd + 3;
+        int pathStart = url.indexOf('/', hostStart);
+        if (pathStart < 0)
+            pathStart = url.length();
+        String host = normalizeHost(scheme, url.substring(hostStart, pathStart));
+        String path = url.substring(pathStart);
+        if (path.isEmpty())
+            path = "/";
+        else if (removeTrailingSlash && path.length() > 1 && path.endsWith("/"))
+            path = path.substring(0, path.length() - 1);
+
+        StringBuilder sb = new StringBuilder(scheme).append("://").append(host).append(path);
+        query = normalizeQuery(query);
+        if (!query.isEmpty())
+            sb.append('?').append(query);
+        return sb.append(fragment).toString();
+    }
+
+    private static String normalizeHost(String scheme, String authority) {
+        // the user info is case sensitive
+        int index = authority.lastIndexOf('@');
+        String userInfo = index < 0 ? "" : authority.substring(0, index + 1);
+        String host = authority.substring(index + 1).toLowerCase();
+        if (host.endsWith("."))
+            host = host.substring(0, host.length() - 1);
+        if (scheme.equals("http") && host.endsWith(":80"))
+            host = host.substring(0, host.length() - 3);
+        else if (scheme.equals("https") && host.endsWith(":443"))
+            host = host.substring(0, host.length() - 4);
+        return userInfo + host;
+    }
+
+    private String normalizeQuery(String query) {
+        if (query == null || query.isEmpty())
+            return "";
+
+        List<String> params = new ArrayList<String>();
+        for (String param : query.split("&")) {
+            if (!param.isEmpty() && !isTrackingParam(param))
+                params.add(param);
+        }
+        if (sortQuery)
+            // stable, so repeated parameters keep their order
+            Collections.sort(params, (p1, p2) -> name(p1).compareTo(name(p2)));
+
+        StringBuilder sb = new StringBuilder();
+        for (String param : params) {
+            if (sb.length() > 0)
+                sb.append('&');
+            sb.append(param);
+        }
+        return sb.toString();
+    }
+
+    private boolean isTrackingParam(String param) {
+        String name = name(param).toLowerCase();
+        if (trackingParams.contains(name))
+            return true;
+        for (String prefix : trackingParamPrefixes) {
+            if (name.startsWith(prefix))
+                return true;
+        }
+        return false;
+    }
+
+    private static String name(String param) {
+        int index = param.indexOf('=');
+        return index < 0 ? param : param.substring(0, index);
+    }
+}
@@ -0,0 +1,216 @@
+/*
+ *  Copyright 2011 Peter Karich
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package de.jetwick.snacktory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.UUID;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * RawStore which appends the responses to WARC files in a directory, so the
+ * archive can also be read by the usual WARC tools. Every record is its own
+ * gzip member. A new file is started when the current one exceeds
+ * maxFileSize and whenever the store is opened again.
+ *
+ * The body is stored without content encoding, so the Content-Encoding and
+ * Transfer-Encoding headers are dropped and Content-Length is the length of
+ * the stored body.
+ *
+ * This class is thread safe.
+ *
+ * @author Peter Karich
+ */
+public class WarcRawStore implements RawStore, Closeable {
+
+    private static final Pattern FILE_NAME = Pattern.compile("snacktory-(\\d+)\\.warc\\.gz");
+    private final File directory;
+    private final long maxFileSize;
+    private final List<File> files = new ArrayList<File>();
+    private FileOutputStream out;
+    private long fileSize;
+    private boolean closed;
+
+    public WarcRawStore(File directory) throws IOException {
+        this(directory, 1024L * 1024 * 1024);
+    }
+
+    /**
+     * @param maxFileSize the size in bytes after which the next file is started
+     */
+    public WarcRawStore(File directory, long maxFileSize) throws IOException {
+        this.directory = directory;
+        this.maxFileSize = maxFileSize;
+        if (!directory.isDirectory() && !directory.mkdirs())
+            throw new IOException("Cannot create " + directory);
+
+        File[] existing = directory.listFiles((dir, name) -> FILE_NAME.matcher(name).matches());
+        Arrays.sort(existing, (f1, f2) -> Long.compare(fileIndex(f1), fileIndex(f2)));
+        files.addAll(Arrays.asList(existing));
+    }
+
+    @Override
+    public void put(RawResponse response) throws IOException {
+        byte[] record = gzip(toRecord(response));
+        synchronized (this) {
+            if (closed)
+                throw new IOException("WarcRawStore is closed");
+            if (out == null || fileSize > 0 && fileSize + record.length > maxFileSize)
+                nextFile();
+            // one write per record, readers never see half of it unless the
+            // process dies
+            out.write(record);
+            fileSize += record.length;
+        }
+    }
+
+    /**
+     * Iterates over the responses of all files in the order they were put.
+     * Responses which are put while iterating might not be returned.
+     *
+     * @throws UncheckedIOException if a file cannot be read
+     */
+    @Override
+    public Iterator<RawResponse> iterator() {
+        final List<File> snapshot;
+        synchronized (this) {
+            snapshot = new ArrayList<File>(files);
+        }
+
+        return new Iterator<RawResponse>() {
+            private int fileIndex;
+            private WarcReader reader;
+
+            @Override
+            public boolean hasNext() {
+                try {
+                    while (reader == null || !reader.hasNext()) {
+                        if (reader != null)
+                            reader.close();
+                        reader = null;
+                        if (fileIndex >= snapshot.size())
+                            return false;
+                        reader = new WarcReader(new FileInputStream(snapshot.get(fileIndex++)));
+                    }
+                    return true;
+                } catch (IOException ex) {
+                    throw new UncheckedIOException(ex);
+                }
+            }
+
+            @Override
+            public RawResponse next() {
+                if (!hasNext())
+                    throw new NoSuchElementException();
+                return reader.next();
+            }
+        };
+    }
+
+    /**
+     * @return the WARC files in the order they were written
+     */
+    public synchronized List<File> getFiles() {
+        return new ArrayList<File>(files);
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        closed = true;
+        if (out != null)
+            out.close();
+        out = null;
+    }
+
+    // needs to be called with the lock held
+    private void nextFile() throws IOException {
+        if (out != null)
+            out.close();
+        long index = files.isEmpty() ? 0 : fileIndex(files.get(files.size() - 1)) + 1;
+        File file = new File(directory, String.format("snacktory-%05d.warc.gz", index));
+        out = new FileOutputStream(file);
+        fileSize = 0;
+        files.add(file);
+    }
+
+    private static long fileIndex(File file) {
+        Matcher matcher = FILE_NAME.matcher(file.getName());
+        return matcher.matches() ? Long.parseLong(matcher.group(1)) : -1;
+    }
+
+    static byte[] toRecord(RawResponse response) throws IOException {
+        StringBuilder http = new StringBuilder();
+        http.append("HTTP/1.1 ").append(response.getStatusCode()).append(" \r\n");
+        for (Map.Entry<String, List<String>> header : response.getHeaders().entrySet()) {
+            String name = header.getKey();
+            if (name.equalsIgnoreCase("Content-Encoding") || name.equalsIgnoreCase("Transfer-Encoding")
+                    || name.equalsIgnoreCase("Content-Length"))
+                continue;
+            for (String value : header.getValue()) {
+                http.append(name).append(": ").append(clean(value)).append("\r\n");
+            }
+        }
+        http.append("Content-Length: ").append(response.getBody().length).append("\r\n\r\n");
+        byte[] httpHeader = http.toString().getBytes(StandardCharsets.ISO_8859_1);
+
+        StringBuilder warc = new StringBuilder();
+        warc.append("WARC/1.0\r\n");
+        warc.append("WARC-Type: response\r\n");
+        warc.append("WARC-Target-URI: ").append(clean(response.getUrl())).append("\r\n");
+        warc.append("WARC-Date: ").append(Instant.ofEpochMilli(response.getDate()).truncatedTo(ChronoUnit.SECONDS))
+                .append("\r\n");
+        warc.append("WARC-Record-ID: <urn:uuid:").append(UUID.randomUUID()).append(">\r\n");
+        if (response.isTruncated())
+            warc.append("WARC-Truncated: ").append(clean(response.getTruncated())).append("\r\n");
+        warc.append("Content-Type: application/http; msgtype=response\r\n");
+        warc.append("Content-Length: ").append(httpHeader.length + response.getBody().length).append("\r\n\r\n");
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(httpHeader.length + response.getBody().length + 512);
+        bytes.write(warc.toString().getBytes(StandardCharsets.ISO_8859_1));
+        bytes.write(httpHeader);
+        bytes.write(response.getBody());
+        bytes.write("\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1));
+        return bytes.toByteArray();
+    }
+
+    private static String clean(String value) {
+        return value == null ? "" : value.replace('\r', ' ').replace('\n', ' ');
+    }
+
+    private static byte[] gzip(byte[] bytes) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(bytes.length / 4 + 64);
+        GZIPOutputStream gzip = new GZIPOutputStream(out, 8192);
+        gzip.write(bytes);
+        gzip.close();
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,318 @@
+/*
+ *  Copyright 2011 Peter Karich
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package de.jetwick.snacktory;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Reads the response records of a WARC file, plain or gzipped. A gzipped
+ * file usually has one gzip member per record, they are decompressed one
+ * after the other while reading, so the file is never loaded completely.
+ * Other record types like request or warcinfo are skipped.
+ *
+ * Crawlers usually store the HTTP response as it was sent, so chunked and
+ * gzip or deflate encoded bodies are decoded, as RawResponse expects.
+ *
+ * @author Peter Karich
+ */
+public class WarcReader implements Iterator<RawResponse>, Closeable {
+
+    private final InputStream in;
+    private RawResponse next;
+
+    public WarcReader(InputStream in) throws IOException {
+        BufferedInputStream buffered = new BufferedInputStream(in, 8192);
+        buffered.mark(2);
+        boolean gzipped = buffered.read() == 0x1f && buffered.read() == 0x8b;
+        buffered.reset();
+        this.in = gzipped ? new BufferedInputStream(new GZIPInputStream(buffered, 8192), 8192) : buffered;
+    }
+
+    /**
+     * @return the next response record or null at the end of the file
+     * @throws EOFException if the last record is incomplete
+     */
+    public RawResponse read() throws IOException {
+        while (true) {
+            String version = readLine(in);
+            // records are separated by two empty lines
+            while (version != null && version.isEmpty()) {
+                version = readLine(in);
+            }
+            if (version == null)
+                return null;
+            if (!version.startsWith("WARC/"))
+                throw new IOException("No WARC record: " + version);
+
+            Map<String, String> warcHeaders = readHeaders(in);
+            String length = warcHeaders.get("content-length");
+            if (length == null)
+                throw new IOException("WARC record without Content-Length");
+            if (!"response".equals(warcHeaders.get("warc-type"))) {
+                skipFully(in, Long.parseLong(length.trim()));
+                continue;
+            }
+            return parseResponse(warcHeaders, readFully(in, Integer.parseInt(length.trim())));
+        }
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (next == null) {
+            try {
+                next = read();
+            } catch (IOException ex) {
+                throw new UncheckedIOException(ex);
+            }
+        }
+        return next != null;
+    }
+
+    @Override
+    public RawResponse next() {
+        if (!hasNext())
+            throw new NoSuchElementException();
+        RawResponse res = next;
+        next = null;
+        return res;
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+
+    private static RawResponse parseResponse(Map<String, String> warcHeaders, byte[] block) throws IOException {
+        String url = warcHeaders.get("warc-target-uri");
+        if (url != null && url.startsWith("<") && url.endsWith(">"))
+            url = url.substring(1, url.length() - 1);
+
+        long date = 0;
+        try {
+            if (warcHeaders.containsKey("warc-date"))
+                date = Instant.parse(warcHeaders.get("warc-date")).toEpochMilli();
+        } catch (DateTimeParseException ex) {
+            // keep 0
+        }
+
+        int offset = 0;
+        int statusCode = 0;
+        Map<String, List<String>> headers = new LinkedHashMap<String, List<String>>();
+        int lineEnd = indexOfLineEnd(block, offset);
+        String statusLine = new String(block, 0, lineEnd, StandardCharsets.ISO_8859_1).trim();
+        if (statusLine.startsWith("HTTP/")) {
+            String[] parts = statusLine.split(" ");
+            try {
+                statusCode = parts.length > 1 ? Integer.parseInt(parts[1]) : 0;
+            } catch (NumberFormatException ex) {
+                throw new IOException("Invalid status line: " + statusLine);
+            }
+
+            offset = skipLineEnd(block, lineEnd);
+            while (offset < block.length) {
+                lineEnd = indexOfLineEnd(block, offset);
+                String line = new String(block, offset, lineEnd - offset, StandardCharsets.ISO_8859_1);
+                offset = skipLineEnd(block, lineEnd);
+                if (line.isEmpty())
+                    break;
+                int index = line.indexOf(':');
+                if (index <= 0)
+                    continue;
+                String name = line.substring(0, index).trim();
+                List<String> values = headers.get(name);
+                if (values == null) {
+                    values = new ArrayList<String>(1);
+                    headers.put(name, values);
+                }
+                values.add(line.substring(index + 1).trim());
+            }
+        }
+
+        byte[] body = new byte[block.length - offset];
+        System.arraycopy(block, offset, body, 0, body.length);
+        return new RawResponse(url, date, statusCode, headers, decode(headers, body),
+                warcHeaders.get("warc-truncated"));
+    }
+
+    /**
+     * Removes the transfer and content encoding from the body. If the body
+     * is cut or corrupt the part which could be decoded is returned, and if
+     * nothing could be decoded the body as it is.
+     */
+    static byte[] decode(Map<String, List<String>> headers, byte[] body) {
+        String transferEncoding = removeHeader(headers, "Transfer-Encoding");
+        String contentEncoding = removeHeader(headers, "Content-Encoding");
+        try {
+            if (transferEncoding != null && transferEncoding.toLowerCase().contains("chunked"))
+                body = dechunk(body);
+        } catch (IOException ex) {
+            // keep what we have, the Converter will make the best out of it
+        }
+        if (contentEncoding == null)
+            return body;
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream(body.length * 4);
+        try {
+            InputStream is;
+            contentEncoding = contentEncoding.trim().toLowerCase();
+            if (contentEncoding.equals("gzip") || contentEncoding.equals("x-gzip"))
+                is = new GZIPInputStream(new ByteArrayInputStream(body));
+            else if (contentEncoding.equals("deflate"))
+                is = new InflaterInputStream(new ByteArrayInputStream(body), new Inflater(true));
+            else
+                return body;
+            byte[] buffer = new byte[8192];
+            int n;
+            while ((n = is.read(buffer)) >= 0) {
+                out.write(buffer, 0, n);
+            }
+        } catch (IOException ex) {
+            // a cut body still decodes until the cut
+            if (out.size() == 0)
+                return body;
+        }
+        return out.toByteArray();
+    }
+
+    private static String removeHeader(Map<String, List<String>> headers, String name) {
+        Iterator<Map.Entry<String, List<String>>> iter = headers.entrySet().iterator();
+        while (iter.hasNext()) {
+            Map.Entry<String, List<String>> entry = iter.next();
+            if (entry.getKey().equalsIgnoreCase(name)) {
+                iter.remove();
+                return entry.getValue().isEmpty() ? null : entry.getValue().get(0);
+            }
+        }
+        return null;
+    }
+
+    private static byte[] dechunk(byte[] body) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(body.length);
+        int offset = 0;
+        while (offset < body.length) {
+            int lineEnd = indexOfLineEnd(body, offset);
+            String size = new String(body, offset, lineEnd - offset, StandardCharsets.ISO_8859_1);
+            int index = size.indexOf(';');
+            if (index >= 0)
+                size = size.substring(0, index);
+            int length;
+            try {
+                length = Integer.parseInt(size.trim(), 16);
+            } catch (NumberFormatException ex) {
+                throw new IOException("Invalid chunk size: " + size);
+            }
+            offset = skipLineEnd(body, lineEnd);
+            if (length == 0)
+                break;
+            length = Math.min(length, body.length - offset);
+            out.write(body, offset, length);
+            offset = skipLineEnd(body, offset + length);
+        }
+        return out.toByteArray();
+    }
+
+    private static int indexOfLineEnd(byte[] block, int offset) {
+        for (int i = offset; i < block.length; i++) {
+            if (block[i] == '\n')
+                return i > offset && block[i - 1] == '\r' ? i - 1 : i;
+        }
+        return block.length;
+    }
+
+    private static int skipLineEnd(byte[] block, int lineEnd) {
+        if (lineEnd < block.length && block[lineEnd] == '\r')
+            lineEnd++;
+        return Math.min(block.length, lineEnd + 1);
+    }
+
+    /**
+     * @return the headers with lower case names
+     */
+    private static Map<String, String> readHeaders(InputStream in) throws IOException {
+        Map<String, String> headers = new LinkedHashMap<String, String>();
+        while (true) {
+            String line = readLine(in);
+            if (line == null)
+                throw new EOFException("Incomplete WARC header");
+            if (line.isEmpty())
+                return headers;
+            int index = line.indexOf(':');
+            if (index > 0)
+                headers.put(line.substring(0, index).trim().toLowerCase(), line.substring(index + 1).trim());
+        }
+    }
+
+    /**
+     * @return the line without CRLF or null at the end of the stream
+     */
+    private static String readLine(InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream(64);
+        int b;
+        while ((b = in.read()) >= 0) {
+            if (b == '\n')
+                break;
+            line.write(b);
+        }
+        if (b < 0 && line.size() == 0)
+            return null;
+        String str = line.toString("ISO-8859-1");
+        return str.endsWith("\r") ? str.substring(0, str.length() - 1) : str;
+    }
+
+    private static void skipFully(InputStream in, long length) throws IOException {
+        while (length > 0) {
+            long n = in.skip(length);
+            if (n <= 0) {
+                // skip may return 0 before the end, only read tells for sure
+                if (in.read() < 0)
+                    throw new EOFException("Incomplete WARC record");
+                n = 1;
+            }
+            length -= n;
+        }
+    }
+
+    private static byte[] readFully(InputStream in, int length) throws IOException {
+        byte[] bytes = new byte[length];
+        int offset = 0;
+        while (offset < length) {
+            int n = in.read(bytes, offset, length - offset);
+            if (n < 0)
+                throw new EOFException("Incomplete WARC record");
+            offset += n;
+        }
+        return bytes;
+    }
+}
@@ -29,6 +29,10 @@ final public class Configuration {
     }
 
     private String defaultTimezone;
+    // classpath resource or file with the site specific rules
+    private String domainRules;
+    // how often a rules file is checked for changes
+    private int domainRulesCheckSeconds = 60;
 
     private Configuration() {
     }
@@ -44,4 +48,20 @@ final public class Configuration {
     public void setDefaultTimezone(String defaultTimezone) {
         this.defaultTimezone = defaultTimezone;
     }
+
+    public String getDomainRules() {
+        return domainRules;
+    }
+
+    public void setDomainRules(String domainRules) {
+        this.domainRules = domainRules;
+    }
+
+    public int getDomainRulesCheckSeconds() {
+        return domainRulesCheckSeconds;
+    }
+
+    public void setDomainRulesCheckSeconds(int domainRulesCheckSeconds) {
+        this.domainRulesCheckSeconds = domainRulesCheckSeconds;
+    }
 }
@@ -1,6 +1,8 @@
 package de.jetwick.snacktory.utils;
 
 
+import javax.net.ssl.SNIHostName;
+import javax.net.ssl.SNIServerName;
 import javax.net.ssl.SSLParameters;
 import javax.net.ssl.SSLSocket;
 import javax.net.ssl.SSLSocketFactory;
@@ -8,6 +10,8 @@ import java.io.IOException;
 import java.net.InetAddress;
 import java.net.Socket;
 import java.net.UnknownHostException;
+import java.util.Collections;
+import java.util.List;
 
 /**
  * In Java 8, SSLSocketFactory has some weird behaviour when the HostNameVerification is
@@ -16,12 +20,19 @@ import java.net.UnknownHostException;
  * To overcome the default behaviour this class helps to include SNI in the SSL requests.
  * <p>
  * Ref: http://javabreaks.blogspot.in/2015/12/java-ssl-handshake-with-server-name.html
+ * <p>
+ * Without fixed SSLParameters the SNI header is taken from the host of every
+ * new socket, so one factory can be shared for all connections.
  */
 public class SSLConnectionSocketFactory extends SSLSocketFactory {
 
     private final SSLSocketFactory sslSocketFactory;
     private final SSLParameters sslParameters;
 
+    public SSLConnectionSocketFactory(SSLSocketFactory sslSocketFactory) {
+        this(sslSocketFactory, null);
+    }
+
     public SSLConnectionSocketFactory(SSLSocketFactory sslSocketFactory, SSLParameters sslParameters) {
         this.sslSocketFactory = sslSocketFactory;
         this.sslParameters = sslParameters;
@@ -40,14 +51,14 @@ public class SSLConnectionSocketFactory extends SSLSocketFactory {
     @Override
     public Socket createSocket(Socket socket, String host, int port, boolean autoClose) throws IOException {
         SSLSocket sslSocket = (SSLSocket) sslSocketFactory.createSocket(socket, host, port, autoClose);
-        setParameters(sslSocket);
+        setParameters(sslSocket, host);
         return sslSocket;
     }
 
     @Override
     public Socket createSocket(String host, int port) throws IOException, UnknownHostException {
         SSLSocket socket = (SSLSocket) sslSocketFactory.createSocket(host, port);
-        setParameters(socket);
+        setParameters(socket, host);
         return socket;
     }
 
@@ -55,25 +66,52 @@ public class SSLConnectionSocketFactory extends SSLSocketFactory {
     public Socket createSocket(String host, int port, InetAddress localHost, int localPort)
             throws IOException {
         SSLSocket socket = (SSLSocket) sslSocketFactory.createSocket(host, port, localHost, localPort);
-        setParameters(socket);
+        setParameters(socket, host);
         return socket;
     }
 
     @Override
     public Socket createSocket(InetAddress host, int port) throws IOException {
         SSLSocket socket = (SSLSocket) sslSocketFactory.createSocket(host, port);
-        setParameters(socket);
+        setParameters(socket, host.getHostName());
         return socket;
     }
 
     @Override
     public Socket createSocket(InetAddress address, int port, InetAddress localAddress, int localPort) throws IOException {
         SSLSocket socket = (SSLSocket) sslSocketFactory.createSocket(address, port, localAddress, localPort);
-        setParameters(socket);
+        setParameters(socket, address.getHostName());
         return socket;
     }
 
-    private void setParameters(SSLSocket socket) {
-        socket.setSSLParameters(sslParameters);
+    private void setParameters(SSLSocket socket, String host) {
+        if (sslParameters != null) {
+            socket.setSSLParameters(sslParameters);
+        } else if (host != null && isHostName(host)) {
+            SSLParameters parameters = socket.getSSLParameters();
+            List<SNIServerName> serverNames = Collections.<SNIServerName>singletonList(new SNIHostName(host));
+            parameters.setServerNames(serverNames);
+            socket.setSSLParameters(parameters);
+        }
+        prepareSocket(socket);
+    }
+
+    /**
+     * Called for every new socket before the handshake starts. Does nothing by
+     * default.
+     */
+    protected void prepareSocket(SSLSocket socket) {
+    }
+
+    // SNI must not be sent for IP addresses
+    private static boolean isHostName(String host) {
+        if (host.isEmpty() || host.indexOf(':') >= 0 || host.endsWith("."))
+            return false;
+        for (int i = 0; i < host.length(); i++) {
+            char c = host.charAt(i);
+            if (c != '.' && !Character.isDigit(c))
+                return true;
+        }
+        return false;
     }
 }
\ No newline at end of file
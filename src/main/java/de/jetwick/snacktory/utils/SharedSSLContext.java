@@ -0,0 +1,134 @@
+package de.jetwick.snacktory.utils;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.net.ssl.HandshakeCompletedEvent;
+import javax.net.ssl.HandshakeCompletedListener;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLSessionContext;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.X509ExtendedTrustManager;
+import java.net.Socket;
+import java.security.GeneralSecurityException;
+import java.security.cert.X509Certificate;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * TLS layer of a fetcher: one SSLContext and one socket factory which are
+ * reused for all HTTPS connections. As the JSSE client session cache belongs
+ * to the SSLContext, reusing it allows abbreviated handshakes (session
+ * resumption) for hosts we already talked to. Building a new context per
+ * request always leads to a full handshake.
+ * <p>
+ * The SNI host name is set per connection by SSLConnectionSocketFactory.
+ * <p>
+ * This class is thread safe.
+ */
+public class SharedSSLContext {
+
+    private static final Logger logger = LoggerFactory.getLogger(SharedSSLContext.class);
+    public static final int DEFAULT_SESSION_CACHE_SIZE = 10000;
+    public static final int DEFAULT_SESSION_TIMEOUT_SECONDS = 24 * 60 * 60;
+    private final SSLContext sslContext;
+    private final SSLSocketFactory socketFactory;
+    private final AtomicLong fullHandshakes = new AtomicLong();
+    private final AtomicLong resumedHandshakes = new AtomicLong();
+
+    /**
+     * Creates a context which accepts all certificates.
+     */
+    public static SharedSSLContext createTrustAll() throws GeneralSecurityException {
+        SSLContext sslContext = SSLContext.getInstance("TLS");
+        sslContext.init(null, new TrustManager[]{new NullX509TrustManager()}, null);
+        return new SharedSSLContext(sslContext);
+    }
+
+    public SharedSSLContext(SSLContext sslContext) {
+        this(sslContext, DEFAULT_SESSION_CACHE_SIZE, DEFAULT_SESSION_TIMEOUT_SECONDS);
+    }
+
+    public SharedSSLContext(SSLContext sslContext, int sessionCacheSize, int sessionTimeoutSeconds) {
+        this.sslContext = sslContext;
+        SSLSessionContext sessionContext = sslContext.getClientSessionContext();
+        if (sessionContext != null) {
+            sessionContext.setSessionCacheSize(sessionCacheSize);
+            sessionContext.setSessionTimeout(sessionTimeoutSeconds);
+        }
+        socketFactory = new SSLConnectionSocketFactory(sslContext.getSocketFactory()) {
+            @Override
+            protected void prepareSocket(SSLSocket socket) {
+                socket.addHandshakeCompletedListener(new HandshakeCounter());
+            }
+        };
+    }
+
+    public SSLContext getSSLContext() {
+        return sslContext;
+    }
+
+    /**
+     * @return the factory which should be set on every HttpsURLConnection
+     */
+    public SSLSocketFactory getSocketFactory() {
+        return socketFactory;
+    }
+
+    /**
+     * @return the number of handshakes which negotiated a new session. Only
+     * connections created via getSocketFactory are counted.
+     */
+    public long getFullHandshakes() {
+        return fullHandshakes.get();
+    }
+
+    /**
+     * @return the number of handshakes which resumed a cached session. Only
+     * connections created via getSocketFactory are counted.
+     */
+    public long getResumedHandshakes() {
+        return resumedHandshakes.get();
+    }
+
+    private class HandshakeCounter implements HandshakeCompletedListener {
+
+        // One listener per socket, created before the handshake starts. A
+        // session which is older than that must come from the session cache.
+        private final long createdAt = System.currentTimeMillis();
+
+        @Override
+        public void handshakeCompleted(HandshakeCompletedEvent event) {
+            if (event.getSession().getCreationTime() < createdAt)
+                resumedHandshakes.incrementAndGet();
+            else
+                fullHandshakes.incrementAndGet();
+
+            if (logger.isDebugEnabled())
+                logger.debug("handshake with " + event.getSession().getPeerHost() + " full:" + fullHandshakes.get()
+                        + " resumed:" + resumedHandshakes.get());
+        }
+    }
+
+    // extends X509ExtendedTrustManager as otherwise the SSLEngine of the
+    // HttpClient wraps it and does the hostname verification nevertheless
+    private static class NullX509TrustManager extends X509ExtendedTrustManager {
+        public void checkClientTrusted(X509Certificate[] chain, String authType) {
+        }
+        public void checkServerTrusted(X509Certificate[] chain, String authType) {
+        }
+        public void checkClientTrusted(X509Certificate[] chain, String authType, Socket socket) {
+        }
+        public void checkServerTrusted(X509Certificate[] chain, String authType, Socket socket) {
+        }
+        public void checkClientTrusted(X509Certificate[] chain, String authType, SSLEngine engine) {
+        }
+        public void checkServerTrusted(X509Certificate[] chain, String authType, SSLEngine engine) {
+        }
+        public X509Certificate[] getAcceptedIssuers() {
+            return new X509Certificate[0];
+        }
+    }
+}
@@ -3,6 +3,8 @@ package de.jetwick.snacktory;
 import de.jetwick.snacktory.utils.Configuration;
 import de.jetwick.snacktory.utils.DateUtils;
 import org.apache.commons.lang3.StringUtils;
+import org.jsoup.Jsoup;
+import org.jsoup.nodes.Document;
 import org.junit.Before;
 import org.junit.Ignore;
 import org.junit.Test;
@@ -14,6 +16,7 @@ import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.Arrays;
 import java.util.Date;
+import java.util.EnumSet;
 import java.util.List;
 import java.util.Map;
 
@@ -335,6 +338,57 @@ public class ArticleTextExtractorTest {
         compareDates("2016-07-20", res.getDate());
     }
 
+    @Test
+    public void testUndoCleanUp() throws Exception {
+        Document doc = Jsoup.parse(c.streamToString(getClass().getResourceAsStream("delish.html")));
+        String html = doc.outerHtml();
+        DocumentJournal journal = new DocumentJournal();
+        extractor.stripUnlikelyCandidates(doc, journal);
+        ScoringContext scores = new ScoringContext();
+        extractor.getNodes(doc, scores);
+        new OutputFormatter().getFormattedText(doc.body(), true, scores, journal);
+        assertNotEquals(html, doc.outerHtml());
+        journal.undo();
+        assertEquals(html, doc.outerHtml());
+    }
+
+    @Test
+    public void testSecondPassWithoutClone() throws Exception {
+        // the text is empty after the scripts are removed
+        String html = c.streamToString(getClass().getResourceAsStream("delish.html"));
+        JResult res = extractor.extractContent(new JResult(), html);
+        assertFalse(res.getText().isEmpty());
+        Document doc = Jsoup.parse(html);
+        JResult docRes = extractor.extractContent(new JResult(), doc, new OutputFormatter(), true, 0);
+        assertEquals(res.getText(), docRes.getText());
+        assertEquals(res.getTitle(), docRes.getTitle());
+        assertEquals(res.getLinks(), docRes.getLinks());
+        // scores are not stored in the document
+        assertTrue(doc.select("[gravityScore], [paragraphIndex], [contentExtracted]").isEmpty());
+    }
+
+    @Test
+    public void testExtractRequestedFields() throws Exception {
+        String html = c.streamToString(getClass().getResourceAsStream("nyt3.html"));
+        String url = "https://www.nytimes.com/2016/07/21/business/daily-stock-market-activity.html";
+        JResult res = extractor.extractContent(new JResult().setUrl(url), html,
+                ExtractionRequest.of(JResult.Field.TITLE, JResult.Field.DATE));
+        assertEquals("Wall St. Gains as Earnings Cheer Traders", res.getTitle());
+        compareDates("2016-07-20", res.getDate());
+        assertEquals("", res.getText());
+        assertNull(res.getCanonicalUrl());
+        assertEquals("", res.getAuthorName());
+        assertEquals(0, res.getLinks().size());
+        assertEquals(EnumSet.of(JResult.Field.TITLE, JResult.Field.DATE), res.getFields());
+
+        JResult full = extractor.extractContent(new JResult().setUrl(url), html);
+        res = extractor.extractContent(new JResult().setUrl(url), html, ExtractionRequest.of(JResult.Field.TEXT));
+        assertEquals(full.getText(), res.getText());
+        assertNull(res.getDate());
+        assertEquals("", res.getAuthorName());
+        assertEquals(EnumSet.allOf(JResult.Field.class), full.getFields());
+    }
+
     @Test
     public void testNytContentExtraction1() throws Exception {
         // https://www.nytimes.com/2017/05/10/opinion/comey-trump-deep-throat.html
@@ -0,0 +1,106 @@
+package de.jetwick.snacktory;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.StringWriter;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.Assert.*;
+
+public class BatchExtractorTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    static byte[] resource(String name) throws Exception {
+        return new Converter().streamToString(BatchExtractorTest.class.getResourceAsStream(name)).getBytes("UTF-8");
+    }
+
+    @Test
+    public void testRun() throws Exception {
+        File html = folder.newFolder("html");
+        Files.write(new File(html, "nyt.html").toPath(), resource("nyt.html"));
+        File sub = new File(html, "sub");
+        sub.mkdir();
+        Files.write(new File(sub, "wikipedia.html").toPath(), resource("wikipedia.html"));
+        Files.write(new File(sub, "notes.txt").toPath(), "ignored".getBytes("UTF-8"));
+
+        WarcRawStore store = new WarcRawStore(folder.newFolder("warc"));
+        Map<String, List<String>> headers = new LinkedHashMap<String, List<String>>();
+        headers.put("Content-Type", Collections.singletonList("text/html; charset=utf-8"));
+        store.put(new RawResponse("http://www.cnn.com/article", 0, 200, headers, resource("cnn.html")));
+        store.put(new RawResponse("http://www.cnn.com/missing", 0, 404, headers, new byte[0]));
+        store.close();
+
+        BatchExtractor batch = new BatchExtractor().setThreads(2).setQueueSize(1);
+        StringWriter out = new StringWriter();
+        List<File> inputs = Arrays.asList(html, store.getFiles().get(0));
+        BatchExtractor.Stats stats = batch.run(inputs, out);
+
+        String[] lines = out.toString().split("\n");
+        assertEquals(3, lines.length);
+        assertEquals(3, stats.getPages());
+        assertEquals(0, stats.getErrors());
+        assertEquals(1, stats.getSkipped());
+        assertTrue(stats.getBytes() > 0);
+        assertTrue(stats.toString(), stats.toString().contains("pages:3"));
+        String all = out.toString();
+        assertTrue(all, all.contains("\"url\":\"http://www.cnn.com/article\""));
+        assertTrue(all, all.contains("nyt.html\""));
+        assertTrue(all, all.contains("wikipedia.html\""));
+        assertFalse(all, all.contains("notes.txt"));
+    }
+
+    @Test
+    public void testReadCrawlerWarc() throws Exception {
+        // chunked and gzipped as a crawler would store it
+        ByteArrayOutputStream gzipped = new ByteArrayOutputStream();
+        GZIPOutputStream gzip = new GZIPOutputStream(gzipped);
+        gzip.write(HtmlFetcherTest.ARTICLE.getBytes("UTF-8"));
+        gzip.close();
+        byte[] body = gzipped.toByteArray();
+        int half = body.length / 2;
+
+        ByteArrayOutputStream http = new ByteArrayOutputStream();
+        http.write(("HTTP/1.1 200 OK\r\nContent-Type: text/html\r\nContent-Encoding: gzip\r\n"
+                + "Transfer-Encoding: chunked\r\n\r\n" + Integer.toHexString(half) + "\r\n").getBytes("ISO-8859-1"));
+        http.write(body, 0, half);
+        http.write(("\r\n" + Integer.toHexString(body.length - half) + ";ext=1\r\n").getBytes("ISO-8859-1"));
+        http.write(body, half, body.length - half);
+        http.write("\r\n0\r\n\r\n".getBytes("ISO-8859-1"));
+
+        File warc = folder.newFile("crawl.warc.gz");
+        GZIPOutputStream out = new GZIPOutputStream(new FileOutputStream(warc));
+        out.write(("WARC/1.0\r\nWARC-Type: response\r\nWARC-Target-URI: http://example.com/article\r\n"
+                + "Content-Length: " + http.size() + "\r\n\r\n").getBytes("ISO-8859-1"));
+        out.write(http.toByteArray());
+        out.write("\r\n\r\n".getBytes("ISO-8859-1"));
+        out.close();
+
+        StringWriter result = new StringWriter();
+        BatchExtractor.Stats stats = new BatchExtractor().setThreads(1).run(Collections.singletonList(warc), result);
+        assertEquals(1, stats.getPages());
+        assertTrue(result.toString(), result.toString().contains("\"title\":\"Local Article\""));
+        assertTrue(result.toString(), result.toString().contains("\"text\":\"This is the first paragraph"));
+    }
+
+    @Test
+    public void testToJson() {
+        JResult res = new JResult().setUrl("http://example.com/").setTitle("\"Quotes\"\tand\\ \u2028")
+                .setText("line1\nline2");
+        res.setKeywords(Arrays.asList("a", "b"));
+        assertEquals("{\"url\":\"http://example.com/\",\"title\":\"\\\"Quotes\\\"\\tand\\\\ \\u2028\","
+                + "\"text\":\"line1\\nline2\",\"keywords\":[\"a\",\"b\"]}", BatchExtractor.toJson(res));
+    }
+}
@@ -0,0 +1,69 @@
+package de.jetwick.snacktory;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import org.jsoup.Jsoup;
+import org.jsoup.nodes.Document;
+import org.jsoup.nodes.Element;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class CandidateScorerTest {
+
+    @Test
+    public void testSameRankingAsReference() throws Exception {
+        ArticleTextExtractor extractor = new ArticleTextExtractor();
+        Converter c = new Converter();
+        File[] files = new File(getClass().getResource("cnn.html").toURI()).getParentFile().listFiles();
+        int pages = 0;
+        for (File file : files) {
+            if (!file.getName().endsWith(".html"))
+                continue;
+            Document doc = Jsoup.parse(c.streamToString(new FileInputStream(file)));
+            ScoringContext expectedScores = new ScoringContext();
+            ScoringContext scores = new ScoringContext();
+            Collection<Element> nodes = extractor.getNodes(doc, expectedScores);
+            extractor.getNodes(doc, scores);
+
+            List<Element> expected = new ArrayList<Element>();
+            for (ArticleTextExtractor.ElementDebug debug : extractor.getSortedBestMatchElements(nodes, expectedScores).values()) {
+                expected.add(debug.entry);
+            }
+            Iterator<Element> iter = extractor.getBestMatchElements(nodes, scores);
+            for (int i = 0; i < expected.size(); i++) {
+                assertTrue(file.getName(), iter.hasNext());
+                assertSame(file.getName() + " " + i, expected.get(i), iter.next());
+            }
+            assertFalse(file.getName(), iter.hasNext());
+
+            for (Element el : doc.getAllElements()) {
+                assertEquals(file.getName(), expectedScores.hasScore(el), scores.hasScore(el));
+                assertEquals(file.getName(), expectedScores.getScore(el), scores.getScore(el));
+            }
+            pages++;
+        }
+        assertTrue(pages > 300);
+    }
+
+    @Test
+    public void testRanking() {
+        List<Element> elements = new ArrayList<Element>();
+        for (Element p : Jsoup.parse("<p>0<p>1<p>2<p>3<p>4<p>5<p>6").select("p")) {
+            elements.add(p);
+        }
+        int[] weights = {5, 20, 5, -10, 20, 7, 5};
+        // more than one batch is needed
+        Iterator<Element> iter = new CandidateScorer.Ranking(elements, weights, 2);
+        List<String> res = new ArrayList<String>();
+        while (iter.hasNext()) {
+            res.add(iter.next().text());
+        }
+        assertEquals(Arrays.asList("1", "4", "5", "0", "2", "6", "3"), res);
+    }
+}
@@ -18,6 +18,13 @@ package de.jetwick.snacktory;
 import junit.framework.TestCase;
 import org.jsoup.Jsoup;
 
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.SocketTimeoutException;
+
 /**
  *
  * @author Peter Karich
@@ -71,6 +78,92 @@ public class ConverterTest extends TestCase {
         assertEquals("iso-8859-15", d.getEncoding());
     }
 
+    public void testCharsetSource() throws Exception {
+        Converter d = new Converter();
+        d.streamToString(getClass().getResourceAsStream("spiegel.html"));
+        assertEquals(Converter.CharsetSource.META_HTTP_EQUIV, d.getCharsetSource());
+
+        d.streamToString(getClass().getResourceAsStream("yomiuri.html"));
+        assertEquals(Converter.CharsetSource.META_HTTP_EQUIV, d.getCharsetSource());
+
+        assertEquals("<meta charset=\"ISO-8859-1\"><p>ä",
+                decode(d, "<meta charset=\"ISO-8859-1\"><p>ä", "UTF-8", "ISO-8859-1"));
+        assertEquals("iso-8859-1", d.getEncoding());
+        assertEquals(Converter.CharsetSource.META_CHARSET, d.getCharsetSource());
+
+        // the charset in comments, scripts and attributes of other tags is ignored
+        decode(d, "<!-- <meta charset=shift_jis> --><title data-x='<meta charset=shift_jis>'>t</title>"
+                + "<meta content=\"text/html; charset='iso-8859-15'\" http-equiv=Content-Type>", "UTF-8", "UTF-8");
+        assertEquals("iso-8859-15", d.getEncoding());
+        assertEquals(Converter.CharsetSource.META_HTTP_EQUIV, d.getCharsetSource());
+
+        // without http-equiv the content is no charset declaration
+        decode(d, "<meta name=description content=\"charset=shift_jis\"><meta charset=utf-8>", "ISO-8859-1", "UTF-8");
+        assertEquals("utf-8", d.getEncoding());
+        assertEquals(Converter.CharsetSource.META_CHARSET, d.getCharsetSource());
+
+        // but it is still better than nothing
+        decode(d, "<meta name=\"content-type\" content=\"text/html; charset=Shift_JIS\">", "ISO-8859-1", "UTF-8");
+        assertEquals("shift_jis", d.getEncoding());
+        assertEquals(Converter.CharsetSource.SEARCH, d.getCharsetSource());
+
+        decode(d, "<p>no charset</p>", "ISO-8859-1", "UTF-8");
+        assertEquals("iso-8859-1", d.getEncoding());
+        assertEquals(Converter.CharsetSource.CONTENT_TYPE, d.getCharsetSource());
+
+        decode(d, "<?xml version=\"1.0\" encoding='Shift_JIS'?><html>", null, "UTF-8");
+        assertEquals("shift_jis", d.getEncoding());
+        assertEquals(Converter.CharsetSource.XML_DECLARATION, d.getCharsetSource());
+
+        // a page which could be read as ascii is no utf-16
+        decode(d, "<meta charset=utf-16>", null, "UTF-8");
+        assertEquals("utf-8", d.getEncoding());
+
+        decode(d, "<meta charset=unknown-charset>", "ISO-8859-1", "UTF-8");
+        assertEquals("utf-8", d.getEncoding());
+        assertEquals(Converter.CharsetSource.DEFAULT, d.getCharsetSource());
+
+        decode(d, "<p>", null, "UTF-8");
+        assertEquals(Converter.CharsetSource.DEFAULT, d.getCharsetSource());
+    }
+
+    public void testCharsetOutsideOfMeta() throws Exception {
+        // the meta of adobe is in a broken comment, cmo and newsweek use
+        // meta name="content-type"
+        Converter d = new Converter();
+        String str = d.streamToString(getClass().getResourceAsStream("blogs.adobe.com.html"), "ISO-8859-1");
+        assertEquals("utf-8", d.getEncoding());
+        assertTrue(str.contains("from a company\u2019s CRM"));
+
+        str = d.streamToString(getClass().getResourceAsStream("cmo.com.html"), "ISO-8859-1");
+        assertEquals("utf-8", d.getEncoding());
+        assertTrue(str.contains("Adobe\u2019s"));
+
+        str = d.streamToString(getClass().getResourceAsStream("newsweek.html"), "ISO-8859-1");
+        assertEquals("utf-8", d.getEncoding());
+        assertTrue(str.contains("The Kremlin\u2019s"));
+    }
+
+    public void testByteOrderMark() throws Exception {
+        Converter d = new Converter();
+        byte[] bytes = "<meta charset=iso-8859-1>ä".getBytes("UTF-16LE");
+        byte[] withBom = new byte[bytes.length + 2];
+        withBom[0] = (byte) 0xFF;
+        withBom[1] = (byte) 0xFE;
+        System.arraycopy(bytes, 0, withBom, 2, bytes.length);
+        assertEquals("<meta charset=iso-8859-1>ä", d.streamToString(new ByteArrayInputStream(withBom), "UTF-8"));
+        assertEquals("utf-16le", d.getEncoding());
+        assertEquals(Converter.CharsetSource.BOM, d.getCharsetSource());
+
+        // the byte order mark is not part of the content
+        assertEquals("<p>ä", decode(d, "\uFEFF<p>ä", "ISO-8859-1", "UTF-8"));
+        assertEquals("utf-8", d.getEncoding());
+    }
+
+    static String decode(Converter d, String html, String enc, String charsetOfBytes) throws Exception {
+        return d.streamToString(new ByteArrayInputStream(html.getBytes(charsetOfBytes)), enc);
+    }
+
     public void testMaxBytesExceedingButGetTitleNevertheless() throws Exception {
         Converter d = new Converter();
         d.setMaxBytes(10000);
@@ -79,4 +172,73 @@ public class ConverterTest extends TestCase {
         assertEquals("Im Gespräch: Umweltaktivist Stewart Brand: Ihr Deutschen steht allein da "
                 + "- Atomdebatte - FAZ.NET", Jsoup.parse(str).select("title").text());
     }
+
+    public void testDecodeCharactersSplitBetweenReads() throws Exception {
+        StringBuilder sb = new StringBuilder("<html><body>");
+        for (int i = 0; i < 2000; i++) {
+            sb.append("Grüße 日本語 \uD83D\uDE00 ");
+        }
+        final byte[] valid = sb.append("</body></html>").toString().getBytes("UTF-8");
+        final byte[] bytes = new byte[valid.length + 2];
+        System.arraycopy(valid, 0, bytes, 0, valid.length);
+        // malformed at the end
+        bytes[valid.length] = (byte) 0xE6;
+        bytes[valid.length + 1] = (byte) 0x97;
+        InputStream is = new InputStream() {
+            int pos = 0;
+
+            @Override
+            public int read() throws IOException {
+                return pos < bytes.length ? bytes[pos++] & 0xFF : -1;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                // odd chunks which split the multi byte characters
+                return super.read(b, off, Math.min(len, 7));
+            }
+        };
+        Converter d = new Converter();
+        assertEquals(new String(bytes, "UTF-8"), d.streamToString(is, "UTF-8"));
+        assertFalse(d.isPartial());
+    }
+
+    public void testPartialContentOnTimeout() throws Exception {
+        final byte[] bytes = "<html><head><title>Slow</title></head><body>first part".getBytes("UTF-8");
+        InputStream is = new InputStream() {
+            int pos = 0;
+
+            @Override
+            public int read() throws IOException {
+                if (pos >= bytes.length)
+                    throw new SocketTimeoutException("Read timed out");
+                return bytes[pos++];
+            }
+        };
+        Converter d = new Converter();
+        String str = d.streamToString(is, "UTF-8");
+        assertTrue(d.isPartial());
+        assertEquals("Slow", Jsoup.parse(str).select("title").text());
+
+        d.streamToString(new ByteArrayInputStream(bytes), "UTF-8");
+        assertFalse(d.isPartial());
+    }
+
+    @SuppressWarnings("deprecation")
+    public void testDeprecatedDetectCharset() throws Exception {
+        byte[] bytes = "<html><head><meta charset=\"windows-1251\"></head><body>text".getBytes("UTF-8");
+        BufferedInputStream in = new BufferedInputStream(new ByteArrayInputStream(bytes));
+        in.mark(Converter.K2 * 2);
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        assertEquals("windows-1251", new Converter().detectCharset("charset=", bos, in, "UTF-8"));
+        // reset to read the page again
+        assertEquals(0, bos.size());
+        assertEquals('<', in.read());
+
+        in = new BufferedInputStream(new ByteArrayInputStream("<html>text".getBytes("UTF-8")));
+        in.mark(Converter.K2 * 2);
+        bos = new ByteArrayOutputStream();
+        assertNull(new Converter().detectCharset("charset=", bos, in, "UTF-8"));
+        assertEquals("<html>text", bos.toString("UTF-8"));
+    }
 }
@@ -0,0 +1,140 @@
+package de.jetwick.snacktory;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.util.List;
+import org.jsoup.Jsoup;
+import org.jsoup.nodes.Document;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.*;
+
+public class DomainRulesTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static InputStream yaml(String str) throws Exception {
+        return new ByteArrayInputStream(str.getBytes("UTF-8"));
+    }
+
+    private static void write(File file, String str) throws Exception {
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(str.getBytes("UTF-8"));
+        } finally {
+            out.close();
+        }
+    }
+
+    @Test
+    public void testDefaultRules() {
+        DomainRules rules = DomainRules.getDefault();
+        assertTrue(rules.size() > 30);
+        assertEquals(4, rules.getNodesToRemove("www.reuters.com", "reuters.com", "reuters").size());
+        assertEquals(1, rules.getNodesToRemove("www.inforisktoday.com", "inforisktoday.com", "inforisktoday").size());
+        assertEquals(2, rules.getBestElementSelectors("teenvogue.com").size());
+        assertTrue(rules.keepsNoscript("www.teenvogue.com"));
+        assertFalse(rules.keepsNoscript("nytimes.com"));
+        assertFalse(rules.keepsNoscript(null));
+        assertNotNull(rules.getOutputFormatter("publicnet.co.uk"));
+        assertNull(rules.getOutputFormatter("nytimes.com"));
+    }
+
+    @Test
+    public void testSelectors() throws Exception {
+        DomainRules rules = DomainRules.parse(yaml("example.com:\n  remove: [\".ad\", \"p:contains(Related:) ~ ul\"]\n"
+                + "  bestElement: article.main\n"));
+        // the same domain twice
+        assertEquals(2, rules.getNodesToRemove("example.com", "example.com", null).size());
+        assertTrue(rules.getNodesToRemove("other.com").isEmpty());
+
+        Document doc = Jsoup.parse("<div class=\"ad\">x</div><p>Related:</p><ul><li>a</li></ul>"
+                + "<article class=\"main\">text</article>");
+        DomainRules.CompiledSelector selector = rules.getNodesToRemove("example.com").get(1);
+        assertTrue(selector.isCompiled());
+        assertEquals(doc.select("p:contains(Related:) ~ ul"), selector.select(doc));
+        assertEquals("text", rules.getBestElementSelectors("example.com").get(0).select(doc).text());
+    }
+
+    @Test
+    public void testRemoveInRuleOrder() throws Exception {
+        String html = "<div><p>text</p><h2>Related Stories:</h2><p>related</p><p class=\"teaser\">teaser</p>"
+                + "<ul><li>link</li></ul></div>";
+        ArticleTextExtractor extractor = new ArticleTextExtractor();
+        // the h2 is removed first, so the sibling rule does not match anymore
+        Document doc = Jsoup.parse(html);
+        extractor.removeNodesPerDomain(doc, DomainRules.parse(yaml("example.com:\n  remove: [\"h2\", "
+                + "\"h2:contains(Related Stories:) ~ p\", \".teaser\", ul]\n")).getNodesToRemove("example.com"),
+                null);
+        assertEquals("<p>text</p><p>related</p>", doc.body().child(0).html().replaceAll("\\s", ""));
+
+        doc = Jsoup.parse(html);
+        extractor.removeNodesPerDomain(doc, DomainRules.parse(yaml("example.com:\n  remove: ["
+                + "\"h2:contains(Related Stories:) ~ p\", \"h2\", ul]\n")).getNodesToRemove("example.com"), null);
+        assertEquals("<p>text</p>", doc.body().child(0).html().replaceAll("\\s", ""));
+
+        List<DomainRules.CompiledSelector> selectors = DomainRules.parse(yaml("example.com:\n  remove: ["
+                + "\"div.a[id=b]\", \"p:contains(x)\", \"div p\", \"h2 ~ p\", \"div > p\"]\n"))
+                .getNodesToRemove("example.com");
+        assertTrue(selectors.get(0).isLocal());
+        for (DomainRules.CompiledSelector selector : selectors.subList(1, selectors.size())) {
+            assertFalse(selector.toString(), selector.isLocal());
+        }
+    }
+
+    @Test
+    public void testInvalidRules() throws Exception {
+        try {
+            DomainRules.parse(yaml("example.com:\n  remove: [\"p:contains(\"]\n"));
+            fail();
+        } catch (IllegalArgumentException ex) {
+        }
+        try {
+            DomainRules.parse(yaml("example.com:\n  removes: [\"p\"]\n"));
+            fail();
+        } catch (IllegalArgumentException ex) {
+        }
+        assertEquals(0, DomainRules.parse(yaml("")).size());
+    }
+
+    @Test
+    public void testReload() throws Exception {
+        File file = folder.newFile("rules.yml");
+        write(file, "example.com:\n  remove: [\".ad\"]\n");
+        DomainRules.Source source = new DomainRules.Source(file, 0);
+        DomainRules rules = source.get();
+        assertEquals(1, rules.getNodesToRemove("example.com").size());
+        assertSame(rules, source.get());
+
+        write(file, "example.com:\n  remove: [\".ad\", \".promo\"]\n");
+        file.setLastModified(file.lastModified() + 2000);
+        assertEquals(2, source.get().getNodesToRemove("example.com").size());
+        // the old rules are not changed
+        assertEquals(1, rules.getNodesToRemove("example.com").size());
+
+        // a broken file keeps the previous rules
+        write(file, "example.com:\n  remove: [\"p:contains(\"]\n");
+        file.setLastModified(file.lastModified() + 4000);
+        assertEquals(2, source.get().getNodesToRemove("example.com").size());
+    }
+
+    @Test
+    public void testExtractWithRules() throws Exception {
+        String html = "<html><body><div><p>This is the text of the article which is long enough to be "
+                + "the best element of the page. <span class=\"bonus\">Buy the newsletter of example today "
+                + "and get the second month for free.</span></p></div></body></html>";
+        ArticleTextExtractor extractor = new ArticleTextExtractor();
+        JResult res = extractor.extractContent(new JResult().setUrl("http://www.example.com/a"), html);
+        assertTrue(res.getText(), res.getText().contains("newsletter"));
+
+        extractor.setDomainRules(DomainRules.parse(yaml("example.com:\n  remove: [\"span.bonus\"]\n")));
+        res = extractor.extractContent(new JResult().setUrl("http://www.example.com/a"), html);
+        assertEquals("This is the text of the article which is long enough to be the best element of the page.",
+                res.getText());
+    }
+}
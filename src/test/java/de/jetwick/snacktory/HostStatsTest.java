@@ -0,0 +1,48 @@
+package de.jetwick.snacktory;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class HostStatsTest {
+
+    @Test
+    public void testEstimate() {
+        HostStats stats = new HostStats();
+        stats.addFirstByteTime(100);
+        assertEquals(100, stats.getFirstByteTimeMean());
+        assertEquals(50, stats.getFirstByteTimeDeviation());
+        // not enough samples yet
+        assertEquals(5000, stats.getReadTimeout(5000, 10, 10000));
+
+        stats.addFirstByteTime(100);
+        stats.addFirstByteTime(100);
+        assertEquals(3, stats.getFirstByteTimeSamples());
+        assertEquals(100, stats.getFirstByteTimeMean());
+        // 100 + 4 * 28.125
+        assertEquals(212, stats.getReadTimeout(5000, 10, 10000));
+        assertEquals(1000, stats.getReadTimeout(5000, 1000, 10000));
+        assertEquals(150, stats.getReadTimeout(5000, 10, 150));
+
+        assertEquals(5000, stats.getConnectTimeout(5000, 10, 10000));
+    }
+
+    @Test
+    public void testBackoffAfterTimeouts() {
+        HostStats stats = new HostStats();
+        for (int i = 0; i < 3; i++) {
+            stats.addFirstByteTime(100);
+        }
+        assertEquals(300, stats.getReadTimeout(5000, 300, 10000));
+        stats.addTimeout();
+        assertEquals(600, stats.getReadTimeout(5000, 300, 10000));
+        stats.addTimeout();
+        assertEquals(1200, stats.getReadTimeout(5000, 300, 10000));
+        assertEquals(1000, stats.getReadTimeout(5000, 300, 1000));
+        assertEquals(2, stats.getTimeouts());
+
+        stats.addFirstByteTime(100);
+        assertEquals(300, stats.getReadTimeout(5000, 300, 10000));
+        assertEquals(2, stats.getTimeouts());
+    }
+}
@@ -0,0 +1,821 @@
+package de.jetwick.snacktory;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.net.ssl.HttpsURLConnection;
+import java.io.ByteArrayOutputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests HtmlFetcher against a local web server, so no internet connection is
+ * required.
+ */
+public class HtmlFetcherTest {
+
+    static final String ARTICLE = "<html><head><title>Local Article</title></head><body>"
+            + "<div class=\"article-body\"><p>This is the first paragraph of the local test article and it is "
+            + "long enough to be picked up by the extractor.</p><p>Here comes the second paragraph which also has "
+            + "quite some text so that the formatter keeps it.</p></div></body></html>";
+
+    static final int BINARY_LENGTH = 4000000;
+    HttpServer server;
+    String baseUrl;
+    AtomicInteger requests = new AtomicInteger();
+    AtomicInteger running = new AtomicInteger();
+    AtomicInteger maxRunning = new AtomicInteger();
+    AtomicInteger bodyBytes = new AtomicInteger();
+    List<String> methods = Collections.synchronizedList(new ArrayList<String>());
+    volatile CountDownLatch gate = new CountDownLatch(0);
+
+    @Before
+    public void setUp() throws Exception {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/article", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                requests.incrementAndGet();
+                respond(exchange, 200, ARTICLE);
+            }
+        });
+        server.createContext("/canonical", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                requests.incrementAndGet();
+                respond(exchange, 200, ARTICLE.replace("<head>",
+                        "<head><link rel=\"canonical\" href=\"/news/local-article\"/>"));
+            }
+        });
+        server.createContext("/gzip", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                requests.incrementAndGet();
+                ByteArrayOutputStream bos = new ByteArrayOutputStream();
+                GZIPOutputStream gzip = new GZIPOutputStream(bos);
+                gzip.write(ARTICLE.getBytes("UTF-8"));
+                gzip.close();
+                exchange.getResponseHeaders().set("Content-Type", "text/html; charset=utf-8");
+                exchange.getResponseHeaders().set("Content-Encoding", "gzip");
+                exchange.sendResponseHeaders(200, bos.size());
+                exchange.getResponseBody().write(bos.toByteArray());
+                exchange.close();
+            }
+        });
+        server.createContext("/short", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                requests.incrementAndGet();
+                exchange.getResponseHeaders().set("Location", "/article");
+                exchange.sendResponseHeaders(301, -1);
+                exchange.close();
+            }
+        });
+        server.createContext("/twice", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                requests.incrementAndGet();
+                methods.add(exchange.getRequestMethod());
+                exchange.getResponseHeaders().set("Location", baseUrl + "/short");
+                exchange.sendResponseHeaders(302, -1);
+                exchange.close();
+            }
+        });
+        server.createContext("/etag", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                requests.incrementAndGet();
+                if ("\"v1\"".equals(exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+                    exchange.sendResponseHeaders(304, -1);
+                    exchange.close();
+                    return;
+                }
+                exchange.getResponseHeaders().set("ETag", "\"v1\"");
+                respond(exchange, 200, ARTICLE);
+            }
+        });
+        server.createContext("/binary", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                requests.incrementAndGet();
+                String type = exchange.getRequestURI().getQuery();
+                exchange.getResponseHeaders().set("Content-Type", type);
+                exchange.sendResponseHeaders(200, BINARY_LENGTH);
+                try {
+                    OutputStream os = exchange.getResponseBody();
+                    byte[] bytes = new byte[1000];
+                    for (int i = 0; i < BINARY_LENGTH / bytes.length; i++) {
+                        os.write(bytes);
+                        bodyBytes.addAndGet(bytes.length);
+                    }
+                    os.close();
+                } catch (IOException ex) {
+                    // client closed the connection
+                    exchange.close();
+                }
+            }
+        });
+        server.createContext("/drip", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                requests.incrementAndGet();
+                exchange.getResponseHeaders().set("Content-Type", "text/html; charset=utf-8");
+                exchange.sendResponseHeaders(200, 0);
+                OutputStream os = exchange.getResponseBody();
+                try {
+                    os.write(ARTICLE.substring(0, ARTICLE.indexOf("Here comes")).getBytes("UTF-8"));
+                    os.flush();
+                    for (int i = 0; i < 10; i++) {
+                        Thread.sleep(500);
+                        os.write(' ');
+                        os.flush();
+                    }
+                    os.close();
+                } catch (Exception ex) {
+                    exchange.close();
+                }
+            }
+        });
+        server.createContext("/slow", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                requests.incrementAndGet();
+                int current = running.incrementAndGet();
+                synchronized (maxRunning) {
+                    maxRunning.set(Math.max(maxRunning.get(), current));
+                }
+                try {
+                    Thread.sleep(100);
+                } catch (InterruptedException ex) {
+                }
+                running.decrementAndGet();
+                respond(exchange, 200, ARTICLE);
+            }
+        });
+        server.createContext("/missing", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                requests.incrementAndGet();
+                respond(exchange, 404, "not found");
+            }
+        });
+        server.createContext("/gate", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                requests.incrementAndGet();
+                try {
+                    gate.await(5, TimeUnit.SECONDS);
+                } catch (InterruptedException ex) {
+                }
+                respond(exchange, 200, ARTICLE);
+            }
+        });
+        server.createContext("/error", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                requests.incrementAndGet();
+                respond(exchange, 503, "unavailable");
+            }
+        });
+        server.setExecutor(Executors.newCachedThreadPool());
+        server.start();
+        baseUrl = "http://127.0.0.1:" + server.getAddress().getPort();
+    }
+
+    @After
+    public void tearDown() {
+        server.stop(0);
+    }
+
+    static void respond(HttpExchange exchange, int code, String body) throws IOException {
+        byte[] bytes = body.getBytes("UTF-8");
+        exchange.getResponseHeaders().set("Content-Type", "text/html; charset=utf-8");
+        exchange.sendResponseHeaders(code, bytes.length);
+        OutputStream os = exchange.getResponseBody();
+        os.write(bytes);
+        os.close();
+    }
+
+    static SCache mapCache() {
+        final Map<String, JResult> map = new ConcurrentHashMap<String, JResult>();
+        return new SCache() {
+            @Override
+            public JResult get(String url) {
+                return map.get(url);
+            }
+
+            @Override
+            public void put(String url, JResult res) {
+                map.put(url, res);
+            }
+
+            @Override
+            public int getSize() {
+                return map.size();
+            }
+        };
+    }
+
+    @Test
+    public void testFetchAndExtractWithUrlConnection() throws Exception {
+        JResult res = new HtmlFetcher().fetchAndExtract(baseUrl + "/article", 5000, false);
+        assertEquals("Local Article", res.getTitle());
+        assertTrue(res.getText(), res.getText().startsWith("This is the first paragraph"));
+    }
+
+    @Test
+    public void testFetchAndExtractAsyncWithHttpClient() throws Exception {
+        HtmlFetcher fetcher = new HtmlFetcher().setEngine(HtmlFetcher.Engine.HTTP_CLIENT);
+        JResult res = fetcher.fetchAndExtractAsync(baseUrl + "/article", 5000, false).get();
+        assertEquals("Local Article", res.getTitle());
+        assertTrue(res.getText(), res.getText().startsWith("This is the first paragraph"));
+
+        res = fetcher.fetchAndExtractAsync(baseUrl + "/gzip", 5000, false).get();
+        assertEquals("Local Article", res.getTitle());
+    }
+
+    @Test
+    public void testResolveWithHttpClient() throws Exception {
+        HtmlFetcher fetcher = new HtmlFetcher().setEngine(HtmlFetcher.Engine.HTTP_CLIENT);
+        assertEquals(baseUrl + "/article", fetcher.getResolvedUrl(baseUrl + "/short", 5000, 0));
+
+        JResult res = fetcher.fetchAndExtractAsync(baseUrl + "/short", 5000, true).get();
+        assertEquals(baseUrl + "/article", res.getUrl());
+        assertEquals(baseUrl + "/short", res.getOriginalUrl());
+        assertEquals("Local Article", res.getTitle());
+    }
+
+    @Test
+    public void testResolveWithGet() throws Exception {
+        for (HtmlFetcher.Engine engine : HtmlFetcher.Engine.values()) {
+            requests.set(0);
+            methods.clear();
+            HtmlFetcher fetcher = new HtmlFetcher().setEngine(engine).
+                    setResolveMode(HtmlFetcher.ResolveMode.GET);
+            JResult res = fetcher.fetchAndExtract(baseUrl + "/twice", 5000, true);
+            assertEquals(baseUrl + "/article", res.getUrl());
+            assertEquals(baseUrl + "/twice", res.getOriginalUrl());
+            assertEquals(Arrays.asList(baseUrl + "/twice", baseUrl + "/short"), res.getRedirects());
+            assertEquals("Local Article", res.getTitle());
+            assertEquals(3, requests.get());
+            assertEquals(Collections.singletonList("GET"), methods);
+
+            res = fetcher.fetchAndExtractAsync(baseUrl + "/twice", 5000, true).get();
+            assertEquals(baseUrl + "/article", res.getUrl());
+            assertEquals(2, res.getRedirects().size());
+        }
+    }
+
+    @Test
+    public void testResolveWithHeadForConfiguredHost() throws Exception {
+        HtmlFetcher fetcher = new HtmlFetcher().setResolveMode(HtmlFetcher.ResolveMode.GET).
+                addHeadResolveHost("127.0.0.1");
+        JResult res = fetcher.fetchAndExtract(baseUrl + "/twice", 5000, true);
+        assertEquals(baseUrl + "/article", res.getUrl());
+        assertEquals("Local Article", res.getTitle());
+        assertEquals(Collections.singletonList("HEAD"), methods);
+        assertTrue(res.getRedirects().isEmpty());
+    }
+
+    @Test
+    public void testResolveCache() throws Exception {
+        for (HtmlFetcher.Engine engine : HtmlFetcher.Engine.values()) {
+            requests.set(0);
+            HtmlFetcher fetcher = new HtmlFetcher().setEngine(engine);
+            fetcher.getFurtherResolveNecessary().add(baseUrl.substring("http://".length()));
+            String shortUrl = baseUrl + "/short";
+            Map<String, String> resolved = fetcher.resolveAll(Arrays.asList(shortUrl, shortUrl, baseUrl + "/article"), 5000);
+            assertEquals(2, resolved.size());
+            assertEquals(baseUrl + "/article", resolved.get(shortUrl));
+            assertEquals(baseUrl + "/article", resolved.get(baseUrl + "/article"));
+            // HEAD /short, HEAD /article twice
+            assertEquals(3, requests.get());
+
+            resolved = fetcher.resolveAll(Collections.singletonList(shortUrl), 5000);
+            assertEquals(baseUrl + "/article", resolved.get(shortUrl));
+            assertEquals(3, requests.get());
+            assertEquals(1, fetcher.getResolveCacheStats().hitCount());
+
+            // the resolved url is used for GET as well
+            fetcher.setResolveMode(HtmlFetcher.ResolveMode.GET);
+            JResult res = fetcher.fetchAndExtract(shortUrl, 5000, true);
+            assertEquals(baseUrl + "/article", res.getUrl());
+            assertEquals(Collections.singletonList(shortUrl), res.getRedirects());
+            assertEquals(4, requests.get());
+        }
+    }
+
+    @Test
+    public void testRevalidateWithEtag() throws Exception {
+        for (HtmlFetcher.Engine engine : HtmlFetcher.Engine.values()) {
+            requests.set(0);
+            HtmlFetcher fetcher = new HtmlFetcher().setEngine(engine).setCache(mapCache());
+            JResult res = fetcher.fetchAndExtract(baseUrl + "/etag", 5000, false);
+            assertEquals("\"v1\"", res.getEtag());
+            assertEquals("Local Article", res.getTitle());
+
+            JResult res2 = fetcher.fetchAndExtract(baseUrl + "/etag", 5000, false, 0, true, false);
+            assertSame(res, res2);
+            assertEquals(2, requests.get());
+            assertEquals(1, fetcher.getNotModifiedCounter());
+
+            res2 = fetcher.fetchAndExtractAsync(baseUrl + "/etag", 5000, false, 0, true, false).get();
+            assertSame(res, res2);
+            assertEquals(3, requests.get());
+
+            // without validators the page is downloaded again
+            res2 = fetcher.revalidate(new JResult().setUrl(baseUrl + "/etag"), 5000);
+            assertNotSame(res, res2);
+            assertEquals("Local Article", res2.getTitle());
+        }
+    }
+
+    @Test
+    public void testNormalizedCacheKeys() throws Exception {
+        for (HtmlFetcher.Engine engine : HtmlFetcher.Engine.values()) {
+            requests.set(0);
+            HtmlFetcher fetcher = new HtmlFetcher().setEngine(engine).setCache(mapCache());
+            JResult res = fetcher.fetchAndExtract(baseUrl + "/canonical?b=2&a=1&utm_source=feed", 5000, false);
+            assertEquals(baseUrl + "/news/local-article", res.getCanonicalUrl());
+            assertEquals(1, requests.get());
+
+            String url = baseUrl.toUpperCase() + "/canonical/?a=1&b=2#comments";
+            JResult hit = fetcher.fetchAndExtract(url, 5000, false);
+            assertEquals(res.getText(), hit.getText());
+            // a copy of the shared entry gets the requested url
+            assertEquals(url, hit.getOriginalUrl());
+            assertEquals(baseUrl + "/canonical?b=2&a=1&utm_source=feed", res.getOriginalUrl());
+            hit = fetcher.fetchAndExtractAsync(baseUrl + "/canonical?a=1&fbclid=x&b=2", 5000, false).get();
+            assertEquals(res.getText(), hit.getText());
+            // the canonical url is an alias of the entry
+            url = baseUrl + "/news/local-article?utm_medium=rss";
+            hit = fetcher.fetchAndExtract(url, 5000, false);
+            assertEquals(res.getText(), hit.getText());
+            assertEquals(url, hit.getUrl());
+            assertEquals(1, requests.get());
+            assertEquals(3, fetcher.getCacheCounter());
+
+            fetcher.fetchAndExtract(baseUrl + "/canonical?a=1", 5000, false);
+            assertEquals(2, requests.get());
+        }
+    }
+
+    @Test
+    public void testCachedResultNeedsRequestedFields() throws Exception {
+        for (HtmlFetcher.Engine engine : HtmlFetcher.Engine.values()) {
+            requests.set(0);
+            HtmlFetcher fetcher = new HtmlFetcher().setEngine(engine).setCache(mapCache());
+            JResult canonical = fetcher.fetchAndExtractCanonical(baseUrl + "/canonical", 5000, false);
+            assertEquals(baseUrl + "/news/local-article", canonical.getCanonicalUrl());
+            assertEquals("", canonical.getText());
+
+            // the canonical url only is not enough for the text
+            JResult res = fetcher.fetchAndExtract(baseUrl + "/canonical", 5000, false,
+                    ExtractionRequest.of(JResult.Field.TEXT, JResult.Field.TITLE), false);
+            assertFalse(res.getText().isEmpty());
+            assertNull(res.getCanonicalUrl());
+            assertEquals(2, requests.get());
+
+            assertSame(res, fetcher.fetchAndExtractAsync(baseUrl + "/canonical", 5000, false,
+                    ExtractionRequest.of(JResult.Field.TITLE), false).get());
+            assertEquals(2, requests.get());
+
+            res = fetcher.fetchAndExtract(baseUrl + "/canonical", 5000, false);
+            assertEquals(baseUrl + "/news/local-article", res.getCanonicalUrl());
+            assertEquals(3, requests.get());
+            assertSame(res, fetcher.fetchAndExtractCanonical(baseUrl + "/canonical", 5000, false));
+            assertEquals(3, requests.get());
+        }
+    }
+
+    @Test
+    public void testRawStoreAndReExtract() throws Exception {
+        final List<RawResponse> archive = Collections.synchronizedList(new ArrayList<RawResponse>());
+        RawStore store = new RawStore() {
+            @Override
+            public void put(RawResponse response) {
+                archive.add(response);
+            }
+
+            @Override
+            public Iterator<RawResponse> iterator() {
+                return archive.iterator();
+            }
+        };
+        for (HtmlFetcher.Engine engine : HtmlFetcher.Engine.values()) {
+            archive.clear();
+            HtmlFetcher fetcher = new HtmlFetcher().setEngine(engine).setRawStore(store);
+            fetcher.fetchAndExtract(baseUrl + "/gzip", 5000, false);
+            fetcher.fetchAndExtract(baseUrl + "/binary?image/png", 5000, false);
+            assertEquals(1, archive.size());
+            RawResponse raw = archive.get(0);
+            assertEquals(baseUrl + "/gzip", raw.getUrl());
+            assertEquals(200, raw.getStatusCode());
+            assertEquals("utf-8", raw.getCharset());
+            assertEquals(ARTICLE, new String(raw.getBody(), "UTF-8"));
+
+            requests.set(0);
+            fetcher.setCache(mapCache()).setMaxConcurrent(1);
+            final List<JResult> results = Collections.synchronizedList(new ArrayList<JResult>());
+            archive.add(new RawResponse(baseUrl + "/gone", 0, 410, Collections.<String, List<String>>emptyMap(),
+                    new byte[0]));
+            final List<Throwable> errors = Collections.synchronizedList(new ArrayList<Throwable>());
+            fetcher.reExtractAll(new ArrayList<RawResponse>(archive), new FetchListener() {
+                @Override
+                public void onResult(String url, JResult res) {
+                    results.add(res);
+                }
+
+                @Override
+                public void onFailure(String url, Throwable error) {
+                    errors.add(error);
+                }
+            });
+            assertEquals(0, requests.get());
+            assertEquals(1, results.size());
+            assertEquals("Local Article", results.get(0).getTitle());
+            assertSame(results.get(0), fetcher.fetchAndExtract(baseUrl + "/gzip", 5000, false));
+            assertEquals(1, errors.size());
+            assertTrue(errors.get(0) instanceof FileNotFoundException);
+        }
+    }
+
+    @Test
+    public void testArchiveTruncatedBody() throws Exception {
+        final List<RawResponse> archive = Collections.synchronizedList(new ArrayList<RawResponse>());
+        RawStore store = new RawStore() {
+            @Override
+            public void put(RawResponse response) {
+                archive.add(response);
+            }
+
+            @Override
+            public Iterator<RawResponse> iterator() {
+                return archive.iterator();
+            }
+        };
+        for (HtmlFetcher.Engine engine : HtmlFetcher.Engine.values()) {
+            archive.clear();
+            HtmlFetcher fetcher = new HtmlFetcher() {
+                @Override
+                public Converter createConverter(String url) {
+                    return super.createConverter(url).setMaxBytes(5000);
+                }
+            }.setEngine(engine).setRawStore(store).setMaxFetchTime(1000);
+            fetcher.fetchAndExtract(baseUrl + "/article", 2000, false);
+            fetcher.fetchAndExtract(baseUrl + "/drip", 2000, false);
+            fetcher.fetchAndExtract(baseUrl + "/binary?text/html", 2000, false);
+            assertEquals(3, archive.size());
+            assertNull(archive.get(0).getTruncated());
+            assertEquals(engine.toString(), "time", archive.get(1).getTruncated());
+            assertEquals(engine.toString(), "length", archive.get(2).getTruncated());
+
+            fetcher.setCache(mapCache());
+            JResult res = fetcher.extract(archive.get(0), ExtractionRequest.of(JResult.Field.TITLE));
+            assertFalse(res.isPartial());
+            assertEquals("Local Article", res.getTitle());
+            assertEquals("", res.getText());
+
+            res = fetcher.extract(archive.get(1), ExtractionRequest.of(JResult.Field.TITLE));
+            assertTrue(res.isPartial());
+            assertEquals("Local Article", res.getTitle());
+        }
+    }
+
+    @Test
+    public void testSkipNonTextualBody() throws Exception {
+        for (HtmlFetcher.Engine engine : HtmlFetcher.Engine.values()) {
+            HtmlFetcher fetcher = new HtmlFetcher().setEngine(engine);
+            JResult res = fetcher.fetchAndExtract(baseUrl + "/binary?image/png", 5000, false);
+            assertEquals(baseUrl + "/binary?image/png", res.getImageUrl());
+            assertEquals("", res.getText());
+
+            // svg is xml, but no page
+            res = fetcher.fetchAndExtract(baseUrl + "/binary?image/svg+xml", 5000, false);
+            assertEquals(baseUrl + "/binary?image/svg+xml", res.getImageUrl());
+            assertEquals("", res.getText());
+
+            res = fetcher.fetchAndExtractAsync(baseUrl + "/binary?video/mp4", 5000, false).get();
+            assertEquals(baseUrl + "/binary?video/mp4", res.getVideoUrl());
+
+            res = fetcher.fetchAndExtract(baseUrl + "/binary?application/pdf", 5000, false);
+            assertEquals("", res.getImageUrl());
+            assertEquals("", res.getTitle());
+            assertEquals("", fetcher.fetchAsString(baseUrl + "/binary?application/pdf", 5000));
+
+            // declared length is larger than the limit
+            fetcher.setMaxContentLength(1000);
+            res = fetcher.fetchAndExtract(baseUrl + "/binary?text/html", 5000, false);
+            assertEquals("", res.getText());
+        }
+        // only what fits into the socket buffers is sent
+        assertTrue("body bytes " + bodyBytes.get(), bodyBytes.get() < 8 * BINARY_LENGTH / 2);
+    }
+
+    @Test
+    public void testMaxFetchTime() throws Exception {
+        for (HtmlFetcher.Engine engine : HtmlFetcher.Engine.values()) {
+            HtmlFetcher fetcher = new HtmlFetcher().setEngine(engine).setMaxFetchTime(1000);
+            long start = System.currentTimeMillis();
+            JResult res = fetcher.fetchAndExtract(baseUrl + "/drip", 2000, false);
+            assertTrue(engine + " took " + (System.currentTimeMillis() - start),
+                    System.currentTimeMillis() - start < 3000);
+            assertTrue(res.isPartial());
+            assertEquals("Local Article", res.getTitle());
+            assertTrue(res.getText(), res.getText().startsWith("This is the first paragraph"));
+
+            res = fetcher.fetchAndExtract(baseUrl + "/article", 2000, false);
+            assertFalse(res.isPartial());
+        }
+    }
+
+    @Test
+    public void testAdaptiveTimeouts() throws Exception {
+        for (HtmlFetcher.Engine engine : HtmlFetcher.Engine.values()) {
+            HtmlFetcher fetcher = new HtmlFetcher().setEngine(engine);
+            assertNull(fetcher.getHostStats(baseUrl));
+            for (int i = 0; i < HostStats.MIN_SAMPLES; i++) {
+                fetcher.fetchAndExtract(baseUrl + "/article", 5000, false);
+            }
+            HostStats stats = fetcher.getHostStats(baseUrl + "/article");
+            assertEquals(HostStats.MIN_SAMPLES, stats.getFirstByteTimeSamples());
+            assertSame(stats, fetcher.getAllHostStats().get(baseUrl.substring("http://".length())));
+
+            // the local server is fast so the learned timeout is below the 100ms of /slow
+            fetcher.setAdaptiveTimeouts(true).setTimeoutBounds(20, 50);
+            JResult res = fetcher.fetchAndExtract(baseUrl + "/slow", 5000, false);
+            assertEquals("", res.getTitle());
+            assertEquals(1, stats.getTimeouts());
+
+            fetcher.setAdaptiveTimeouts(false);
+            res = fetcher.fetchAndExtract(baseUrl + "/slow?2", 5000, false);
+            assertEquals("Local Article", res.getTitle());
+        }
+    }
+
+    @Test
+    public void testNotFoundWithHttpClient() throws Exception {
+        HtmlFetcher fetcher = new HtmlFetcher().setEngine(HtmlFetcher.Engine.HTTP_CLIENT);
+        try {
+            fetcher.fetchAndExtractAsync(baseUrl + "/missing", 5000, false).join();
+            fail("Must throw SnacktoryNotFoundException");
+        } catch (CompletionException ex) {
+            assertTrue(ex.getCause() instanceof SnacktoryNotFoundException);
+        }
+    }
+
+    @Test
+    public void testFetchAndExtractAllRespectsPerHostLimit() throws Exception {
+        HtmlFetcher fetcher = new HtmlFetcher().setEngine(HtmlFetcher.Engine.HTTP_CLIENT).
+                setMaxConcurrentPerHost(2).setMaxConcurrent(10);
+        List<String> urls = new ArrayList<String>();
+        for (int i = 0; i < 6; i++) {
+            urls.add(baseUrl + "/slow?i=" + i);
+        }
+        urls.add(baseUrl + "/missing");
+
+        final Map<String, JResult> results = new ConcurrentHashMap<String, JResult>();
+        final List<String> failures = Collections.synchronizedList(new ArrayList<String>());
+        fetcher.fetchAndExtractAll(urls, 5000, false, new FetchListener() {
+            @Override
+            public void onResult(String url, JResult res) {
+                results.put(url, res);
+            }
+
+            @Override
+            public void onFailure(String url, Throwable error) {
+                assertTrue(error instanceof SnacktoryNotFoundException);
+                failures.add(url);
+            }
+        }).get();
+
+        assertEquals(6, results.size());
+        assertEquals("Local Article", results.get(baseUrl + "/slow?i=3").getTitle());
+        assertEquals(Collections.singletonList(baseUrl + "/missing"), failures);
+        assertTrue("max running " + maxRunning.get(), maxRunning.get() <= 2);
+    }
+
+    @Test
+    public void testSharedSSLContextIsReused() throws Exception {
+        HtmlFetcher fetcher = new HtmlFetcher();
+        assertSame(fetcher.getSharedSSLContext(), fetcher.getSharedSSLContext());
+        HttpsURLConnection conn1 = (HttpsURLConnection)
+                fetcher.createUrlConnection("https://example.com/a", 1000, false);
+        HttpsURLConnection conn2 = (HttpsURLConnection)
+                fetcher.createUrlConnection("https://example.org/b", 1000, false);
+        assertSame(conn1.getSSLSocketFactory(), conn2.getSSLSocketFactory());
+        assertEquals(0, fetcher.getSharedSSLContext().getFullHandshakes());
+    }
+
+    @Test
+    public void testHostKey() {
+        HtmlFetcher fetcher = new HtmlFetcher();
+        assertEquals("example.com", fetcher.getHostKey("http://www.example.com/a"));
+        assertEquals("news.example.com", fetcher.getHostKey("http://news.example.com/a"));
+        fetcher.setHostGrouping(HtmlFetcher.HostGrouping.TOP_PRIVATE_DOMAIN);
+        assertEquals("example.com", fetcher.getHostKey("http://news.example.com/a"));
+        assertEquals("bbc.co.uk", fetcher.getHostKey("http://www.news.bbc.co.uk/a"));
+    }
+
+    @Test
+    public void testCircuitBreaker() throws Exception {
+        for (HtmlFetcher.Engine engine : HtmlFetcher.Engine.values()) {
+            requests.set(0);
+            HtmlFetcher fetcher = new HtmlFetcher().setEngine(engine).setCircuitBreaker(3, 300);
+            for (int i = 0; i < 5; i++) {
+                JResult res = fetcher.fetchAndExtract(baseUrl + "/error", 5000, false);
+                assertTrue(res.isFailed());
+                if (i >= 3)
+                    assertTrue(res.getError(), res.getError().contains("Circuit breaker open"));
+            }
+            assertEquals(3, requests.get());
+            CircuitBreaker breaker = fetcher.getHostStats(baseUrl).getCircuitBreaker();
+            assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+
+            // missing pages do not count as failure of the host
+            Thread.sleep(400);
+            try {
+                fetcher.fetchAndExtract(baseUrl + "/missing", 5000, false);
+                fail("Must throw SnacktoryNotFoundException");
+            } catch (SnacktoryNotFoundException ex) {
+            }
+            assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+            assertEquals("Local Article", fetcher.fetchAndExtract(baseUrl + "/article", 5000, false).getTitle());
+        }
+    }
+
+    @Test
+    public void testCircuitBreakerStates() {
+        CircuitBreaker breaker = new CircuitBreaker();
+        breaker.onFailure(0, 2, 100);
+        assertTrue(breaker.tryAcquire(0));
+        breaker.onFailure(0, 2, 100);
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+        assertFalse(breaker.tryAcquire(99));
+        // only one trial request after the cool-down
+        assertTrue(breaker.tryAcquire(100));
+        assertFalse(breaker.tryAcquire(100));
+        // a failing trial opens the breaker again
+        breaker.onFailure(100, 2, 100);
+        assertFalse(breaker.tryAcquire(150));
+        assertTrue(breaker.tryAcquire(200));
+        breaker.onSuccess();
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+        assertEquals(0, breaker.getConsecutiveFailures());
+    }
+
+    @Test
+    public void testNegativeCache() throws Exception {
+        for (HtmlFetcher.Engine engine : HtmlFetcher.Engine.values()) {
+            requests.set(0);
+            HtmlFetcher fetcher = new HtmlFetcher().setEngine(engine).setCache(mapCache())
+                    .setNegativeCacheTtl(5 * 60 * 1000);
+            for (int i = 0; i < 2; i++) {
+                try {
+                    fetcher.fetchAndExtractAsync(baseUrl + "/missing", 5000, false).join();
+                    fail("Must throw SnacktoryNotFoundException");
+                } catch (CompletionException ex) {
+                    assertTrue(ex.getCause() instanceof SnacktoryNotFoundException);
+                }
+            }
+            assertEquals(1, requests.get());
+
+            JResult res = fetcher.fetchAndExtract(baseUrl + "/error", 5000, false);
+            assertTrue(res.isFailed());
+            assertTrue(res.getExpires() > System.currentTimeMillis());
+            assertSame(res, fetcher.fetchAndExtract(baseUrl + "/error", 5000, false));
+            assertEquals(2, requests.get());
+
+            // expired entries are downloaded again
+            fetcher = new HtmlFetcher().setEngine(engine).setCache(mapCache()).setNegativeCacheTtl(0);
+            try {
+                fetcher.fetchAndExtract(baseUrl + "/missing", 5000, false);
+                fail("Must throw SnacktoryNotFoundException");
+            } catch (SnacktoryNotFoundException ex) {
+            }
+            assertEquals(3, requests.get());
+            try {
+                fetcher.fetchAndExtract(baseUrl + "/missing", 5000, false);
+                fail("Must throw SnacktoryNotFoundException");
+            } catch (SnacktoryNotFoundException ex) {
+            }
+            assertEquals(4, requests.get());
+        }
+    }
+
+    @Test
+    public void testFailureKeepsCachedResult() throws Exception {
+        for (HtmlFetcher.Engine engine : HtmlFetcher.Engine.values()) {
+            SCache cache = mapCache();
+            String url = baseUrl + "/error";
+            JResult good = new JResult().setUrl(url).setTitle("Good Article");
+            good.setExpires(System.currentTimeMillis() - 1);
+            cache.put(url, good);
+
+            HtmlFetcher fetcher = new HtmlFetcher().setEngine(engine).setCache(cache)
+                    .setNegativeCacheTtl(5 * 60 * 1000);
+            assertTrue(fetcher.fetchAndExtract(url, 5000, false).isFailed());
+            assertSame(good, cache.get(url));
+
+            // without a negative cache nothing is stored
+            cache = mapCache();
+            fetcher = new HtmlFetcher().setEngine(engine).setCache(cache);
+            assertTrue(fetcher.fetchAndExtract(url, 5000, false).isFailed());
+            assertNull(cache.get(url));
+        }
+    }
+
+    @Test
+    public void testConcurrentFetchesAreCoalesced() throws Exception {
+        ExecutorService pool = Executors.newFixedThreadPool(2);
+        for (HtmlFetcher.Engine engine : HtmlFetcher.Engine.values()) {
+            requests.set(0);
+            gate = new CountDownLatch(1);
+            final HtmlFetcher fetcher = new HtmlFetcher().setEngine(engine).setCache(mapCache());
+            final String url = baseUrl + "/gate";
+            List<CompletableFuture<JResult>> futures = new ArrayList<CompletableFuture<JResult>>();
+            for (int i = 0; i < 4; i++) {
+                if (i % 2 == 0) {
+                    futures.add(fetcher.fetchAndExtractAsync(url, 5000, false));
+                } else {
+                    futures.add(CompletableFuture.supplyAsync(() -> {
+                        try {
+                            return fetcher.fetchAndExtract(url, 5000, false);
+                        } catch (Exception ex) {
+                            throw new CompletionException(ex);
+                        }
+                    }, pool));
+                }
+            }
+
+            long end = System.currentTimeMillis() + 5000;
+            while (fetcher.getCoalescedCounter() < 3 && System.currentTimeMillis() < end) {
+                Thread.sleep(10);
+            }
+            // nobody may see the result before the page arrived
+            assertNull(fetcher.getCache().get(url));
+            gate.countDown();
+
+            JResult res = futures.get(0).get();
+            assertEquals("Local Article", res.getTitle());
+            for (CompletableFuture<JResult> future : futures) {
+                assertSame(res, future.get());
+            }
+            assertEquals(1, requests.get());
+            assertEquals(3, fetcher.getCoalescedCounter());
+
+            // after the flight the result comes from the cache
+            assertSame(res, fetcher.fetchAndExtract(url, 5000, false));
+            assertEquals(1, requests.get());
+            assertEquals(1, fetcher.getCacheCounter());
+            assertEquals(1, fetcher.getCacheStats().hitCount());
+        }
+        pool.shutdown();
+    }
+
+    @Test
+    public void testForceReloadIsNotCoalesced() throws Exception {
+        for (HtmlFetcher.Engine engine : HtmlFetcher.Engine.values()) {
+            requests.set(0);
+            gate = new CountDownLatch(1);
+            HtmlFetcher fetcher = new HtmlFetcher().setEngine(engine).setCache(mapCache());
+            String url = baseUrl + "/gate";
+            CompletableFuture<JResult> normal = fetcher.fetchAndExtractAsync(url, 5000, false);
+            CompletableFuture<JResult> reload = fetcher.fetchAndExtractAsync(url, 5000, false,
+                    ExtractionRequest.all(), true);
+            long end = System.currentTimeMillis() + 5000;
+            while (requests.get() < 2 && System.currentTimeMillis() < end) {
+                Thread.sleep(10);
+            }
+            gate.countDown();
+
+            assertEquals("Local Article", normal.get().getTitle());
+            assertEquals("Local Article", reload.get().getTitle());
+            assertEquals(2, requests.get());
+            assertEquals(0, fetcher.getCoalescedCounter());
+        }
+    }
+}
@@ -0,0 +1,87 @@
+package de.jetwick.snacktory;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+
+/**
+ * Compares JResultCodec with Java serialization for a few extracted pages.
+ * Run the main method, the arguments are optional test resources.
+ */
+public class JResultCodecBenchmark {
+
+    static final int ROUNDS = 20000;
+
+    public static void main(String[] args) throws Exception {
+        if (args.length == 0)
+            args = new String[]{"cnn.html", "nyt.html", "wikipedia.html"};
+
+        for (String file : args) {
+            String html = new Converter().streamToString(JResultCodecBenchmark.class.getResourceAsStream(file));
+            JResult res = new ArticleTextExtractor().extractContent(html);
+            System.out.println(file + " text:" + res.getText().length() + " links:" + res.getLinks().size()
+                    + " images:" + res.getImagesCount());
+
+            JResultCodec codec = new JResultCodec().setCompressThreshold(2048);
+            JResultCodec uncompressed = new JResultCodec();
+            System.out.println("  size serializable:" + serialize(res).length + " codec:" + codec.encode(res).length
+                    + " uncompressed codec:" + uncompressed.encode(res).length);
+
+            // the first run is the warm up
+            for (int run = 0; run < 2; run++) {
+                String serializable = benchSerializable(res);
+                String compressedCodec = bench(codec, res);
+                String uncompressedCodec = bench(uncompressed, res);
+                if (run == 1) {
+                    System.out.println("  serializable " + serializable);
+                    System.out.println("  codec " + compressedCodec);
+                    System.out.println("  uncompressed codec " + uncompressedCodec);
+                }
+            }
+        }
+    }
+
+    static String benchSerializable(JResult res) throws Exception {
+        long start = System.nanoTime();
+        byte[] bytes = null;
+        for (int i = 0; i < ROUNDS; i++) {
+            bytes = serialize(res);
+        }
+        long written = System.nanoTime();
+        for (int i = 0; i < ROUNDS; i++) {
+            deserialize(bytes);
+        }
+        return format(start, written, System.nanoTime());
+    }
+
+    static String bench(JResultCodec codec, JResult res) throws Exception {
+        long start = System.nanoTime();
+        byte[] bytes = null;
+        for (int i = 0; i < ROUNDS; i++) {
+            bytes = codec.encode(res);
+        }
+        long written = System.nanoTime();
+        for (int i = 0; i < ROUNDS; i++) {
+            codec.decode(bytes);
+        }
+        return format(start, written, System.nanoTime());
+    }
+
+    static String format(long start, long written, long read) {
+        return "write:" + (written - start) / ROUNDS + "ns read:" + (read - written) / ROUNDS + "ns";
+    }
+
+    static byte[] serialize(JResult res) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(bytes);
+        out.writeObject(res);
+        out.close();
+        return bytes.toByteArray();
+    }
+
+    static JResult deserialize(byte[] bytes) throws Exception {
+        return (JResult) new ObjectInputStream(new ByteArrayInputStream(bytes)).readObject();
+    }
+}
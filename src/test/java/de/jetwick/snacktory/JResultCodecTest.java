@@ -0,0 +1,119 @@
+package de.jetwick.snacktory;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.EnumSet;
+
+import static org.junit.Assert.*;
+
+public class JResultCodecTest {
+
+    static JResult createResult(String text) {
+        JResult res = new JResult().setUrl("http://example.com/a").setOriginalUrl("http://t.co/x").
+                setCanonicalUrl("http://example.com/a?canonical").setTitle("Some Title äöü").setText(text).
+                setDescription("desc").setImageUrl("http://example.com/a.jpg").setAuthorName("Peter").
+                setDate(new Date(1234567890123L)).setEtag("\"v1\"").setPartial(true).setExpires(42);
+        res.setKeywords(Arrays.asList("one", "two"));
+        res.setImages(Arrays.asList(new ImageResult("http://example.com/a.jpg", -3, "title", 100, 200, "alt", true),
+                new ImageResult("http://example.com/b.jpg", null, null, 0, 0, null, false)));
+        res.addLink("http://example.com/link", "", 12);
+        res.setRedirects(Arrays.asList("http://t.co/x"));
+        res.setSitename("Example");
+        return res;
+    }
+
+    static void assertResultEquals(JResult expected, JResult res) {
+        assertEquals(expected.getUrl(), res.getUrl());
+        assertEquals(expected.getOriginalUrl(), res.getOriginalUrl());
+        assertEquals(expected.getCanonicalUrl(), res.getCanonicalUrl());
+        assertEquals(expected.getTitle(), res.getTitle());
+        assertEquals(expected.getText(), res.getText());
+        assertEquals(expected.getDescription(), res.getDescription());
+        assertEquals(expected.getImageUrl(), res.getImageUrl());
+        assertEquals(expected.getAuthorName(), res.getAuthorName());
+        assertEquals(expected.getDate(), res.getDate());
+        assertEquals(expected.getKeywords(), res.getKeywords());
+        assertEquals(expected.getLinks(), res.getLinks());
+        assertEquals(expected.getRedirects(), res.getRedirects());
+        assertEquals(expected.getSitename(), res.getSitename());
+        assertEquals(expected.getEtag(), res.getEtag());
+        assertEquals(expected.isPartial(), res.isPartial());
+        assertEquals(expected.getExpires(), res.getExpires());
+        assertEquals(expected.getImagesCount(), res.getImagesCount());
+        for (int i = 0; i < expected.getImagesCount(); i++) {
+            ImageResult image = expected.getImages().get(i);
+            ImageResult image2 = res.getImages().get(i);
+            assertEquals(image.src, image2.src);
+            assertEquals(image.weight, image2.weight);
+            assertEquals(image.title, image2.title);
+            assertEquals(image.height, image2.height);
+            assertEquals(image.width, image2.width);
+            assertEquals(image.alt, image2.alt);
+            assertEquals(image.noFollow, image2.noFollow);
+        }
+    }
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        JResultCodec codec = new JResultCodec();
+        JResult res = createResult("Some short text");
+        assertResultEquals(res, codec.decode(codec.encode(res)));
+
+        JResult empty = codec.decode(codec.encode(new JResult()));
+        assertEquals("", empty.getTitle());
+        assertNull(empty.getDate());
+        assertEquals(0, empty.getImagesCount());
+    }
+
+    @Test
+    public void testFields() throws Exception {
+        JResultCodec codec = new JResultCodec();
+        JResult res = createResult("text").setFields(EnumSet.of(JResult.Field.TEXT, JResult.Field.TITLE));
+        assertEquals(EnumSet.of(JResult.Field.TEXT, JResult.Field.TITLE), codec.decode(codec.encode(res)).getFields());
+        assertEquals(EnumSet.allOf(JResult.Field.class), codec.decode(codec.encode(createResult("text"))).getFields());
+    }
+
+    @Test
+    public void testCompressedText() throws Exception {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 500; i++) {
+            sb.append("This is sentence number ").append(i).append(". ");
+        }
+        JResult res = createResult(sb.toString());
+        JResultCodec codec = new JResultCodec().setCompressThreshold(2048);
+        byte[] compressed = codec.encode(res);
+        byte[] plain = codec.setCompressThreshold(0).encode(res);
+        assertTrue(compressed.length * 2 < plain.length);
+        assertResultEquals(res, codec.decode(compressed));
+        assertResultEquals(res, codec.decode(plain));
+    }
+
+    @Test
+    public void testUnknownFieldsAreSkipped() throws Exception {
+        JResultCodec codec = new JResultCodec();
+        byte[] bytes = codec.encode(createResult("text"));
+        // a newer writer appended a varint field 100, a fixed64 field 101
+        // and a bytes field 102
+        byte[] extra = {(byte) 0xA0, 0x06, (byte) 0x96, 0x01,
+                (byte) 0xA9, 0x06, 1, 2, 3, 4, 5, 6, 7, 8,
+                (byte) 0xB2, 0x06, 2, 'h', 'i'};
+        byte[] newer = Arrays.copyOf(bytes, bytes.length + extra.length);
+        System.arraycopy(extra, 0, newer, bytes.length, extra.length);
+        newer[0] = JResultCodec.VERSION + 1;
+        assertResultEquals(createResult("text"), codec.decode(newer));
+    }
+
+    @Test
+    public void testTruncatedData() {
+        JResultCodec codec = new JResultCodec();
+        byte[] bytes = codec.encode(createResult("text"));
+        try {
+            codec.decode(Arrays.copyOf(bytes, bytes.length - 1));
+            fail("Must throw IOException");
+        } catch (IOException ex) {
+        }
+    }
+}
@@ -0,0 +1,112 @@
+package de.jetwick.snacktory;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class MappedFileCacheTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    static JResult result(String url, String title) {
+        JResult res = new JResult().setUrl(url).setTitle(title).setText("Some text of " + title);
+        res.addLink("http://example.com/link", "link", 3);
+        res.setImages(Arrays.asList(new ImageResult("http://example.com/a.jpg", 10, "image", 100, 200,
+                "alt", false)));
+        return res;
+    }
+
+    @Test
+    public void testPutAndGet() throws Exception {
+        MappedFileCache cache = new MappedFileCache(folder.getRoot(), 4096, 0);
+        cache.put("http://example.com/1", result("http://example.com/1", "first"));
+        JResult res = cache.get("http://example.com/1");
+        assertEquals("first", res.getTitle());
+        assertEquals("Some text of first", res.getText());
+        assertEquals("http://example.com/link", res.getLinks().get(0).get("url"));
+        assertEquals(200, res.getImages().get(0).width);
+        assertNull(cache.get("http://example.com/2"));
+        assertEquals(1, cache.getSize());
+
+        cache.put("http://example.com/1", result("http://example.com/1", "second"));
+        assertEquals("second", cache.get("http://example.com/1").getTitle());
+        assertEquals(1, cache.getSize());
+
+        cache.put("http://example.com/failed", new JResult().setError("failed").setExpires(1));
+        assertNull(cache.get("http://example.com/failed"));
+        cache.close();
+    }
+
+    @Test
+    public void testReopen() throws Exception {
+        MappedFileCache cache = new MappedFileCache(folder.getRoot(), 4096, 0);
+        for (int i = 0; i < 100; i++) {
+            cache.put("http://example.com/" + i, result("http://example.com/" + i, "title " + i));
+        }
+        cache.put("http://example.com/5", result("http://example.com/5", "new title"));
+        assertTrue(cache.getSegmentCount() > 1);
+        cache.close();
+
+        cache = new MappedFileCache(folder.getRoot(), 4096, 0);
+        assertEquals(100, cache.getSize());
+        assertEquals("title 99", cache.get("http://example.com/99").getTitle());
+        assertEquals("new title", cache.get("http://example.com/5").getTitle());
+        cache.close();
+    }
+
+    @Test
+    public void testCompaction() throws Exception {
+        MappedFileCache cache = new MappedFileCache(folder.getRoot(), 4096, 0);
+        for (int j = 0; j < 10; j++) {
+            for (int i = 0; i < 10; i++) {
+                cache.put("http://example.com/" + i, result("http://example.com/" + i, "title " + i + " " + j));
+            }
+        }
+        long diskSize = cache.getDiskSize();
+        assertTrue(cache.compact() > 0);
+        assertTrue(cache.getDiskSize() < diskSize);
+        for (int i = 0; i < 10; i++) {
+            assertEquals("title " + i + " 9", cache.get("http://example.com/" + i).getTitle());
+        }
+        cache.close();
+
+        cache = new MappedFileCache(folder.getRoot(), 4096, 0);
+        assertEquals(10, cache.getSize());
+        assertEquals("title 3 9", cache.get("http://example.com/3").getTitle());
+        cache.close();
+    }
+
+    @Test
+    public void testRecoverFromIncompleteRecord() throws Exception {
+        MappedFileCache cache = new MappedFileCache(folder.getRoot(), 64 * 1024, 0);
+        cache.put("http://example.com/1", result("http://example.com/1", "first"));
+        long end = cache.getLiveBytes();
+        cache.put("http://example.com/2", result("http://example.com/2", "second"));
+        cache.close();
+
+        // simulate a crash while the second record was written
+        File segment = folder.getRoot().listFiles()[0];
+        RandomAccessFile raf = new RandomAccessFile(segment, "rw");
+        raf.seek(end + 100);
+        raf.write(new byte[]{1, 2, 3, 4});
+        raf.close();
+
+        cache = new MappedFileCache(folder.getRoot(), 64 * 1024, 0);
+        assertEquals("first", cache.get("http://example.com/1").getTitle());
+        assertNull(cache.get("http://example.com/2"));
+        assertEquals(1, cache.getSize());
+
+        cache.put("http://example.com/3", result("http://example.com/3", "third"));
+        cache.close();
+        cache = new MappedFileCache(folder.getRoot(), 64 * 1024, 0);
+        assertEquals("third", cache.get("http://example.com/3").getTitle());
+        cache.close();
+    }
+}
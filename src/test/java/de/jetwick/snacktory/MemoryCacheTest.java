@@ -0,0 +1,158 @@
+package de.jetwick.snacktory;
+
+import java.util.Arrays;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class MemoryCacheTest {
+
+    static JResult result(String url, int textLength) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < textLength; i++) {
+            sb.append('x');
+        }
+        return new JResult().setUrl(url).setText(sb.toString());
+    }
+
+    @Test
+    public void testWeigh() {
+        int empty = MemoryCache.weigh(new JResult());
+        assertTrue(MemoryCache.weigh(result("http://a.com", 1000)) > empty + 2000);
+        JResult res = new JResult();
+        res.addLink("http://a.com/link", "some link", 5);
+        assertTrue(MemoryCache.weigh(res) > empty);
+    }
+
+    @Test
+    public void testMaximumWeight() {
+        MemoryCache cache = new MemoryCache(100000);
+        for (int i = 0; i < 14; i++) {
+            String url = "http://a.com/" + i;
+            // the later urls are requested more often so they pass the
+            // admission
+            for (int j = 0; j <= i; j++) {
+                cache.get(url);
+            }
+            cache.put(url, result(url, 5000));
+            assertTrue("weight " + cache.getWeight(), cache.getWeight() <= 100000);
+        }
+        assertTrue(cache.getSize() < 14);
+        assertTrue(cache.getStats().evictionCount() > 0);
+        assertNotNull(cache.get("http://a.com/13"));
+        assertNull(cache.get("http://a.com/0"));
+    }
+
+    @Test
+    public void testFrequentEntryIsNotEvicted() {
+        MemoryCache cache = new MemoryCache(35000);
+        String hot = "http://a.com/hot";
+        for (int j = 0; j < 8; j++) {
+            cache.get(hot);
+        }
+        cache.put(hot, result(hot, 5000));
+        // the hot entry is the least recently used one, but requested more
+        // often than the new urls
+        for (int i = 0; i < 20; i++) {
+            String url = "http://a.com/" + i;
+            cache.get(url);
+            cache.get(url);
+            cache.put(url, result(url, 5000));
+        }
+        assertEquals(3, cache.getSize());
+        assertNotNull(cache.get(hot));
+        assertEquals(0, cache.getStats().evictionCount());
+
+        // a url which is requested more often than the least recently used
+        // entry replaces it
+        String url = "http://a.com/new";
+        for (int j = 0; j < 4; j++) {
+            cache.get(url);
+        }
+        cache.put(url, result(url, 5000));
+        assertNotNull(cache.get(url));
+        assertNotNull(cache.get(hot));
+        assertNull(cache.get("http://a.com/0"));
+        assertEquals(1, cache.getStats().evictionCount());
+    }
+
+    @Test
+    public void testAdmission() {
+        MemoryCache cache = new MemoryCache(200000);
+        for (int i = 0; i < 10; i++) {
+            String url = "http://hot.com/" + i;
+            for (int j = 0; j < 3; j++) {
+                cache.get(url);
+            }
+            cache.put(url, result(url, 1000));
+        }
+        // one hit wonders do not push out the hot urls of a full cache
+        for (int i = 0; i < 500; i++) {
+            String url = "http://cold.com/" + i;
+            cache.get(url);
+            cache.put(url, result(url, 1000));
+            if (i % 10 == 0) {
+                for (int j = 0; j < 10; j++) {
+                    assertNotNull(cache.get("http://hot.com/" + j));
+                }
+            }
+        }
+        assertTrue(cache.getRejectedCount() > 0);
+        assertTrue("weight " + cache.getWeight(), cache.getWeight() <= 200000);
+
+        // a url which is requested more often than the least recently used
+        // entries is admitted
+        assertNull(cache.get("http://cold.com/499"));
+        assertNull(cache.get("http://cold.com/499"));
+        cache.put("http://cold.com/499", result("http://cold.com/499", 1000));
+        assertNotNull(cache.get("http://cold.com/499"));
+    }
+
+    @Test
+    public void testExpiry() throws Exception {
+        MemoryCache cache = new MemoryCache(1000000, 0, 50);
+        cache.put("http://a.com", result("http://a.com", 10));
+        assertNotNull(cache.get("http://a.com"));
+        Thread.sleep(100);
+        assertNull(cache.get("http://a.com"));
+
+        // results which expire themselves like failed downloads
+        cache.put("http://b.com", new JResult().setError("failed").setExpires(System.currentTimeMillis() - 1));
+        assertNull(cache.get("http://b.com"));
+        assertEquals(0, cache.getSize());
+    }
+
+    @Test
+    public void testAliases() {
+        MemoryCache cache = new MemoryCache(1000000);
+        JResult res = result("http://a.com/article", 1000);
+        cache.put("http://a.com/article", res, Arrays.asList("http://a.com/?p=1", "http://a.com/article?amp"));
+        assertEquals(3, cache.getSize());
+        // the result is weighed once
+        assertEquals(MemoryCache.weigh(res) + 2 * MemoryCache.ALIAS_WEIGHT, cache.getWeight());
+        assertSame(res, cache.get("http://a.com/?p=1"));
+        assertSame(res, cache.get("http://a.com/article?amp"));
+
+        // the aliases see the new result
+        JResult res2 = result("http://a.com/article", 10);
+        cache.put("http://a.com/article", res2);
+        assertSame(res2, cache.get("http://a.com/?p=1"));
+
+        // and are dropped with it
+        cache.put("http://a.com/article", new JResult().setError("failed").setExpires(System.currentTimeMillis() - 1));
+        assertNull(cache.get("http://a.com/?p=1"));
+        assertNull(cache.get("http://a.com/article?amp"));
+        assertEquals(0, cache.getSize());
+        assertEquals(0, cache.getWeight());
+    }
+
+    @Test
+    public void testStats() {
+        MemoryCache cache = new MemoryCache(1000000);
+        cache.get("http://a.com");
+        cache.put("http://a.com", result("http://a.com", 10));
+        cache.get("http://a.com");
+        assertEquals(1, cache.getStats().hitCount());
+        assertEquals(1, cache.getStats().missCount());
+    }
+}
@@ -34,4 +34,27 @@ public class OutputFormatterTest {
         formatter.appendTextSkipHidden(doc, sb, 0);
         assertEquals("test", sb.toString());
     }
+
+    @Test
+    public void testRemoveNegativeWithoutContext() {
+        String html = "<html><body><div><p>The first paragraph of the article is long enough to be kept by "
+                + "the formatter.</p><p>The second paragraph of the article is also long enough to be kept.</p>"
+                + "<li>Buy the premium subscription now and read everything.</li></div></body></html>";
+        OutputFormatter formatter = new OutputFormatter();
+        Document doc = Jsoup.parse(html);
+        String text = formatter.getFormattedText(doc.select("div").first(), true);
+        assertTrue(text, text.startsWith("The first paragraph"));
+        assertFalse(text, text.contains("premium"));
+
+        doc = Jsoup.parse(html);
+        text = formatter.getFormattedText(doc.select("div").first(), false);
+        assertTrue(text, text.contains("premium"));
+
+        // the scores of the deprecated attribute based API
+        doc = Jsoup.parse(html);
+        new ArticleTextExtractor().setScore(doc.select("p").get(1), -10);
+        text = formatter.getFormattedText(doc.select("div").first(), true);
+        assertFalse(text, text.contains("second paragraph"));
+        assertTrue(text, text.contains("premium"));
+    }
 }
@@ -0,0 +1,48 @@
+package de.jetwick.snacktory;
+
+import java.util.regex.Pattern;
+import org.jsoup.Jsoup;
+import org.jsoup.nodes.Document;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class PatternClassifierTest {
+
+    private static Pattern p(String str) {
+        return Pattern.compile(str, Pattern.CASE_INSENSITIVE);
+    }
+
+    @Test
+    public void testClassify() {
+        PatternClassifier classifier = new PatternClassifier(p("menu"), p("^content|article"), p("articlebody"),
+                p("nav($|igation)|foot"), p("^signupbox$"), p("^credits$"));
+        assertEquals(0, classifier.classify(""));
+        assertEquals(0, classifier.classify("my-content"));
+        assertEquals(PatternClassifier.POSITIVE, classifier.classify("content"));
+        assertEquals(PatternClassifier.POSITIVE | PatternClassifier.HIGHLY_POSITIVE,
+                classifier.classify("ArticleBody"));
+        assertEquals(PatternClassifier.UNLIKELY | PatternClassifier.NEGATIVE, classifier.classify("menu footer"));
+        assertEquals(PatternClassifier.HIGHLY_NEGATIVE, classifier.classify("signupbox"));
+        assertTrue(classifier.matches("credits", PatternClassifier.TO_REMOVE));
+        assertFalse(classifier.matches("credits", PatternClassifier.NEGATIVE));
+        // remembered
+        assertEquals(PatternClassifier.UNLIKELY | PatternClassifier.NEGATIVE, classifier.classify("menu footer"));
+    }
+
+    @Test
+    public void testChangedPatternsAfterExtraction() throws Exception {
+        String html = "<html><body><div class=\"teaser\"><p>This is a teaser which should not be the article "
+                + "text but it is the longest of them.</p><p>And a second teaser paragraph which is long "
+                + "enough to be counted.</p></div><div class=\"blurb\"><p>The real article text is here.</p></div>"
+                + "</body></html>";
+        ArticleTextExtractor extractor = new ArticleTextExtractor();
+        JResult res = extractor.extractContent(html);
+        assertTrue(res.getText(), res.getText().startsWith("This is a teaser"));
+
+        // the remembered classification of the class names must not be used
+        extractor.setToRemove("^teaser$");
+        res = extractor.extractContent(html);
+        assertEquals("The real article text is here.", res.getText());
+    }
+}
@@ -55,6 +55,23 @@ public class SHelperTest {
         assertEquals("people", SHelper.getLongestSubstring(" people ", "people"));
     }
 
+    @Test
+    public void testContentType() {
+        assertEquals("text/html", SHelper.getMediaType("Text/HTML; charset=UTF-8"));
+        assertTrue(SHelper.isTextContentType("text/html; charset=utf-8"));
+        assertTrue(SHelper.isTextContentType("application/xhtml+xml"));
+        assertTrue(SHelper.isTextContentType(null));
+        assertTrue(SHelper.isTextContentType("text/xml"));
+        assertTrue(SHelper.isTextContentType("application/rss+xml; charset=utf-8"));
+        assertTrue(SHelper.isTextContentType("application/atom+xml"));
+        assertFalse(SHelper.isTextContentType("image/svg+xml"));
+        assertFalse(SHelper.isTextContentType("application/pdf"));
+        assertFalse(SHelper.isTextContentType("application/octet-stream"));
+        assertTrue(SHelper.isImageContentType("image/jpeg"));
+        assertTrue(SHelper.isVideoContentType("video/mp4"));
+        assertTrue(SHelper.isAudioContentType("audio/mpeg"));
+    }
+
     @Test
     public void testHashbang() {
         assertEquals("sdfiasduhf+asdsad+sdfsdf#!", SHelper.removeHashbang("sdfiasduhf+asdsad#!+sdfsdf#!"));
@@ -0,0 +1,64 @@
+package de.jetwick.snacktory;
+
+import org.jsoup.Jsoup;
+import org.jsoup.nodes.Document;
+import org.jsoup.nodes.Element;
+import org.jsoup.select.Elements;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class ScoringContextTest {
+
+    @Test
+    public void testDefaults() {
+        Element p = Jsoup.parse("<p>text</p>").select("p").first();
+        ScoringContext scores = new ScoringContext();
+        assertFalse(scores.hasScore(p));
+        assertEquals(0, scores.getScore(p));
+        assertEquals(-1, scores.getParagraphIndex(p));
+        assertFalse(scores.isContentExtracted(p));
+
+        scores.addScore(p, -30);
+        scores.addScore(p, 5);
+        assertTrue(scores.hasScore(p));
+        assertEquals(-25, scores.getScore(p));
+        assertEquals(-1, scores.getParagraphIndex(p));
+    }
+
+    @Test
+    public void testNodesWithSameContent() {
+        // jsoup considers them equal, but they have their own scores
+        Document doc = Jsoup.parse("<div><p>same</p><p>same</p></div>");
+        Elements ps = doc.select("p");
+        assertEquals(ps.get(0), ps.get(1));
+
+        ScoringContext scores = new ScoringContext();
+        scores.setScore(ps.get(0), 10);
+        scores.setParagraphIndex(ps.get(1), 1);
+        assertEquals(10, scores.getScore(ps.get(0)));
+        assertFalse(scores.hasScore(ps.get(1)));
+        assertEquals(-1, scores.getParagraphIndex(ps.get(0)));
+        assertEquals(1, scores.getParagraphIndex(ps.get(1)));
+    }
+
+    @Test
+    public void testGrow() {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 1000; i++) {
+            sb.append("<p>").append(i).append("</p>");
+        }
+        Elements ps = Jsoup.parse(sb.toString()).select("p");
+        ScoringContext scores = new ScoringContext(4);
+        for (int i = 0; i < ps.size(); i++) {
+            scores.setScore(ps.get(i), i);
+            if (i % 2 == 0)
+                scores.setContentExtracted(ps.get(i));
+        }
+        assertEquals(1000, scores.size());
+        for (int i = 0; i < ps.size(); i++) {
+            assertEquals(i, scores.getScore(ps.get(i)));
+            assertEquals(i % 2 == 0, scores.isContentExtracted(ps.get(i)));
+        }
+    }
+}
@@ -0,0 +1,48 @@
+package de.jetwick.snacktory;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class UrlNormalizerTest {
+
+    @Test
+    public void testNormalize() {
+        UrlNormalizer normalizer = new UrlNormalizer();
+        assertEquals("http://www.example.com/news?a=1&b=2",
+                normalizer.normalize("HTTP://www.EXAMPLE.com:80/news/?b=2&utm_source=rss&a=1&utm_medium=feed#top"));
+        assertEquals("https://example.com/", normalizer.normalize("https://Example.com:443"));
+        assertEquals("https://example.com:8443/", normalizer.normalize("https://example.com:8443/"));
+        assertEquals("http://example.com/a", normalizer.normalize("http://example.com/a?fbclid=abc&gclid=x"));
+        assertEquals("http://example.com/a?q", normalizer.normalize("http://example.com/a?&q&"));
+        // the path and the user info are case sensitive
+        assertEquals("http://User@example.com/Path", normalizer.normalize("http://User@Example.COM/Path"));
+        // repeated parameters keep their order
+        assertEquals("http://example.com/?a=2&a=1&b=1", normalizer.normalize("http://example.com/?b=1&a=2&a=1"));
+    }
+
+    @Test
+    public void testFragments() {
+        UrlNormalizer normalizer = new UrlNormalizer();
+        assertEquals("http://example.com/#!/news/1", normalizer.normalize("http://example.com/#!/news/1"));
+        assertEquals("http://example.com/page#part",
+                normalizer.setRemoveFragment(false).normalize("http://example.com/page#part"));
+    }
+
+    @Test
+    public void testConfiguration() {
+        UrlNormalizer normalizer = new UrlNormalizer().setSortQuery(false).setRemoveTrailingSlash(false).
+                addTrackingParam("SessionId").addTrackingParamPrefix("pk_");
+        assertEquals("http://example.com/news/?b=2&a=1",
+                normalizer.normalize("http://example.com/news/?b=2&sessionid=7&pk_campaign=x&a=1"));
+    }
+
+    @Test
+    public void testNoHttpUrl() {
+        UrlNormalizer normalizer = new UrlNormalizer();
+        assertEquals("", normalizer.normalize(""));
+        assertNull(normalizer.normalize(null));
+        assertEquals("/relative/path?b=1&a=2", normalizer.normalize("/relative/path?b=1&a=2#x"));
+        assertEquals("ftp://Example.com/file/", normalizer.normalize("ftp://Example.com/file/"));
+    }
+}
@@ -0,0 +1,165 @@
+package de.jetwick.snacktory;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.Assert.*;
+
+public class WarcRawStoreTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    static RawResponse response(String url, String body) throws Exception {
+        Map<String, List<String>> headers = new LinkedHashMap<String, List<String>>();
+        headers.put(null, Collections.singletonList("HTTP/1.1 200 OK"));
+        headers.put("Content-Type", Collections.singletonList("text/html; charset=ISO-8859-1"));
+        headers.put("Content-Encoding", Collections.singletonList("gzip"));
+        headers.put("Set-Cookie", Arrays.asList("a=1", "b=2"));
+        return new RawResponse(url, 1500000000000L, 200, headers, body.getBytes("ISO-8859-1"));
+    }
+
+    static List<RawResponse> list(Iterable<RawResponse> responses) {
+        List<RawResponse> list = new ArrayList<RawResponse>();
+        for (RawResponse res : responses) {
+            list.add(res);
+        }
+        return list;
+    }
+
+    @Test
+    public void testPutAndIterate() throws Exception {
+        WarcRawStore store = new WarcRawStore(folder.getRoot());
+        store.put(response("http://example.com/1", "<html>café</html>"));
+        store.put(response("http://example.com/2", ""));
+
+        List<RawResponse> list = list(store);
+        assertEquals(2, list.size());
+        RawResponse res = list.get(0);
+        assertEquals("http://example.com/1", res.getUrl());
+        assertEquals(1500000000000L, res.getDate());
+        assertEquals(200, res.getStatusCode());
+        assertEquals("iso-8859-1", res.getCharset());
+        assertEquals("<html>café</html>", new String(res.getBody(), "ISO-8859-1"));
+        assertEquals(Arrays.asList("a=1", "b=2"), res.getHeaders().get("set-cookie"));
+        // the body is stored decoded
+        assertNull(res.getHeader("Content-Encoding"));
+        assertEquals("17", res.getHeader("Content-Length"));
+        assertEquals(0, list.get(1).getBody().length);
+        store.close();
+
+        // reopening starts a new file
+        store = new WarcRawStore(folder.getRoot());
+        store.put(response("http://example.com/3", "third"));
+        assertEquals(2, store.getFiles().size());
+        list = list(store);
+        assertEquals(3, list.size());
+        assertEquals("http://example.com/3", list.get(2).getUrl());
+        store.close();
+    }
+
+    @Test
+    public void testTruncated() throws Exception {
+        WarcRawStore store = new WarcRawStore(folder.getRoot());
+        RawResponse complete = response("http://example.com/1", "<html>complete</html>");
+        store.put(complete);
+        store.put(new RawResponse("http://example.com/2", 0, 200, complete.getHeaders(),
+                "<html>cut".getBytes("ISO-8859-1"), "length"));
+
+        List<RawResponse> list = list(store);
+        assertFalse(list.get(0).isTruncated());
+        assertNull(list.get(0).getTruncated());
+        assertTrue(list.get(1).isTruncated());
+        assertEquals("length", list.get(1).getTruncated());
+        assertEquals("<html>cut", new String(list.get(1).getBody(), "ISO-8859-1"));
+        store.close();
+    }
+
+    @Test
+    public void testMaxFileSize() throws Exception {
+        WarcRawStore store = new WarcRawStore(folder.getRoot(), 100);
+        for (int i = 0; i < 5; i++) {
+            store.put(response("http://example.com/" + i, "page " + i));
+        }
+        assertEquals(5, store.getFiles().size());
+        List<RawResponse> list = list(store);
+        assertEquals(5, list.size());
+        assertEquals("http://example.com/4", list.get(4).getUrl());
+        store.close();
+    }
+
+    @Test
+    public void testReadPlainWarc() throws Exception {
+        String http = "HTTP/1.0 404 Not Found\r\nContent-Type: text/html\r\n\r\nmissing";
+        String warc = "WARC/1.0\r\nWARC-Type: warcinfo\r\nContent-Length: 5\r\n\r\ninfo!\r\n\r\n"
+                + "WARC/1.0\r\nWARC-Type: response\r\nWARC-Target-URI: <http://example.com/missing>\r\n"
+                + "Content-Length: " + http.length() + "\r\n\r\n" + http + "\r\n\r\n";
+        WarcReader reader = new WarcReader(new ByteArrayInputStream(warc.getBytes("ISO-8859-1")));
+        assertTrue(reader.hasNext());
+        RawResponse res = reader.next();
+        assertEquals("http://example.com/missing", res.getUrl());
+        assertEquals(404, res.getStatusCode());
+        assertEquals("missing", new String(res.getBody(), "ISO-8859-1"));
+        assertFalse(reader.hasNext());
+        reader.close();
+    }
+
+    @Test
+    public void testDecodeCutGzip() throws Exception {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 2000; i++) {
+            sb.append("line ").append(i).append('\n');
+        }
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        GZIPOutputStream gzip = new GZIPOutputStream(bos);
+        gzip.write(sb.toString().getBytes("ISO-8859-1"));
+        gzip.close();
+        byte[] cut = Arrays.copyOf(bos.toByteArray(), bos.size() / 2);
+
+        Map<String, List<String>> headers = new LinkedHashMap<String, List<String>>();
+        headers.put("Content-Encoding", new ArrayList<String>(Collections.singletonList("gzip")));
+        String decoded = new String(WarcReader.decode(headers, cut), "ISO-8859-1");
+        assertTrue(decoded, decoded.startsWith("line 0\nline 1\n"));
+        assertTrue(sb.toString().startsWith(decoded));
+
+        // nothing can be decoded
+        headers.put("Content-Encoding", new ArrayList<String>(Collections.singletonList("gzip")));
+        assertEquals("plain", new String(WarcReader.decode(headers, "plain".getBytes("ISO-8859-1")), "ISO-8859-1"));
+    }
+
+    @Test
+    public void testSkipLargeRecords() throws Exception {
+        StringBuilder request = new StringBuilder();
+        for (int i = 0; i < 100000; i++) {
+            request.append("x");
+        }
+        String http = "HTTP/1.1 200 OK\r\nContent-Type: text/html\r\n\r\nbody";
+        String warc = "WARC/1.0\r\nWARC-Type: request\r\nContent-Length: " + request.length() + "\r\n\r\n"
+                + request + "\r\n\r\n"
+                + "WARC/1.0\r\nWARC-Type: response\r\nWARC-Target-URI: http://example.com/\r\n"
+                + "Content-Length: " + http.length() + "\r\n\r\n" + http + "\r\n\r\n"
+                + "WARC/1.0\r\nWARC-Type: metadata\r\nContent-Length: 10\r\n\r\nshort";
+        WarcReader reader = new WarcReader(new ByteArrayInputStream(warc.getBytes("ISO-8859-1")));
+        RawResponse res = reader.read();
+        assertEquals("http://example.com/", res.getUrl());
+        assertEquals("body", new String(res.getBody(), "ISO-8859-1"));
+        try {
+            reader.read();
+            fail("the metadata record is incomplete");
+        } catch (EOFException ex) {
+        }
+        reader.close();
+    }
+}